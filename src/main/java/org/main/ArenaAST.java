@@ -0,0 +1,457 @@
+package org.main;
+
+import java.util.*;
+
+/**
+ * ArenaAST 是化简后语法树（和 {@link ExtendedASTBuilder} 建出的 {@link ExtendedASTNode} 树形状相同）的紧凑表示。
+ * <p>
+ * 每个结点只占几个 int 数组里的一格：结点类型、父结点、第一个子结点、下一个兄弟结点和终结符对应的 token 下标，
+ * 结点编号就是数组下标。终结符的值和行号不单独保存，需要时从 {@link TokenBuffer} 里取。
+ * 不是从 token 得到的终结符（比如由已经建好的 {@link ExtendedASTNode} 树转换而来的）才把值和行号另外存起来。
+ * 结点上的属性放在按属性名分开的附加表里（{@link Attribute}、{@link IntAttribute}），
+ * 只有用到的属性才会分配，没有属性的结点不占额外的空间。
+ * </p>
+ * <p>
+ * 通过 {@link Cursor} 在树上移动和读写属性，一个游标可以走遍整棵树，遍历时不需要创建任何对象。
+ * </p>
+ */
+final class ArenaAST {
+    static final int NONE = -1; // 没有对应的结点
+    private static final int LITERAL = -2; // token 不大于它时，LITERAL - token 是 literalValues 中的下标
+
+    private final TokenBuffer tokens;
+    private final List<String> typeNames = new ArrayList<>(); // 结点类型编号 -> 类型名
+    private final Map<String, Integer> typeIds = new HashMap<>();
+    private int[] type = new int[1024];
+    private int[] parent = new int[1024];
+    private int[] firstChild = new int[1024];
+    private int[] nextSibling = new int[1024];
+    private int[] token = new int[1024]; // 终结符对应的 token 下标，非终结符为 NONE
+    private int size;
+    private int root = NONE;
+    private final List<String> literalValues = new ArrayList<>(); // 不是从 token 得到的终结符的值
+    private int[] literalLines = new int[0]; // 和 literalValues 对应的行号
+
+    private ArenaAST(TokenBuffer tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * 把已经建好的化简后的语法树（比如 {@link ParallelParser} 的结果）转换成 ArenaAST。
+     */
+    static ArenaAST of(ExtendedASTNode rootNode) {
+        Builder builder = new Builder(null);
+        // 用显式的栈遍历，很长的语句列表不会加深调用栈
+        Deque<ExtendedASTNode> open = new ArrayDeque<>();
+        Deque<Iterator<ExtendedASTNode>> path = new ArrayDeque<>();
+        builder.enterNonTerminal(rootNode.getType());
+        open.push(rootNode);
+        path.push(rootNode.getChildren().iterator());
+        while (!path.isEmpty()) {
+            if (!path.peek().hasNext()) {
+                path.pop();
+                builder.exitNonTerminal(open.pop().getType());
+                continue;
+            }
+            ExtendedASTNode node = path.peek().next();
+            if (node.isTerminal()) {
+                builder.terminal(node.getType(), node.getValue(), node.getLineNumber());
+            } else {
+                builder.enterNonTerminal(node.getType());
+                open.push(node);
+                path.push(node.getChildren().iterator());
+            }
+        }
+        return builder.getTree();
+    }
+
+    /**
+     * @return 结点个数
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return 类型编号的个数，编号从 0 开始连续分配（见 {@link Cursor#getTypeId()}）
+     */
+    int typeCount() {
+        return typeNames.size();
+    }
+
+    /**
+     * @return 指向根结点的游标
+     */
+    Cursor cursor() {
+        return new Cursor(root);
+    }
+
+    void printTree() {
+        printTree(cursor(), 0);
+    }
+
+    private void printTree(Cursor node, int level) {
+        int at = node.node();
+        StringBuilder sb = new StringBuilder();
+        sb.append("  ".repeat(Math.max(0, level)));
+        if (node.isTerminal()) {
+            sb.append(node.getType()).append(": ").append(node.getValue()).append(" (Line: ").append(node.getLineNumber()).append(") ").append("[Terminal]");
+        } else {
+            sb.append(node.getType()).append(": ").append("[Non-terminal]");
+        }
+        System.out.println(sb.toString());
+        for (boolean more = node.toFirstChild(); more; more = node.toNextSibling()) {
+            printTree(node, level + 1);
+        }
+        node.moveTo(at); // 回到调用时的结点
+    }
+
+    private int newNode(String typeName, int tokenIndex) {
+        if (size == type.length) {
+            int capacity = size * 2;
+            type = Arrays.copyOf(type, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            token = Arrays.copyOf(token, capacity);
+        }
+        type[size] = typeId(typeName);
+        parent[size] = NONE;
+        firstChild[size] = NONE;
+        nextSibling[size] = NONE;
+        token[size] = tokenIndex;
+        return size++;
+    }
+
+    /**
+     * 新建一个值和行号另外保存的终结符。
+     */
+    private int newLiteral(String typeName, String value, int lineNumber) {
+        int literal = literalValues.size();
+        if (literal == literalLines.length) {
+            literalLines = Arrays.copyOf(literalLines, Math.max(16, literal * 2));
+        }
+        literalValues.add(value);
+        literalLines[literal] = lineNumber;
+        return newNode(typeName, LITERAL - literal);
+    }
+
+    private int typeId(String typeName) {
+        Integer id = typeIds.get(typeName);
+        if (id == null) {
+            id = typeNames.size();
+            typeIds.put(typeName, id);
+            typeNames.add(typeName);
+        }
+        return id;
+    }
+
+    private int lastChild(int node) {
+        int child = firstChild[node];
+        if (child == NONE) return NONE;
+        while (nextSibling[child] != NONE) child = nextSibling[child];
+        return child;
+    }
+
+    /**
+     * 把 child 放到 node 的子结点的最后（after 为 NONE 时放在最前面，否则放在 after 后面）。
+     */
+    private void insertChild(int node, int child, int after) {
+        parent[child] = node;
+        if (after == NONE) {
+            nextSibling[child] = firstChild[node];
+            firstChild[node] = child;
+        } else {
+            nextSibling[child] = nextSibling[after];
+            nextSibling[after] = child;
+        }
+    }
+
+    /**
+     * 结点上的一种属性，值保存在按结点编号索引的数组里，第一次写入时才分配。
+     */
+    static final class Attribute<T> {
+        private Object[] values;
+
+        @SuppressWarnings("unchecked")
+        T get(int node) {
+            return values == null || node >= values.length ? null : (T) values[node];
+        }
+
+        void set(int node, T value) {
+            if (values == null || node >= values.length) {
+                values = Arrays.copyOf(values == null ? new Object[0] : values, Math.max(node + 1, values == null ? 16 : values.length * 2));
+            }
+            values[node] = value;
+        }
+    }
+
+    /**
+     * 整数类型的属性，没有写入过的结点读出 defaultValue。
+     */
+    static final class IntAttribute {
+        private final int defaultValue;
+        private int[] values;
+
+        IntAttribute(int defaultValue) {
+            this.defaultValue = defaultValue;
+        }
+
+        int get(int node) {
+            return values == null || node >= values.length ? defaultValue : values[node];
+        }
+
+        void set(int node, int value) {
+            if (values == null || node >= values.length) {
+                int old = values == null ? 0 : values.length;
+                values = Arrays.copyOf(values == null ? new int[0] : values, Math.max(node + 1, old == 0 ? 16 : old * 2));
+                Arrays.fill(values, old, values.length, defaultValue);
+            }
+            values[node] = value;
+        }
+    }
+
+    /**
+     * 树上的游标，指向一个结点，可以移动到父结点、子结点和兄弟结点。
+     * 移动失败时游标停在原来的结点上。
+     */
+    final class Cursor {
+        private int node;
+
+        private Cursor(int node) {
+            this.node = node;
+        }
+
+        /**
+         * @return 当前结点的编号，可以用来读写属性，或者之后用 {@link #moveTo} 回到这里
+         */
+        int node() {
+            return node;
+        }
+
+        void moveTo(int node) {
+            this.node = node;
+        }
+
+        Cursor copy() {
+            return new Cursor(node);
+        }
+
+        String getType() {
+            return typeNames.get(type[node]);
+        }
+
+        /**
+         * @return 结点类型的编号，只在这棵树里有效，从 0 开始连续分配
+         */
+        int getTypeId() {
+            return type[node];
+        }
+
+        boolean isTerminal() {
+            return token[node] != NONE;
+        }
+
+        /**
+         * @return 终结符的值，非终结符为 null
+         */
+        String getValue() {
+            int t = token[node];
+            if (t == NONE) return null;
+            return t >= 0 ? tokens.text(t) : literalValues.get(LITERAL - t);
+        }
+
+        /**
+         * @return 终结符所在的行号，非终结符为-1
+         */
+        int getLineNumber() {
+            int t = token[node];
+            if (t == NONE) return -1;
+            return t >= 0 ? tokens.line(t) : literalLines[LITERAL - t];
+        }
+
+        boolean toParent() {
+            return moveIfPresent(parent[node]);
+        }
+
+        boolean toFirstChild() {
+            return moveIfPresent(firstChild[node]);
+        }
+
+        boolean toNextSibling() {
+            return moveIfPresent(nextSibling[node]);
+        }
+
+        /**
+         * 移动到第 index 个（从 0 开始）子结点。
+         */
+        boolean toChild(int index) {
+            for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+                if (index-- == 0) {
+                    node = child;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 移动到第 index 个（从 0 开始）类型为 childType 的子结点。
+         */
+        boolean toChild(String childType, int index) {
+            Integer id = typeIds.get(childType);
+            if (id == null) return false;
+            for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+                if (type[child] == id && index-- == 0) {
+                    node = child;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int childCount() {
+            int count = 0;
+            for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) count++;
+            return count;
+        }
+
+        <T> T get(Attribute<T> attribute) {
+            return attribute.get(node);
+        }
+
+        <T> void set(Attribute<T> attribute, T value) {
+            attribute.set(node, value);
+        }
+
+        int get(IntAttribute attribute) {
+            return attribute.get(node);
+        }
+
+        void set(IntAttribute attribute, int value) {
+            attribute.set(node, value);
+        }
+
+        private boolean moveIfPresent(int target) {
+            if (target == NONE) return false;
+            node = target;
+            return true;
+        }
+    }
+
+    /**
+     * 在语法分析的同时建立 ArenaAST，规则和 {@link ExtendedASTBuilder} 相同。
+     * 结点在 enter 时分配，分析完毕时才接到父结点下面，方便处理消除左递归引入的 X'。
+     */
+    static final class Builder implements ParseListener {
+        private final ArenaAST tree;
+        private int[] open = new int[64]; // 正在分析的非终结符
+        private int[] lastChild = new int[64]; // 正在分析的非终结符目前的最后一个子结点
+        private int depth;
+
+        /**
+         * @param tokens 终结符所在的 TokenBuffer，一般是 {@link Lexer#getTokens()}；只收到带值的终结符时可以为 null
+         */
+        Builder(TokenBuffer tokens) {
+            this.tree = new ArenaAST(tokens);
+        }
+
+        /**
+         * @return 建好的树；出现语法错误时会有多棵树，只保留最后一棵
+         */
+        ArenaAST getTree() {
+            return tree;
+        }
+
+        /**
+         * @return 是否建好了一棵树，语法分析没有读到任何终结符时没有
+         */
+        boolean hasTree() {
+            return tree.root != NONE;
+        }
+
+        @Override
+        public void enterNonTerminal(String type) {
+            if (depth == open.length) {
+                open = Arrays.copyOf(open, depth * 2);
+                lastChild = Arrays.copyOf(lastChild, depth * 2);
+            }
+            open[depth] = tree.newNode(type, NONE);
+            lastChild[depth] = NONE;
+            depth++;
+        }
+
+        @Override
+        public void exitNonTerminal(String type) {
+            depth--;
+            int node = open[depth];
+            int last = lastChild[depth];
+            Integer helper = tree.typeIds.get(type + "'");
+            if (last != NONE && helper != null && tree.type[last] == helper) {
+                node = simplifyRightRecursion(node, last);
+            }
+            if (depth == 0) {
+                tree.root = node;
+            } else {
+                append(node);
+            }
+        }
+
+        @Override
+        public void terminal(String type, Lexer.Token token) {
+            append(tree.newNode(type, token.getIndex()));
+        }
+
+        @Override
+        public void terminal(String type, String value, int lineNumber) {
+            append(tree.newLiteral(type, value, lineNumber));
+        }
+
+        private void append(int child) {
+            int top = depth - 1;
+            tree.insertChild(open[top], child, lastChild[top]);
+            lastChild[top] = child;
+        }
+
+        /**
+         * 和 {@link ExtendedASTBuilder} 中的同名方法相同：X : a X'1，X'1 : b X'2，……，X'j : z。
+         * 每个 X'i 都改名为 X，并把最后一个子结点 X'(i+1) 移到最前面；
+         * X'j 的最前面放一个由 a 组成的新结点 X，最后返回 X'1。
+         */
+        private int simplifyRightRecursion(int node, int first) {
+            int[] type = tree.type;
+            int nodeType = type[node];
+            int helper = tree.typeId(tree.typeNames.get(nodeType) + "'");
+            int last = first;
+            type[last] = nodeType;
+            int tail = tree.lastChild(last);
+            while (tail != NONE && type[tail] == helper) {
+                // 把 tail 从 last 的子结点末尾移到最前面
+                int before = tree.firstChild[last];
+                if (before != tail) {
+                    while (tree.nextSibling[before] != tail) before = tree.nextSibling[before];
+                    tree.nextSibling[before] = NONE;
+                    tree.insertChild(last, tail, NONE);
+                }
+                last = tail;
+                type[last] = nodeType;
+                tail = tree.lastChild(last);
+            }
+            if (tree.firstChild[node] != first) {
+                // a 是 node 除了最后一个 X'1 以外的子结点
+                int inner = tree.newNode(tree.typeNames.get(nodeType), NONE);
+                int child = tree.firstChild[node];
+                int previous = NONE;
+                while (child != first) {
+                    int next = tree.nextSibling[child];
+                    tree.insertChild(inner, child, previous);
+                    previous = child;
+                    child = next;
+                }
+                tree.insertChild(last, inner, NONE);
+            }
+            tree.firstChild[node] = NONE;
+            return first;
+        }
+    }
+}
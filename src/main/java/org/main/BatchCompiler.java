@@ -0,0 +1,335 @@
+package org.main;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * 在同一个 JVM 中批量编译大量程序。
+ * <p>
+ * 词法文件、语法文件和模板（见 {@link CompiledLanguage}）只加载一次，所有文件共用；
+ * 每个文件有自己的 {@link CompilationContext}，在固定大小的线程池中并行编译，互不影响。
+ * 文件之间已经并行，所以单个文件内部不再并行做词法分析。
+ * </p>
+ * <p>
+ * 每个编译成功的文件在输出目录中得到同名（相对于输入目录）的 .py 代码和简化后的 CFG（.cfg.json），
+ * 清单中不在清单目录下的文件按绝对路径放在输出目录的 {@value #EXTERNAL_DIR} 下面。
+ * 所有文件的结果、错误信息和各阶段用时汇总在输出目录的 summary.json 中。
+ * </p>
+ * <p>
+ * 语义分析按语法树递归，嵌套很深的程序需要较大的栈。每个编译线程的栈默认是 {@value #DEFAULT_STACK_MEGABYTES} MB，
+ * 可以通过系统属性 {@code mylang.batch.stack}（单位 MB）修改。所有线程的栈加起来要占这么多倍于线程数的地址空间，
+ * 线程很多时不要设得太大。
+ * </p>
+ */
+public class BatchCompiler {
+    static final String SUMMARY_FILE = "summary.json";
+    static final String EXTERNAL_DIR = "_external";
+    private static final String STACK_PROPERTY = "mylang.batch.stack";
+    private static final int DEFAULT_STACK_MEGABYTES = 64;
+
+    /**
+     * 一个文件的编译结果
+     */
+    enum Status {
+        OK, LEXICAL_ERROR, SYNTAX_ERROR, SEMANTIC_ERROR, FAILED
+    }
+
+    static final class Result {
+        final String file; // 相对于输入目录的路径
+        Status status;
+        String diagnostics = ""; // 这个文件输出的全部错误信息
+        long lexNanos;
+        long parseNanos;
+        long semanticNanos;
+        long outputNanos;
+        long totalNanos;
+        SemanticsHandler handler; // 编译成功时的语义分析结果，用来取出代码和 CFG；写出之后置为 null
+
+        Result(String file) {
+            this.file = file;
+        }
+    }
+
+    private final Path outputDir;
+    private final int threads;
+    private final long stackSize;
+
+    /**
+     * @param outputDir 输出目录，不存在时创建
+     * @param threads   同时编译的文件数
+     */
+    public BatchCompiler(Path outputDir, int threads) {
+        if (threads < 1) {
+            throw new RuntimeException("线程数必须大于 0：" + threads);
+        }
+        this.outputDir = outputDir;
+        this.threads = threads;
+        String stack = System.getProperty(STACK_PROPERTY, String.valueOf(DEFAULT_STACK_MEGABYTES));
+        try {
+            this.stackSize = Long.parseLong(stack.trim()) << 20;
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("无法识别的栈大小（单位 MB）：" + stack);
+        }
+        if (stackSize <= 0) {
+            throw new RuntimeException("栈大小必须大于 0：" + stack);
+        }
+    }
+
+    /**
+     * 列出要编译的文件。
+     *
+     * @param input 目录（其中所有的 .txt 文件，包括子目录）或者清单文件（每行一个路径，相对路径相对于清单所在的目录，
+     *              空行和 # 开头的行忽略）
+     * @return 要编译的文件，按路径排序
+     */
+    static List<Path> listInputs(Path input) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (Files.isDirectory(input)) {
+            try (Stream<Path> paths = Files.walk(input)) {
+                paths.filter(path -> Files.isRegularFile(path) && path.toString().endsWith(".txt")).forEach(files::add);
+            }
+        } else {
+            Path base = input.toAbsolutePath().getParent();
+            for (String line : Files.readAllLines(input, StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    files.add(base.resolve(line));
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * 编译 input 指定的全部文件，写出每个文件的结果和汇总。
+     *
+     * @param input 目录或者清单文件，见 {@link #listInputs(Path)}
+     * @return 每个文件的编译结果，顺序和 {@link #listInputs(Path)} 相同
+     */
+    public List<Result> compileAll(Path input) throws IOException, InterruptedException {
+        List<Path> files = listInputs(input);
+        Path base = (Files.isDirectory(input) ? input : input.toAbsolutePath().getParent()).toAbsolutePath().normalize();
+        Files.createDirectories(outputDir);
+        CompiledLanguage.load(); // 在开始计时之前加载文法和模板
+
+        long start = System.nanoTime();
+        AtomicInteger workerCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads,
+                task -> new Thread(null, task, "compiler-" + workerCount.incrementAndGet(), stackSize));
+        List<Future<Result>> futures = new ArrayList<>();
+        Map<String, Path> outputs = new HashMap<>(); // 输出文件名（不含扩展名）-> 第一个使用它的输入文件
+        for (Path file : files) {
+            Path relative = outputPath(base, file);
+            Path previous = outputs.putIfAbsent(outputName(relative), file);
+            if (previous != null) {
+                // 同一个文件在清单中出现了两次，或者 x 和 x.txt 这样会写到同一个输出文件的两个文件
+                Result result = new Result(relative.toString());
+                result.status = Status.FAILED;
+                result.diagnostics = "输出文件和 " + previous + " 的相同，没有编译" + System.lineSeparator();
+                futures.add(CompletableFuture.completedFuture(result));
+                continue;
+            }
+            futures.add(pool.submit(() -> compile(file, relative)));
+        }
+        List<Result> results = new ArrayList<>();
+        try {
+            for (Future<Result> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException("批量编译的线程出错", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        writeSummary(results, System.nanoTime() - start);
+        return results;
+    }
+
+    /**
+     * @return 输入文件在输出目录中的相对路径：输入目录（或清单所在的目录）下的文件是相对于它的路径，
+     * 其他文件是 {@value #EXTERNAL_DIR} 加上绝对路径，不同的文件不会写到同一个地方
+     */
+    static Path outputPath(Path base, Path file) {
+        Path absolute = file.toAbsolutePath().normalize();
+        if (absolute.startsWith(base)) {
+            return base.relativize(absolute);
+        }
+        Path relative = Path.of(EXTERNAL_DIR);
+        Path root = absolute.getRoot();
+        if (root != null && !root.toString().equals(root.getFileSystem().getSeparator())) {
+            relative = relative.resolve(root.toString().replaceAll("[^A-Za-z0-9]", "")); // Windows 的盘符
+        }
+        for (Path name : absolute) {
+            relative = relative.resolve(name.toString());
+        }
+        return relative;
+    }
+
+    /**
+     * @return 输出文件去掉扩展名的路径，.py 和 .cfg.json 都由它加上扩展名得到
+     */
+    private static String outputName(Path relative) {
+        String name = relative.toString();
+        return name.endsWith(".txt") ? name.substring(0, name.length() - 4) : name;
+    }
+
+    /**
+     * 编译一个文件，写出代码和 CFG，错误信息收集到结果中，不输出到控制台。
+     */
+    Result compile(Path file, Path relative) {
+        SourceText text;
+        try {
+            text = SourceText.read(file.toString());
+        } catch (IOException e) {
+            Result result = new Result(relative.toString());
+            result.status = Status.FAILED;
+            result.diagnostics = "无法读取文件：" + file + System.lineSeparator() + e + System.lineSeparator();
+            return result;
+        }
+        String name = outputName(relative);
+        Path code = outputDir.resolve(name + ".py");
+        Result result;
+        try {
+            // 生成的代码在语义分析时直接写进文件，编译失败时删除
+            Files.createDirectories(code.toAbsolutePath().getParent());
+            try (Writer out = Files.newBufferedWriter(code, StandardCharsets.UTF_8)) {
+                result = compile(relative.toString(), text, out);
+            }
+            if (result.status != Status.OK) {
+                Files.deleteIfExists(code);
+                return result;
+            }
+        } catch (IOException e) {
+            result = new Result(relative.toString());
+            result.status = Status.FAILED;
+            result.diagnostics = "无法写出文件：" + code + System.lineSeparator() + e + System.lineSeparator();
+            return result;
+        }
+        long start = System.nanoTime();
+        SemanticsHandler semanticsHandler = result.handler;
+        result.handler = null; // 结果要保留到写出汇总，CFG 不需要一直占着内存
+        try {
+            CFGSimplifier.simplifyCFG(semanticsHandler.getCfg(), semanticsHandler.getEntryNode(), semanticsHandler.getExitNode());
+            CFG.exportToJson(semanticsHandler.getCfg(), outputDir.resolve(name + ".cfg.json").toString());
+        } catch (Exception | StackOverflowError e) {
+            result.status = Status.FAILED;
+            result.diagnostics += e + System.lineSeparator();
+        }
+        result.outputNanos = System.nanoTime() - start;
+        result.totalNanos += result.outputNanos;
+        return result;
+    }
+
+    /**
+     * 在当前线程中编译一段源文本：词法分析、语法分析和语义分析，错误信息收集到结果中，不输出到控制台。
+     * 成功时 {@link Result#handler} 中是语义分析的结果（CFG 还没有简化），由调用者决定怎样输出。
+     *
+     * @param name 文件名，只用来标识结果
+     * @param code 语义分析时生成的代码直接写到这里，编译不成功时其中的内容不完整
+     */
+    static Result compile(String name, SourceText text, Writer code) {
+        Result result = new Result(name);
+        ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+        CompilationContext context = new CompilationContext();
+        context.setErr(new PrintStream(diagnostics, true, StandardCharsets.UTF_8));
+        long start = System.nanoTime();
+        long mark = start;
+        try {
+            Lexer lexer = new Lexer(CompiledLanguage.LEXER_GRAMMAR_FILE, context);
+            lexer.setParallel(false);
+            lexer.analyze(text);
+            result.lexNanos = System.nanoTime() - mark;
+            mark += result.lexNanos;
+            if (lexer.hasErrors()) {
+                result.status = Status.LEXICAL_ERROR;
+                return result;
+            }
+
+            Parser parser = new Parser(lexer);
+            ArenaAST.Builder tree = new ArenaAST.Builder(lexer.getTokens());
+            parser.analyze(CompiledLanguage.PARSER_GRAMMAR_FILE, tree);
+            result.parseNanos = System.nanoTime() - mark;
+            mark += result.parseNanos;
+            if (parser.hasErrors() || !tree.hasTree()) {
+                result.status = Status.SYNTAX_ERROR;
+                return result;
+            }
+
+            SemanticsHandler semanticsHandler = new SemanticsHandler(tree.getTree(), context);
+            semanticsHandler.analyzeSemantics(code);
+            result.semanticNanos = System.nanoTime() - mark;
+            if (!context.getSemanticErrors().isEmpty()) {
+                result.status = Status.SEMANTIC_ERROR;
+                return result;
+            }
+            result.handler = semanticsHandler;
+            result.status = Status.OK;
+        } catch (Exception | StackOverflowError e) {
+            result.status = Status.FAILED;
+            e.printStackTrace(context.getErr());
+        } finally {
+            result.totalNanos = System.nanoTime() - start;
+            result.diagnostics = diagnostics.toString(StandardCharsets.UTF_8);
+        }
+        return result;
+    }
+
+    /**
+     * 把所有文件的结果和用时写入 summary.json。
+     */
+    private void writeSummary(List<Result> results, long wallNanos) throws IOException {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (Status status : Status.values()) counts.put(status.name(), 0);
+        long lex = 0, parse = 0, semantic = 0, output = 0;
+        List<Map<String, Object>> files = new ArrayList<>();
+        for (Result result : results) {
+            counts.merge(result.status.name(), 1, Integer::sum);
+            lex += result.lexNanos;
+            parse += result.parseNanos;
+            semantic += result.semanticNanos;
+            output += result.outputNanos;
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("file", result.file);
+            entry.put("status", result.status.name());
+            entry.put("totalMillis", millis(result.totalNanos));
+            entry.put("lexMillis", millis(result.lexNanos));
+            entry.put("parseMillis", millis(result.parseNanos));
+            entry.put("semanticMillis", millis(result.semanticNanos));
+            entry.put("outputMillis", millis(result.outputNanos));
+            if (!result.diagnostics.isEmpty()) {
+                entry.put("errors", result.diagnostics);
+            }
+            files.add(entry);
+        }
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("files", results.size());
+        summary.put("threads", threads);
+        summary.put("status", counts);
+        summary.put("wallMillis", millis(wallNanos));
+        summary.put("filesPerSecond", wallNanos == 0 ? 0 : Math.round(results.size() * 1e10 / wallNanos) / 10.0);
+        summary.put("lexMillis", millis(lex));
+        summary.put("parseMillis", millis(parse));
+        summary.put("semanticMillis", millis(semantic));
+        summary.put("outputMillis", millis(output));
+        summary.put("results", files);
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT)
+                .writeValue(outputDir.resolve(SUMMARY_FILE).toFile(), summary);
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1e3) / 1e3;
+    }
+}
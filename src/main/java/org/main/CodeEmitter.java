@@ -0,0 +1,77 @@
+package org.main;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * 生成代码的输出：语义动作按程序的顺序逐行写出代码，直接写入 Writer（标准输出、文件或者内存），
+ * 不再在每个语法树结点上保存一份代码、再一层层拼接到父结点上。每个字符只写一次，用时和生成的代码长度成正比，
+ * 内存中也不会同时有多份生成的代码。
+ * <p>
+ * 缩进层数记在这里：{@link #indent()} 和 {@link #dedent()} 改变之后写出的行的缩进，每一层缩进是一个制表符。
+ * 一个 CodeEmitter 只属于一次编译。
+ * </p>
+ */
+public final class CodeEmitter {
+    private final Writer out;
+    private int indentationLevel;
+    private String indentation = ""; // 当前缩进层数对应的制表符
+
+    /**
+     * @param out 生成的代码写到这里，需要时由调用者加上缓冲
+     */
+    public CodeEmitter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * 按当前的缩进写出一行代码，末尾换行。
+     */
+    public void line(String line) {
+        write(indentation);
+        write(line);
+        write("\n");
+    }
+
+    /**
+     * 写出一个不带缩进的空行。
+     */
+    public void newLine() {
+        write("\n");
+    }
+
+    public void indent() {
+        indentationLevel++;
+        indentation = "\t".repeat(indentationLevel);
+    }
+
+    public void dedent() {
+        if (indentationLevel > 0) {
+            indentationLevel--;
+            indentation = "\t".repeat(indentationLevel);
+        }
+    }
+
+    /**
+     * @return 当前的缩进层数
+     */
+    public int getIndentationLevel() {
+        return indentationLevel;
+    }
+
+    public void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("写出生成的代码失败", e);
+        }
+    }
+
+    private void write(String text) {
+        try {
+            out.write(text);
+        } catch (IOException e) {
+            throw new RuntimeException("写出生成的代码失败", e);
+        }
+    }
+}
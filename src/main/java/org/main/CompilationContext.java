@@ -0,0 +1,87 @@
+package org.main;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一次编译的全部可变状态：源文件、符号表、全局属性、语义错误和 CFG 中临时变量的编号。
+ * 生成代码时的缩进由 {@link CodeEmitter} 记录。
+ * <p>
+ * 词法分析器创建时带上（见 {@link Lexer#Lexer(String, CompilationContext)}），语义分析从词法分析器取出同一个对象
+ * （见 {@link SemanticsHandler#SemanticsHandler(ArenaAST, CompilationContext)}）。
+ * 不同的编译使用不同的 CompilationContext，互不影响，可以在同一个进程的多个线程中同时编译多个程序。
+ * 一个 CompilationContext 只属于一次编译，不能在多个线程之间共享。
+ * </p>
+ * <p>
+ * 编译好的文法和模板（见 {@link CompiledLanguage}）是只读的，所有编译共用，不在这里。
+ * </p>
+ */
+public final class CompilationContext {
+    SourceText source; // 当前源文件的内容和行索引，供报错和生成代码注释时取出整行内容
+    private final Map<String, Object> globalAttributes = new HashMap<>();
+    private final Map<String, SymbolInfo> symbolTable = new HashMap<>(); // 全局符号表
+    final List<SemanticsHandler.SemanticError> semanticErrors = new ArrayList<>();
+    private int uniqueIdCounter; // 计数器，确保这次编译中生成的临时变量名唯一
+    private PrintStream err; // 词法、语法和语义错误的输出，为 null 时输出到 System.err
+
+    /**
+     * 获取当前源文件中某一行的内容，用于错误提示和生成的代码注释。
+     *
+     * @param lineNumber 行号，从1开始
+     * @return 该行的内容（不包含换行符）
+     */
+    public String lineText(int lineNumber) {
+        return source.lineText(lineNumber);
+    }
+
+    // 设置全局属性
+    public void setGlobalAttribute(String key, Object value) {
+        globalAttributes.put(key, value);
+    }
+
+    // 获取全局属性
+    public Object getGlobalAttribute(String key) {
+        return globalAttributes.get(key);
+    }
+
+    // 方法来添加符号到符号表
+    public SymbolInfo addSymbol(String identifier) {
+        symbolTable.put(identifier, new SymbolInfo(identifier));
+        return symbolTable.get(identifier);
+    }
+
+    // 方法来获取符号信息
+    public SymbolInfo getSymbol(String identifier) {
+        return symbolTable.get(identifier);
+    }
+
+    // 方法来检查符号是否已存在
+    public boolean symbolExists(String identifier) {
+        return symbolTable.containsKey(identifier);
+    }
+
+    public List<SemanticsHandler.SemanticError> getSemanticErrors() {
+        return semanticErrors;
+    }
+
+    public int generateUniqueId() {
+        return uniqueIdCounter++;
+    }
+
+    /**
+     * @return 错误信息的输出，没有设置时是 System.err
+     */
+    public PrintStream getErr() {
+        return err != null ? err : System.err;
+    }
+
+    /**
+     * 把这次编译的错误信息输出到 err，比如批量编译时每个文件分别收集（见 {@link BatchCompiler}）。
+     */
+    public void setErr(PrintStream err) {
+        this.err = err;
+    }
+}
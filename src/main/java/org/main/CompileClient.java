@@ -0,0 +1,162 @@
+package org.main;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.*;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 编译服务（见 {@link CompileServer}）的命令行客户端，参数、输出和退出码都和 {@link Main} 相同：
+ * 生成的代码输出到标准输出，错误信息输出到标准错误，CFG 写到 src/main/resources/output 中。
+ * 编译时抛出异常的话输出服务端的异常栈，退出码为 1，和 {@link Main} 中没有捕获的异常一样。
+ * <p>
+ * 编译在服务中完成，客户端只读取源文件、发送请求和写出结果。服务没有运行时直接在本进程中编译。
+ * 服务地址由系统属性 mylang.server 指定，格式见 {@link CompileServer#parseAddress(String)}。
+ * </p>
+ */
+public class CompileClient {
+    static final String OUTPUT_DIR = "src/main/resources/output";
+
+    private final SocketAddress address;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public CompileClient(SocketAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * 发送一个请求，等待响应。
+     *
+     * @throws IOException 无法连接服务或者连接中断
+     */
+    Map<?, ?> request(Map<String, Object> request) throws IOException {
+        try (SocketChannel channel = CompileServer.connect(address);
+             Writer out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+             BufferedReader in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8))) {
+            out.write(mapper.writeValueAsString(request));
+            out.write('\n');
+            out.flush();
+            String line = in.readLine();
+            if (line == null) {
+                throw new EOFException("编译服务没有返回结果");
+            }
+            return mapper.readValue(line, Map.class);
+        }
+    }
+
+    /**
+     * 编译一个文件，和 {@link Main#fast(String)} 的输出相同。
+     *
+     * @return 编译时是否没有抛出异常，有词法、语法或语义错误时也返回 true
+     */
+    public boolean fast(String inputFile) throws IOException {
+        Map<?, ?> response = request(sourceRequest(inputFile, "compile"));
+        System.err.print(response.get("errors"));
+        if (!BatchCompiler.Status.OK.name().equals(response.get("status"))) {
+            return !BatchCompiler.Status.FAILED.name().equals(response.get("status"));
+        }
+        System.out.println(response.get("code"));
+        render((String) response.get("dot"), "cfg.dot", "cfg.svg");
+        render((String) response.get("simplifiedDot"), "cfg_sim.dot", "cfg_sim.svg");
+        mapper.writerWithDefaultPrettyPrinter().writeValue(new File(OUTPUT_DIR, "cfg_output.json"), response.get("cfg"));
+        return true;
+    }
+
+    /**
+     * 只检查语法，和 {@link Main#check(String)} 相同。
+     *
+     * @return 是否没有错误
+     */
+    public boolean check(String inputFile) throws IOException {
+        Map<?, ?> response = request(sourceRequest(inputFile, "check"));
+        System.err.print(response.get("errors"));
+        return BatchCompiler.Status.OK.name().equals(response.get("status"));
+    }
+
+    /**
+     * @return 服务是否在运行
+     */
+    public boolean isAvailable() {
+        try {
+            CompileServer.connect(address).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 停止服务。
+     */
+    public void shutdown() throws IOException {
+        request(Map.of("command", "shutdown"));
+    }
+
+    private Map<String, Object> sourceRequest(String inputFile, String mode) {
+        String source;
+        try {
+            source = Files.readString(Path.of(inputFile), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            // 和 Scan 一样报告之后当作空文件编译
+            System.err.println("Error reading file from path: " + inputFile);
+            e.printStackTrace();
+            source = "";
+        }
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("name", inputFile);
+        request.put("source", source);
+        request.put("mode", mode);
+        request.put("dot", true);
+        return request;
+    }
+
+    /**
+     * 在本地写出 DOT 文件并渲染，和 {@link CFGVisualizer#visualizeToFile} 相同。
+     */
+    private static void render(String dot, String dotFileName, String imageFileName) {
+        try {
+            File outputDir = new File(OUTPUT_DIR);
+            if (!outputDir.exists()) {
+                outputDir.mkdirs();
+            }
+            String dotFilePath = outputDir.getAbsolutePath() + "/" + dotFileName;
+            CFGVisualizer.saveDotToFile(dot, dotFilePath);
+            CFGVisualizer.renderDotFile(dotFilePath, outputDir.getAbsolutePath() + "/" + imageFileName);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        CompileClient client = new CompileClient(CompileServer.parseAddress(System.getProperty("mylang.server")));
+        if (args.length == 1 && "--shutdown".equals(args[0])) {
+            client.shutdown();
+            return;
+        }
+        if (args.length < 1) {
+            System.err.println("Please provide the input file as a command line argument.");
+            System.exit(1);
+        }
+
+        if (!client.isAvailable()) {
+            Main.main(args);
+            return;
+        }
+
+        String inputFile = args[0];
+        // --stream 和 --parallel 只影响编译的方式，结果相同，由服务决定
+        if (args.length > 1 && "--check".equals(args[1])) {
+            System.exit(client.check(inputFile) ? 0 : 1);
+        }
+        if (!client.fast(inputFile)) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package org.main;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 常驻的编译服务：文法、预测分析表、语义动作的分派表和模板只在启动时加载一次，之后的编译请求都由已经预热的编译器处理，
+ * 不再为每次编译启动一个 JVM。
+ * <p>
+ * 服务监听 Unix 域套接字（默认是当前用户的 $XDG_RUNTIME_DIR 下的 {@value #DEFAULT_SOCKET_NAME}，
+ * 没有设置 XDG_RUNTIME_DIR 时放在 {@link CompiledLanguage#userCacheDirectory()} 中）或者本机回环地址上的 TCP 端口，
+ * 每个连接在一个虚拟线程中处理，各个请求使用自己的 {@link CompilationContext}，可以同时编译。
+ * </p>
+ * <p>
+ * 协议没有身份验证，任何能连上的进程都可以提交编译或者停止服务，所以只允许监听本机：
+ * 默认的套接字放在只有当前用户能访问的目录中，TCP 只能绑定回环地址。一行请求最多 {@value #MAX_REQUEST_CHARS} 个字符，
+ * 超过时断开连接。
+ * </p>
+ * <p>
+ * 协议是按行分隔的 JSON，一个连接上可以依次发送多个请求，每个请求一行，每个响应一行：
+ * <pre>
+ * 请求：{"source": "程序文本", "name": "文件名，可选", "mode": "compile|check", "dot": false}
+ *      {"command": "shutdown"} 停止服务
+ * 响应：{"status": "OK|LEXICAL_ERROR|SYNTAX_ERROR|SEMANTIC_ERROR|FAILED", "errors": "错误信息",
+ *       "code": "生成的 Python 代码", "cfg": 简化后的 CFG（和 cfg_output.json 相同）,
+ *       "dot": 简化前的 CFG 的 DOT, "simplifiedDot": 简化后的 CFG 的 DOT, "millis": 编译用时}
+ * </pre>
+ * code 和 cfg 只在编译成功时出现，两个 DOT 只在请求中 dot 为 true 时出现。check 只做词法分析和语法分析，和 Main 的 --check 相同。
+ * </p>
+ * <p>
+ * 语义分析按语法树递归，虚拟线程的栈和普通线程一样受 -Xss 限制，嵌套很深的程序需要用较大的 -Xss 启动服务。
+ * </p>
+ */
+public class CompileServer implements Closeable {
+    static final String DEFAULT_SOCKET_NAME = "mylang-compiler.sock";
+    static final int MAX_REQUEST_CHARS = 64 << 20;
+    private static final String WARMUP_PROGRAM = "x = 5;\nforward 1;\n";
+
+    private final SocketAddress address;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private ServerSocketChannel server;
+    private volatile boolean stopped;
+
+    /**
+     * @param address Unix 域套接字或者 TCP 地址，见 {@link #parseAddress(String)}
+     */
+    public CompileServer(SocketAddress address) {
+        this.address = address;
+    }
+
+    /**
+     * 解析服务地址。
+     *
+     * @param spec "unix:路径"、"端口" 或者 "主机:端口"（只有端口时是本机回环地址，主机必须是回环地址）；
+     *             为 null 时是默认的 Unix 域套接字
+     */
+    static SocketAddress parseAddress(String spec) {
+        if (spec == null) {
+            return UnixDomainSocketAddress.of(defaultSocketPath());
+        }
+        if (spec.startsWith("unix:")) {
+            return UnixDomainSocketAddress.of(spec.substring("unix:".length()));
+        }
+        int colon = spec.lastIndexOf(':');
+        InetAddress host;
+        int port;
+        try {
+            host = colon < 0 ? InetAddress.getLoopbackAddress() : InetAddress.getByName(spec.substring(0, colon));
+            port = Integer.parseInt(spec.substring(colon + 1));
+        } catch (NumberFormatException | UnknownHostException e) {
+            throw new RuntimeException("无法识别的服务地址：" + spec);
+        }
+        if (!host.isLoopbackAddress()) {
+            throw new RuntimeException("编译服务只能监听本机回环地址：" + spec);
+        }
+        return new InetSocketAddress(host, port);
+    }
+
+    /**
+     * @return 默认的 Unix 域套接字的路径，所在的目录只属于当前用户
+     */
+    static Path defaultSocketPath() {
+        String runtime = System.getenv("XDG_RUNTIME_DIR");
+        Path dir = runtime != null && Path.of(runtime).isAbsolute() ? Path.of(runtime) : CompiledLanguage.userCacheDirectory();
+        return dir.resolve(DEFAULT_SOCKET_NAME);
+    }
+
+    static SocketChannel connect(SocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open(address instanceof UnixDomainSocketAddress
+                ? StandardProtocolFamily.UNIX : StandardProtocolFamily.INET);
+        try {
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * 加载文法和模板，开始监听。
+     */
+    public void start() throws IOException {
+        CompiledLanguage.load();
+        BatchCompiler.compile("<warmup>", SourceText.of(WARMUP_PROGRAM), Writer.nullWriter()); // 初始化语义动作的分派表等
+        if (address instanceof UnixDomainSocketAddress unix) {
+            Path parent = unix.getPath().toAbsolutePath().getParent();
+            if (unix.getPath().equals(defaultSocketPath())) {
+                CompiledLanguage.createPrivateDirectory(parent);
+            }
+            // 上一次没有正常停止时留下的套接字文件；已经有服务在运行时不能删除
+            if (Files.exists(unix.getPath())) {
+                SocketChannel running;
+                try {
+                    running = connect(address);
+                } catch (ConnectException e) {
+                    running = null;
+                }
+                if (running != null) {
+                    running.close();
+                    throw new IOException("已经有编译服务在运行：" + unix.getPath());
+                }
+                Files.delete(unix.getPath());
+            }
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            server = ServerSocketChannel.open(StandardProtocolFamily.INET);
+        }
+        server.bind(address);
+    }
+
+    /**
+     * 在当前线程中接受连接，直到收到 shutdown 请求或者 {@link #close()}。
+     */
+    public void serve() throws IOException {
+        Thread.Builder connections = Thread.ofVirtual().name("compile-", 1);
+        try {
+            while (!stopped) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (IOException e) {
+                    if (stopped) break;
+                    throw e;
+                }
+                connections.start(() -> handle(channel));
+            }
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        stopped = true;
+        if (server != null) {
+            server.close();
+        }
+        if (address instanceof UnixDomainSocketAddress unix) {
+            Files.deleteIfExists(unix.getPath());
+        }
+    }
+
+    /**
+     * 处理一个连接上的全部请求。
+     */
+    private void handle(SocketChannel channel) {
+        try (channel;
+             BufferedReader in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8))) {
+            while (true) {
+                String line;
+                try {
+                    line = readRequest(in);
+                } catch (RequestTooLargeException e) {
+                    // 剩下的内容已经无法分行，回复之后断开
+                    Map<String, Object> response = new LinkedHashMap<>();
+                    response.put("status", BatchCompiler.Status.FAILED.name());
+                    response.put("errors", "请求超过 " + MAX_REQUEST_CHARS + " 个字符");
+                    out.write(mapper.writeValueAsString(response));
+                    out.write('\n');
+                    out.flush();
+                    return;
+                }
+                if (line == null) break;
+                if (line.isBlank()) continue;
+                Map<?, ?> request;
+                Map<String, Object> response;
+                try {
+                    request = mapper.readValue(line, Map.class);
+                    response = respond(request);
+                } catch (IOException e) {
+                    response = new LinkedHashMap<>();
+                    response.put("status", BatchCompiler.Status.FAILED.name());
+                    response.put("errors", "无法解析请求：" + e.getMessage());
+                    request = Map.of();
+                }
+                out.write(mapper.writeValueAsString(response));
+                out.write('\n');
+                out.flush();
+                if ("shutdown".equals(request.get("command"))) {
+                    close();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // 客户端断开，丢弃这个连接
+        }
+    }
+
+    /**
+     * 读出一行请求，去掉末尾的换行符。
+     *
+     * @return 一行请求，连接已经结束时返回 null
+     * @throws RequestTooLargeException 一行超过 {@link #MAX_REQUEST_CHARS} 个字符
+     */
+    private static String readRequest(BufferedReader in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (line.length() == MAX_REQUEST_CHARS) {
+                throw new RequestTooLargeException();
+            }
+            line.append((char) c);
+        }
+        if (c < 0 && line.isEmpty()) {
+            return null;
+        }
+        int end = line.length();
+        return end > 0 && line.charAt(end - 1) == '\r' ? line.substring(0, end - 1) : line.toString();
+    }
+
+    private static final class RequestTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * 处理一个请求。
+     */
+    Map<String, Object> respond(Map<?, ?> request) {
+        Map<String, Object> response = new LinkedHashMap<>();
+        if (request.get("command") != null) {
+            if (!"shutdown".equals(request.get("command"))) {
+                response.put("status", BatchCompiler.Status.FAILED.name());
+                response.put("errors", "未知的命令：" + request.get("command"));
+                return response;
+            }
+            response.put("status", BatchCompiler.Status.OK.name());
+            return response;
+        }
+        Object source = request.get("source");
+        if (!(source instanceof String)) {
+            response.put("status", BatchCompiler.Status.FAILED.name());
+            response.put("errors", "请求中缺少 source");
+            return response;
+        }
+        String name = request.get("name") instanceof String s ? s : "<request>";
+        SourceText text = SourceText.of((String) source);
+        if ("check".equals(request.get("mode"))) {
+            return check(text);
+        }
+
+        long start = System.nanoTime();
+        StringWriter code = new StringWriter();
+        BatchCompiler.Result result = BatchCompiler.compile(name, text, code);
+        response.put("status", result.status.name());
+        String errors = result.diagnostics;
+        if (result.status == BatchCompiler.Status.OK) {
+            SemanticsHandler semanticsHandler = result.handler;
+            try {
+                response.put("code", code.toString());
+                if (Boolean.TRUE.equals(request.get("dot"))) {
+                    response.put("dot", CFGVisualizer.toDotFormat(semanticsHandler.getCfg()));
+                }
+                CFGSimplifier.simplifyCFG(semanticsHandler.getCfg(), semanticsHandler.getEntryNode(), semanticsHandler.getExitNode());
+                if (Boolean.TRUE.equals(request.get("dot"))) {
+                    response.put("simplifiedDot", CFGVisualizer.toDotFormat(semanticsHandler.getCfg()));
+                }
+                response.put("cfg", CFG.toJsonTree(semanticsHandler.getCfg()));
+            } catch (RuntimeException | StackOverflowError e) {
+                response.clear();
+                response.put("status", BatchCompiler.Status.FAILED.name());
+                StringWriter trace = new StringWriter();
+                e.printStackTrace(new PrintWriter(trace));
+                errors += trace;
+            }
+        }
+        response.put("errors", errors);
+        response.put("millis", Math.round((System.nanoTime() - start) / 1e3) / 1e3);
+        return response;
+    }
+
+    /**
+     * 只做词法分析和语法分析，见 {@link Main#check(String)}。
+     */
+    private Map<String, Object> check(SourceText text) {
+        long start = System.nanoTime();
+        ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+        CompilationContext context = new CompilationContext();
+        context.setErr(new PrintStream(diagnostics, true, StandardCharsets.UTF_8));
+        BatchCompiler.Status status;
+        try {
+            Lexer lexer = new Lexer(CompiledLanguage.LEXER_GRAMMAR_FILE, context);
+            lexer.setParallel(false);
+            lexer.analyze(text);
+            if (lexer.hasErrors()) {
+                status = BatchCompiler.Status.LEXICAL_ERROR;
+            } else {
+                Parser parser = new Parser(lexer);
+                parser.analyze(CompiledLanguage.PARSER_GRAMMAR_FILE, new ParseListener() {});
+                status = parser.hasErrors() ? BatchCompiler.Status.SYNTAX_ERROR : BatchCompiler.Status.OK;
+            }
+        } catch (RuntimeException | StackOverflowError e) {
+            status = BatchCompiler.Status.FAILED;
+            e.printStackTrace(context.getErr());
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("status", status.name());
+        response.put("errors", diagnostics.toString(StandardCharsets.UTF_8));
+        response.put("millis", Math.round((System.nanoTime() - start) / 1e3) / 1e3);
+        return response;
+    }
+}
@@ -0,0 +1,400 @@
+package org.main;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * CompiledLanguage 是由词法文件、语法文件和目标代码模板编译出来的全部产物：
+ * 词法规则、扫描器的状态转移表、文法的符号表和预测分析表，以及目标代码模板。
+ * <p>
+ * 编译结果会写成一个带版本号的二进制文件，文件名是三个输入文件内容、编译器本身的类文件（见 {@link #buildIdentity()}）
+ * 以及格式版本和大写关键字的 SHA-256。
+ * 之后的运行只要输入文件没有变化，就直接一次读入这个文件，不再重新解析文法、消除左递归、提取左公因子、
+ * 计算 first/follow 集合、构造预测分析表和扫描器，也不再用 ObjectMapper 解析模板。
+ * 同一个进程里相同的输入文件只加载一次。
+ * </p>
+ * <p>
+ * 缓存目录默认是 $XDG_CACHE_HOME/mylang，没有设置 XDG_CACHE_HOME 时是 ~/.cache/mylang，
+ * 可以通过系统属性 {@code mylang.cache.dir} 修改，设为 {@code none} 时不使用缓存。
+ * 缓存文件中的模板会原样写进生成的代码，所以只使用属于当前用户、其他用户不能写入的目录和文件（见 {@link #isPrivate(Path)}），
+ * 否则不读也不写缓存。
+ * </p>
+ * <p>
+ * 编译器的代码修改之后类文件随之改变，旧的缓存文件自然就不会再被使用。
+ * {@link #FORMAT_VERSION} 写在文件开头，用来识别格式不同的文件。
+ * </p>
+ */
+class CompiledLanguage {
+    static final String LEXER_GRAMMAR_FILE = "lexer_grammar.txt";
+    static final String PARSER_GRAMMAR_FILE = "parser_grammar.txt";
+    static final String TEMPLATE_FILE = "TargetCode.json";
+
+    private static final int MAGIC = 0x52534C43; // "RSLC"
+    private static final int FORMAT_VERSION = 1;
+    private static final String CACHE_DIR_PROPERTY = "mylang.cache.dir";
+
+    private static final Map<List<String>, CompiledLanguage> loaded = new ConcurrentHashMap<>();
+
+    private final GrammarRule grammarRule;
+    private final DFAScanner scanner;
+    private final ParserGrammar parserGrammar;
+    private final Map<String, List<String>> templates;
+
+    private CompiledLanguage(GrammarRule grammarRule, DFAScanner scanner, ParserGrammar parserGrammar,
+                             Map<String, List<String>> templates) {
+        this.grammarRule = grammarRule;
+        this.scanner = scanner;
+        this.parserGrammar = parserGrammar;
+        this.templates = Collections.unmodifiableMap(templates);
+    }
+
+    /**
+     * 获取编译好的语言，优先使用本进程已经加载的结果，其次是磁盘上的缓存，都没有时重新编译并写入缓存。
+     *
+     * @param lexerFile    resources/input 下的词法文件名
+     * @param parserFile   resources/input 下的语法文件名
+     * @param templateFile resources/input 下的目标代码模板文件名
+     * @return 编译好的语言
+     */
+    static CompiledLanguage load(String lexerFile, String parserFile, String templateFile) {
+        return loaded.computeIfAbsent(List.of(lexerFile, parserFile, templateFile),
+                k -> loadOrCompile(lexerFile, parserFile, templateFile));
+    }
+
+    /**
+     * 使用默认的词法文件、语法文件和模板文件。
+     */
+    static CompiledLanguage load() {
+        return load(LEXER_GRAMMAR_FILE, PARSER_GRAMMAR_FILE, TEMPLATE_FILE);
+    }
+
+    private static CompiledLanguage loadOrCompile(String lexerFile, String parserFile, String templateFile) {
+        byte[] lexerText = readResource(lexerFile);
+        byte[] parserText = readResource(parserFile);
+        byte[] templateText = readResource(templateFile);
+        Path cacheFile = cacheFile(lexerText, parserText, templateText);
+
+        if (cacheFile != null && Files.isRegularFile(cacheFile) && isPrivate(cacheFile)) {
+            try {
+                return read(Files.readAllBytes(cacheFile));
+            } catch (IOException | RuntimeException e) {
+                // 缓存文件损坏或者不完整时重新编译，并覆盖掉它
+            }
+        }
+
+        CompiledLanguage language = compile(lexerFile, parserFile, templateFile);
+        if (cacheFile != null) {
+            try {
+                language.save(cacheFile);
+            } catch (IOException e) {
+                // 缓存只是为了加快启动，写不进去时照常使用编译结果
+            }
+        }
+        return language;
+    }
+
+    private static CompiledLanguage compile(String lexerFile, String parserFile, String templateFile) {
+        GrammarRule grammarRule = new GrammarRule();
+        grammarRule.createRuleFromFile(lexerFile);
+        DFAScanner scanner = new DFAScanner(grammarRule, Lexer.UPPERCASE_KEYWORDS);
+        ParserGrammar parserGrammar = new ParserGrammar(grammarRule.getAllTokenNames());
+        parserGrammar.loadGrammarFromFile(parserFile);
+        return new CompiledLanguage(grammarRule, scanner, parserGrammar, compileTemplates(templateFile));
+    }
+
+    /**
+     * 解析目标代码模板，每个命令对应若干行代码。
+     */
+    private static Map<String, List<String>> compileTemplates(String templateFile) {
+        Map<String, List<String>> templates = new LinkedHashMap<>();
+        try {
+            InputStream inputStream = CompiledLanguage.class.getClassLoader().getResourceAsStream("input/" + templateFile);
+            if (inputStream == null) {
+                throw new IllegalArgumentException("配置文件未找到！");
+            }
+            Map<?, ?> config = new ObjectMapper().readValue(inputStream, Map.class);
+            for (Map.Entry<?, ?> entry : config.entrySet()) {
+                if (!(entry.getValue() instanceof List)) {
+                    throw new RuntimeException("配置文件编写有误，" + entry.getKey() + " 对应的应当是由代码行组成的数组，请修改!");
+                }
+                List<String> lines = new ArrayList<>();
+                for (Object line : (List<?>) entry.getValue()) lines.add(String.valueOf(line));
+                templates.put(String.valueOf(entry.getKey()), lines);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+        return templates;
+    }
+
+    private static byte[] readResource(String fileName) {
+        try (InputStream inputStream = CompiledLanguage.class.getClassLoader().getResourceAsStream("input/" + fileName)) {
+            return inputStream == null ? new byte[0] : inputStream.readAllBytes();
+        } catch (IOException e) {
+            return new byte[0];
+        }
+    }
+
+    /**
+     * @return 缓存文件的路径，不使用缓存时返回 null
+     */
+    private static Path cacheFile(byte[]... inputs) {
+        String dir = System.getProperty(CACHE_DIR_PROPERTY, userCacheDirectory().toString());
+        if (dir.equals("none")) return null;
+        try {
+            createPrivateDirectory(Path.of(dir));
+        } catch (IOException e) {
+            return null; // 建不了目录时不使用缓存
+        }
+        if (!isPrivate(Path.of(dir))) return null;
+        byte[] build = buildIdentity();
+        if (build == null) return null;
+        MessageDigest digest = sha256();
+        digest.update(intBytes(FORMAT_VERSION));
+        update(digest, build);
+        update(digest, inputs);
+        for (String word : new TreeSet<>(Lexer.UPPERCASE_KEYWORDS)) {
+            digest.update((word + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return Path.of(dir, HexFormat.of().formatHex(digest.digest()) + ".bin");
+    }
+
+    private static byte[] buildIdentity;
+
+    /**
+     * 编译器本身的标识：从 jar 运行时是 jar 文件内容的 SHA-256，从目录运行时是其中所有类文件（文件名和内容）的 SHA-256。
+     * 编译过程的任何修改都会改变它，不需要再手动修改版本号。
+     *
+     * @return 标识，找不到编译器的类文件时返回 null，这时不使用缓存
+     */
+    private static synchronized byte[] buildIdentity() {
+        if (buildIdentity == null) {
+            try {
+                Path location = Path.of(CompiledLanguage.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+                MessageDigest digest = sha256();
+                if (Files.isDirectory(location)) {
+                    List<Path> classFiles;
+                    try (Stream<Path> paths = Files.walk(location)) {
+                        classFiles = paths.filter(path -> path.toString().endsWith(".class")).sorted().toList();
+                    }
+                    for (Path classFile : classFiles) {
+                        digest.update(location.relativize(classFile).toString().getBytes(StandardCharsets.UTF_8));
+                        update(digest, Files.readAllBytes(classFile));
+                    }
+                } else {
+                    update(digest, Files.readAllBytes(location));
+                }
+                buildIdentity = digest.digest();
+            } catch (IOException | URISyntaxException | RuntimeException e) {
+                return null;
+            }
+        }
+        return buildIdentity;
+    }
+
+    /**
+     * @return 当前用户的缓存目录：$XDG_CACHE_HOME/mylang，没有设置 XDG_CACHE_HOME 时是 ~/.cache/mylang
+     */
+    static Path userCacheDirectory() {
+        String xdg = System.getenv("XDG_CACHE_HOME");
+        Path base = xdg != null && Path.of(xdg).isAbsolute() ? Path.of(xdg) : Path.of(System.getProperty("user.home"), ".cache");
+        return base.resolve("mylang");
+    }
+
+    /**
+     * 创建只有当前用户能访问（0700）的目录，目录已经存在时不做任何事。
+     */
+    static void createPrivateDirectory(Path dir) throws IOException {
+        if (Files.isDirectory(dir)) return;
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } else {
+            Files.createDirectories(dir);
+        }
+    }
+
+    /**
+     * 检查缓存目录或者缓存文件是否只有当前用户能修改：属于当前用户，而且同组和其他用户没有写权限。
+     * 不支持 POSIX 权限的文件系统（比如 Windows）上只检查所有者。
+     */
+    static boolean isPrivate(Path path) {
+        try {
+            UserPrincipal user = FileSystems.getDefault().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+            PosixFileAttributeView posix = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+            if (posix == null) {
+                return Files.getOwner(path).equals(user);
+            }
+            PosixFileAttributes attributes = posix.readAttributes();
+            Set<PosixFilePermission> permissions = attributes.permissions();
+            return attributes.owner().equals(user)
+                    && !permissions.contains(PosixFilePermission.GROUP_WRITE)
+                    && !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 词法文件和语法文件内容的 SHA-256。构建时生成的语法分析器记录了生成时的值，
+     * 运行时两者不同说明文法已经修改过，不能再使用生成的分析器。
+     */
+    static String grammarDigest(String lexerFile, String parserFile) {
+        MessageDigest digest = sha256();
+        update(digest, readResource(lexerFile), readResource(parserFile));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // 每个 Java 平台都必须支持 SHA-256
+        }
+    }
+
+    private static void update(MessageDigest digest, byte[]... inputs) {
+        for (byte[] input : inputs) {
+            // 先写长度，避免不同的切分得到相同的哈希
+            digest.update(intBytes(input.length));
+            digest.update(input);
+        }
+    }
+
+    /**
+     * 先写到同一目录下的临时文件，再整体改名，其他进程不会读到写了一半的文件。
+     */
+    private void save(Path cacheFile) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 << 10);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        grammarRule.writeTo(out);
+        scanner.writeTo(out);
+        parserGrammar.writeTo(out);
+        out.writeInt(templates.size());
+        for (Map.Entry<String, List<String>> entry : templates.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writeStrings(out, entry.getValue());
+        }
+        out.flush();
+
+        Path temp = Files.createTempFile(cacheFile.getParent(), "mylang", ".tmp");
+        try {
+            Files.write(temp, bytes.toByteArray());
+            Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static CompiledLanguage read(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            throw new IOException("缓存文件格式不匹配");
+        }
+        GrammarRule grammarRule = GrammarRule.readFrom(in);
+        DFAScanner scanner = DFAScanner.readFrom(in);
+        ParserGrammar parserGrammar = ParserGrammar.readFrom(in);
+        int count = in.readInt();
+        Map<String, List<String>> templates = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            templates.put(in.readUTF(), readStrings(in));
+        }
+        if (in.read() >= 0) {
+            throw new IOException("缓存文件末尾有多余的内容");
+        }
+        return new CompiledLanguage(grammarRule, scanner, parserGrammar, templates);
+    }
+
+    // ---------- 各部分共用的读写方法 ----------
+
+    /**
+     * 写一个可以为 null 的字符串。
+     */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    static void writeStrings(DataOutputStream out, Collection<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String s : strings) writeString(out, s);
+    }
+
+    static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) strings.add(readString(in));
+        return strings;
+    }
+
+    static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int v : values) out.writeInt(v);
+    }
+
+    static int[] readInts(DataInputStream in) throws IOException {
+        int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++) values[i] = in.readInt();
+        return values;
+    }
+
+    static void writeBooleans(DataOutputStream out, boolean[] values) throws IOException {
+        out.writeInt(values.length);
+        for (boolean v : values) out.writeBoolean(v);
+    }
+
+    static boolean[] readBooleans(DataInputStream in) throws IOException {
+        boolean[] values = new boolean[in.readInt()];
+        for (int i = 0; i < values.length; i++) values[i] = in.readBoolean();
+        return values;
+    }
+
+    GrammarRule getGrammarRule() {
+        return grammarRule;
+    }
+
+    DFAScanner getScanner() {
+        return scanner;
+    }
+
+    /**
+     * @return 编译好的文法，多次分析之间共享，只能读取不能修改
+     */
+    ParserGrammar getParserGrammar() {
+        return parserGrammar;
+    }
+
+    /**
+     * @return 目标代码模板，命令名 -> 代码行
+     */
+    Map<String, List<String>> getTemplates() {
+        return templates;
+    }
+
+    private static byte[] intBytes(int v) {
+        return new byte[]{(byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v};
+    }
+}
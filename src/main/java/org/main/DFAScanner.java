@@ -0,0 +1,650 @@
+package org.main;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * DFAScanner 是由词法文件一次性编译出来的表驱动扫描器。
+ * <p>
+ * 特殊符号被编译成最长匹配的符号自动机；关键字、正则规则（包括标识符和数字）以及需要报错的大写关键字
+ * 一起通过子集构造得到单词自动机。两部分共用一张按字符类别索引的状态转移表，并做了最小化。
+ * 扫描时逐字符查表，一遍完成分词，不再需要按行构造正则、split，也不再为每个单词新建集合和状态机对象。
+ * </p>
+ * <p>
+ * 分词规则和原来的实现保持一致：单词只以空格和特殊符号分隔，特殊符号按最长优先匹配，
+ * 引号之间的内容作为一个 string token，并且内容里的特殊符号同样会被空格隔开。
+ * 一个单词同时符合多条规则时，词法文件里靠前的规则优先。
+ * 如果某条正则规则能跨过特殊符号继续匹配（例如 1.5e+3），并且在分隔处结束，则取更长的匹配。
+ * </p>
+ */
+class DFAScanner {
+    static final int DEAD = 0; // 死状态，所有转移都回到自身
+
+    /**
+     * 扫描结果的接收者。start 和 end 是 token 在字符数组里的区间（左闭右开），
+     * string token 的区间不包含两侧的引号。
+     */
+    interface Sink {
+        void token(int type, int start, int end, boolean lexicalError);
+
+        void unterminatedString(int quoteStart);
+    }
+
+    private final String[] typeNames; // token 类型名，下标即类型编号
+    private final int idType;
+    private final int numberType;
+    private final int stringType;
+    private final int unknownType;
+    private final int quoteType; // 引号的类型编号，没有定义引号时为 -1
+
+    private final char[] charClass; // 每个字符对应的字符类别
+    private final int classCount;
+
+    private final int[] transitions; // state * classCount + class -> state
+    private final int[] acceptType; // 状态接受的 token 类型，-1 表示不接受
+    private final boolean[] acceptError; // 接受时是否需要报告词法错误
+    private final String[] acceptText; // 关键字和符号状态对应的固定文本，可以直接复用
+    private final int symbolStart; // 符号自动机的起始状态
+    private final int wordStart; // 单词自动机的起始状态
+    private final boolean[] symbolFirst; // 该类别的字符是否可能是一个特殊符号的开头
+    private final boolean[] canExtend; // 从该状态出发是否还可能到达某条规则的接受状态
+    private final boolean[] hasFixedText; // 该类型的 token 文本是否固定（只由关键字和符号规则产生）
+
+    // 词法文件里没有定义 ID 和 NUMBER 时使用的规则，和原来写死的标识符/数字状态机等价
+    static final String DEFAULT_ID_PATTERN = "[\\p{L}_][\\p{L}\\p{Nd}_]*";
+    static final String DEFAULT_NUMBER_PATTERN = "'-'? [\\p{Nd}]+ ('.' [\\p{Nd}]+)?";
+
+    /**
+     * 根据已经加载好的词法规则编译扫描器。
+     *
+     * @param grammarRule  词法规则
+     * @param reservedWords 会被识别成标识符、但需要报告词法错误的单词（例如大写的关键字）
+     */
+    DFAScanner(GrammarRule grammarRule, Collection<String> reservedWords) {
+        List<GrammarRule.Rule> wordRules = grammarRule.getRules();
+        List<GrammarRule.Rule> symbolRules = grammarRule.getAllSpecialTokens();
+
+        // ---------- token 类型编号 ----------
+        Map<String, Integer> typeIndex = new LinkedHashMap<>();
+        for (GrammarRule.Rule rule : wordRules) typeIndex.putIfAbsent(rule.getTokenName(), typeIndex.size());
+        for (GrammarRule.Rule rule : symbolRules) typeIndex.putIfAbsent(rule.getTokenName(), typeIndex.size());
+        boolean hasId = typeIndex.containsKey("ID");
+        boolean hasNumber = typeIndex.containsKey("NUMBER");
+        this.idType = typeIndex.computeIfAbsent("ID", k -> typeIndex.size());
+        this.numberType = typeIndex.computeIfAbsent("NUMBER", k -> typeIndex.size());
+        this.stringType = typeIndex.computeIfAbsent("string", k -> typeIndex.size());
+        this.unknownType = typeIndex.computeIfAbsent("UNKNOWN", k -> typeIndex.size());
+        this.typeNames = typeIndex.keySet().toArray(new String[0]);
+        this.quoteType = typeIndex.getOrDefault("QUO", -1);
+
+        // ---------- 单词规则的 NFA ----------
+        // 规则按词法文件中的顺序编号，编号越小优先级越高；大写关键字排在最后，只用来标记错误
+        TokenRegex.Nfa nfa = new TokenRegex.Nfa();
+        List<Integer> ruleType = new ArrayList<>();
+        List<String> ruleText = new ArrayList<>();
+        for (GrammarRule.Rule rule : wordRules) {
+            nfa.addRule(rule.getPattern(), !rule.isRegex(), ruleType.size());
+            ruleType.add(typeIndex.get(rule.getTokenName()));
+            ruleText.add(rule.isRegex() ? null : rule.getPattern());
+        }
+        if (!hasId) {
+            nfa.addRule(DEFAULT_ID_PATTERN, false, ruleType.size());
+            ruleType.add(idType);
+            ruleText.add(null);
+        }
+        if (!hasNumber) {
+            nfa.addRule(DEFAULT_NUMBER_PATTERN, false, ruleType.size());
+            ruleType.add(numberType);
+            ruleText.add(null);
+        }
+        int firstReserved = ruleType.size();
+        for (String word : reservedWords) nfa.addRule(word, true, firstReserved);
+
+        this.hasFixedText = new boolean[typeNames.length];
+        for (GrammarRule.Rule rule : wordRules) {
+            if (!rule.isRegex()) hasFixedText[typeIndex.get(rule.getTokenName())] = true;
+        }
+        for (GrammarRule.Rule rule : symbolRules) hasFixedText[typeIndex.get(rule.getTokenName())] = true;
+        for (GrammarRule.Rule rule : wordRules) {
+            // 同一个类型只要有一条正则规则，文本就不是固定的
+            if (rule.isRegex()) hasFixedText[typeIndex.get(rule.getTokenName())] = false;
+        }
+
+        // 和原来的 matchToken 一样，符号的类型先看关键字规则，再看特殊符号规则，取第一个相等的
+        Map<String, Integer> patternType = new LinkedHashMap<>();
+        for (GrammarRule.Rule rule : wordRules) {
+            if (!rule.isRegex()) patternType.putIfAbsent(rule.getPattern(), typeIndex.get(rule.getTokenName()));
+        }
+        for (GrammarRule.Rule rule : symbolRules) patternType.putIfAbsent(rule.getPattern(), typeIndex.get(rule.getTokenName()));
+
+        // ---------- 字符类别 ----------
+        // 空格和特殊符号里的每个字符单独成类，其余字符按属于哪些字符集合来划分，
+        // 这样同一类别里的字符在所有自动机里的行为都相同
+        List<TokenRegex.CharSet> sets = new ArrayList<>(nfa.sets);
+        Set<TokenRegex.CharSet> seen = new HashSet<>(sets);
+        List<Character> symbolChars = new ArrayList<>(List.of(' '));
+        for (GrammarRule.Rule rule : symbolRules) addChars(symbolChars, rule.getPattern());
+        for (char c : symbolChars) {
+            TokenRegex.CharSet set = TokenRegex.CharSet.of(c);
+            if (seen.add(set)) sets.add(set);
+        }
+
+        this.charClass = new char[Character.MAX_VALUE + 1];
+        Map<BitSet, Integer> classOfSignature = new HashMap<>();
+        List<Character> representative = new ArrayList<>();
+        TreeSet<Integer> boundaries = new TreeSet<>();
+        for (TokenRegex.CharSet set : sets) set.addBoundaries(boundaries);
+        boundaries.add(Character.MAX_VALUE + 1);
+        int segmentStart = 0;
+        for (int segmentEnd : boundaries) {
+            // 同一段里的字符只按 字母/数字/其他 区分，每种只需要计算一次
+            int[] segmentClass = {-1, -1, -1};
+            for (int c = segmentStart; c < segmentEnd; c++) {
+                int category = Character.isLetter(c) ? 1 : Character.isDigit(c) ? 2 : 0;
+                if (segmentClass[category] < 0) {
+                    BitSet signature = new BitSet(sets.size());
+                    for (int i = 0; i < sets.size(); i++) {
+                        if (sets.get(i).contains((char) c)) signature.set(i);
+                    }
+                    Integer cls = classOfSignature.get(signature);
+                    if (cls == null) {
+                        cls = representative.size();
+                        classOfSignature.put(signature, cls);
+                        representative.add((char) c);
+                    }
+                    segmentClass[category] = cls;
+                }
+                charClass[c] = (char) segmentClass[category];
+            }
+            segmentStart = segmentEnd;
+        }
+        this.classCount = representative.size();
+
+        // ---------- 构造未最小化的自动机 ----------
+        Builder builder = new Builder(classCount);
+        int rawSymbolStart = buildSymbolAutomaton(builder, patternType, symbolRules);
+        int rawWordStart = buildWordAutomaton(builder, nfa, ruleType, ruleText, firstReserved, representative);
+
+        // ---------- 最小化 ----------
+        int[] blockOf = builder.minimize();
+        int stateCount = 0;
+        for (int block : blockOf) stateCount = Math.max(stateCount, block + 1);
+        this.transitions = new int[stateCount * classCount];
+        this.acceptType = new int[stateCount];
+        this.acceptError = new boolean[stateCount];
+        this.acceptText = new String[stateCount];
+        for (int s = 0; s < builder.size(); s++) {
+            int b = blockOf[s];
+            for (int c = 0; c < classCount; c++) {
+                transitions[b * classCount + c] = blockOf[builder.next.get(s)[c]];
+            }
+            acceptType[b] = builder.acceptType.get(s);
+            acceptError[b] = builder.acceptError.get(s);
+            acceptText[b] = builder.acceptText.get(s);
+        }
+        this.symbolStart = blockOf[rawSymbolStart];
+        this.wordStart = blockOf[rawWordStart];
+        this.symbolFirst = new boolean[classCount];
+        for (int c = 0; c < classCount; c++) {
+            symbolFirst[c] = transitions[symbolStart * classCount + c] != DEAD;
+        }
+
+        // 反向求不动点：能一步到达接受状态或者可延伸状态的状态也是可延伸的
+        this.canExtend = new boolean[stateCount];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int s = 1; s < stateCount; s++) {
+                if (canExtend[s]) continue;
+                for (int c = 0; c < classCount; c++) {
+                    int t = transitions[s * classCount + c];
+                    if (t != DEAD && (canExtend[t] || isWordAccept(t))) {
+                        canExtend[s] = true;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 由缓存文件中读出的各个表直接构造扫描器，见 {@link #readFrom}。
+     */
+    private DFAScanner(String[] typeNames, int[] specialTypes, char[] charClass, int classCount, int[] transitions,
+                       int[] acceptType, boolean[] acceptError, String[] acceptText, int symbolStart, int wordStart,
+                       boolean[] symbolFirst, boolean[] canExtend, boolean[] hasFixedText) {
+        this.typeNames = typeNames;
+        this.idType = specialTypes[0];
+        this.numberType = specialTypes[1];
+        this.stringType = specialTypes[2];
+        this.unknownType = specialTypes[3];
+        this.quoteType = specialTypes[4];
+        this.charClass = charClass;
+        this.classCount = classCount;
+        this.transitions = transitions;
+        this.acceptType = acceptType;
+        this.acceptError = acceptError;
+        this.acceptText = acceptText;
+        this.symbolStart = symbolStart;
+        this.wordStart = wordStart;
+        this.symbolFirst = symbolFirst;
+        this.canExtend = canExtend;
+        this.hasFixedText = hasFixedText;
+    }
+
+    /**
+     * 把编译好的扫描器写入缓存文件。字符类别表按连续相同的段写出，其余的表原样写出。
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        CompiledLanguage.writeStrings(out, Arrays.asList(typeNames));
+        CompiledLanguage.writeInts(out, new int[]{idType, numberType, stringType, unknownType, quoteType});
+        out.writeInt(classCount);
+        int runStart = 0;
+        for (int c = 1; c <= charClass.length; c++) {
+            if (c == charClass.length || charClass[c] != charClass[runStart]) {
+                out.writeChar(c - runStart - 1); // 长度最多 65536，减一之后放得进一个 char
+                out.writeChar(charClass[runStart]);
+                runStart = c;
+            }
+        }
+        CompiledLanguage.writeInts(out, transitions);
+        CompiledLanguage.writeInts(out, acceptType);
+        CompiledLanguage.writeBooleans(out, acceptError);
+        CompiledLanguage.writeStrings(out, Arrays.asList(acceptText));
+        out.writeInt(symbolStart);
+        out.writeInt(wordStart);
+        CompiledLanguage.writeBooleans(out, symbolFirst);
+        CompiledLanguage.writeBooleans(out, canExtend);
+        CompiledLanguage.writeBooleans(out, hasFixedText);
+    }
+
+    /**
+     * 从缓存文件读出由 {@link #writeTo} 写入的扫描器。
+     */
+    static DFAScanner readFrom(DataInputStream in) throws IOException {
+        String[] typeNames = CompiledLanguage.readStrings(in).toArray(new String[0]);
+        int[] specialTypes = CompiledLanguage.readInts(in);
+        int classCount = in.readInt();
+        char[] charClass = new char[Character.MAX_VALUE + 1];
+        for (int c = 0; c < charClass.length; ) {
+            int run = in.readChar() + 1;
+            Arrays.fill(charClass, c, c + run, in.readChar());
+            c += run;
+        }
+        return new DFAScanner(typeNames, specialTypes, charClass, classCount, CompiledLanguage.readInts(in),
+                CompiledLanguage.readInts(in), CompiledLanguage.readBooleans(in),
+                CompiledLanguage.readStrings(in).toArray(new String[0]), in.readInt(), in.readInt(),
+                CompiledLanguage.readBooleans(in), CompiledLanguage.readBooleans(in), CompiledLanguage.readBooleans(in));
+    }
+
+    private static void addChars(List<Character> list, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (!list.contains(s.charAt(i))) list.add(s.charAt(i));
+        }
+    }
+
+    private boolean isWordAccept(int state) {
+        return acceptType[state] >= 0 && acceptType[state] != unknownType;
+    }
+
+    /**
+     * 特殊符号自动机：由所有符号组成的字典树，扫描时取最长的接受状态。
+     */
+    private int buildSymbolAutomaton(Builder builder, Map<String, Integer> patternType, List<GrammarRule.Rule> symbolRules) {
+        Map<String, Integer> prefixState = new HashMap<>();
+        int start = builder.addState(-1, false, null);
+        prefixState.put("", start);
+        for (GrammarRule.Rule rule : symbolRules) {
+            String pattern = rule.getPattern();
+            int state = start;
+            for (int i = 1; i <= pattern.length(); i++) {
+                String prefix = pattern.substring(0, i);
+                Integer next = prefixState.get(prefix);
+                if (next == null) {
+                    next = builder.addState(-1, false, null);
+                    prefixState.put(prefix, next);
+                    builder.next.get(state)[classOf(pattern.charAt(i - 1))] = next;
+                }
+                state = next;
+            }
+            if (builder.acceptType.get(state) < 0 && !pattern.isEmpty()) {
+                builder.setAccept(state, patternType.get(pattern), false, pattern);
+            }
+        }
+        return start;
+    }
+
+    /**
+     * 单词自动机：对所有单词规则（关键字、正则规则和大写关键字）组成的 NFA 做子集构造。
+     * 单词本身不会“失败”，走不下去的单词最终停在 UNKNOWN 状态上（对应空的状态集合）。
+     */
+    private int buildWordAutomaton(Builder builder, TokenRegex.Nfa nfa, List<Integer> ruleType, List<String> ruleText,
+                                   int firstReserved, List<Character> representative) {
+        Map<BitSet, Integer> stateOf = new HashMap<>();
+        Deque<BitSet> work = new ArrayDeque<>();
+        BitSet startSet = new BitSet();
+        startSet.set(0);
+        startSet = nfa.closure(startSet);
+        int start = builder.addState(-1, false, null);
+        stateOf.put(startSet, start);
+        work.add(startSet);
+
+        // 预先算好每个字符集合包含哪些字符类别，以及每个 NFA 状态的空闭包
+        boolean[][] setHasClass = new boolean[nfa.sets.size()][classCount];
+        for (int i = 0; i < nfa.sets.size(); i++) {
+            for (int c = 0; c < classCount; c++) setHasClass[i][c] = nfa.sets.get(i).contains(representative.get(c));
+        }
+        BitSet[] closureOf = new BitSet[nfa.size()];
+        for (int s = 0; s < nfa.size(); s++) {
+            BitSet single = new BitSet();
+            single.set(s);
+            closureOf[s] = nfa.closure(single);
+        }
+
+        int spaceClass = classOf(' ');
+        while (!work.isEmpty()) {
+            BitSet current = work.poll();
+            int from = stateOf.get(current);
+
+            for (int c = 0; c < classCount; c++) {
+                if (c == spaceClass) continue; // 空格只作为分隔符，不会出现在单词里
+                BitSet nextSet = new BitSet();
+                for (int s = current.nextSetBit(0); s >= 0; s = current.nextSetBit(s + 1)) {
+                    int[] edges = nfa.edges.get(s);
+                    for (int e = 0; e < edges.length; e += 2) {
+                        if (setHasClass[edges[e]][c]) nextSet.or(closureOf[edges[e + 1]]);
+                    }
+                }
+
+                Integer to = stateOf.get(nextSet);
+                if (to == null) {
+                    int best = Integer.MAX_VALUE;
+                    boolean reserved = false;
+                    for (int s = nextSet.nextSetBit(0); s >= 0; s = nextSet.nextSetBit(s + 1)) {
+                        int rule = nfa.accept.get(s);
+                        if (rule >= firstReserved) {
+                            reserved = true;
+                        } else if (rule >= 0) {
+                            best = Math.min(best, rule);
+                        }
+                    }
+                    int type = best < firstReserved ? ruleType.get(best) : unknownType;
+                    String text = best < firstReserved ? ruleText.get(best) : null;
+                    boolean error = type == unknownType || reserved;
+                    to = builder.addState(type, error, text);
+                    stateOf.put(nextSet, to);
+                    work.add(nextSet);
+                }
+                builder.next.get(from)[c] = to;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * 获取字符的类别。
+     */
+    private int classOf(char c) {
+        return charClass[c];
+    }
+
+    /**
+     * 从 pos 开始尝试匹配一个特殊符号（最长优先）。
+     *
+     * @return 匹配成功时高 32 位是接受状态、低 32 位是符号的结束位置；没有匹配时返回 -1
+     */
+    private long matchSymbol(char[] buf, int pos, int to) {
+        int state = symbolStart;
+        long result = -1;
+        for (int i = pos; i < to; i++) {
+            state = transitions[state * classCount + classOf(buf[i])];
+            if (state == DEAD) break;
+            if (acceptType[state] >= 0) result = ((long) state << 32) | (i + 1);
+        }
+        return result;
+    }
+
+    private boolean isBoundary(char[] buf, int pos, int to) {
+        char c = buf[pos];
+        return c == ' ' || (symbolFirst[classOf(c)] && matchSymbol(buf, pos, to) >= 0);
+    }
+
+    /**
+     * 扫描字符数组的一个区间（通常是去掉注释后的一行），把识别出的 token 交给 sink。
+     */
+    void scan(char[] buf, int from, int to, Sink sink) {
+        int i = from;
+        while (i < to) {
+            if (buf[i] == ' ') {
+                i++;
+                continue;
+            }
+
+            long symbol = matchSymbol(buf, i, to);
+            if (symbol >= 0) {
+                int state = (int) (symbol >>> 32);
+                int end = (int) symbol;
+                int type = acceptType[state];
+                if (type != quoteType) {
+                    sink.token(type, i, end, false);
+                    i = end;
+                    continue;
+                }
+
+                // 引号：一直找到同一行里的下一个引号
+                int k = end;
+                while (k < to) {
+                    long inner = matchSymbol(buf, k, to);
+                    if (inner < 0) {
+                        k++;
+                    } else if (acceptType[(int) (inner >>> 32)] == quoteType) {
+                        break;
+                    } else {
+                        k = (int) inner;
+                    }
+                }
+                if (k >= to) {
+                    sink.unterminatedString(i);
+                    return;
+                }
+                sink.token(stringType, end, k, false);
+                i = (int) matchSymbol(buf, k, to);
+                continue;
+            }
+
+            int state = wordStart;
+            int j = i;
+            do {
+                state = transitions[state * classCount + classOf(buf[j])];
+                j++;
+            } while (j < to && !isBoundary(buf, j, to));
+            if (j < to && buf[j] != ' ' && canExtend[state]) {
+                long longer = extend(buf, state, j, to);
+                if (longer >= 0) {
+                    state = (int) (longer >>> 32);
+                    j = (int) longer;
+                }
+            }
+            sink.token(acceptType[state], i, j, acceptError[state]);
+            i = j;
+        }
+    }
+
+    /**
+     * 单词在特殊符号处被截断后，尝试让正则规则跨过特殊符号继续匹配，取最长的、在分隔处结束的匹配。
+     *
+     * @return 匹配成功时高 32 位是接受状态、低 32 位是单词新的结束位置；没有更长的匹配时返回 -1
+     */
+    private long extend(char[] buf, int state, int pos, int to) {
+        long result = -1;
+        for (int k = pos; k < to && buf[k] != ' ' && canExtend[state]; ) {
+            state = transitions[state * classCount + classOf(buf[k])];
+            k++;
+            if (isWordAccept(state) && (k == to || isBoundary(buf, k, to))) {
+                result = ((long) state << 32) | k;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 生成 token 的文本。关键字和符号直接复用规则里的字符串；
+     * string token 的内容和原来按空格分词再拼接的结果相同：内部的特殊符号两侧补空格，去掉开头的空格。
+     */
+    String text(char[] buf, int type, int start, int end) {
+        if (type == stringType) {
+            return stringValue(buf, start, end);
+        }
+        if (start < end && hasFixedText[type]) {
+            String fixed = fixedText(buf, start, end);
+            if (fixed != null) return fixed;
+        }
+        return new String(buf, start, end - start);
+    }
+
+    private String fixedText(char[] buf, int start, int end) {
+        String text = runFrom(symbolStart, buf, start, end);
+        return text != null ? text : runFrom(wordStart, buf, start, end);
+    }
+
+    private String runFrom(int state, char[] buf, int start, int end) {
+        for (int i = start; i < end && state != DEAD; i++) {
+            state = transitions[state * classCount + classOf(buf[i])];
+        }
+        return acceptText[state];
+    }
+
+    private String stringValue(char[] buf, int start, int end) {
+        StringBuilder sb = null;
+        int k = start;
+        while (k < end) {
+            long symbol = symbolFirst[classOf(buf[k])] ? matchSymbol(buf, k, end) : -1;
+            if (symbol >= 0) {
+                if (sb == null) sb = new StringBuilder(end - start + 8).append(buf, start, k - start);
+                int symbolEnd = (int) symbol;
+                sb.append(' ').append(buf, k, symbolEnd - k).append(' ');
+                k = symbolEnd;
+            } else {
+                if (sb != null) sb.append(buf[k]);
+                k++;
+            }
+        }
+        if (sb == null) {
+            int s = start;
+            while (s < end && buf[s] == ' ') s++;
+            return new String(buf, s, end - s);
+        }
+        int s = 0;
+        while (s < sb.length() && sb.charAt(s) == ' ') s++;
+        return sb.substring(s);
+    }
+
+    String typeName(int type) {
+        return typeNames[type];
+    }
+
+    String[] getTypeNames() {
+        return typeNames.clone();
+    }
+
+    int getStringType() {
+        return stringType;
+    }
+
+    int getUnknownType() {
+        return unknownType;
+    }
+
+    /**
+     * 构造阶段使用的可变自动机，最后通过 {@link #minimize()} 得到等价状态的划分。
+     */
+    private static class Builder {
+        final int classCount;
+        final List<int[]> next = new ArrayList<>();
+        final List<Integer> acceptType = new ArrayList<>();
+        final List<Boolean> acceptError = new ArrayList<>();
+        final List<String> acceptText = new ArrayList<>();
+
+        Builder(int classCount) {
+            this.classCount = classCount;
+            addState(-1, false, null); // 0 号状态是死状态
+        }
+
+        int addState(int type, boolean error, String text) {
+            next.add(new int[classCount]); // 默认全部转移到死状态
+            acceptType.add(type);
+            acceptError.add(error);
+            acceptText.add(text);
+            return next.size() - 1;
+        }
+
+        void setAccept(int state, int type, boolean error, String text) {
+            acceptType.set(state, type);
+            acceptError.set(state, error);
+            acceptText.set(state, text);
+        }
+
+        int size() {
+            return next.size();
+        }
+
+        /**
+         * Moore 算法：先按接受信息划分，再按后继状态所在的块反复细分，直到划分不再变化。
+         *
+         * @return 每个状态所属的块编号，死状态所在的块编号固定为 0
+         */
+        int[] minimize() {
+            int n = size();
+            int[] block = new int[n];
+            Map<List<Object>, Integer> initial = new HashMap<>();
+            initial.put(Arrays.asList(acceptType.get(0), acceptError.get(0), acceptText.get(0)), 0);
+            for (int s = 0; s < n; s++) {
+                List<Object> key = Arrays.asList(acceptType.get(s), acceptError.get(s), acceptText.get(s));
+                block[s] = initial.computeIfAbsent(key, k -> initial.size());
+            }
+            int blockCount = initial.size();
+
+            while (true) {
+                Map<Signature, Integer> refined = new HashMap<>();
+                int[] newBlock = new int[n];
+                for (int s = 0; s < n; s++) {
+                    int[] signature = new int[classCount + 1];
+                    signature[0] = block[s];
+                    int[] targets = next.get(s);
+                    for (int c = 0; c < classCount; c++) signature[c + 1] = block[targets[c]];
+                    // 死状态最先编号，所在的块依旧是 0
+                    newBlock[s] = refined.computeIfAbsent(new Signature(signature), k -> refined.size());
+                }
+                block = newBlock;
+                if (refined.size() == blockCount) return block;
+                blockCount = refined.size();
+            }
+        }
+    }
+
+    /**
+     * 最小化时用作哈希表键的状态签名。
+     */
+    private static final class Signature {
+        private final int[] values;
+        private final int hash;
+
+        Signature(int[] values) {
+            this.values = values;
+            this.hash = Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Signature && Arrays.equals(values, ((Signature) o).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
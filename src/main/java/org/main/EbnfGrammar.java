@@ -0,0 +1,391 @@
+package org.main;
+
+import java.util.*;
+
+/**
+ * EbnfGrammar 是语法文件（parser_grammar.txt）的语法树，以及把它展开成普通产生式的过程。
+ * <p>
+ * 语法文件的写法：
+ * <pre>
+ * 规则     := 名称 ':' 选择 ';'
+ * 选择     := 序列 ('|' 序列)*
+ * 序列     := 项*
+ * 项       := 基本项 ('+' | '*' | '?')*
+ * 基本项   := 名称 | '(' 选择 ')'
+ * </pre>
+ * 以 # 开头的部分直到行尾都是注释，一条规则可以跨越多行。整个文件只扫描、解析一遍，出错时报告准确的行号和列号。
+ * </p>
+ * <p>
+ * 展开规则和原来按正则表达式改写字符串的结果一致：
+ * {@code X+} 变成 {@code X mid_k}，{@code X*} 变成 {@code mid_k}，其中 {@code mid_k : X mid_k | ε}；
+ * {@code X?} 等价于 {@code (X | ε)}；括号里的选择直接展开到所在的产生式中。
+ * mid_k 按规则在文件中的顺序、同一条规则内从外到内、从左到右编号。
+ * 每个带 + 或 * 的项只生成一个 mid_k，即使所在的产生式因为展开括号或者 ? 被复制了多份；
+ * 展开得到的产生式共用相同的后缀，最后才转换成数组。
+ * </p>
+ */
+class EbnfGrammar {
+    private final String fileName;
+    private final List<Rule> rules;
+
+    private EbnfGrammar(String fileName, List<Rule> rules) {
+        this.fileName = fileName;
+        this.rules = rules;
+    }
+
+    /**
+     * 解析语法文件。
+     *
+     * @param fileName 文件名，只用于报错
+     * @param lines    文件的每一行
+     * @return 语法树
+     * @throws GrammarFileException 文件格式有误时抛出
+     */
+    static EbnfGrammar parse(String fileName, String[] lines) {
+        return new EbnfGrammar(fileName, new EbnfParser(fileName, lines).parseRules());
+    }
+
+    List<Rule> getRules() {
+        return Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * 报告某条规则有误，位置是规则名所在的位置。
+     */
+    GrammarFileException error(Rule rule, String message) {
+        return new GrammarFileException(fileName, rule.line, rule.column, message);
+    }
+
+    /**
+     * 把所有规则展开成不含括号和量词的产生式。
+     *
+     * @return 非终结符 -> 产生式列表，按第一次出现的顺序排列；同一个非终结符下完全相同的产生式只保留一条
+     */
+    Map<String, List<String[]>> desugar() {
+        return new Desugarer().run();
+    }
+
+    // ---------- 语法树 ----------
+
+    /**
+     * 语法树的结点，记录在文件中的位置。
+     */
+    abstract static class Node {
+        final int line;
+        final int column;
+
+        Node(int line, int column) {
+            this.line = line;
+            this.column = column;
+        }
+    }
+
+    /**
+     * 一个终结符或非终结符。
+     */
+    static final class Symbol extends Node {
+        final String name;
+
+        Symbol(String name, int line, int column) {
+            super(line, column);
+            this.name = name;
+        }
+    }
+
+    /**
+     * 括号括起来的选择。
+     */
+    static final class Group extends Node {
+        final List<List<Node>> alternatives;
+
+        Group(List<List<Node>> alternatives, int line, int column) {
+            super(line, column);
+            this.alternatives = alternatives;
+        }
+    }
+
+    /**
+     * 带量词（+ * ?）的项。
+     */
+    static final class Repeat extends Node {
+        final Node item;
+        final char quantifier;
+
+        Repeat(Node item, char quantifier, int line, int column) {
+            super(line, column);
+            this.item = item;
+            this.quantifier = quantifier;
+        }
+    }
+
+    /**
+     * 一条规则：名称 ':' 选择 ';'。
+     */
+    static final class Rule extends Node {
+        final String name;
+        final List<List<Node>> alternatives;
+
+        Rule(String name, List<List<Node>> alternatives, int line, int column) {
+            super(line, column);
+            this.name = name;
+            this.alternatives = alternatives;
+        }
+    }
+
+    // ---------- 展开 ----------
+
+    /**
+     * 展开过程中的产生式，是一个共用后缀的单链表，null 表示空串。
+     */
+    private static final class Seq {
+        final String head;
+        final Seq tail;
+        final int length;
+
+        Seq(String head, Seq tail) {
+            this.head = head;
+            this.tail = tail;
+            this.length = tail == null ? 1 : tail.length + 1;
+        }
+
+        static String[] toArray(Seq seq) {
+            if (seq == null) return new String[]{"ε"};
+            String[] symbols = new String[seq.length];
+            for (int i = 0; seq != null; seq = seq.tail) symbols[i++] = seq.head;
+            return symbols;
+        }
+
+        /**
+         * @return 把 prefix 的全部符号放在 suffix 前面得到的产生式，suffix 本身不复制
+         */
+        static Seq concat(Seq prefix, Seq suffix) {
+            if (prefix == null) return suffix;
+            return new Seq(prefix.head, concat(prefix.tail, suffix));
+        }
+    }
+
+    private final class Desugarer {
+        private final Map<String, List<String[]>> productions = new LinkedHashMap<>();
+        private final Map<String, Set<String>> seen = new HashMap<>();
+        private final Map<Repeat, String> repeatNames = new IdentityHashMap<>();
+        private int midCount = 0;
+
+        Map<String, List<String[]>> run() {
+            for (Rule rule : rules) {
+                // 规则本身排在它展开出来的 mid_k 前面
+                productions.computeIfAbsent(rule.name, k -> new ArrayList<>());
+                for (Seq seq : expandAlternatives(rule.alternatives)) add(rule.name, seq);
+            }
+            return productions;
+        }
+
+        private void add(String nonTerminal, Seq seq) {
+            String[] production = Seq.toArray(seq);
+            if (seen.computeIfAbsent(nonTerminal, k -> new HashSet<>()).add(String.join(" ", production))) {
+                productions.computeIfAbsent(nonTerminal, k -> new ArrayList<>()).add(production);
+            }
+        }
+
+        private List<Seq> expandAlternatives(List<List<Node>> alternatives) {
+            List<Seq> result = new ArrayList<>();
+            for (List<Node> sequence : alternatives) result.addAll(expandSequence(sequence));
+            return result;
+        }
+
+        /**
+         * 从右往左展开一个序列，每一项的每种展开都接在已经展开的后缀前面。
+         */
+        private List<Seq> expandSequence(List<Node> sequence) {
+            List<Seq> result = new ArrayList<>();
+            result.add(null);
+            // 先按从左到右的顺序展开每一项，保证 mid_k 的编号从左到右
+            List<List<Seq>> items = new ArrayList<>();
+            for (Node item : sequence) items.add(expandItem(item));
+            for (int i = items.size() - 1; i >= 0; i--) {
+                List<Seq> combined = new ArrayList<>();
+                for (Seq fragment : items.get(i)) {
+                    for (Seq suffix : result) combined.add(Seq.concat(fragment, suffix));
+                }
+                result = combined;
+            }
+            return result;
+        }
+
+        private List<Seq> expandItem(Node item) {
+            if (item instanceof Symbol) {
+                return List.of(new Seq(((Symbol) item).name, null));
+            }
+            if (item instanceof Group) {
+                return expandAlternatives(((Group) item).alternatives);
+            }
+            Repeat repeat = (Repeat) item;
+            if (repeat.quantifier == '?') {
+                List<Seq> result = new ArrayList<>(expandItem(repeat.item));
+                result.add(new Seq("ε", null));
+                return result;
+            }
+            String mid = repeatNames.get(repeat);
+            if (mid == null) {
+                // mid_k : X mid_k | ε
+                mid = "mid_" + midCount++;
+                repeatNames.put(repeat, mid);
+                Seq loop = new Seq(mid, null);
+                for (Seq body : expandItem(repeat.item)) add(mid, Seq.concat(body, loop));
+                add(mid, new Seq("ε", null));
+            }
+            Seq loop = new Seq(mid, null);
+            if (repeat.quantifier == '*') {
+                return List.of(loop);
+            }
+            List<Seq> result = new ArrayList<>();
+            for (Seq body : expandItem(repeat.item)) result.add(Seq.concat(body, loop));
+            return result;
+        }
+    }
+
+    // ---------- 词法和语法分析 ----------
+
+    /**
+     * 语法文件的递归下降解析器，边扫描字符边解析。
+     */
+    private static final class EbnfParser {
+        private static final String PUNCTUATION = ":;|()+*?#";
+
+        private final String fileName;
+        private final String[] lines;
+        private int line; // 当前行，从 0 开始
+        private int pos; // 当前行内的位置
+
+        EbnfParser(String fileName, String[] lines) {
+            this.fileName = fileName;
+            this.lines = lines;
+        }
+
+        List<Rule> parseRules() {
+            List<Rule> rules = new ArrayList<>();
+            while (skipSpaces()) {
+                int ruleLine = line;
+                int ruleColumn = pos;
+                String name = name("规则名");
+                expect(':', "规则名后面应当是冒号 ':'");
+                List<List<Node>> alternatives = alternatives();
+                expect(';', "每条规则应当以分号 ';' 结束");
+                rules.add(new Rule(name, alternatives, ruleLine + 1, ruleColumn + 1));
+            }
+            return rules;
+        }
+
+        private List<List<Node>> alternatives() {
+            List<List<Node>> alternatives = new ArrayList<>();
+            alternatives.add(sequence());
+            while (peek('|')) {
+                pos++;
+                alternatives.add(sequence());
+            }
+            return alternatives;
+        }
+
+        private List<Node> sequence() {
+            List<Node> items = new ArrayList<>();
+            while (skipSpaces() && !peek('|') && !peek(')') && !peek(';')) {
+                items.add(item());
+            }
+            return items;
+        }
+
+        private Node item() {
+            int itemLine = line + 1;
+            int itemColumn = pos + 1;
+            Node node;
+            if (peek('(')) {
+                pos++;
+                List<List<Node>> alternatives = alternatives();
+                if (!skipSpaces() || !peek(')')) {
+                    throw new GrammarFileException(fileName, itemLine, itemColumn, "括号没有闭合");
+                }
+                pos++;
+                node = new Group(alternatives, itemLine, itemColumn);
+            } else {
+                node = new Symbol(name("符号"), itemLine, itemColumn);
+            }
+            while (skipSpaces() && (peek('+') || peek('*') || peek('?'))) {
+                node = new Repeat(node, lines[line].charAt(pos++), itemLine, itemColumn);
+            }
+            return node;
+        }
+
+        private String name(String what) {
+            if (!skipSpaces()) {
+                throw error("文件意外结束，缺少" + what);
+            }
+            String text = lines[line];
+            int start = pos;
+            while (pos < text.length() && !Character.isWhitespace(text.charAt(pos))
+                    && PUNCTUATION.indexOf(text.charAt(pos)) < 0) {
+                pos++;
+            }
+            if (pos == start) {
+                throw error("这里应当是" + what + "，不能是 '" + text.charAt(pos) + "'");
+            }
+            return text.substring(start, pos);
+        }
+
+        private void expect(char c, String message) {
+            if (!skipSpaces() || !peek(c)) {
+                throw error(message);
+            }
+            pos++;
+        }
+
+        /**
+         * 跳过空白和注释。
+         *
+         * @return 是否还有内容
+         */
+        private boolean skipSpaces() {
+            while (line < lines.length) {
+                String text = lines[line];
+                while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+                if (pos < text.length() && text.charAt(pos) != '#') return true;
+                line++;
+                pos = 0;
+            }
+            return false;
+        }
+
+        private boolean peek(char c) {
+            return line < lines.length && pos < lines[line].length() && lines[line].charAt(pos) == c;
+        }
+
+        private GrammarFileException error(String message) {
+            if (line >= lines.length) {
+                int last = Math.max(lines.length, 1);
+                return new GrammarFileException(fileName, last, lines.length == 0 ? 1 : lines[last - 1].length() + 1, message);
+            }
+            return new GrammarFileException(fileName, line + 1, pos + 1, message);
+        }
+    }
+}
+
+/**
+ * 语法文件格式有误，记录出错的行号和列号（都从 1 开始）。
+ */
+class GrammarFileException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    private final int line;
+    private final int column;
+
+    GrammarFileException(String fileName, int line, int column, String message) {
+        super("请检查语法文件格式，" + fileName + " 第 " + line + " 行第 " + column + " 列：" + message);
+        this.line = line;
+        this.column = column;
+    }
+
+    int getLine() {
+        return line;
+    }
+
+    int getColumn() {
+        return column;
+    }
+}
@@ -254,7 +254,6 @@ class CFG {
     private Set<CFGEdge> edges; //
     private Map<CFGNode, List<CFGEdge>> sourceEdges; // 每个节点作为源点的边（出边）
     private Map<CFGNode, List<CFGEdge>> targetEdges; // 每个节点作为目标点的边（入边）// 边集合
-    private static int uniqueIdCounter = 0; // 静态计数器，确保全局唯一性
 
     public CFG() {
         this.nodes = new HashSet<>();
@@ -356,6 +355,13 @@ class CFG {
     // 导出为JSON文件
     public static void exportToJson(CFG cfg, String filename) throws IOException {
         ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(new File(filename), toJsonTree(cfg));
+    }
+
+    /**
+     * 把 CFG 转换成 {@link #exportToJson} 写出的 JSON 的结构，编译服务直接放进响应中（见 {@link CompileServer}）。
+     */
+    static Map<String, Object> toJsonTree(CFG cfg) {
         Map<String, Object> graphData = new HashMap<>();
 
         List<Map<String, Object>> nodesData = new ArrayList<>();
@@ -436,8 +442,7 @@ class CFG {
         }
 
         graphData.put("edges", edgesData);
-
-        objectMapper.writerWithDefaultPrettyPrinter().writeValue(new File(filename), graphData);
+        return graphData;
     }
 
 
@@ -450,11 +455,6 @@ class CFG {
                 '}';
     }
 
-    // 静态方法：生成唯一的ID
-    public static synchronized int generateUniqueId() {
-        return uniqueIdCounter++;
-    }
-
 }
 
 class CFGVisualizer {
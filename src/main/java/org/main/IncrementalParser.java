@@ -0,0 +1,424 @@
+package org.main;
+
+import java.util.*;
+
+/**
+ * 增量语法分析：源文件修改之后（见 {@link Lexer#relex}），只重新分析包含修改范围的最小的 statement 或 Case，
+ * 其余的子树原样保留在化简后的语法树里。
+ * <p>
+ * 重新分析的一段从原来的起点开始，按预测分析表分析成同一个非终结符，向前看的 token 就是它后面真实的 token。
+ * 只有恰好分析到原来的终点（加上 token 数的变化）时才替换原来的子树；否则换成外面一层的 statement 或 Case 再试，
+ * 一直到 program 时就整个重新分析。文法是 LL(1) 的，所以得到的树和整个重新分析得到的完全相同。
+ * </p>
+ * <p>
+ * 这里保存的始终是最近一次没有语法错误的语法树。有语法错误时整个重新分析并报告错误，
+ * 之后的修改和还没有合并进语法树的修改合并成一个范围，改正之后仍然只需要重新分析这个范围。
+ * </p>
+ * <p>
+ * 每个语句列表（program 和 Case）记下其中每个语句的 token 偏移，终结符里只保存它在所在语句中的偏移，
+ * 行号在用到时按 token 下标从 {@link TokenBuffer} 中查出。所以修改之后只需要更新外层语句自己的终结符和这些偏移，
+ * 修改范围之后的终结符都不用动。
+ * </p>
+ * <p>
+ * 保留下来的结点可能已经带有上一次语义分析留下的属性，重新做语义分析前应该整个重新建树。
+ * </p>
+ */
+final class IncrementalParser {
+    private static final Set<String> LISTS = Set.of("program", "Case"); // 子结点都是 statement 的非终结符
+    private static final String STATEMENT = "statement";
+    // 遍历时表示语句或语句列表结束
+    private static final ExtendedASTNode END_STATEMENT = new ExtendedASTNode("", null, -1, false);
+    private static final ExtendedASTNode END_LIST = new ExtendedASTNode("", null, -1, false);
+
+    private final Lexer lexer;
+    private final String grammarFileName;
+    private ExtendedASTNode root; // 最近一次没有语法错误的语法树
+    private StatementList rootList; // root 的语句列表
+    private ExtendedASTNode current; // 当前的语法树，有语法错误时是不完整的
+    private boolean hasErrors;
+    private int reparsedTokens;
+
+    // 还没有合并进 root 的修改：root 中 [pendingStart, pendingOldEnd) 的 token 现在是 [pendingStart, pendingNewEnd)
+    private boolean pending;
+    private int pendingStart;
+    private int pendingOldEnd;
+    private int pendingNewEnd;
+
+    IncrementalParser(Lexer lexer, String grammarFileName) {
+        this.lexer = lexer;
+        this.grammarFileName = grammarFileName;
+    }
+
+    /**
+     * 整个重新分析。
+     *
+     * @return 化简后的语法树的根结点
+     */
+    ExtendedASTNode analyze() {
+        Parser parser = new Parser(lexer);
+        ExtendedASTBuilder tree = new ExtendedASTBuilder();
+        parser.analyze(grammarFileName, tree);
+        hasErrors = parser.hasErrors();
+        current = tree.getRoot();
+        reparsedTokens = lexer.getTokens().size() - 1;
+        if (!hasErrors && current != null) {
+            root = current;
+            pending = false;
+            rootList = new StatementList(root, null, 0);
+            index(root, null, rootList);
+        }
+        return current;
+    }
+
+    /**
+     * 词法分析器增量分析之后调用，只重新分析受影响的部分。
+     *
+     * @param change {@link Lexer#relex} 的返回值
+     * @return 化简后的语法树的根结点，没有改变的子树和原来是同一个对象
+     */
+    ExtendedASTNode reparse(Lexer.TokenChange change) {
+        if (root == null) {
+            return analyze();
+        }
+        merge(change);
+
+        // 从根往下找包含修改范围的语句列表
+        List<StatementList> path = new ArrayList<>(List.of(rootList));
+        List<Integer> starts = new ArrayList<>(List.of(0));
+        StatementList list = rootList;
+        int listStart = 0;
+        descend:
+        while (true) {
+            int i = list.statementEndingAtOrAfter(pendingOldEnd - listStart);
+            if (i == list.size() || listStart + list.starts[i] > pendingStart) break;
+            Statement statement = list.statements[i];
+            int statementStart = listStart + list.starts[i];
+            for (StatementList inner : statement.lists) {
+                int innerStart = statementStart + inner.offset;
+                if (innerStart <= pendingStart && pendingOldEnd <= innerStart + inner.tokens()) {
+                    list = inner;
+                    listStart = innerStart;
+                    path.add(inner);
+                    starts.add(innerStart);
+                    continue descend;
+                }
+            }
+            break;
+        }
+
+        // 从最里面的语句列表开始，重新分析其中和修改范围相交的语句
+        for (int i = path.size() - 1; i >= 0; i--) {
+            if (reparseStatements(path.get(i), starts.get(i))) {
+                hasErrors = false;
+                pending = false;
+                current = root;
+                return root;
+            }
+        }
+        return analyze();
+    }
+
+    /**
+     * @return 最近一次分析是否有语法错误
+     */
+    boolean hasErrors() {
+        return hasErrors;
+    }
+
+    /**
+     * @return 当前的语法树，有语法错误时是不完整的
+     */
+    ExtendedASTNode getRoot() {
+        return current;
+    }
+
+    /**
+     * @return 最近一次分析重新分析了多少个 token
+     */
+    int getReparsedTokens() {
+        return reparsedTokens;
+    }
+
+    /**
+     * 把这次修改和还没有合并进语法树的修改合并成一个范围。
+     */
+    private void merge(Lexer.TokenChange change) {
+        if (!pending) {
+            pending = true;
+            pendingStart = change.start;
+            pendingOldEnd = change.oldEnd;
+            pendingNewEnd = change.newEnd;
+            return;
+        }
+        // change 的位置是相对于上一次修改之后的 token 流的
+        int end = Math.max(pendingNewEnd, change.oldEnd);
+        pendingOldEnd += end - pendingNewEnd;
+        pendingNewEnd = end + change.newEnd - change.oldEnd;
+        pendingStart = Math.min(pendingStart, change.start);
+    }
+
+    /**
+     * 重新分析语句列表中和修改范围相交的语句，逐个分析成 statement，恰好分析到这些语句原来的终点时替换它们。
+     * 修改只是在两个语句之间插入时，原来的语句一个都不用重新分析。
+     *
+     * @param listStart 这个语句列表的第一个 token 在修改之前的下标
+     * @return 是否替换成功
+     */
+    private boolean reparseStatements(StatementList list, int listStart) {
+        // 和修改范围相交的语句是 [from, to)
+        int from = list.statementEndingAfter(pendingStart - listStart);
+        int to = from == list.size() ? from : list.statementStartingAtOrAfter(pendingOldEnd - listStart, from);
+        int regionStart = listStart + list.starts[from];
+        int delta = pendingNewEnd - pendingOldEnd;
+        int regionEnd = listStart + list.starts[to] + delta;
+
+        List<ExtendedASTNode> statements = new ArrayList<>();
+        Parser parser = new Parser(lexer, lexer.getTokenIterator(regionStart, Integer.MAX_VALUE));
+        for (int at = regionStart; at < regionEnd; ) {
+            ExtendedASTBuilder tree = new ExtendedASTBuilder();
+            at = parser.analyzeNonTerminal(grammarFileName, STATEMENT, tree);
+            if (at < 0 || at > regionEnd) return false;
+            statements.add(tree.getRoot());
+        }
+        if (list.size() - (to - from) + statements.size() == 0) {
+            return false; // 语句列表至少要有一个语句
+        }
+
+        Statement[] replacement = new Statement[statements.size()];
+        int[] sizes = new int[statements.size()];
+        for (int i = 0; i < replacement.length; i++) {
+            replacement[i] = new Statement(statements.get(i), list, from + i);
+            sizes[i] = index(statements.get(i), replacement[i], null);
+        }
+        list.replace(from, to, replacement, sizes, delta);
+        list.node.replaceChildren(from, to, statements);
+
+        // 外层的语句和语句列表中，这个列表之后的偏移都变了
+        for (StatementList inner = list; inner.owner != null && delta != 0; inner = inner.owner.list) {
+            inner.owner.reindex();
+            inner.owner.list.shift(inner.owner.index + 1, delta);
+        }
+        reparsedTokens = regionEnd - regionStart;
+        return true;
+    }
+
+    /**
+     * 遍历 node 的子树：为其中的语句和语句列表记下偏移，为终结符设置行号的来源。用显式的栈遍历，嵌套很深时不会栈溢出。
+     *
+     * @param node      statement 或语句列表
+     * @param statement node 是 statement 时是它对应的 {@link Statement}，否则为 null
+     * @param list      node 是语句列表时是它对应的 {@link StatementList}，否则为 null
+     * @return node 包含的 token 数
+     */
+    private int index(ExtendedASTNode node, Statement statement, StatementList list) {
+        Deque<ExtendedASTNode> stack = new ArrayDeque<>();
+        Deque<Statement> statements = new ArrayDeque<>(); // 正在遍历的语句
+        Deque<Integer> statementStarts = new ArrayDeque<>(); // 开始遍历它们时的 token 数
+        Deque<StatementList> lists = new ArrayDeque<>();
+        Deque<Integer> listStarts = new ArrayDeque<>();
+        int tokens = 0;
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            ExtendedASTNode top = stack.pop();
+            if (top == END_STATEMENT) {
+                statements.pop();
+                statementStarts.pop();
+                continue;
+            }
+            if (top == END_LIST) {
+                lists.pop().close(tokens - listStarts.pop());
+                continue;
+            }
+            if (top.isTerminal()) {
+                top.setLineNumber(statements.peek(), tokens - statementStarts.peek());
+                tokens++;
+                continue;
+            }
+            if (LISTS.contains(top.getType())) {
+                StatementList inner = top == node ? list
+                        : new StatementList(top, statements.peek(), tokens - statementStarts.peek());
+                if (inner.owner != null && top != node) inner.owner.lists.add(inner);
+                lists.push(inner);
+                listStarts.push(tokens);
+                stack.push(END_LIST);
+            } else if (STATEMENT.equals(top.getType())) {
+                Statement unit = top == node ? statement : lists.peek().add(top, tokens - listStarts.peek());
+                statements.push(unit);
+                statementStarts.push(tokens);
+                stack.push(END_STATEMENT);
+            }
+            List<ExtendedASTNode> children = top.getChildren();
+            for (int i = children.size() - 1; i >= 0; i--) stack.push(children.get(i));
+        }
+        return tokens;
+    }
+
+    /**
+     * 语句列表（program 或 Case），记下其中每个语句相对于列表开头的 token 偏移。
+     */
+    private final class StatementList {
+        final ExtendedASTNode node;
+        final Statement owner; // 列表所在的语句，program 为 null
+        int offset; // 列表开头相对于 owner 开头的 token 偏移
+        Statement[] statements = new Statement[4];
+        int[] starts = new int[5]; // starts[i] 是第 i 个语句的偏移，starts[size] 是列表的 token 数
+        private int size;
+
+        StatementList(ExtendedASTNode node, Statement owner, int offset) {
+            this.node = node;
+            this.owner = owner;
+            this.offset = offset;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int tokens() {
+            return starts[size];
+        }
+
+        /**
+         * 建立索引时按顺序追加一个语句。
+         */
+        Statement add(ExtendedASTNode node, int start) {
+            if (size + 1 == starts.length) {
+                statements = Arrays.copyOf(statements, starts.length * 2);
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            }
+            Statement statement = new Statement(node, this, size);
+            statements[size] = statement;
+            starts[size++] = start;
+            return statement;
+        }
+
+        void close(int tokens) {
+            starts[size] = tokens;
+        }
+
+        /**
+         * 把 [from, to) 的语句换成 replacement，token 数分别是 sizes，之后的语句偏移 delta。
+         */
+        void replace(int from, int to, Statement[] replacement, int[] sizes, int delta) {
+            int newSize = size - (to - from) + replacement.length;
+            Statement[] newStatements = new Statement[newSize];
+            int[] newStarts = new int[newSize + 1];
+            System.arraycopy(statements, 0, newStatements, 0, from);
+            System.arraycopy(starts, 0, newStarts, 0, from + 1);
+            System.arraycopy(replacement, 0, newStatements, from, replacement.length);
+            for (int i = 0; i < replacement.length; i++) {
+                newStarts[from + i + 1] = newStarts[from + i] + sizes[i];
+            }
+            int moved = from + replacement.length;
+            System.arraycopy(statements, to, newStatements, moved, size - to);
+            for (int i = to; i <= size; i++) {
+                newStarts[moved + i - to] = starts[i] + delta;
+            }
+            if (moved != to) {
+                for (int i = moved; i < newSize; i++) newStatements[i].index = i;
+            }
+            statements = newStatements;
+            starts = newStarts;
+            size = newSize;
+        }
+
+        /**
+         * 从第 from 个语句开始（包括列表的结尾）偏移 delta。
+         */
+        void shift(int from, int delta) {
+            for (int i = from; i <= size; i++) starts[i] += delta;
+        }
+
+        /**
+         * @return 第一个在 offset 之后结束的语句的下标，没有时返回 size
+         */
+        int statementEndingAfter(int offset) {
+            return search(1, size + 1, offset + 1) - 1;
+        }
+
+        /**
+         * @return 第一个在 offset 或者之后结束的语句的下标，没有时返回 size
+         */
+        int statementEndingAtOrAfter(int offset) {
+            return search(1, size + 1, offset) - 1;
+        }
+
+        /**
+         * @return from 之后第一个在 offset 或者之后开始的语句的下标，没有时返回 size
+         */
+        int statementStartingAtOrAfter(int offset, int from) {
+            return search(from, size, offset);
+        }
+
+        /**
+         * @return [low, high) 中第一个满足 starts[i] >= value 的 i，没有时返回 high
+         */
+        private int search(int low, int high, int value) {
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] < value) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * 语句列表中的一个语句。其中的终结符（不包括内层语句列表里的）只保存相对于语句开头的 token 偏移，
+     * 行号由它按 token 下标查出。
+     */
+    private final class Statement implements ExtendedASTNode.LineResolver {
+        final ExtendedASTNode node;
+        final StatementList list;
+        int index; // 在 list 中的下标
+        final List<StatementList> lists = new ArrayList<>(2); // 语句里的语句列表，按位置排列
+
+        Statement(ExtendedASTNode node, StatementList list, int index) {
+            this.node = node;
+            this.list = list;
+            this.index = index;
+        }
+
+        /**
+         * @return 语句的第一个 token 在 root 中的下标
+         */
+        int start() {
+            int start = 0;
+            for (Statement statement = this; statement != null; statement = statement.list.owner) {
+                start += statement.list.offset + statement.list.starts[statement.index];
+            }
+            return start;
+        }
+
+        @Override
+        public int lineOf(int offset) {
+            return lexer.getTokens().line(start() + offset);
+        }
+
+        /**
+         * 里面的语句列表的 token 数变了之后，重新计算自己的终结符和语句列表的偏移，不进入语句列表。
+         */
+        void reindex() {
+            Deque<ExtendedASTNode> stack = new ArrayDeque<>();
+            int tokens = 0;
+            int next = 0;
+            stack.push(node);
+            while (!stack.isEmpty()) {
+                ExtendedASTNode top = stack.pop();
+                if (top.isTerminal()) {
+                    top.setLineNumber(this, tokens++);
+                } else if (top != node && LISTS.contains(top.getType())) {
+                    StatementList inner = lists.get(next++);
+                    inner.offset = tokens;
+                    tokens += inner.tokens();
+                } else {
+                    List<ExtendedASTNode> children = top.getChildren();
+                    for (int i = children.size() - 1; i >= 0; i--) stack.push(children.get(i));
+                }
+            }
+        }
+    }
+}
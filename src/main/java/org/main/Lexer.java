@@ -1,6 +1,11 @@
 package org.main;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -12,40 +17,92 @@ import java.util.regex.Pattern;
  * </p>
  */
 public class Lexer {
+    String grammarFileName;
     GrammarRule grammarRule;
-    List<Token> tokens; // 存储已经识别的token
+    DFAScanner scanner; // 由词法文件编译得到的扫描器
+    TokenBuffer tokens; // 存储已经识别的token
     List<LexicalError> errors; // 用于存储错误信息
-    public static String[] allLines;
+    private final CompilationContext context; // 这次编译的状态，源文件也保存在这里
+    private boolean parallel = true; // 是否允许并行词法分析
+    static final int SHARD_MIN_LINES = 4096; // 并行分析时每个分片至少包含的行数
+    static final int STREAM_CAPACITY = 1 << 14; // 流水线模式下队列的容量
+    private TokenQueue stream; // 流水线模式下词法分析线程写入的队列
+    private Thread producer; // 流水线模式下的词法分析线程
+    private PushParser.Channel push; // 分段送入源文本时，和语法分析线程交接的通道
+    private int pushedLines; // 分段送入时已经分析过的行数
+    private volatile Throwable streamFailure;
+    // 写成大写的关键字会被识别为标识符，但需要报告词法错误
+    static final Set<String> UPPERCASE_KEYWORDS = Set.of("FORWARD", "BACKWARD", "TURNRIGHT", "TURNLEFT", "LOOKUP",
+            "LOOKDOWN", "LOOKLEFT", "LOOKRIGHT", "GOTO", "PERCEIVE", "APPROACH", "GRASP");
 
     /**
      * 构造一个新的 Lexer 实例。
-     * 初始化语法规则和Token列表。
+     * 初始化语法规则和Token列表。词法规则和扫描器取自 {@link CompiledLanguage}，词法文件没有变化时直接从缓存读入。
      */
     public Lexer(String grammarFileName) {
-        this.grammarRule = new GrammarRule();
-        this.tokens = new ArrayList<>();
+        this(grammarFileName, new CompilationContext());
+    }
+
+    /**
+     * @param context 这次编译的状态，之后的语法分析和语义分析使用同一个对象（见 {@link #getContext()}）
+     */
+    public Lexer(String grammarFileName, CompilationContext context) {
+        this.grammarFileName = grammarFileName;
+        this.context = context;
         this.errors = new ArrayList<>(); // 初始化错误列表
-        grammarRule.createRuleFromFile(grammarFileName);
+        CompiledLanguage language = CompiledLanguage.load(grammarFileName, CompiledLanguage.PARSER_GRAMMAR_FILE,
+                CompiledLanguage.TEMPLATE_FILE);
+        this.grammarRule = language.getGrammarRule();
+        this.scanner = language.getScanner();
     }
 
     /**
      * 用于表示词法分析器的Token，包括token的类型、具体的值以及所在的行。
+     * <p>
+     * Token本身不保存数据，只是TokenBuffer中某个位置的视图，token的值在调用时才生成。
+     * </p>
      */
     static class Token {
-        public String[] lexeme;
-        public int lineNumber;
+        private final TokenBuffer buffer;
+        private final int index;
 
         /**
          * 构造一个Token对象。
          *
-         * @param lexeme     token的具体值
-         * @param lineNumber token所在的行号
+         * @param buffer token所在的TokenBuffer
+         * @param index  token在TokenBuffer中的下标
          */
-        public Token(String[] lexeme, int lineNumber) {
-            this.lexeme = lexeme;
-            this.lineNumber = lineNumber;
+        public Token(TokenBuffer buffer, int index) {
+            this.buffer = buffer;
+            this.index = index;
+        }
+
+        public String getType() {
+            return buffer.typeName(index);
         }
 
+        /**
+         * @return token 的类型编号，即 {@link TokenBuffer#getTypeNames()} 中的下标
+         */
+        public int getTypeId() {
+            return buffer.type(index);
+        }
+
+        public String getValue() {
+            return buffer.text(index);
+        }
+
+        public int getLineNumber() {
+            return buffer.line(index);
+        }
+
+        public int getColumn() {
+            return buffer.column(index);
+        }
+
+        public int getIndex() {
+            return index;
+        }
     }
 
     /**
@@ -53,7 +110,7 @@ public class Lexer {
      * <p>
      * 此方法首先从一个给定的语法规则文件中加载语法规则。
      * 然后，它读取输入文件的内容，并将其分割成Token，忽略每行末尾的分号。
-     * 每个Token都是通过GrammarRule识别的，并添加到内部列表中。
+     * 每一行都交给由GrammarRule编译出的DFAScanner一遍扫描完成，识别出的Token添加到内部列表中。
      * </p>
      *
      * @param inputFileName 要分析的输入文件的名称。
@@ -62,91 +119,403 @@ public class Lexer {
     public void analyze(String inputFileName) {
         // 使用Scan类读取输入文件的内容
         Scan inputScan = new Scan(inputFileName);
-        String[] inputLines = inputScan.readTextFromPath();
-        allLines = inputLines;
+        analyze(inputScan.readSourceFromPath());
+    }
 
-        // 遍历每一行，进行词法分析
-        for (int i = 0; i < inputLines.length; i++) {
-            String line = inputLines[i]; // 获取当前行的内容
-            if (line.trim().isEmpty() || line.trim().startsWith("#")) continue; // 忽略空行和纯注释行
+    /**
+     * 分析已经读入的源文本，比如编译服务从请求中收到的程序（见 {@link CompileServer}）。
+     *
+     * @param text 源文本
+     */
+    void analyze(SourceText text) {
+        context.source = text;
+        tokens = new TokenBuffer(text, scanner);
+
+        int lineCount = text.lineCount();
+        int workers = ForkJoinPool.getCommonPoolParallelism();
+        int shardLines = Math.max(SHARD_MIN_LINES, lineCount / (workers * 4) + 1);
+        if (parallel && workers > 1 && lineCount >= 2 * shardLines) {
+            // 字符串不会跨行，每一行都可以独立分析：按行切分后并行分析，再按顺序合并
+            List<LineShard> shards = new ArrayList<>();
+            for (int first = 1; first <= lineCount; first += shardLines) {
+                LineShard shard = new LineShard(text, first, Math.min(first + shardLines, lineCount + 1));
+                shard.fork();
+                shards.add(shard);
+            }
+            for (LineShard shard : shards) {
+                shard.join();
+                tokens.append(shard.sink.tokens);
+                errors.addAll(shard.sink.errors);
+            }
+        } else {
+            LineSink sink = new LineSink(tokens, errors);
+            lexLines(text, 1, lineCount + 1, sink);
+        }
+        //加入一个结束标记，以便后续的语法分析
+        tokens.addEnd(lineCount + 1);
+        ErrorHandler.handleError(errors);
+    }
 
-            int commentIndex = line.indexOf("#");
-            if (commentIndex >= 0) {
-                // 只保留注释前的部分，同时去除注释前可能存在的多余空格
-                line = line.substring(0, commentIndex).trim();
+    /**
+     * 以流水线方式分析指定输入文件：词法分析在单独的线程中进行，识别出的Token写入一个有界无锁队列，
+     * 语法分析器通过 {@link TokenIterator} 边读取边分析，两者同时进行。
+     * <p>
+     * 读取过的Token都保留在 {@link #getTokens()} 中，所以回溯、lookaheadK和lookbackK的行为和原来一样。
+     * 一旦发现词法错误，语法分析会提前结束（抛出 {@link StreamAbortedException}）；
+     * 全部词法错误在 {@link #awaitStreaming()} 中报告。
+     * </p>
+     *
+     * @param inputFileName 要分析的输入文件的名称。
+     */
+    public void analyzeStreaming(String inputFileName) {
+        Scan inputScan = new Scan(inputFileName);
+        SourceText text = inputScan.readSourceFromPath();
+        context.source = text;
+        tokens = new TokenBuffer(text, scanner);
+        TokenQueue queue = new TokenQueue(STREAM_CAPACITY);
+        stream = queue;
+        streamFailure = null;
+
+        int endType = tokens.getEndType();
+        producer = new Thread(() -> {
+            try {
+                LineSink sink = new LineSink(null, errors);
+                sink.queue = queue;
+                lexLines(text, 1, text.lineCount() + 1, sink);
+                queue.offer(endType, text.length(), text.length(), text.lineCount() + 1, 1);
+            } catch (Throwable e) {
+                streamFailure = e;
+                queue.abort();
+            } finally {
+                queue.close();
             }
+        }, "lexer");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /**
+     * 等待流水线模式下的词法分析线程结束，并报告词法错误。
+     * 语法分析提前结束时，剩下的Token不再写入队列，但词法分析会继续完成以便报告全部词法错误。
+     */
+    public void awaitStreaming() {
+        if (producer == null) return;
+        stream.cancel();
+        try {
+            producer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("等待词法分析线程时被中断", e);
+        }
+        producer = null;
+        stream = null;
+        if (streamFailure != null) {
+            throw new RuntimeException("词法分析线程出错", streamFailure);
+        }
+        ErrorHandler.handleError(errors);
+    }
+
+    /**
+     * 开始分段送入源文本（见 {@link PushParser}）。之后用 {@link #push} 送入文本，用 {@link #finishPush} 结束。
+     * 语法分析器读到还没有送入的位置时，通过 channel 等待下一段。
+     */
+    void startPush(PushParser.Channel channel) {
+        context.source = SourceText.empty();
+        tokens = new TokenBuffer(context.source, scanner);
+        push = channel;
+        pushedLines = 0;
+    }
+
+    /**
+     * 追加一段源文本，分析其中已经完整的行，新发现的词法错误立即报告。
+     *
+     * @return 这一段是否没有词法错误
+     */
+    boolean push(CharSequence content) {
+        return lexPushed(context.source.appendText(content));
+    }
+
+    /**
+     * 源文本全部送入，分析最后一行并加入结束符 $。
+     *
+     * @return 最后一行是否没有词法错误
+     */
+    boolean finishPush() {
+        context.source.finish();
+        boolean ok = lexPushed(context.source.lineCount());
+        tokens.addEnd(context.source.lineCount() + 1);
+        return ok;
+    }
 
-            String modifiedLine = grammarRule.splitSpecialTokenValue(line);
+    private boolean lexPushed(int completeLines) {
+        List<LexicalError> found = new ArrayList<>();
+        lexLines(context.source, pushedLines + 1, completeLines + 1, new LineSink(tokens, found));
+        pushedLines = Math.max(pushedLines, completeLines);
+        errors.addAll(found);
+        ErrorHandler.handleError(found);
+        return found.isEmpty();
+    }
 
-            // 以空格分割单词
-            String[] words = modifiedLine.split(" ");
+    /**
+     * 从流水线队列中读取一个Token追加到tokens中。
+     *
+     * @return 是否读到了Token；不是流水线模式或者Token已经读完时返回false
+     */
+    private boolean pull() {
+        if (push != null) return push.await(tokens.size());
+        if (stream == null) return false;
+        int type = stream.poll(tokens);
+        if (type == TokenQueue.ABORT) {
+            throw new StreamAbortedException();
+        }
+        return type != TokenQueue.CLOSED;
+    }
 
-            for (int w = 0; w < words.length; w++) {
-                String word = words[w];
-                String sanitizedWord = word; // .replace(";", "");
+    /**
+     * 流水线模式下词法分析发现错误时抛出，语法分析应当停止。
+     */
+    static class StreamAbortedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
 
-                // 如果处理后的单词长度大于0，则继续匹配
-                if (sanitizedWord.length() > 0) {
-                    // 对每个单词使用语法规则进行匹配
-                    Token currentToken = new Token(grammarRule.matchToken(sanitizedWord), i + 1);
+        StreamAbortedException() {
+            super("词法分析发现错误，语法分析提前结束");
+        }
+    }
 
-                    if ("QUO".equals(currentToken.lexeme[0])) {
-                        StringBuilder sb = new StringBuilder();
-                        boolean closed = false;
+    /**
+     * 设置是否允许按行切分、并行进行词法分析（默认允许）。行数较少时总是在当前线程中分析。
+     *
+     * @param parallel 是否并行
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
 
-                        while (++w < words.length) {
-                            String nextWord = words[w];
-                            Token t = new Token(grammarRule.matchToken(nextWord), i + 1);
+    /**
+     * 增量词法分析：把上一次分析结果中 [firstLine, endLine) 范围内的行替换成新的文本，
+     * 只重新分析这些行，并把结果拼接回token流中。
+     * <p>
+     * 替换范围之后的token只平移位置和行号，不会重新分析；这些行上的词法错误同样平移行号。
+     * 只有新分析出的词法错误会被报告。
+     * </p>
+     *
+     * @param firstLine   第一个被替换的行号，从1开始
+     * @param endLine     被替换的最后一行的下一行；等于firstLine时表示在firstLine之前插入
+     * @param replacement 新的文本，可以包含任意多行，按行划分的方式和读取文件时相同（末尾的换行可有可无），空串表示删除这些行
+     * @return token流中发生变化的范围
+     */
+    public TokenChange relex(int firstLine, int endLine, String replacement) {
+        if (tokens == null) {
+            throw new RuntimeException("还没有进行过词法分析，无法增量分析");
+        }
+        TokenBuffer previous = tokens;
+        SourceText oldText = previous.getSource();
+        SourceText newText = oldText.replaceLines(firstLine, endLine, replacement);
+        int lineDelta = newText.lineCount() - oldText.lineCount();
+        int newEndLine = endLine + lineDelta;
+        int charDelta = newText.lineStart(newEndLine) - oldText.lineStart(endLine);
+
+        // 只分析被替换进来的行
+        LineSink sink = new LineSink(new TokenBuffer(newText, scanner), new ArrayList<>());
+        lexLines(newText, firstLine, newEndLine, sink);
+
+        int from = previous.firstTokenAtLine(firstLine);
+        int to = previous.firstTokenAtLine(endLine);
+        tokens = previous.splice(newText, from, to, sink.tokens, charDelta, lineDelta);
+        context.source = newText;
+
+        // 被替换的行上的错误换成新的错误，后面的错误平移行号
+        List<LexicalError> newErrors = new ArrayList<>();
+        int index = 0;
+        while (index < errors.size() && errors.get(index).line < firstLine) {
+            newErrors.add(errors.get(index++));
+        }
+        newErrors.addAll(sink.errors);
+        for (; index < errors.size(); index++) {
+            LexicalError error = errors.get(index);
+            if (error.line >= endLine) {
+                newErrors.add(lineDelta == 0 ? error : new LexicalError(error.message, error.line + lineDelta));
+            }
+        }
+        errors = newErrors;
+        ErrorHandler.handleError(sink.errors);
 
-                            // 遇到闭合引号，结束
-                            if ("QUO".equals(t.lexeme[0])) {
-                                closed = true;
-                                break;
-                            }
+        return new TokenChange(from, to, from + sink.tokens.size(), firstLine, endLine, newEndLine);
+    }
 
-                            // 累加中间内容（原样拼接，中间以空格分隔）
-                            if (sb.length() > 0) sb.append(" ");
-                            sb.append(nextWord);
-                        }
+    /**
+     * 一次增量词法分析对token流的影响：原来 [start, oldEnd) 的token被替换成了 [start, newEnd) 的token，
+     * 对应源文件中原来 [firstLine, oldEndLine) 的行变成了 [firstLine, newEndLine) 的行。
+     * newEnd 之后的token内容不变，只是行号平移了 newEndLine - oldEndLine。
+     */
+    static class TokenChange {
+        final int start;
+        final int oldEnd;
+        final int newEnd;
+        final int firstLine;
+        final int oldEndLine;
+        final int newEndLine;
+
+        TokenChange(int start, int oldEnd, int newEnd, int firstLine, int oldEndLine, int newEndLine) {
+            this.start = start;
+            this.oldEnd = oldEnd;
+            this.newEnd = newEnd;
+            this.firstLine = firstLine;
+            this.oldEndLine = oldEndLine;
+            this.newEndLine = newEndLine;
+        }
 
-                        if (!closed) {
-                            // 未找到闭合引号，给出词法错误
-                            errors.add(new LexicalError("Unterminated string literal", i + 1));
-                        } else {
-                            // 生成一个 STRING token（不包含引号）
-                            tokens.add(new Token(new String[]{"string", sb.toString()}, i + 1));
-                        }
-                        // 继续处理后续单词
-                        continue;
-                    }
+        public int getStart() {
+            return start;
+        }
 
-                    if (currentToken.lexeme[0].equals("UNKNOWN")) { // 检查是否为未知Token
-                        // 添加错误信息，包含行号
-                        errors.add(new LexicalError(sanitizedWord ,i + 1));
-                    } else {
-                        Set<String> set = new HashSet<>(Arrays.asList("FORWARD", "BACKWARD", "TURNRIGHT","TURNLEFT","LOOKUP",
-                                "LOOKDOWN","LOOKLEFT","LOOKRIGHT","GOTO","PERCEIVE","APPROACH","GRASP"));
-                        if(set.contains(currentToken.lexeme[1])){
-                            errors.add(new LexicalError(sanitizedWord ,i + 1));
-                        }
-                    }
+        public int getOldEnd() {
+            return oldEnd;
+        }
 
-                    tokens.add(currentToken);
-                }
+        public int getNewEnd() {
+            return newEnd;
+        }
+
+        /**
+         * @return 修改之后的token相对原来的位置平移量
+         */
+        public int getTokenDelta() {
+            return newEnd - oldEnd;
+        }
+
+        public int getLineDelta() {
+            return newEndLine - oldEndLine;
+        }
+
+        @Override
+        public String toString() {
+            return "tokens [" + start + ", " + oldEnd + ") -> [" + start + ", " + newEnd + "), lines ["
+                    + firstLine + ", " + oldEndLine + ") -> [" + firstLine + ", " + newEndLine + ")";
+        }
+    }
+
+    /**
+     * 对 [firstLine, endLine) 范围内的行进行词法分析，结果交给 sink。
+     */
+    private void lexLines(SourceText text, int firstLine, int endLine, LineSink sink) {
+        char[] chars = text.chars();
+        sink.chars = chars;
+        // 遍历每一行，进行词法分析
+        for (int i = firstLine; i < endLine; i++) {
+            int lineStart = text.lineStart(i); // 当前行在字符数组中的区间
+            int lineEnd = text.lineEnd(i);
+            int from = lineStart;
+            int to = lineEnd;
+            while (from < to && chars[from] <= ' ') from++;
+            if (from == to || chars[from] == '#') continue; // 忽略空行和纯注释行
+
+            int commentIndex = indexOf(chars, lineStart, lineEnd, '#');
+            if (commentIndex >= 0) {
+                // 只保留注释前的部分，同时去除注释前可能存在的多余空格
+                to = commentIndex;
+                while (to > from && chars[to - 1] <= ' ') to--;
+            } else {
+                from = lineStart; // 没有注释的行不做trim，和原来按空格分词的行为保持一致
             }
+
+            sink.lineStart = lineStart;
+            sink.lineNumber = i;
+            scanner.scan(chars, from, to, sink);
+        }
+    }
+
+    /**
+     * 并行词法分析的一个分片，负责连续的若干行，结果先放在自己的TokenBuffer和错误列表里。
+     */
+    @SuppressWarnings("serial") // 只在线程池中执行，不会被序列化
+    private class LineShard extends RecursiveAction {
+        final SourceText text;
+        final int firstLine;
+        final int endLine;
+        final LineSink sink;
+
+        LineShard(SourceText text, int firstLine, int endLine) {
+            this.text = text;
+            this.firstLine = firstLine;
+            this.endLine = endLine;
+            this.sink = new LineSink(new TokenBuffer(text, scanner), new ArrayList<>());
+        }
+
+        @Override
+        protected void compute() {
+            lexLines(text, firstLine, endLine, sink);
+        }
+    }
+
+    /**
+     * 获取当前源文件中某一行的内容，用于错误提示和生成的代码注释。
+     *
+     * @param lineNumber 行号，从1开始
+     * @return 该行的内容（不包含换行符）
+     */
+    public String lineText(int lineNumber) {
+        return context.lineText(lineNumber);
+    }
+
+    /**
+     * @return 这次编译的状态
+     */
+    public CompilationContext getContext() {
+        return context;
+    }
+
+    private static int indexOf(char[] buf, int from, int to, char c) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == c) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * 接收DFA扫描结果，把Token记录到TokenBuffer中，并生成词法错误。
+     */
+    private class LineSink implements DFAScanner.Sink {
+        final TokenBuffer tokens;
+        final List<LexicalError> errors;
+        TokenQueue queue; // 流水线模式下token写入队列而不是tokens
+        char[] chars;
+        int lineStart;
+        int lineNumber;
+
+        LineSink(TokenBuffer tokens, List<LexicalError> errors) {
+            this.tokens = tokens;
+            this.errors = errors;
+        }
+
+        @Override
+        public void token(int type, int start, int end, boolean lexicalError) {
+            if (lexicalError) {
+                // 未知的单词以及写成大写的关键字
+                errors.add(new LexicalError(scanner.text(chars, type, start, end), lineNumber));
+                if (queue != null) queue.abort();
+            }
+            if (queue != null) {
+                queue.offer(type, start, end, lineNumber, start - lineStart + 1);
+            } else {
+                tokens.add(type, start, end, lineNumber, start - lineStart + 1);
+            }
+        }
+
+        @Override
+        public void unterminatedString(int quoteStart) {
+            // 未找到闭合引号，给出词法错误
+            errors.add(new LexicalError("Unterminated string literal", lineNumber));
+            if (queue != null) queue.abort();
         }
-        Token endToken = new Token(new String[]{"$", "$"}, inputLines.length + 1);
-        tokens.add(endToken);
-        //加入一个结束标记，以便后续的语法分析
-        ErrorHandler.handleError(errors);
     }
 
     /**
      * 获取所有识别的Token。
      *
-     * @return 一个包含识别Token的列表。每个Token为一个字符串数组，包括类型和值。
+     * @return 保存识别结果的TokenBuffer，每个Token包括类型、位置和行列号。
      */
-    public List<Token> getTokens() {
+    public TokenBuffer getTokens() {
         return tokens;
     }
 
@@ -159,11 +528,23 @@ public class Lexer {
         return new TokenIterator();
     }
 
+    /**
+     * 获取只迭代 [from, limit) 这一段的迭代器，到 limit 时返回结束符 $，用于分段分析。
+     * 只能在词法分析全部完成之后使用。
+     */
+    TokenIterator getTokenIterator(int from, int limit) {
+        TokenIterator iterator = new TokenIterator();
+        iterator.currentIndex = from;
+        iterator.limit = limit;
+        return iterator;
+    }
+
     /**
      * 内部Token迭代器，用于迭代tokens。
      */
     public class TokenIterator implements Iterator<Token> {
         private int currentIndex; // 当前迭代的索引位置
+        private int limit = Integer.MAX_VALUE; // 迭代到这个位置时返回结束符 $，之后结束
 
         /**
          * 构造一个TokenIterator对象。
@@ -182,15 +563,21 @@ public class Lexer {
 
         public Token lookbackK(int k){
             if(currentIndex - k - 1 >= 0){
-                return tokens.get(currentIndex - k - 1);
+                return new Token(tokens, currentIndex - k - 1);
             }else{
                 throw new RuntimeException("越界");
             }
         }
 
         public Token lookaheadK(int k){
+            while (currentIndex + k - 1 >= tokens.size() && pull()) {
+                // 流水线模式下等待后面的Token
+            }
+            if (currentIndex + k - 1 >= limit) {
+                return new Token(tokens, tokens.size() - 1);
+            }
             if(currentIndex + k - 1 < tokens.size()){
-                return tokens.get(currentIndex + k - 1);
+                return new Token(tokens, currentIndex + k - 1);
             }else{
                 throw new RuntimeException("越界");
             }
@@ -203,7 +590,7 @@ public class Lexer {
          */
         @Override
         public boolean hasNext() {
-            return currentIndex < tokens.size();
+            return currentIndex <= limit && (currentIndex < tokens.size() || pull());
         }
 
         /**
@@ -217,7 +604,11 @@ public class Lexer {
             if (!hasNext()) {
                 throw new RuntimeException("token访问越界");
             }
-            return tokens.get(currentIndex++);
+            if (currentIndex == limit) {
+                currentIndex++;
+                return new Token(tokens, tokens.size() - 1); // 这一段的结束符
+            }
+            return new Token(tokens, currentIndex++);
         }
 
 
@@ -233,13 +624,17 @@ public class Lexer {
         Iterator<Token> iterator = getTokenIterator();
         while (iterator.hasNext()) {
             Token currentToken = iterator.next();
-            System.out.println("Token Type: " + currentToken.lexeme[0] + ", Value: " + currentToken.lexeme[1] + ", Line: " + currentToken.lineNumber);
+            System.out.println("Token Type: " + currentToken.getType() + ", Value: " + currentToken.getValue() + ", Line: " + currentToken.getLineNumber());
         }
     }
 
     /**
      * 获取所有的终结符（与下一层语法分析器的沟通）
      */
+    public String getGrammarFileName() {
+        return grammarFileName;
+    }
+
     public String[] getAllTerminals(){
         return this.grammarRule.getAllTokenNames();
     }
@@ -258,7 +653,6 @@ public class Lexer {
 
     // 词法错误类,用来处理语法错误
     class LexicalError extends CompilationError {
-        static int noteTimes = 0;
         String message;
         int line;
         public LexicalError(String Message, int line) {
@@ -268,40 +662,30 @@ public class Lexer {
 
         @Override
         public boolean handle() {
-            System.err.println("At line " + line + ", token " + message +":");
+            context.getErr().println("At line " + line + ", token " + message +":");
 //            System.out.println("请不要在后续生成的代码里使用这个不符合词法的词汇");
 
-            Set<String> set = new HashSet<>(Arrays.asList("FORWARD", "BACKWARD", "TURNRIGHT","TURNLEFT","LOOKUP",
-                    "LOOKDOWN","LOOKLEFT","LOOKRIGHT","GOTO","PERCEIVE","APPROACH","GRASP"));
-            if(set.contains(message)){
-                System.err.println("keywords should be lower case.");
+            if(UPPERCASE_KEYWORDS.contains(message)){
+                context.getErr().println("keywords should be lower case.");
             }
 
             // 判断是否可能在尝试写一个标识符或者数字
             Pattern pattern = Pattern.compile("[^a-zA-Z0-9_.]");
             Matcher matcher = pattern.matcher(message);
             if(matcher.find() ){ //写了一个非法的字符
-//              noteTimes += 1;
                 String illegalChar = matcher.group();
-                System.err.println("The " + illegalChar + " is an illegal character.");
-
-//                if(noteTimes <= 1){
-//                    System.out.println("后续的代码里只能使用以下正确的符号：");
-//                    for(GrammarRule.Rule charac :grammarRule.getAllSpecialTokens()){
-//                        System.out.println(charac.getTokenName() + " : " + charac.getPattern());
-//                    }
-//                }
+                context.getErr().println("The " + illegalChar + " is an illegal character.");
             }else{
                 pattern = Pattern.compile("\\d+(\\.\\d+)*");
                 matcher = pattern.matcher(message);
 
                 if (matcher.matches()) {
-                    System.err.println("The number is illegal.");
+                    context.getErr().println("The number is illegal.");
                 } else {
-                    System.err.println("The identifier is illegal.");
+                    context.getErr().println("The identifier is illegal.");
                 }
             }
-            System.err.println();
+            context.getErr().println();
 
             return true;
         }
@@ -320,6 +704,7 @@ class GrammarRule {
     static class Rule {
         private final String tokenName; // token名称
         private final String pattern; // 匹配模式
+        private final boolean regex; // 匹配模式是否为正则（否则就是单引号之间的字符串）
 
         /**
          * 构造函数，创建一个新的语法规则。
@@ -328,8 +713,20 @@ class GrammarRule {
          * @param pattern   用于匹配Token的模式。
          */
         public Rule(String tokenName, String pattern) {
+            this(tokenName, pattern, false);
+        }
+
+        /**
+         * 构造函数，创建一个新的语法规则。
+         *
+         * @param tokenName 规则对应的Token名称。
+         * @param pattern   用于匹配Token的模式。
+         * @param regex     模式是否为正则，语法见 {@link TokenRegex}
+         */
+        public Rule(String tokenName, String pattern, boolean regex) {
             this.tokenName = tokenName;
             this.pattern = pattern;
+            this.regex = regex;
         }
 
         /**
@@ -349,6 +746,10 @@ class GrammarRule {
         public String getPattern() {
             return pattern;
         }
+
+        public boolean isRegex() {
+            return regex;
+        }
     }
 
     // 存储多个Rule对象的列表。
@@ -378,28 +779,29 @@ class GrammarRule {
             if (str.trim().isEmpty() || str.trim().startsWith("#")) continue;
 
             currentStr.append(str);
-            if (currentStr.indexOf(";") >= 0) {
+            int endIndex = findRuleEnd(currentStr);
+            if (endIndex >= 0) {
                 int colonIndex = currentStr.indexOf(":");
                 if (colonIndex != -1) {
-                    // 找到冒号后的第一个单引号的位置
-                    int startQuoteIndex = currentStr.indexOf("'", colonIndex + 1);
-                    // 找到下一个单引号的位置
-                    int endQuoteIndex = currentStr.indexOf("'", startQuoteIndex + 1);
-                    // 确保两个单引号都找到了,单引号之间的内容是匹配规则
-                    if (startQuoteIndex != -1 && endQuoteIndex != -1) {
-                        String newTokenName = currentStr.substring(0, colonIndex).trim(); // 获取冒号前的token名称
-                        // 提取两个单引号之间的字符串作为新的模式
-                        String newPattern = currentStr.substring(startQuoteIndex + 1, endQuoteIndex);
-                        //特殊字符单独存储
-                        if(newTokenName.contains("SYMBOL")){
-                            Rule newRule = new Rule(newTokenName.replace("SYMBOL","").trim(), newPattern);
-                            specialTokens.add(newRule);
-                        }else{
-                            Rule newRule = new Rule(newTokenName, newPattern);
-                            rules.add(newRule);
+                    String newTokenName = currentStr.substring(0, colonIndex).trim(); // 获取冒号前的token名称
+                    String body = currentStr.substring(colonIndex + 1, endIndex).trim();
+                    // 整个模式只是两个单引号围住的字符串时，单引号之间的内容是匹配规则，否则按正则处理
+                    boolean literal = body.length() >= 2 && body.startsWith("'") && body.indexOf('\'', 1) == body.length() - 1;
+                    if (body.isEmpty()) {
+                        throw new RuntimeException("词法文件编写有误,匹配模式不能为空，请修改!");
+                    }
+                    //特殊字符单独存储
+                    if(newTokenName.contains("SYMBOL")){
+                        if (!literal) {
+                            throw new RuntimeException("词法文件编写有误,特殊符号的匹配模式应当用两个单引号围住，请修改!");
                         }
+                        Rule newRule = new Rule(newTokenName.replace("SYMBOL","").trim(), body.substring(1, body.length() - 1));
+                        specialTokens.add(newRule);
+                    }else if (literal) {
+                        Rule newRule = new Rule(newTokenName, body.substring(1, body.length() - 1));
+                        rules.add(newRule);
                     }else{
-                        throw new RuntimeException("词法文件编写有误,匹配模式应当用两个单引号围住，请修改!");
+                        rules.add(new Rule(newTokenName, body, true));
                     }
                 } else {
                     throw new RuntimeException("词法文件编写有误,每条词法规则应当由冒号':'连接，请修改!");
@@ -409,91 +811,33 @@ class GrammarRule {
 
         }
     }
-    /**
-     * 根据定义的specialTokens，对输入的一行进行预处理
-     *
-     * @param value 需要用特殊符号分割的字符串
-     */
-    public String splitSpecialTokenValue(String value) {
-        // 先将所有的特殊符号排序
-        List<Rule> sortedSpecialTokens = new ArrayList<>(specialTokens);
-        sortedSpecialTokens.sort((a, b) -> b.getPattern().length() - a.getPattern().length());
-
-        // 构建特殊字符的正则表达式，确保长的（如 "!="）优先被匹配
-        StringBuilder regexBuilder = new StringBuilder();
-        for (Rule token : sortedSpecialTokens) {
-            if (regexBuilder.length() > 0) {
-                regexBuilder.append("|");
-            }
-            regexBuilder.append(Pattern.quote(token.getPattern()));
-        }
-        String regex = regexBuilder.toString();
-
-        // 编译正则表达式
-        Pattern pattern = Pattern.compile(regex);
-        Matcher matcher = pattern.matcher(value);
-
-        StringBuilder sb = new StringBuilder();
-        int lastEnd = 0;
-        while (matcher.find()) {
-            // 添加前面的部分
-            if (matcher.start() > lastEnd) {
-                sb.append(value, lastEnd, matcher.start());
-            }
-            // 添加匹配到的特殊字符，前后加空格
-            sb.append(" ").append(matcher.group()).append(" ");
-            lastEnd = matcher.end();
-        }
-        // 添加最后的部分
-        if (lastEnd < value.length()) {
-            sb.append(value.substring(lastEnd));
-        }
-
-        return sb.toString();
-    }
 
     /**
-     * 根据定义的规则匹配输入文本中的Token。
+     * 找到一条规则结尾的分号，单引号和方括号里的分号不算。
      *
-     * @param word 输入文本。
-     * @return 与文本匹配的Token数组。
+     * @return 分号的位置，没有找到时返回-1
      */
-    public String[] matchToken(String word) {
-        // 优先匹配关键字
-        for (Rule rule : rules) {
-            if (word.equals(rule.getPattern())) {
-                // 如果找到匹配，返回规则的tokenName和单词
-                return new String[]{rule.getTokenName(), word};
+    private static int findRuleEnd(CharSequence rule) {
+        boolean inQuote = false;
+        boolean inBracket = false;
+        for (int i = 0; i < rule.length(); i++) {
+            char c = rule.charAt(i);
+            if ((inQuote || inBracket) && c == '\\') {
+                i++; // 跳过被转义的字符
+            } else if (inQuote) {
+                inQuote = c != '\'';
+            } else if (inBracket) {
+                inBracket = c != ']';
+            } else if (c == '\'') {
+                inQuote = true;
+            } else if (c == '[') {
+                inBracket = true;
+            } else if (c == ';') {
+                return i;
             }
         }
-
-        // 然后匹配特殊符号
-        for (Rule rule : specialTokens) {
-            if (word.equals(rule.getPattern())) {
-                // 如果找到匹配，返回规则的tokenName和单词
-                return new String[]{rule.getTokenName(), word};
-            }
-        }
-
-        // 最后再检查是否为标识符或数字
-        MatchIdentifierOrNumber identifierOrNumberMatcher = new MatchIdentifierOrNumber();
-        int result = identifierOrNumberMatcher.isIdentifierOrNumber(word);
-        String tokenType;
-        switch (result) {
-            case 1:
-                tokenType = "ID";  //IDENTIFIER
-                break;
-            case 2:
-                tokenType = "NUMBER";
-                break;
-            default:
-                tokenType = "UNKNOWN";
-                break;
-        }
-
-        return new String[]{tokenType, word};
+        return -1;
     }
-
     /**
      * 打印出所有的语法规则。
      */
@@ -521,8 +865,9 @@ class GrammarRule {
         for (Rule token : specialTokens) {
             tokenNames.add(token.getTokenName());
         }
-        tokenNames.add("ID");
-        tokenNames.add("NUMBER");
+        // 词法文件里没有定义的话，标识符和数字使用默认规则
+        if (!tokenNames.contains("ID")) tokenNames.add("ID");
+        if (!tokenNames.contains("NUMBER")) tokenNames.add("NUMBER");
         tokenNames.add("string");
         tokenNames.add("ε");  //引入空串终结符
 
@@ -530,111 +875,47 @@ class GrammarRule {
         return tokenNames.toArray(new String[0]);
     }
 
-    public List<Rule> getAllSpecialTokens() {
-        List<Rule> SpecialTokensList = new ArrayList<>();
-
-        SpecialTokensList.addAll(specialTokens);
-
-        return SpecialTokensList;
-    }
-
-}
-
-
-
-/**
- * MatchIdentifierOrNumber 类使用有限状态自动机（DFA）来判断字符串是否为合法的标识符或数字。
- */
-class MatchIdentifierOrNumber {
     /**
-     * 状态枚举，定义了DFA中的所有状态。
+     * 返回所有非特殊符号的规则（关键字和正则规则），顺序与词法文件一致。
      */
-    private enum State {
-        START, IDENTIFIER, NUMBER1, NUMBER2, MID1, MID2, ERROR
+    public List<Rule> getRules() {
+        return Collections.unmodifiableList(rules);
     }
 
-    // 当前状态变量，初始状态为START。
-    private State currentState;
-
     /**
-     * 构造函数，初始化当前状态为START。
+     * 把全部规则写入缓存文件。
      */
-    public MatchIdentifierOrNumber() {
-        currentState = State.START;
+    void writeTo(DataOutputStream out) throws IOException {
+        for (List<Rule> list : List.of(rules, specialTokens)) {
+            out.writeInt(list.size());
+            for (Rule rule : list) {
+                out.writeUTF(rule.getTokenName());
+                out.writeUTF(rule.getPattern());
+                out.writeBoolean(rule.isRegex());
+            }
+        }
     }
 
     /**
-     * 根据输入的字符串判断其是否为标识符或数字。
-     * 标识符返回1，数字返回2，如果既不是标识符也不是数字则返回0。
-     *
-     * @param input 要判断的字符串
-     * @return 返回判断结果，1表示标识符，2表示数字，0表示错误或不接受的输入。
-     */
-    public int isIdentifierOrNumber(String input) {
-        currentState = State.START;
-        for (char c : input.toCharArray()) {
-            currentState = nextState(currentState, c);
-            if (currentState == State.ERROR) {
-                break;
+     * 从缓存文件读出由 {@link #writeTo} 写入的规则。
+     */
+    static GrammarRule readFrom(DataInputStream in) throws IOException {
+        GrammarRule grammarRule = new GrammarRule();
+        for (List<Rule> list : List.of(grammarRule.rules, grammarRule.specialTokens)) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                list.add(new Rule(in.readUTF(), in.readUTF(), in.readBoolean()));
             }
         }
-        if (currentState == State.IDENTIFIER) {
-            return 1;
-        } else if (currentState == State.NUMBER1 || currentState == State.NUMBER2) {
-            return 2;
-        } else {
-            return 0;
-        }
+        return grammarRule;
     }
 
-    /**
-     * 根据当前状态和输入字符确定DFA的下一个状态。
-     *
-     * @param state 当前状态
-     * @param inputChar 输入字符
-     * @return 返回下一个状态
-     */
-    private State nextState(State state, char inputChar) {
-        switch (state) {
-            case START:
-                if (Character.isLetter(inputChar) || inputChar == '_') {
-                    return State.IDENTIFIER;
-                } else if (Character.isDigit(inputChar)) {
-                    return State.NUMBER1;
-                } else if (inputChar == '-') {
-                    return State.MID1;
-                } else {
-                    return State.ERROR;
-                }
-            case IDENTIFIER:
-                if (Character.isLetterOrDigit(inputChar) || inputChar == '_') {
-                    return State.IDENTIFIER;
-                } else {
-                    return State.ERROR;
-                }
-            case NUMBER1:
-                if (inputChar == '.') {
-                    return State.MID2;
-                } else if (Character.isDigit(inputChar)) {
-                    return State.NUMBER1;
-                } else {
-                    return State.ERROR;
-                }
-            case NUMBER2, MID2:
-                if (Character.isDigit(inputChar)) {
-                    return State.NUMBER2;
-                } else {
-                    return State.ERROR;
-                }
-            case MID1:
-                if (Character.isDigit(inputChar)) {
-                    return State.NUMBER1;
-                } else {
-                    return State.ERROR;
-                }
-            default:
-                return State.ERROR;
-        }
+    public List<Rule> getAllSpecialTokens() {
+        List<Rule> SpecialTokensList = new ArrayList<>();
+
+        SpecialTokensList.addAll(specialTokens);
+
+        return SpecialTokensList;
     }
-}
 
+}
@@ -1,18 +1,58 @@
 package org.main;
 
+import java.nio.file.Path;
 import java.util.List;
 
 public class Main {
 
     public void fast(String inputFile) throws Exception {
+        fast(inputFile, false);
+    }
+
+    /**
+     * @param streaming 是否以流水线方式运行词法分析和语法分析（词法分析在另一个线程中进行，语法分析边接收Token边分析）
+     */
+    public void fast(String inputFile, boolean streaming) throws Exception {
+        fast(inputFile, streaming, false);
+    }
+
+    /**
+     * @param parallel 是否按顶层语句分段并行地进行语法分析（见 {@link ParallelParser}），不能和 streaming 同时使用
+     */
+    public void fast(String inputFile, boolean streaming, boolean parallel) throws Exception {
 //      System.out.println("Current working directory: " + System.getProperty("user.dir"));
         Lexer lexer = new Lexer("lexer_grammar.txt");
-        lexer.analyze(inputFile);  // 使用命令行传入的输入文件
+        Parser parser = null;
+        ArenaAST root = null; // 语法分析时直接建立化简后的语法树
+        boolean parseErrors = false;
+        if (streaming) {
+            lexer.analyzeStreaming(inputFile);
+            ArenaAST.Builder tree = new ArenaAST.Builder(lexer.getTokens());
+            parser = new Parser(lexer);
+            parser.analyze("parser_grammar.txt", tree);
+            lexer.awaitStreaming();
+            root = tree.getTree();
+            parseErrors = parser.hasErrors();
+        } else {
+            lexer.analyze(inputFile);  // 使用命令行传入的输入文件
+        }
         if(!lexer.hasErrors()){
-            Parser parser = new Parser(lexer);
-            parser.analyze("parser_grammar.txt");
-            if (!parser.hasErrors()) {
-                SemanticsHandler semanticsHandler = new SemanticsHandler(parser.getRootNode());
+            if (streaming) {
+                // 已经在词法分析的同时分析完了
+            } else if (parallel) {
+                ParallelParser parallelParser = new ParallelParser(lexer);
+                ExtendedASTNode parallelRoot = parallelParser.analyze("parser_grammar.txt");
+                parseErrors = parallelParser.hasErrors();
+                if (!parseErrors) root = ArenaAST.of(parallelRoot);
+            } else {
+                ArenaAST.Builder tree = new ArenaAST.Builder(lexer.getTokens());
+                parser = new Parser(lexer);
+                parser.analyze("parser_grammar.txt", tree);
+                root = tree.getTree();
+                parseErrors = parser.hasErrors();
+            }
+            if (!parseErrors) {
+                SemanticsHandler semanticsHandler = new SemanticsHandler(root, lexer.getContext());
                 semanticsHandler.analyzeSemantics();
                 semanticsHandler.printGeneratedCode();
 
@@ -35,14 +75,65 @@ public class Main {
 
     }
 
+    /**
+     * 只做词法分析和语法分析，不建立语法树，也不生成代码，用于检查大文件的语法。
+     *
+     * @return 是否没有错误
+     */
+    public boolean check(String inputFile) {
+        Lexer lexer = new Lexer("lexer_grammar.txt");
+        lexer.analyzeStreaming(inputFile);
+        Parser parser = new Parser(lexer);
+        parser.analyze("parser_grammar.txt", new ParseListener() {});
+        lexer.awaitStreaming();
+        return !lexer.hasErrors() && !parser.hasErrors();
+    }
+
+    /**
+     * 批量编译，见 {@link BatchCompiler}。
+     *
+     * @param input 目录或者清单文件
+     * @return 是否所有文件都编译成功
+     */
+    public boolean batch(String input, String outputDir, int threads) throws Exception {
+        BatchCompiler compiler = new BatchCompiler(Path.of(outputDir), threads);
+        List<BatchCompiler.Result> results = compiler.compileAll(Path.of(input));
+        long failed = results.stream().filter(result -> result.status != BatchCompiler.Status.OK).count();
+        System.out.println("编译了 " + results.size() + " 个文件，失败 " + failed + " 个，结果见 "
+                + Path.of(outputDir, BatchCompiler.SUMMARY_FILE));
+        return failed == 0;
+    }
+
     public static void main(String[] args) throws Exception {
         if (args.length < 1) {
             System.err.println("Please provide the input file as a command line argument.");
             System.exit(1);
         }
+        if ("--serve".equals(args[0])) {
+            // --serve [unix:路径|端口|主机:端口]，见 CompileServer
+            CompileServer server = new CompileServer(CompileServer.parseAddress(args.length > 1 ? args[1] : null));
+            server.start();
+            server.serve();
+            return;
+        }
+        if ("--batch".equals(args[0])) {
+            // --batch <目录或清单文件> [输出目录] [线程数]，每个线程的栈大小由 -Dmylang.batch.stack=<MB> 指定
+            if (args.length < 2) {
+                System.err.println("Usage: --batch <directory|manifest> [outputDir] [threads]");
+                System.exit(1);
+            }
+            String outputDir = args.length > 2 ? args[2] : "src/main/resources/output/batch";
+            int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+            System.exit(new Main().batch(args[1], outputDir, threads) ? 0 : 1);
+        }
 
         String inputFile = args[0];  // 获取命令行参数
         Main main = new Main();
-        main.fast(inputFile);
+        if (args.length > 1 && "--check".equals(args[1])) {
+            System.exit(main.check(inputFile) ? 0 : 1);
+        }
+        boolean streaming = args.length > 1 && "--stream".equals(args[1]);
+        boolean parallel = args.length > 1 && "--parallel".equals(args[1]);
+        main.fast(inputFile, streaming, parallel);
     }
 }
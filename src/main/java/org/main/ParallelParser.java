@@ -0,0 +1,157 @@
+package org.main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * 按顶层语句分段、并行地进行语法分析，直接得到化简后的语法树。
+ * <p>
+ * program 就是 statement+，顶层语句以深度为 0 的 SEMI 结束，或者以回到深度 0 的 RBRACE 结束（后面紧跟 ELSE 时除外）。
+ * 先扫描一遍 token 找出这些边界，把相邻的语句合成若干段，每段都从 program 开始分析，
+ * 由各自的分析器在 ForkJoin 线程池里同时分析，最后把各段 program 下的语句按顺序接到同一个 program 下面。
+ * 没有语法错误时，得到的树和顺序分析的完全相同。
+ * </p>
+ * <p>
+ * 并行分析只使用构建时生成的分析器（见 {@link ParserGenerator}），它不输出任何信息。
+ * 只要有一段有语法错误，就按顺序重新分析整个程序：错误恢复会越过段的边界（跳到下一个分号），
+ * 错误信息也和前面分析过的语句有关，只重新分析出错的一段时得到的错误信息和顺序分析不同。
+ * 没有生成的分析器、或者 token 太少时，直接顺序分析整个程序。
+ * </p>
+ */
+final class ParallelParser {
+    static final int MIN_CHUNK_TOKENS = 1 << 14; // 每段至少这么多个 token，太小时并行的开销比分析本身还大
+    private static final int CHUNKS_PER_THREAD = 4; // 每个线程分到几段，各段长短不一时也能均衡
+
+    private final Lexer lexer;
+    private final ForkJoinPool pool;
+    private final int minChunkTokens;
+    private boolean hasErrors;
+
+    ParallelParser(Lexer lexer) {
+        this(lexer, ForkJoinPool.commonPool(), MIN_CHUNK_TOKENS);
+    }
+
+    /**
+     * @param minChunkTokens 每段至少的 token 数，测试时可以调小，让很短的程序也分成多段
+     */
+    ParallelParser(Lexer lexer, ForkJoinPool pool, int minChunkTokens) {
+        this.lexer = lexer;
+        this.pool = pool;
+        this.minChunkTokens = minChunkTokens;
+    }
+
+    /**
+     * 分析词法分析器中的全部 token，词法分析必须已经完成（不能是流水线模式）。
+     *
+     * @return 化简后的语法树的根结点
+     */
+    ExtendedASTNode analyze(String grammarFileName) {
+        List<int[]> chunks = split(statementEnds(), pool.getParallelism() * CHUNKS_PER_THREAD);
+        if (chunks.size() < 2 || SpecializedParser.create(lexer.getGrammarFileName(), grammarFileName) == null) {
+            return analyzeSequentially(grammarFileName);
+        }
+
+        List<ForkJoinTask<ExtendedASTNode>> tasks = new ArrayList<>();
+        for (int[] chunk : chunks) {
+            tasks.add(pool.submit(() -> {
+                ExtendedASTBuilder tree = new ExtendedASTBuilder();
+                Parser parser = new Parser(lexer, lexer.getTokenIterator(chunk[0], chunk[1]));
+                return parser.analyzeGenerated(grammarFileName, tree) ? tree.getRoot() : null;
+            }));
+        }
+
+        List<ExtendedASTNode> chunkRoots = new ArrayList<>();
+        for (ForkJoinTask<ExtendedASTNode> task : tasks) {
+            chunkRoots.add(task.join());
+        }
+        if (chunkRoots.contains(null)) {
+            // 有语法错误，按顺序重新分析整个程序，报告错误
+            return analyzeSequentially(grammarFileName);
+        }
+        ExtendedASTNode root = chunkRoots.get(0);
+        for (ExtendedASTNode chunkRoot : chunkRoots.subList(1, chunkRoots.size())) {
+            for (ExtendedASTNode statement : chunkRoot.getChildren()) {
+                root.addChild(statement);
+            }
+        }
+        return root;
+    }
+
+    private ExtendedASTNode analyzeSequentially(String grammarFileName) {
+        Parser parser = new Parser(lexer);
+        ExtendedASTBuilder tree = new ExtendedASTBuilder();
+        parser.analyze(grammarFileName, tree);
+        hasErrors = parser.hasErrors();
+        return tree.getRoot();
+    }
+
+    /**
+     * 判断是否存在语法错误
+     * @return 是否有错误
+     */
+    boolean hasErrors() {
+        return hasErrors;
+    }
+
+    /**
+     * 找出每个顶层语句结束的位置。
+     *
+     * @return 每个顶层语句之后第一个 token 的下标，按顺序排列
+     */
+    private int[] statementEnds() {
+        TokenBuffer tokens = lexer.getTokens();
+        int semi = typeId(tokens, "SEMI");
+        int lbrace = typeId(tokens, "LBRACE");
+        int rbrace = typeId(tokens, "RBRACE");
+        int elseType = typeId(tokens, "ELSE");
+        int end = tokens.size() - 1; // 最后一个是结束符 $
+        int[] ends = new int[64];
+        int count = 0;
+        int depth = 0;
+        for (int i = 0; i < end; i++) {
+            int type = tokens.type(i);
+            boolean statementEnd = false;
+            if (type == lbrace) {
+                depth++;
+            } else if (type == rbrace) {
+                depth = Math.max(depth - 1, 0); // 多余的 } 交给分析器报告
+                statementEnd = depth == 0 && tokens.type(i + 1) != elseType;
+            } else if (type == semi) {
+                statementEnd = depth == 0;
+            }
+            if (statementEnd) {
+                if (count == ends.length) ends = Arrays.copyOf(ends, count * 2);
+                ends[count++] = i + 1;
+            }
+        }
+        return Arrays.copyOf(ends, count);
+    }
+
+    /**
+     * 把相邻的语句合成大约 parts 段，每段不少于 minChunkTokens 个 token。
+     * 最后一段一直到结束符 $，没有以语句边界结束的部分也留在最后一段里。
+     *
+     * @return 每段的 [起始下标, 结束下标)
+     */
+    private List<int[]> split(int[] ends, int parts) {
+        int end = lexer.getTokens().size() - 1;
+        int target = Math.max(minChunkTokens, end / Math.max(parts, 1));
+        List<int[]> chunks = new ArrayList<>();
+        int from = 0;
+        for (int statementEnd : ends) {
+            if (statementEnd - from >= target && end - statementEnd >= target) {
+                chunks.add(new int[]{from, statementEnd});
+                from = statementEnd;
+            }
+        }
+        chunks.add(new int[]{from, end});
+        return chunks;
+    }
+
+    private static int typeId(TokenBuffer tokens, String typeName) {
+        return Arrays.asList(tokens.getTypeNames()).indexOf(typeName);
+    }
+}
@@ -0,0 +1,146 @@
+package org.main;
+
+import java.util.Arrays;
+
+/**
+ * 语法分析事件的接收者，由 {@link Parser#analyze(String, ParseListener)} 调用，不需要建立语法树。
+ * <p>
+ * 事件的顺序就是化简后语法树（见 {@link ExtendedASTBuilder}）的先序遍历：
+ * mid_ 开头的中间非终结符不产生事件，它的子结点直接算作上一层非终结符的子结点；
+ * ε 不产生事件；没有推导出任何终结符的非终结符也不产生事件。
+ * 消除左递归引入的 X' 当作普通的非终结符报告，由 {@link ExtendedASTBuilder} 在建树时旋转。
+ * </p>
+ * <p>
+ * 出现语法错误时，正在分析的非终结符依次收到 exit 事件，错误恢复之后从起始符号重新开始报告。
+ * enter 和 exit 总是成对出现。
+ * </p>
+ */
+public interface ParseListener {
+    default void enterNonTerminal(String type) {
+    }
+
+    default void exitNonTerminal(String type) {
+    }
+
+    default void terminal(String type, String value, int lineNumber) {
+    }
+
+    /**
+     * 分析器匹配到终结符时调用，默认转发给 {@link #terminal(String, String, int)}。
+     * 需要 token 下标的接收者（比如 {@link ArenaAST.Builder}）覆盖这个方法，可以不取出终结符的值。
+     */
+    default void terminal(String type, Lexer.Token token) {
+        terminal(type, token.getValue(), token.getLineNumber());
+    }
+}
+
+/**
+ * 把语法分析器的动作转换成 {@link ParseListener} 的事件。
+ * <p>
+ * 记录正在分析的非终结符。非终结符在推导出第一个终结符时才发出 enter 事件，
+ * 所以推导出空串的非终结符不会出现在事件里。
+ * 构建时生成的分析器失败后，按预测分析表的分析过程会从头再来一遍，
+ * 这时前面已经发出过的事件只计数不再发出（两次分析在出错之前产生的事件完全相同）。
+ * </p>
+ */
+final class ParseEvents {
+    private static final byte HIDDEN = 0; // 中间非终结符，不产生事件
+    private static final byte PENDING = 1; // 还没有推导出终结符
+    private static final byte ENTERED = 2; // 已经发出 enter 事件
+
+    private final ParseListener listener;
+    private String[] types = new String[64];
+    private byte[] states = new byte[64];
+    private int[] closeAt = new int[64]; // 分析栈缩小到这个大小时，这个非终结符分析完毕
+    private int size;
+    private int firstPending; // 这个下标之前的非终结符都不是 PENDING
+    private long delivered; // 已经产生的事件数
+    private long skip; // 重新分析时，前面这么多个事件已经发出过
+
+    ParseEvents(ParseListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 开始分析一个非终结符。
+     *
+     * @param stackSize 按预测分析表分析时，弹出这个非终结符之后分析栈的大小；生成的分析器不使用
+     */
+    void enter(String type, int stackSize) {
+        if (size == types.length) {
+            types = Arrays.copyOf(types, size * 2);
+            states = Arrays.copyOf(states, size * 2);
+            closeAt = Arrays.copyOf(closeAt, size * 2);
+        }
+        types[size] = type;
+        states[size] = type.startsWith("mid_") ? HIDDEN : PENDING;
+        closeAt[size] = stackSize;
+        size++;
+    }
+
+    void terminal(String type, Lexer.Token token) {
+        enterPending();
+        if (deliver()) listener.terminal(type, token);
+    }
+
+    void terminal(String type, String value, int lineNumber) {
+        enterPending();
+        if (deliver()) listener.terminal(type, value, lineNumber);
+    }
+
+    /**
+     * 推导出了终结符，还没有发出 enter 事件的非终结符依次发出。
+     */
+    private void enterPending() {
+        for (int i = firstPending; i < size; i++) {
+            if (states[i] == PENDING) {
+                states[i] = ENTERED;
+                if (deliver()) listener.enterNonTerminal(types[i]);
+            }
+        }
+        firstPending = size;
+    }
+
+    /**
+     * 分析栈缩小到 stackSize 之后，结束已经分析完毕的非终结符。
+     */
+    void closeTo(int stackSize) {
+        while (size > 0 && closeAt[size - 1] >= stackSize) exit();
+    }
+
+    /**
+     * 结束最近的 count 个非终结符。
+     */
+    void leave(int count) {
+        for (int i = 0; i < count; i++) exit();
+    }
+
+    /**
+     * 结束所有正在分析的非终结符，用于错误恢复和分析结束时。
+     */
+    void abandon() {
+        while (size > 0) exit();
+    }
+
+    /**
+     * 生成的分析器失败，从头重新分析。
+     */
+    void replay() {
+        skip = delivered;
+        delivered = 0;
+        size = 0;
+        firstPending = 0;
+    }
+
+    private void exit() {
+        size--;
+        if (states[size] == ENTERED && deliver()) listener.exitNonTerminal(types[size]);
+        types[size] = null;
+        firstPending = Math.min(firstPending, size);
+    }
+
+    private boolean deliver() {
+        delivered++;
+        return delivered > skip;
+    }
+}
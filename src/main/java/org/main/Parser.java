@@ -1,9 +1,10 @@
 package org.main;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 /**
  * Parser 类用于根据词法分析器的结果进行语法分析
@@ -15,10 +16,13 @@ public class Parser {
     String[] lastProduction; //存储最近希望扩展出来的表达式
     ParserGrammar grammar;
     CustomStack<ASTNode> stack; //栈存储的是ASTNode，会有利于语法树的构建
-    ASTNode lastNonTerminal; //记录最近希望扩展的非终结符
-    ASTNode lastImportantTerminal; //记录最近希望扩展的重要非终结符
+    int[] symbolStack; // 事件模式下的分析栈，只保存符号编号，不建立结点
+    int symbolCount; // symbolStack 中的符号个数
+    int lastNonTerminal = -1; //记录最近希望扩展的非终结符的编号
+    int lastImportantTerminal = -1; //记录最近希望扩展的重要非终结符的编号
     ASTNode rootNode; //这是AST的根节点
     List<ParserError> errors; // 用于存储错误信息
+    ParseEvents events; // 事件模式下的事件接收者，为 null 时建立语法树
 
     /**
      * 构造一个Parser实例，使用一个Lexer实例和一个ParserGrammar实例来提供Token和语法规则。
@@ -26,8 +30,15 @@ public class Parser {
      * @param lexer 用于词法分析的Lexer对象
      */
     public Parser(Lexer lexer) {
+        this(lexer, lexer.getTokenIterator());
+    }
+
+    /**
+     * 只分析 tokenIterator 给出的 token，用于分段分析（见 {@link ParallelParser}）。
+     */
+    Parser(Lexer lexer, Lexer.TokenIterator tokenIterator) {
         this.lexer = lexer;//通过传递之前已经词法分析完毕的lexer实例来实现词法分析器和语法分析器之间的交流，我查阅资料后得知是传递的引用，不会造成空间浪费
-        this.tokenIterator = this.lexer.getTokenIterator(); // 获取Token的迭代器
+        this.tokenIterator = tokenIterator; // 获取Token的迭代器
         this.grammar = new ParserGrammar(this.lexer.getAllTerminals()); // 初始化语法规则
         this.stack = new CustomStack<>(); // 初始化栈
         this.stack.push(new ASTNode("$", null, -1, true)); // 结束符作为特殊节点
@@ -41,28 +52,69 @@ public class Parser {
      * 解析Token并构建语法树或其他语法结构。
      */
     public void analyze(String grammarFileName) {
+        analyze(grammarFileName, null);
+    }
+
+    /**
+     * 解析Token，不建立语法树，而是把化简后语法树的先序遍历作为事件交给 listener。
+     * 已经分析完的部分不再保留，只检查语法时几乎不占用额外的内存。错误的报告和恢复与建立语法树时相同。
+     *
+     * @param listener 事件的接收者，为 null 时和 {@link #analyze(String)} 一样建立语法树
+     */
+    public void analyze(String grammarFileName, ParseListener listener) {
+        events = listener == null ? null : new ParseEvents(listener);
 //        if(lexer.hasErrors()){
 //            System.out.println("The lexer has an error, please correct the syntax before proceeding with the parsing.");
 //            return;
 //        }
-        grammar.loadGrammarFromFile(grammarFileName);
-        currentToken = tokenIterator.next(); // 读取第一个Token
+        try {
+            if (parseWithGenerated(grammarFileName)) {
+                return;
+            }
+            // 文法的编译结果（预测分析表等）由 CompiledLanguage 缓存，文法文件没有变化时不再重新计算
+            grammar = CompiledLanguage.load(lexer.getGrammarFileName(), grammarFileName, CompiledLanguage.TEMPLATE_FILE)
+                    .getParserGrammar();
+            currentToken = tokenIterator.next(); // 读取第一个Token
+            // token 类型编号 -> 文法中的终结符编号，之后的分析只比较整数
+            int[] tokenSymbol = grammar.terminalsOf(lexer.getTokens().getTypeNames());
+            if (events != null) {
+                parseEvents(tokenSymbol);
+            } else {
+                parseTree(tokenSymbol);
+            }
+        } catch (Lexer.StreamAbortedException e) {
+            // 流水线模式下词法分析出错，词法错误由Lexer报告，这里直接结束语法分析
+        }
+        if (events != null) {
+            events.abandon(); // 出错结束时补上还没有结束的非终结符
+        }
+    }
+
+    /**
+     * 按预测分析表分析，同时建立语法树。
+     */
+    private void parseTree(int[] tokenSymbol) {
+        for (ASTNode node : stack.getStack()) {
+            node.symbol = grammar.symbolOf(node.getType()); // 构造时压入的 $ 和起始符号
+        }
 
         while (!stack.isEmpty()) {
             ASTNode topNode = stack.peek(); // 检查栈顶ASTNode
+            int top = topNode.symbol;
+            int lookahead = tokenSymbol[currentToken.getTypeId()];
             if (topNode.isTerminal()) {
-                if (topNode.getType().equals(currentToken.lexeme[0])) {
+                if (top == lookahead) {
                     //一定要注意！！！只有正式匹配的时候才能确定终结符的实际值和行号是多少！！在入栈的时候还不能确定。
-                    topNode.setValue(currentToken.lexeme[1]); // 设置终结符的值
-                    topNode.setLineNumber(currentToken.lineNumber); // 更新行号
                     stack.pop(); // 栈顶符号与当前Token匹配，移出栈顶
+                    topNode.setValue(currentToken.getValue()); // 设置终结符的值
+                    topNode.setLineNumber(currentToken.getLineNumber()); // 更新行号
                     if (tokenIterator.hasNext()) {
                         currentToken = tokenIterator.next(); // 读取下一个Token
                     }
-                    if("$".equals(topNode.getType())){ //此时已经完成了语法分析
+                    if(top == grammar.endSymbol){ //此时已经完成了语法分析
                         break;
                     }
-                }else if("ε".equals(topNode.getType())){
+                }else if(top == grammar.epsilonSymbol){
                     stack.pop(); // 遇到空串直接弹出即可
                 }else {
                     ParserError e = new ParserError();
@@ -73,27 +125,33 @@ public class Parser {
                     int a = 0;
                 }
             } else {
-                if (grammar.getPredictiveTable().containsKey(topNode.getType()) &&
-                        grammar.getPredictiveTable().get(topNode.getType()).containsKey(currentToken.lexeme[0])) {
-                    String[] production = grammar.getPredictiveTable().get(topNode.getType()).get(currentToken.lexeme[0]);
-                    if(Arrays.equals(production , grammar.getConflictSymbol())){
+                int rule = grammar.predict(top, lookahead);
+                if (rule != ParserGrammar.NO_PRODUCTION) {
+                    String[] production;
+                    int[] symbols;
+                    if(rule == ParserGrammar.CONFLICT){
                         production = handleConflict(topNode.getType());
+                        symbols = grammar.symbolsOf(production);
+                    } else {
+                        production = grammar.productionNames[rule];
+                        symbols = grammar.productionSymbols[rule];
                     }
                     lastProduction = production;
-                    List<ASTNode> childrens = new ArrayList<>();
-                    lastNonTerminal = topNode;
-                    if(grammar.importantNonTerminals.contains(lastNonTerminal.getType())){
-                        lastImportantTerminal = lastNonTerminal;
+                    lastNonTerminal = top;
+                    if(grammar.isImportant(top)){
+                        lastImportantTerminal = top;
                     }
                     stack.pop(); // 移除栈顶非终结符
                     // 逆序将产生式的元素推入栈中，并作为子节点添加到当前节点
-                    for (int i = production.length - 1; i >= 0; i--) {
-                        ASTNode newNode = new ASTNode(production[i], null, -1, grammar.isTerminal(production[i]));
+                    ASTNode[] childrens = new ASTNode[symbols.length];
+                    for (int i = symbols.length - 1; i >= 0; i--) {
+                        ASTNode newNode = new ASTNode(production[i], null, -1, grammar.isTerminalSymbol(symbols[i]));
+                        newNode.symbol = symbols[i];
                         stack.push(newNode); // 同时推入栈中
-                        childrens.add(newNode);
+                        childrens[i] = newNode;
                     }
-                    for (int i = childrens.size() - 1; i >= 0; i--) {
-                        topNode.addChild(childrens.get(i)); // 将新节点添加为子节点
+                    for (ASTNode child : childrens) {
+                        topNode.addChild(child); // 将新节点添加为子节点
                     }
 
                 } else {
@@ -106,7 +164,174 @@ public class Parser {
                 }
             }
         }
+    }
+
+    /**
+     * 事件模式下按预测分析表分析：分析栈中只保存符号编号，不建立任何结点，和 {@link #analyzeNonTerminal} 相同。
+     * 分析的过程、错误的报告和恢复都与 {@link #parseTree} 相同。
+     */
+    private void parseEvents(int[] tokenSymbol) {
+        symbolStack = new int[64];
+        symbolCount = 0;
+        symbolStack[symbolCount++] = grammar.endSymbol;
+        symbolStack[symbolCount++] = grammar.symbolOf(grammar.getStartSymbol());
+        while (symbolCount > 0) {
+            int top = symbolStack[symbolCount - 1];
+            int lookahead = tokenSymbol[currentToken.getTypeId()];
+            if (grammar.isTerminalSymbol(top)) {
+                if (top == lookahead) {
+                    symbolCount--;
+                    if (top != grammar.endSymbol) {
+                        events.terminal(grammar.symbolNames[top], currentToken);
+                        events.closeTo(symbolCount);
+                    }
+                    if (tokenIterator.hasNext()) {
+                        currentToken = tokenIterator.next();
+                    }
+                    if (top == grammar.endSymbol) {
+                        break;
+                    }
+                } else if (top == grammar.epsilonSymbol) {
+                    symbolCount--;
+                    events.closeTo(symbolCount);
+                } else {
+                    ParserError e = new ParserError();
+                    errors.add(e);
+                    if (!e.handle()) {
+                        break;
+                    }
+                }
+            } else {
+                int rule = grammar.predict(top, lookahead);
+                if (rule != ParserGrammar.NO_PRODUCTION) {
+                    int[] production = rule == ParserGrammar.CONFLICT
+                            ? grammar.symbolsOf(handleConflict(grammar.symbolNames[top]))
+                            : grammar.productionSymbols[rule];
+                    lastNonTerminal = top;
+                    if (grammar.isImportant(top)) {
+                        lastImportantTerminal = top;
+                    }
+                    symbolCount--;
+                    events.enter(grammar.symbolNames[top], symbolCount); // 栈缩小到现在的大小时，这个非终结符就分析完了
+                    if (symbolCount + production.length > symbolStack.length) {
+                        symbolStack = Arrays.copyOf(symbolStack, (symbolCount + production.length) * 2);
+                    }
+                    for (int i = production.length - 1; i >= 0; i--) {
+                        symbolStack[symbolCount++] = production[i];
+                    }
+                } else {
+                    ParserError e = new ParserError();
+                    errors.add(e);
+                    if (!e.handle()) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 分析栈中的符号个数，两种模式下相同
+     */
+    private int stackSize() {
+        return events != null ? symbolCount : stack.size();
+    }
+
+    /**
+     * @param depth 从栈顶往下数的位置，栈顶是 0
+     * @return 分析栈中这个位置的符号编号，错误处理只需要知道这些
+     */
+    private int stackSymbol(int depth) {
+        return events != null ? symbolStack[symbolCount - 1 - depth]
+                : stack.getStack().get(stack.size() - 1 - depth).symbol;
+    }
+
+    private String stackType(int depth) {
+        return grammar.symbolNames[stackSymbol(depth)];
+    }
+
+    /**
+     * 只用构建时生成的语法分析器分析，把事件交给 listener。不报告错误，也不做错误恢复。
+     *
+     * @return 是否分析成功；没有生成的分析器或者有语法错误时返回 false，已经交给 listener 的事件需要丢弃
+     */
+    boolean analyzeGenerated(String grammarFileName, ParseListener listener) {
+        events = new ParseEvents(listener);
+        return parseWithGenerated(grammarFileName);
+    }
+
+    /**
+     * 从 tokenIterator 的当前位置开始，按预测分析表把后面的 token 分析成一个 nonTerminal，把事件交给 listener。
+     * 向前看的 token 就是它后面真实的 token，所以分析结果和在整个程序里分析到这里时相同。
+     * 不报告错误，也不做错误恢复，用于增量分析（见 {@link IncrementalParser}）。
+     * 分析完之后 tokenIterator 停在 nonTerminal 之后的第一个 token 上，可以接着分析下一个。
+     *
+     * @return nonTerminal 之后第一个 token 的下标；有语法错误时返回-1，已经交给 listener 的事件需要丢弃
+     */
+    int analyzeNonTerminal(String grammarFileName, String nonTerminal, ParseListener listener) {
+        events = new ParseEvents(listener);
+        grammar = CompiledLanguage.load(lexer.getGrammarFileName(), grammarFileName, CompiledLanguage.TEMPLATE_FILE)
+                .getParserGrammar();
+        int[] tokenSymbol = grammar.terminalsOf(lexer.getTokens().getTypeNames());
+        int[] symbols = new int[64]; // 分析栈，只保存符号编号
+        int size = 0;
+        symbols[size++] = grammar.symbolOf(nonTerminal);
+        currentToken = tokenIterator.next();
+        while (size > 0) {
+            int top = symbols[--size];
+            int lookahead = tokenSymbol[currentToken.getTypeId()];
+            if (top == grammar.epsilonSymbol) {
+                events.closeTo(size);
+            } else if (grammar.isTerminalSymbol(top)) {
+                if (top != lookahead || top == grammar.endSymbol) {
+                    return -1;
+                }
+                events.terminal(grammar.symbolNames[top], currentToken);
+                events.closeTo(size);
+                currentToken = tokenIterator.next();
+            } else {
+                int rule = grammar.predict(top, lookahead);
+                if (rule == ParserGrammar.NO_PRODUCTION || rule == ParserGrammar.CONFLICT) {
+                    return -1;
+                }
+                events.enter(grammar.symbolNames[top], size);
+                int[] production = grammar.productionSymbols[rule];
+                if (size + production.length > symbols.length) {
+                    symbols = Arrays.copyOf(symbols, (size + production.length) * 2);
+                }
+                for (int i = production.length - 1; i >= 0; i--) {
+                    symbols[size++] = production[i];
+                }
+            }
+        }
+        int end = tokenIterator.getcurrentIndex() - 1;
+        tokenIterator.backtrack(end);
+        return end;
+    }
 
+    /**
+     * 先用构建时生成的语法分析器（见 {@link ParserGenerator}）分析，成功时直接得到语法树，不需要查预测分析表。
+     * 生成的分析器不做错误恢复，遇到语法错误时丢弃已经建好的部分，回到开头按预测分析表重新分析，给出同样的错误信息；
+     * 事件模式下已经发出的事件不会重复发出。
+     *
+     * @return 是否已经由生成的分析器分析完成
+     */
+    private boolean parseWithGenerated(String grammarFileName) {
+        SpecializedParser generated = SpecializedParser.create(lexer.getGrammarFileName(), grammarFileName);
+        if (generated == null) {
+            return false;
+        }
+        int start = tokenIterator.getcurrentIndex();
+        if (generated.parse(lexer, tokenIterator, rootNode, events)) {
+            return true;
+        }
+        if (events != null) {
+            events.replay();
+        } else {
+            rootNode.getChildren().clear();
+        }
+        tokenIterator.backtrack(start);
+        return false;
     }
 
     private String[] handleConflict(String nonTerminal){
@@ -150,50 +375,52 @@ public class Parser {
 
     // 语法错误类
     class ParserError extends CompilationError {
+        private final PrintStream err = lexer.getContext().getErr(); // 错误信息输出到这次编译的 err
+
         public ParserError() {
 
         }
 
         @Override
         public boolean handle() {
-            if(stack.peek() == null){
+            if(stackSize() == 0){
                 return false;
             }
 
             //对于在最后一行出现的错误，统一报错，避免后面分析过于复杂
-            if (currentToken.lexeme[0].equals("$")) {
-                int line = currentToken.lineNumber;
-                String lineContent = lexer.allLines[line - 2].trim();
-                ASTNode SecondTopNode = stack.getStack().get(stack.getStack().size() - 2);
+            if (currentToken.getType().equals("$")) {
+                int line = currentToken.getLineNumber();
+                String lineContent = lexer.lineText(line - 1).trim();
+                String secondTop = stackType(1);
 
                 //如果某个while或者if-else的语句块没有以}结束的话，从{开始的后面所有语句都没包进语句块里解析了，所以只会在程序的末尾被检测到
-                if(SecondTopNode.getType().equals("RBRACE")  && !lineContent.contains("}")){
-                    System.err.println("\nInvalid syntax at line " + (line - 1) + ", near '" + lineContent + "' :");
-                    System.err.println("Missing '}' in the statement");
+                if(secondTop.equals("RBRACE")  && !lineContent.contains("}")){
+                    err.println("\nInvalid syntax at line " + (line - 1) + ", near '" + lineContent + "' :");
+                    err.println("Missing '}' in the statement");
                 }else{
-                    System.err.println("\nThe end of the program is incomplete or exists error!");
+                    err.println("\nThe end of the program is incomplete or exists error!");
                 }
                 return false;
             }
 
-            if(lastNonTerminal == null){
-                System.err.println("程序开头有问题");
+            if(lastNonTerminal < 0){
+                err.println("程序开头有问题");
                 return false;
             }
 
-            if(lastNonTerminal.getType().equals("comExp")){
+            if(grammar.symbolNames[lastNonTerminal].equals("comExp")){
                 return handle_comExp();
-            }else if(lastNonTerminal.getType().equals("mathExp")){
+            }else if(grammar.symbolNames[lastNonTerminal].equals("mathExp")){
                 return handle_mathExp();
             }
 
-            if(lastImportantTerminal != null && lastImportantTerminal.getType().equals("command")){
+            if(lastImportantTerminal >= 0 && grammar.symbolNames[lastImportantTerminal].equals("command")){
                 return handle_command();
-            } else if(lastImportantTerminal != null && lastImportantTerminal.getType().equals("assignstatement")){
+            } else if(lastImportantTerminal >= 0 && grammar.symbolNames[lastImportantTerminal].equals("assignstatement")){
                 return handle_assignstatement();
-            } else if(lastImportantTerminal != null && lastImportantTerminal.getType().equals("condstatement")){
+            } else if(lastImportantTerminal >= 0 && grammar.symbolNames[lastImportantTerminal].equals("condstatement")){
                 return handle_condstatement();
-            } else if(lastImportantTerminal != null && lastImportantTerminal.getType().equals("loopstatement")){
+            } else if(lastImportantTerminal >= 0 && grammar.symbolNames[lastImportantTerminal].equals("loopstatement")){
                 return handle_loopstatement();
             } else{
                 return handle_bymatch();
@@ -202,9 +429,9 @@ public class Parser {
         }
 
         public boolean handle_bymatch(){
-            int line = currentToken.lineNumber;
-            String lineContent = lexer.allLines[line - 1].trim();
-            System.err.println("\nInvalid syntax at line " + (line) + ", near '" + lineContent + "' :");
+            int line = currentToken.getLineNumber();
+            String lineContent = lexer.lineText(line).trim();
+            err.println("\nInvalid syntax at line " + (line) + ", near '" + lineContent + "' :");
             if(lineContent.contains("=")){
                 return handle_assignstatement_bymatch();
             }
@@ -214,43 +441,43 @@ public class Parser {
 
         ////////////////////////////////////////基于非终结符处理各种错误///////////////////////////////////////////////
         public boolean handle_command() {
-            ASTNode topNode = stack.peek();
-            int line = currentToken.lineNumber;
+            String top = stackType(0);
+            int line = currentToken.getLineNumber();
 
             //下一个非终结符希望是分号，这里可能是因为没写分号。也可能是因为其他
-            if (topNode.getType().equals("SEMI")) {
-                if (currentToken.lexeme[0].equals("COMMA") | currentToken.lexeme[0].equals("NUMBER") ) {
-                    System.err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.allLines[line - 1].trim() + "' :");
-                    System.err.println("The number of parameters (identifiers) is illegal.");
+            if (top.equals("SEMI")) {
+                if (currentToken.getType().equals("COMMA") | currentToken.getType().equals("NUMBER") ) {
+                    err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.lineText(line).trim() + "' :");
+                    err.println("The number of parameters (identifiers) is illegal.");
                     popTilStart();
                     return skipSemi();
-                } else if(currentToken.lexeme[0].equals("QUO")){
-                    System.err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.allLines[line - 1].trim() + "' :");
-                    System.err.println("This command of don't need parameters.");
+                } else if(currentToken.getType().equals("QUO")){
+                    err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.lineText(line).trim() + "' :");
+                    err.println("This command of don't need parameters.");
                     popTilStart();
                     return skipSemi();
                 } else {
-                    System.err.println("\nInvalid syntax at line " + (line - 1) + ", near '" + lexer.allLines[line - 2].trim() + "' :");
-                    System.err.println("This sentence must end with the semi symbol.");
+                    err.println("\nInvalid syntax at line " + (line - 1) + ", near '" + lexer.lineText(line - 1).trim() + "' :");
+                    err.println("This sentence must end with the semi symbol.");
                     popTilStart();
                     return true;
                 }
-            } else if ((currentToken.lexeme[0].equals("ID") && topNode.getType().equals("NUMBER")) |
-            (currentToken.lexeme[0].equals("NUMBER") && topNode.getType().equals("ID")) |
-                    (topNode.getType().equals("string"))) {
-                System.err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.allLines[line - 1].trim() + "' :");
-                System.err.println("Parameter types of the command are invalid.");
+            } else if ((currentToken.getType().equals("ID") && top.equals("NUMBER")) |
+            (currentToken.getType().equals("NUMBER") && top.equals("ID")) |
+                    (top.equals("string"))) {
+                err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.lineText(line).trim() + "' :");
+                err.println("Parameter types of the command are invalid.");
                 popTilStart();
                 return skipSemi();
-            } else if (currentToken.lexeme[0].equals("SEMI") && (topNode.getType().equals("COMMA") | topNode.getType().equals("NUMBER")
-                    | topNode.getType().equals("ID"))) {
-                System.err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.allLines[line - 1].trim() + "' :");
-                System.err.println("The number of parameters (identifiers) is illegal.");
+            } else if (currentToken.getType().equals("SEMI") && (top.equals("COMMA") | top.equals("NUMBER")
+                    | top.equals("ID"))) {
+                err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.lineText(line).trim() + "' :");
+                err.println("The number of parameters (identifiers) is illegal.");
                 popTilStart();
                 return skipSemi();
             }else{
-                System.err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.allLines[line - 1].trim() + "' :");
-                System.err.println("This statement exists errors.");
+                err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.lineText(line).trim() + "' :");
+                err.println("This statement exists errors.");
                 popTilStart();
                 return skipSemi();
             }
@@ -258,68 +485,68 @@ public class Parser {
 
 
         public boolean handle_assignstatement() {
-            ASTNode topNode = stack.peek();
-            int line = currentToken.lineNumber;
-            String lineContent = lexer.allLines[line - 1].trim();
+            String top = stackType(0);
+            int line = currentToken.getLineNumber();
+            String lineContent = lexer.lineText(line).trim();
             if((lineContent.contains("+") || lineContent.contains("-")
                     || lineContent.contains("*") || lineContent.contains("/"))
             && (!lineContent.contains("(") || !lineContent.contains(")") ) ){
-                System.err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.allLines[line - 1].trim() + "' :");
-                System.err.println("Mathematical expressions must be enclosed in parentheses.");
+                err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.lineText(line).trim() + "' :");
+                err.println("Mathematical expressions must be enclosed in parentheses.");
                 popTilStart();
                 return skipSemi();
             }
 
             //下一个非终结符希望是分号，这里可能是因为没写分号。
-            if (topNode.getType().equals("SEMI")) {
-                System.err.println("\nInvalid syntax at line " + (line - 1) + ", near '" + lexer.allLines[line - 2].trim() + "' :");
-                System.err.println("This sentence must end with the semi symbol.");
+            if (top.equals("SEMI")) {
+                err.println("\nInvalid syntax at line " + (line - 1) + ", near '" + lexer.lineText(line - 1).trim() + "' :");
+                err.println("This sentence must end with the semi symbol.");
                 popTilStart();
                 return true;
-            }else if(!topNode.isTerminal){
-                System.err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.allLines[line - 1].trim() + "' :");
-                if(currentToken.lexeme[1].equals("(")){
-                    System.err.println("'" + tokenIterator.lookbackK(1).lexeme[1] +"' function does not require parentheses.");
+            }else if(!grammar.isTerminalSymbol(stackSymbol(0))){
+                err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.lineText(line).trim() + "' :");
+                if(currentToken.getValue().equals("(")){
+                    err.println("'" + tokenIterator.lookbackK(1).getValue() +"' function does not require parentheses.");
                 }else{
-                    System.err.println("Invalid object : '" + currentToken.lexeme[1] +"' on the right side of the assignment operator.");
+                    err.println("Invalid object : '" + currentToken.getValue() +"' on the right side of the assignment operator.");
                 }
                 popTilStart();
                 return skipSemi();
             }else{
-                System.err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.allLines[line - 1].trim() + "' :");
-                System.err.println("The assign statement exists errors.");
+                err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.lineText(line).trim() + "' :");
+                err.println("The assign statement exists errors.");
                 popTilStart();
                 return skipSemi();
             }
         }
 
         public boolean handle_condstatement(){
-            int line = currentToken.lineNumber;
-            ASTNode SecondTopNode = stack.getStack().get(stack.getStack().size() - 2);
-            System.err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.allLines[line - 1].trim() + "' :");
-
-            if(SecondTopNode.getType().equals("LBRACE")  && !lexer.allLines[line - 1].contains("{")){
-                System.err.println("Missing '{' in if-else statement");
-            }else if(lexer.allLines[line - 1].contains("(") || lexer.allLines[line - 1].contains(")")){
-                System.err.println("Condition should not be enclosed in parentheses in if-else statement");
+            int line = currentToken.getLineNumber();
+            String secondTop = stackType(1);
+            err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.lineText(line).trim() + "' :");
+
+            if(secondTop.equals("LBRACE")  && !lexer.lineText(line).contains("{")){
+                err.println("Missing '{' in if-else statement");
+            }else if(lexer.lineText(line).contains("(") || lexer.lineText(line).contains(")")){
+                err.println("Condition should not be enclosed in parentheses in if-else statement");
             }else{
-                System.err.println("The condition statement exists errors.");
+                err.println("The condition statement exists errors.");
             }
             popTilStart();
             return skipSemi();
         }
 
         public boolean handle_loopstatement(){
-            int line = currentToken.lineNumber;
-            ASTNode SecondTopNode = stack.getStack().get(stack.getStack().size() - 2);
-            System.err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.allLines[line - 1].trim() + "' :");
-
-            if(SecondTopNode.getType().equals("LBRACE")  && !lexer.allLines[line - 1].contains("{")){
-                System.err.println("Missing '{' in loop statement");
-            }else if(lexer.allLines[line - 1].contains("(") || lexer.allLines[line - 1].contains(")")){
-                System.err.println("Condition should not be enclosed in parentheses in loop statement");
+            int line = currentToken.getLineNumber();
+            String secondTop = stackType(1);
+            err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.lineText(line).trim() + "' :");
+
+            if(secondTop.equals("LBRACE")  && !lexer.lineText(line).contains("{")){
+                err.println("Missing '{' in loop statement");
+            }else if(lexer.lineText(line).contains("(") || lexer.lineText(line).contains(")")){
+                err.println("Condition should not be enclosed in parentheses in loop statement");
             }else{
-                System.err.println("The loop statement exists errors.");
+                err.println("The loop statement exists errors.");
             }
 
             popTilStart();
@@ -327,32 +554,30 @@ public class Parser {
         }
 
         public boolean handle_comExp(){
-            int line = currentToken.lineNumber;
-            ASTNode topNode = stack.peek();
-            System.err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.allLines[line - 1].trim() + "' :");
+            int line = currentToken.getLineNumber();
+            err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.lineText(line).trim() + "' :");
             List<String> validStrings = Arrays.asList("large", "small", "equal", "notequal");
 
             // 检查是否匹配任意一个
-            if( validStrings.stream().anyMatch(s -> s.equalsIgnoreCase(currentToken.lexeme[1])) ){
-                System.err.println("Invalid comparison operator. Use '>', '<', '==', or '!=' instead of 'large', 'small', 'equal', or 'notequal'");
+            if( validStrings.stream().anyMatch(s -> s.equalsIgnoreCase(currentToken.getValue())) ){
+                err.println("Invalid comparison operator. Use '>', '<', '==', or '!=' instead of 'large', 'small', 'equal', or 'notequal'");
             } else{
-                System.err.println("Invalid boolean expression.");
+                err.println("Invalid boolean expression.");
             }
             popTilStart();
             return skipSemi();
         }
 
         public boolean handle_mathExp(){
-            int line = currentToken.lineNumber;
-            ASTNode topNode = stack.peek();
-            System.err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.allLines[line - 1].trim() + "' :");
+            int line = currentToken.getLineNumber();
+            err.println("\nInvalid syntax at line " + (line) + ", near '" + lexer.lineText(line).trim() + "' :");
             List<String> validStrings = Arrays.asList("add", "substract", "mutiple", "divide");
 
             // 检查是否匹配任意一个
-            if( validStrings.stream().anyMatch(s -> s.equalsIgnoreCase(currentToken.lexeme[1])) ){
-                System.err.println("Invalid math operator. Use '+', '-', '*', or '/' instead of 'add', 'substract', 'mutiple', or 'divide'");
+            if( validStrings.stream().anyMatch(s -> s.equalsIgnoreCase(currentToken.getValue())) ){
+                err.println("Invalid math operator. Use '+', '-', '*', or '/' instead of 'add', 'substract', 'mutiple', or 'divide'");
             } else{
-                System.err.println("Invalid math expression.");
+                err.println("Invalid math expression.");
             }
             popTilStart();
             return skipSemi();
@@ -361,10 +586,10 @@ public class Parser {
         ///////////////////////////////////////////////基于正则表达式匹配处理各种错误/////////////////////////////////////////////////
 
         public boolean handle_assignstatement_bymatch() {
-            if(!currentToken.lexeme[0].equals("ID")){
-                System.err.println("The left side of the assignment operator must be an identifier.");
+            if(!currentToken.getType().equals("ID")){
+                err.println("The left side of the assignment operator must be an identifier.");
             }else{
-                System.err.println("The assign statement exists errors.");
+                err.println("The assign statement exists errors.");
             }
             popTilStart();
             return skipSemi();
@@ -378,13 +603,13 @@ public class Parser {
             Lexer.Token followToken;
 
             //就是一直往下找，找到分号就结束。从分号后面的下一个语句开始继续分析（让分号后的下一个token成为currentToken）
-            while(!currentToken.lexeme[1].equals(";") && tokenIterator.hasNext())
+            while(!currentToken.getValue().equals(";") && tokenIterator.hasNext())
             {
                 followToken = tokenIterator.next();
-                if(followToken.lexeme[1].equals(";")){
+                if(followToken.getValue().equals(";")){
                     break;
                 }
-                if(followToken.lexeme[1].equals("$")){
+                if(followToken.getValue().equals("$")){
                     return false;
                 }
             }
@@ -398,6 +623,13 @@ public class Parser {
 
         void popTilStart(){
             //直接清空栈，然后从头开始分析下面的程序。
+            if (events != null) {
+                events.abandon();
+                symbolCount = 0;
+                symbolStack[symbolCount++] = grammar.endSymbol;
+                symbolStack[symbolCount++] = grammar.symbolOf(grammar.getStartSymbol());
+                return;
+            }
             while(!stack.isEmpty()){
 //                ASTNode topNode = stack.peek();
 //                if(topNode.getType().equals("SEMI")){
@@ -410,8 +642,12 @@ public class Parser {
 //                }
                 stack.pop();
             }
-            stack.push(new ASTNode("$", null, -1, true)); // 结束符作为特殊节点
-            stack.push(new ASTNode(grammar.getStartSymbol(), null, -1, false));
+            ASTNode end = new ASTNode("$", null, -1, true); // 结束符作为特殊节点
+            end.symbol = grammar.endSymbol;
+            stack.push(end);
+            ASTNode start = new ASTNode(grammar.getStartSymbol(), null, -1, false);
+            start.symbol = grammar.symbolOf(grammar.getStartSymbol());
+            stack.push(start);
         }
 
     }
@@ -428,6 +664,23 @@ class ParserGrammar {
     String startSymbol;  // 用于记录起始符号
     String[] conflictSymbol;  // 用于记录预测表是否存在冲突
     List<String> conflicts;  // 用于记录存在的冲突
+    private SymbolIndex symbolIndex; // 计算 first/follow 集合时的符号编号
+    private boolean[] nullable; // 非终结符编号 -> 能否推出空串
+    private BitSet[] first; // 非终结符编号 -> first 集合（不含 ε）
+    private final Map<String[], Set<String>> ruleFirstSets = new IdentityHashMap<>(); // 每条产生式右部的 first 集合
+
+    // 以下是把符号编成整数之后的表，由 internSymbols 在文法加载完成时生成，语法分析时只查这些表
+    static final int NO_PRODUCTION = -1; // 预测分析表中没有对应的产生式
+    static final int CONFLICT = -2; // 预测分析表中存在冲突
+    String[] symbolNames; // 符号编号 -> 符号名，前 terminalCount 个是终结符（包括 $），后面是非终结符
+    private Map<String, Integer> symbolIds;
+    int terminalCount;
+    int endSymbol; // $ 的编号
+    int epsilonSymbol; // ε 的编号
+    String[][] productionNames; // 产生式编号 -> 右部，和 productions 中是同一个数组
+    int[][] productionSymbols; // 产生式编号 -> 右部各符号的编号
+    private int[] table; // (非终结符编号 - terminalCount) * terminalCount + 终结符编号 -> 产生式编号
+    private boolean[] important; // 符号编号 -> 是否属于 importantNonTerminals
 
     /**
      * 构造函数，初始化终结符集合。需要从lexer获取所有的终结符。
@@ -483,66 +736,219 @@ class ParserGrammar {
     /**
      * 从文件中加载语法规则。
      * 此方法首先添加初始产生式，然后读取指定的语法文件，并解析文件中的产生式规则。
+     * 文件由 {@link EbnfGrammar} 一遍解析成语法树，再展开量词和括号。
      *
      * @param grammarFileName 语法文件的名称.
+     * @throws GrammarFileException 语法文件格式有误时抛出，包含出错的行号和列号
      */
     public void loadGrammarFromFile(String grammarFileName) {
         Scan scanner = new Scan(grammarFileName);
         String[] lines = scanner.readText();
-        List<String[]> unhandledSyntaxRules = new ArrayList<>();
-        StringBuilder currentProduction = new StringBuilder();
-
-        for (String line : lines) {
-            // 忽略空行和注释
-            if (line.trim().isEmpty() || line.trim().startsWith("#")) continue;
-            // 这里处理了分行写的情况
-            if (line.contains(";")) {
-                // 根据分号进行分割
-                int semicolonIndex = line.indexOf(';');
-                currentProduction.append(line.substring(0, semicolonIndex));
-
-                // 根据冒号分割
-                String completeProduction = currentProduction.toString().trim();
-                String[] parts = completeProduction.split(":");
-
-                if (parts.length == 2) {
-                    String nonTerminal = parts[0].trim();
-                    if(isTerminal(nonTerminal)){
-                        throw new RuntimeException("请检查语法文件格式，产生式左侧不能出现非终结符");
-                    }
-                    String production = parts[1].trim();
-                    unhandledSyntaxRules.add(new String[] {nonTerminal, production});
-                } else if(parts.length > 2) {
-                    throw new RuntimeException("请检查语法文件格式，以分号结束的一个产生式里，不要有多个冒号");
-                } else {
-                    throw new RuntimeException("请检查语法文件格式，每个产生式应当由分号连接");
-                }
-
-                // 重置累加
-                currentProduction = new StringBuilder();
-
-                if (semicolonIndex + 1 < line.length()) {
-                    String Str = line.substring(semicolonIndex + 1);
-                    if(!Str.startsWith("#")){
-                        throw new RuntimeException("请检查语法文件格式，在分号后，请另起一行再写新的表达式");
-                    }
-                }
-            } else {
-                currentProduction.append(line);
+        EbnfGrammar grammar = EbnfGrammar.parse(grammarFileName, lines);
+        for (EbnfGrammar.Rule rule : grammar.getRules()) {
+            if (isTerminal(rule.name)) {
+                throw grammar.error(rule, "产生式左侧不能出现终结符 " + rule.name);
             }
         }
-        GrammarRewriter rewriter = new GrammarRewriter();
-        rewriter.rewriteQuantifier(unhandledSyntaxRules);
-        rewriter.expandRules(unhandledSyntaxRules);
 
-        for (String[] rule : unhandledSyntaxRules) {
-            addProduction(rule[0], rule[1].split("\\s+"));
+        // 量词和括号展开成普通的产生式
+        for (Map.Entry<String, List<String[]>> entry : grammar.desugar().entrySet()) {
+            for (String[] production : entry.getValue()) {
+                addProduction(entry.getKey(), production);
+            }
         }
         eliminateDirectLeftRecursion();
         eliminateLeftCommonFactors();
         calculateFirstSets();
         calculateFollowSets();
         buildPredictiveParsingTable();
+        internSymbols();
+    }
+
+    /**
+     * 给所有符号编号，并把预测分析表展开成按 非终结符 × 终结符 索引的 int 数组。
+     * 终结符按名称排序编号，$ 总是包含在内；非终结符同样按名称排序，排在终结符后面。
+     */
+    void internSymbols() {
+        TreeSet<String> terminals = new TreeSet<>(Terminals);
+        terminals.add("$");
+        TreeSet<String> nonTerminals = new TreeSet<>(productions.keySet());
+        nonTerminals.addAll(predictiveTable.keySet());
+        nonTerminals.add(startSymbol);
+        nonTerminals.removeAll(terminals);
+
+        symbolNames = new String[terminals.size() + nonTerminals.size()];
+        symbolIds = new HashMap<>();
+        terminalCount = 0;
+        for (String terminal : terminals) {
+            symbolIds.put(terminal, terminalCount);
+            symbolNames[terminalCount++] = terminal;
+        }
+        int next = terminalCount;
+        for (String nonTerminal : nonTerminals) {
+            symbolIds.put(nonTerminal, next);
+            symbolNames[next++] = nonTerminal;
+        }
+        endSymbol = symbolIds.get("$");
+        epsilonSymbol = symbolIds.getOrDefault("ε", -1);
+        important = new boolean[symbolNames.length];
+        for (String nonTerminal : importantNonTerminals) {
+            Integer id = symbolIds.get(nonTerminal);
+            if (id != null) important[id] = true;
+        }
+
+        // 产生式编号，预测分析表里引用的是 productions 中的同一个数组
+        Map<String[], Integer> productionIds = new IdentityHashMap<>();
+        List<String[]> names = new ArrayList<>();
+        for (String nonTerminal : nonTerminals) {
+            for (String[] production : getProductions(nonTerminal)) {
+                productionIds.put(production, names.size());
+                names.add(production);
+            }
+        }
+        productionNames = names.toArray(new String[0][]);
+        productionSymbols = new int[productionNames.length][];
+        for (int i = 0; i < productionNames.length; i++) {
+            productionSymbols[i] = symbolsOf(productionNames[i]);
+        }
+
+        table = new int[nonTerminals.size() * terminalCount];
+        Arrays.fill(table, NO_PRODUCTION);
+        for (Map.Entry<String, Map<String, String[]>> row : predictiveTable.entrySet()) {
+            int base = (symbolIds.get(row.getKey()) - terminalCount) * terminalCount;
+            for (Map.Entry<String, String[]> cell : row.getValue().entrySet()) {
+                Integer terminal = symbolIds.get(cell.getKey());
+                if (terminal == null || terminal >= terminalCount) continue;
+                table[base + terminal] = cell.getValue() == conflictSymbol ? CONFLICT : productionIds.get(cell.getValue());
+            }
+        }
+    }
+
+    /**
+     * 查预测分析表。
+     *
+     * @param nonTerminal 非终结符编号
+     * @param terminal    终结符编号，-1 表示文法中没有的终结符
+     * @return 产生式编号；没有对应的产生式时返回 {@link #NO_PRODUCTION}，有冲突时返回 {@link #CONFLICT}
+     */
+    int predict(int nonTerminal, int terminal) {
+        if (nonTerminal < terminalCount || terminal < 0) return NO_PRODUCTION;
+        return table[(nonTerminal - terminalCount) * terminalCount + terminal];
+    }
+
+    /**
+     * @return 符号的编号，文法中没有这个符号时返回-1
+     */
+    int symbolOf(String symbol) {
+        return symbolIds.getOrDefault(symbol, -1);
+    }
+
+    int[] symbolsOf(String[] production) {
+        int[] symbols = new int[production.length];
+        for (int i = 0; i < production.length; i++) symbols[i] = symbolOf(production[i]);
+        return symbols;
+    }
+
+    /**
+     * 把词法分析器的 token 类型名映射成终结符编号。
+     *
+     * @param tokenTypes token 类型编号 -> 类型名
+     * @return token 类型编号 -> 终结符编号，文法中没有的类型为-1
+     */
+    int[] terminalsOf(String[] tokenTypes) {
+        int[] terminals = new int[tokenTypes.length];
+        for (int i = 0; i < tokenTypes.length; i++) {
+            int symbol = symbolOf(tokenTypes[i]);
+            terminals[i] = symbol < terminalCount ? symbol : -1;
+        }
+        return terminals;
+    }
+
+    boolean isTerminalSymbol(int symbol) {
+        return symbol >= 0 && symbol < terminalCount;
+    }
+
+    boolean isImportant(int symbol) {
+        return symbol >= 0 && important[symbol];
+    }
+
+    /**
+     * 把编译好的文法写入缓存文件：终结符、产生式、first/follow 集合、预测分析表和冲突信息。
+     * 预测分析表里的产生式写成它在所属非终结符的产生式列表中的下标，冲突写成-1。
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        CompiledLanguage.writeStrings(out, Terminals);
+        out.writeInt(productions.size());
+        for (Map.Entry<String, List<String[]>> entry : productions.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (String[] production : entry.getValue()) {
+                CompiledLanguage.writeStrings(out, Arrays.asList(production));
+            }
+        }
+        for (Map<String, Set<String>> sets : List.of(firstSets, followSets)) {
+            out.writeInt(sets.size());
+            for (Map.Entry<String, Set<String>> entry : sets.entrySet()) {
+                out.writeUTF(entry.getKey());
+                CompiledLanguage.writeStrings(out, entry.getValue());
+            }
+        }
+        out.writeInt(predictiveTable.size());
+        for (Map.Entry<String, Map<String, String[]>> entry : predictiveTable.entrySet()) {
+            List<String[]> rules = productions.get(entry.getKey());
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (Map.Entry<String, String[]> cell : entry.getValue().entrySet()) {
+                out.writeUTF(cell.getKey());
+                int index = -1;
+                for (int i = 0; i < rules.size() && index < 0; i++) {
+                    if (rules.get(i) == cell.getValue()) index = i;
+                }
+                if (index < 0 && cell.getValue() != conflictSymbol) {
+                    throw new RuntimeException("预测分析表中的产生式不属于 " + entry.getKey());
+                }
+                out.writeInt(index);
+            }
+        }
+        CompiledLanguage.writeStrings(out, conflicts);
+    }
+
+    /**
+     * 从缓存文件读出由 {@link #writeTo} 写入的文法。
+     */
+    static ParserGrammar readFrom(DataInputStream in) throws IOException {
+        ParserGrammar grammar = new ParserGrammar(CompiledLanguage.readStrings(in).toArray(new String[0]));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String nonTerminal = in.readUTF();
+            int ruleCount = in.readInt();
+            for (int j = 0; j < ruleCount; j++) {
+                grammar.addProduction(nonTerminal, CompiledLanguage.readStrings(in).toArray(new String[0]));
+            }
+        }
+        for (Map<String, Set<String>> sets : List.of(grammar.firstSets, grammar.followSets)) {
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                sets.put(in.readUTF(), new HashSet<>(CompiledLanguage.readStrings(in)));
+            }
+        }
+        grammar.predictiveTable = new HashMap<>();
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String nonTerminal = in.readUTF();
+            List<String[]> rules = grammar.getProductions(nonTerminal);
+            Map<String, String[]> row = new HashMap<>();
+            int cells = in.readInt();
+            for (int j = 0; j < cells; j++) {
+                String terminal = in.readUTF();
+                int index = in.readInt();
+                row.put(terminal, index < 0 ? grammar.conflictSymbol : rules.get(index));
+            }
+            grammar.predictiveTable.put(nonTerminal, row);
+        }
+        grammar.conflicts.addAll(CompiledLanguage.readStrings(in));
+        grammar.internSymbols();
+        return grammar;
     }
 
     /**
@@ -569,45 +975,99 @@ class ParserGrammar {
      * 计算每个非终结符的first集合。
      */
     private void calculateFirstSets() {
-        // 初始时，为每个非终结符创建空集合
-        for (String nonTerminal : productions.keySet()) {
-            firstSets.put(nonTerminal, new HashSet<>());
-        }
-
-        // 标记是否发生变化，用于迭代计算
-        boolean changed = true;
-        while (changed) {
-            changed = false;
-            for (Map.Entry<String, List<String[]>> entry : productions.entrySet()) {
-                String nonTerminal = entry.getKey();
-                for (String[] production : entry.getValue()) {
-                    boolean nullable = true;
-                    for (String symbol : production) {
-                        if (isTerminal(symbol)) {
-                            if(!symbol.equals("ε")){
-                                changed |= firstSets.get(nonTerminal).add(symbol);
-                                nullable = false;
-                                break;
-                            }
-                        } else if (!symbol.equals(nonTerminal)) { // 不允许左递归
-                            Set<String> firstSetOfSymbol = firstSets.get(symbol);
-                            if (firstSetOfSymbol == null) {
-                                throw new RuntimeException("请修改语法文件，非终结符：" + symbol + "至少要写一条表达式");
-                            } else {
-                                for (String firstSymbol : firstSetOfSymbol) {
-                                    if (!firstSymbol.equals("ε")) {
-                                        changed |= firstSets.get(nonTerminal).add(firstSymbol);
-                                    }
-                                }
-                                if (!firstSetOfSymbol.contains("ε")) {
-                                    nullable = false;
-                                    break;
-                                }
-                            }
-                        }
+        symbolIndex = new SymbolIndex();
+        ruleFirstSets.clear();
+        int count = symbolIndex.nonTerminals.length;
+
+        // 先求哪些非终结符能推出空串：记录每条产生式里还有几个符号不能推出空串，减到0时左部可以推出空串
+        nullable = new boolean[count];
+        int[][] remaining = new int[count][];
+        List<List<int[]>> occurrences = new ArrayList<>(); // 非终结符 -> 出现的位置 {左部, 产生式下标}
+        Deque<Integer> work = new ArrayDeque<>();
+        for (int n = 0; n < count; n++) occurrences.add(new ArrayList<>());
+        for (int n = 0; n < count; n++) {
+            int[][] rules = symbolIndex.rules[n];
+            remaining[n] = new int[rules.length];
+            for (int r = 0; r < rules.length; r++) {
+                for (int symbol : rules[r]) {
+                    if (symbol == SymbolIndex.EPSILON || symbol == ~n) continue; // ε 和左部自身不影响是否能推出空串
+                    if (symbol >= 0) {
+                        remaining[n][r] = -1; // 含有终结符，永远不能推出空串
+                        break;
+                    }
+                    remaining[n][r]++;
+                    occurrences.get(~symbol).add(new int[]{n, r});
+                }
+                if (remaining[n][r] == 0 && !nullable[n]) {
+                    nullable[n] = true;
+                    work.add(n);
+                }
+            }
+        }
+        while (!work.isEmpty()) {
+            for (int[] at : occurrences.get(work.poll())) {
+                if (remaining[at[0]][at[1]] > 0 && --remaining[at[0]][at[1]] == 0 && !nullable[at[0]]) {
+                    nullable[at[0]] = true;
+                    work.add(at[0]);
+                }
+            }
+        }
+
+        // 每条产生式从左往右，直到第一个不能推出空串的符号：终结符直接加入 first 集合，
+        // 非终结符 B 则要求 first(B) 包含于 first(左部)，记成一条 B -> 左部 的依赖边
+        first = new BitSet[count];
+        List<List<Integer>> dependents = new ArrayList<>();
+        for (int n = 0; n < count; n++) {
+            first[n] = new BitSet(symbolIndex.terminals.length);
+            dependents.add(new ArrayList<>());
+        }
+        for (int n = 0; n < count; n++) {
+            for (int[] rule : symbolIndex.rules[n]) {
+                for (int symbol : rule) {
+                    if (symbol == SymbolIndex.EPSILON || symbol == ~n) continue; // 不允许左递归
+                    if (symbol >= 0) {
+                        first[n].set(symbol);
+                        break;
                     }
-                    if (nullable) {
-                        changed |= firstSets.get(nonTerminal).add("ε");
+                    dependents.get(~symbol).add(n);
+                    if (!nullable[~symbol]) break;
+                }
+            }
+        }
+        propagate(first, dependents);
+
+        for (int n = 0; n < count; n++) {
+            Set<String> set = symbolIndex.terminalNames(first[n]);
+            if (nullable[n]) set.add("ε");
+            firstSets.put(symbolIndex.nonTerminals[n], set);
+        }
+    }
+
+    /**
+     * 沿着依赖边 from -> to 传播集合，使得 sets[from] 包含于 sets[to]，只重新处理集合发生了变化的符号。
+     */
+    private static void propagate(BitSet[] sets, List<List<Integer>> dependents) {
+        Deque<Integer> work = new ArrayDeque<>();
+        boolean[] queued = new boolean[sets.length];
+        for (int n = 0; n < sets.length; n++) {
+            if (!sets[n].isEmpty()) {
+                work.add(n);
+                queued[n] = true;
+            }
+        }
+        BitSet added = new BitSet();
+        while (!work.isEmpty()) {
+            int from = work.poll();
+            queued[from] = false;
+            for (int to : dependents.get(from)) {
+                added.clear();
+                added.or(sets[from]);
+                added.andNot(sets[to]);
+                if (!added.isEmpty()) {
+                    sets[to].or(added);
+                    if (!queued[to]) {
+                        work.add(to);
+                        queued[to] = true;
                     }
                 }
             }
@@ -616,153 +1076,262 @@ class ParserGrammar {
 
     /**
      * 计算每个非终结符的follow集合。
+     * <p>
+     * 每条产生式从右往左维护 trailer（后面的符号串能以哪些终结符开头、能否推出空串），
+     * 非终结符 B 的 follow 集合包含 trailer；trailer 能推出空串时还包含左部的 follow 集合，记成一条 左部 -> B 的依赖边。
+     * 最后按依赖边传播，只重新处理 follow 集合发生了变化的非终结符。
+     * </p>
      */
     private void calculateFollowSets() {
-        for (String nonTerminal : productions.keySet()) {
-            followSets.put(nonTerminal, new HashSet<>());
+        int count = symbolIndex.nonTerminals.length;
+        BitSet[] follow = new BitSet[count];
+        List<List<Integer>> dependents = new ArrayList<>();
+        for (int n = 0; n < count; n++) {
+            follow[n] = new BitSet(symbolIndex.terminals.length);
+            dependents.add(new ArrayList<>());
         }
 
         // 将 $ 放入起始符号的 FOLLOW 集合
-        followSets.get(startSymbol).add("$");
-
-        boolean changed = true;
-        while (changed) {
-            changed = false;
-            for (Map.Entry<String, List<String[]>> entry : productions.entrySet()) {
-                String nonTerminal = entry.getKey();
-                for (String[] production : entry.getValue()) {
-                    Set<String> trailer = new HashSet<>(followSets.get(nonTerminal));
-                    trailer.add("ε");
-
-                    // 从右向左更新 FOLLOW 集
-                    for (int i = production.length - 1; i >= 0; i--) {
-                        String symbol = production[i];
-                        if (isTerminal(symbol)) {
+        follow[symbolIndex.nonTerminalIds.get(startSymbol)].set(symbolIndex.terminalIds.get("$"));
+
+        BitSet trailer = new BitSet();
+        for (int n = 0; n < count; n++) {
+            for (int[] rule : symbolIndex.rules[n]) {
+                trailer.clear();
+                boolean trailerNullable = true;
+                for (int i = rule.length - 1; i >= 0; i--) {
+                    int symbol = rule[i];
+                    if (symbol == SymbolIndex.EPSILON) {
+                        trailer.clear();
+                        trailerNullable = true;
+                    } else if (symbol >= 0) {
+                        trailer.clear();
+                        trailer.set(symbol);
+                        trailerNullable = false;
+                    } else {
+                        int b = ~symbol;
+                        follow[b].or(trailer);
+                        if (trailerNullable && b != n) dependents.get(n).add(b);
+                        if (!nullable[b]) {
                             trailer.clear();
-                            trailer.add(symbol);
-                        } else { // symbol 是非终结符
-                            int oldSize = followSets.get(symbol).size();
-
-                            // Rule 2: 将 trailer 加到 FOLLOW(symbol) 中,除去空串
-                            followSets.get(symbol).addAll(trailer);
-                            followSets.get(symbol).remove("ε");
+                            trailerNullable = false;
+                        }
+                        trailer.or(first[b]);
+                    }
+                }
+            }
+        }
+        propagate(follow, dependents);
 
-                            // Rule 3: 将 FOLLOW(nonTerminal) 添加到 FOLLOW(symbol) 中
-                            if (i == production.length - 1 || trailer.contains("ε")) {
-                                followSets.get(symbol).addAll(followSets.get(nonTerminal));
-                            }
+        for (int n = 0; n < count; n++) {
+            followSets.put(symbolIndex.nonTerminals[n], symbolIndex.terminalNames(follow[n]));
+        }
+    }
 
-                            //更新trailer
-                            Set<String> firstSetOfSymbol = new HashSet<>(firstSets.get(symbol));
-                            if(!firstSetOfSymbol.contains("ε")){
-                                trailer.clear();
-                            }
-                            firstSetOfSymbol.remove("ε");
-                            trailer.addAll(firstSetOfSymbol);
+    /**
+     * 计算 first/follow 集合时使用的编号：终结符（包括 $，不包括 ε）和非终结符各自从 0 开始编号，
+     * 产生式里的非终结符 n 记为 ~n，ε 记为 {@link #EPSILON}。
+     */
+    private final class SymbolIndex {
+        static final int EPSILON = Integer.MIN_VALUE;
+
+        final String[] terminals;
+        final Map<String, Integer> terminalIds = new HashMap<>();
+        final String[] nonTerminals;
+        final Map<String, Integer> nonTerminalIds = new HashMap<>();
+        final int[][][] rules; // 非终结符编号 -> 产生式 -> 符号编号
+
+        SymbolIndex() {
+            TreeSet<String> terminalSet = new TreeSet<>(Terminals);
+            terminalSet.remove("ε");
+            terminalSet.add("$");
+            terminals = terminalSet.toArray(new String[0]);
+            for (int i = 0; i < terminals.length; i++) terminalIds.put(terminals[i], i);
+            nonTerminals = new TreeSet<>(productions.keySet()).toArray(new String[0]);
+            for (int i = 0; i < nonTerminals.length; i++) nonTerminalIds.put(nonTerminals[i], i);
+            if (!nonTerminalIds.containsKey(startSymbol)) {
+                throw new RuntimeException("请修改语法文件，起始符号：" + startSymbol + "至少要写一条表达式");
+            }
 
-                            if (followSets.get(symbol).size() != oldSize) changed = true;
-                        }
-                    }
+            rules = new int[nonTerminals.length][][];
+            for (int n = 0; n < nonTerminals.length; n++) {
+                List<String[]> list = productions.get(nonTerminals[n]);
+                rules[n] = new int[list.size()][];
+                for (int r = 0; r < list.size(); r++) {
+                    String[] production = list.get(r);
+                    int[] symbols = new int[production.length];
+                    for (int i = 0; i < production.length; i++) symbols[i] = idOf(production[i]);
+                    rules[n][r] = symbols;
                 }
             }
         }
+
+        private int idOf(String symbol) {
+            if (symbol.equals("ε")) return EPSILON;
+            Integer terminal = terminalIds.get(symbol);
+            if (terminal != null && isTerminal(symbol)) return terminal;
+            Integer nonTerminal = nonTerminalIds.get(symbol);
+            if (nonTerminal == null) {
+                throw new RuntimeException("请修改语法文件，非终结符：" + symbol + "至少要写一条表达式");
+            }
+            return ~nonTerminal;
+        }
+
+        Set<String> terminalNames(BitSet set) {
+            Set<String> names = new HashSet<>();
+            for (int t = set.nextSetBit(0); t >= 0; t = set.nextSetBit(t + 1)) names.add(terminals[t]);
+            return names;
+        }
     }
 
     //提取左公因子要记录下来，方便后续还原成原表达式，这样利于语义分析
+    /**
+     * 提取左公因子。
+     * <p>
+     * 每个非终结符的产生式先插入一棵按符号分叉的前缀树，树上有至少两条产生式经过、并且在这里分叉（或者有产生式在这里结束）的结点
+     * 就是一个公因子，对应一个新的中间非终结符 mid_&lt;非终结符&gt;_ext。一遍遍历前缀树就能得到所有的公因子，
+     * 不再为每个长度的前缀拼接字符串、反复寻找最长的公共前缀。
+     * </p>
+     * <p>
+     * 结果和原来逐次提取最长公共前缀的做法相同：更长的公因子先编号；中间非终结符的产生式先是原来的产生式（按原顺序），
+     * 再是更深一层公因子对应的产生式；原非终结符则是先放公因子对应的产生式，再放剩下的原产生式。
+     * </p>
+     */
     public void eliminateLeftCommonFactors() {
         Map<String, List<String[]>> newProductions = new HashMap<>();
 
         for (String nonTerminal : productions.keySet()) {
-            List<String[]> currentProductions = new ArrayList<>(productions.get(nonTerminal));
-            boolean changed;
-
-            do {
-                Map<String, List<String[]>> prefixMap = new HashMap<>();
-                changed = false;
+            List<String[]> currentProductions = productions.get(nonTerminal);
+            PrefixTrie root = new PrefixTrie(0, 0);
+            for (int i = 0; i < currentProductions.size(); i++) {
+                root.insert(currentProductions.get(i), i);
+            }
 
-                for (String[] production : currentProductions) {
-                    for (int length = 1; length <= production.length; length++) {
-                        String prefix = String.join(" ", Arrays.copyOf(production, length));
-                        prefixMap.computeIfAbsent(prefix, k -> new ArrayList<>()).add(production);
-                    }
+            // 更长的公因子先处理（编号在前），长度相同时按在前缀树中出现的顺序
+            List<PrefixTrie> factors = new ArrayList<>();
+            root.collectFactors(factors);
+            factors.sort((a, b) -> Integer.compare(b.prefixLength, a.prefixLength));
+            for (int rank = 0; rank < factors.size(); rank++) {
+                PrefixTrie factor = factors.get(rank);
+                String newNonTerminal = "mid_" + nonTerminal + "_ext";
+                int index = 1;
+                while (productions.containsKey(newNonTerminal) || newProductions.containsKey(newNonTerminal)) {
+                    newNonTerminal = "mid_" + nonTerminal + "_ext" + index++;
                 }
+                factor.rank = rank;
+                factor.name = newNonTerminal;
+                newProductions.put(newNonTerminal, new ArrayList<>());
+            }
 
-                String longestCommonPrefix = "";
-                List<String[]> longestGroup = null;
-
-                for (Map.Entry<String, List<String[]>> entry : prefixMap.entrySet()) {
-                    if (entry.getValue().size() > 1 && entry.getKey().length() > longestCommonPrefix.length()) {
-                        longestCommonPrefix = entry.getKey();
-                        longestGroup = entry.getValue();
+            // 新终结符推出公因子后面的部分
+            for (PrefixTrie factor : factors) {
+                List<String[]> newGroupProductions = newProductions.get(factor.name);
+                List<Integer> originals = new ArrayList<>();
+                List<PrefixTrie> nested = new ArrayList<>();
+                factor.collectMembers(originals, nested);
+                for (int i : originals) {
+                    String[] prod = currentProductions.get(i);
+                    if (prod.length > factor.depth) {
+                        newGroupProductions.add(Arrays.copyOfRange(prod, factor.depth, prod.length));
+                    } else {
+                        newGroupProductions.add(new String[] {"ε"});
                     }
                 }
+                for (PrefixTrie inner : nested) {
+                    newGroupProductions.add(inner.factoredProduction(currentProductions, factor.depth));
+                }
+            }
 
-                // 以上计算出了最长的公共前缀longestCommonPrefix，以及longestGroup存了该前缀对应的产生式有哪些
-
-                if (longestCommonPrefix.length() > 0) {
-                    // 确定新非终结符
-                    String[] commonPrefixArray = longestCommonPrefix.split(" ");
-                    String newNonTerminal = "mid_" + nonTerminal + "_ext";
-                    int index = 1;
-                    while (productions.containsKey(newNonTerminal) || newProductions.containsKey(newNonTerminal)) {
-                        newNonTerminal = "mid_" + nonTerminal + "_ext" + index++;
-                    }
-
-                    // newGroupProductions:新的中间非终结符可以推出的产生式，也就是公因子后面的部分
-                    List<String[]> newGroupProductions = new ArrayList<>();
-                    for (String[] prod : longestGroup) {
-                        if (prod.length > commonPrefixArray.length) {
-                            newGroupProductions.add(Arrays.copyOfRange(prod, commonPrefixArray.length, prod.length));
-                        } else {
-                            newGroupProductions.add(new String[] {"ε"});
-                        }
-                    }
-
-                    // 先将newProductions中含有最长前缀的表达式给删去
-                    List<String[]> finalLongestGroup = longestGroup;
-
-                    List<String[]> existingProductions = newProductions.get(nonTerminal); // 获取当前非终结符对应的产生式列表
-                    if (existingProductions != null) {
-                        existingProductions.removeIf(production -> finalLongestGroup.stream()
-                                .anyMatch(groupProd -> Arrays.equals(production, groupProd) // 检查是否与longestGroup中的任何一个产生式相等
-                                ));
-                    }
-
-                    // 确定所有新的产生式：
-
-                    // 原非终结符可以推出公因子+中间终结符
-                    newProductions.computeIfAbsent(nonTerminal, k -> new ArrayList<>())
-                            .add(Arrays.copyOf(commonPrefixArray, commonPrefixArray.length + 1));
-                    newProductions.get(nonTerminal)
-                            .get(newProductions.get(nonTerminal).size() - 1)[commonPrefixArray.length] = newNonTerminal;
+            // 原非终结符可以推出公因子+中间终结符，以及没有公因子的原产生式
+            List<Integer> originals = new ArrayList<>();
+            List<PrefixTrie> nested = new ArrayList<>();
+            root.collectMembers(originals, nested);
+            List<String[]> productionsList = newProductions.computeIfAbsent(nonTerminal, k -> new ArrayList<>());
+            for (PrefixTrie inner : nested) {
+                productionsList.add(inner.factoredProduction(currentProductions, 0));
+            }
+            for (int i : originals) {
+                String[] remainingProduction = currentProductions.get(i);
+                if (productionsList.stream().noneMatch(p -> Arrays.equals(p, remainingProduction))) {
+                    productionsList.add(remainingProduction);
+                }
+            }
+        }
+        productions = newProductions;
+    }
 
-                    // 新终结符推出公因子后面的部分
-                    newProductions.put(newNonTerminal, newGroupProductions);
+    /**
+     * 提取左公因子时使用的前缀树，每个结点对应一个产生式前缀。
+     */
+    private static final class PrefixTrie {
+        final Map<String, PrefixTrie> children = new LinkedHashMap<>();
+        final List<Integer> ending = new ArrayList<>(); // 恰好在这里结束的产生式下标
+        final int depth; // 前缀的符号个数
+        final int prefixLength; // 前缀用空格连接之后的长度，原来的做法按这个长度比较公因子
+        int count; // 经过这里的产生式个数
+        int anyProduction; // 任意一条经过这里的产生式的下标
+        int rank; // 是公因子时的处理顺序
+        String name; // 是公因子时对应的中间非终结符
+
+        PrefixTrie(int depth, int prefixLength) {
+            this.depth = depth;
+            this.prefixLength = prefixLength;
+        }
 
-                    // longestGroup为含有最长前缀的表达式，这里把他们从currentProductions中删去
+        void insert(String[] production, int index) {
+            PrefixTrie node = this;
+            node.count++;
+            for (String symbol : production) {
+                PrefixTrie parent = node;
+                node = parent.children.computeIfAbsent(symbol, k -> new PrefixTrie(parent.depth + 1,
+                        parent.depth == 0 ? k.length() : parent.prefixLength + 1 + k.length()));
+                if (node.count++ == 0) node.anyProduction = index;
+            }
+            node.ending.add(index);
+        }
 
-                    currentProductions = currentProductions.stream()
-                            .filter(p -> !finalLongestGroup.contains(p))
-                            .collect(Collectors.toList());
+        /**
+         * 至少两条产生式经过这里，并且它们不是全部沿着同一个子结点继续。
+         */
+        boolean isFactor() {
+            return depth > 0 && count > 1 && !(ending.isEmpty() && children.size() == 1);
+        }
 
-                    // 把公因子+中间终结符这个新的产生式放回currentProductions，因为还可能会有更短的公共前缀但是重合
-                    String[] newProduction = Arrays.copyOf(commonPrefixArray, commonPrefixArray.length + 1);
-                    newProduction[commonPrefixArray.length] = newNonTerminal;
-                    currentProductions.add(newProduction);
+        void collectFactors(List<PrefixTrie> factors) {
+            if (isFactor()) factors.add(this);
+            for (PrefixTrie child : children.values()) child.collectFactors(factors);
+        }
 
-                    changed = true;
+        /**
+         * 找出这个结点下一层的成员：在这里结束或者单独经过某个子结点的原产生式（按下标排序），
+         * 以及每个子结点下面最近的公因子（按处理顺序排序）。
+         */
+        void collectMembers(List<Integer> originals, List<PrefixTrie> nested) {
+            originals.addAll(ending);
+            for (PrefixTrie child : children.values()) {
+                PrefixTrie node = child;
+                while (!node.isFactor() && node.count > 1) {
+                    node = node.children.values().iterator().next(); // 所有产生式都沿着唯一的子结点继续
                 }
-            } while (changed);
-
-            for (String[] remainingProduction : currentProductions) {
-                List<String[]> productionsList = newProductions.computeIfAbsent(nonTerminal, k -> new ArrayList<>());
-                if (productionsList.stream().noneMatch(p -> Arrays.equals(p, remainingProduction))) {
-                    productionsList.add(remainingProduction);
+                if (node.isFactor()) {
+                    nested.add(node);
+                } else {
+                    originals.add(node.anyProduction);
                 }
             }
+            Collections.sort(originals);
+            nested.sort(Comparator.comparingInt(node -> node.rank));
+        }
 
+        /**
+         * @return 公因子从第 from 个符号开始的部分再加上对应的中间非终结符
+         */
+        String[] factoredProduction(List<String[]> productions, int from) {
+            String[] prefix = productions.get(anyProduction);
+            String[] result = Arrays.copyOfRange(prefix, from, depth + 1);
+            result[depth - from] = name;
+            return result;
         }
-        productions = newProductions;
     }
 
     //TODO:消除左递归，还没有完善，可能存在很多bug
@@ -863,6 +1432,10 @@ class ParserGrammar {
     }
 
     private Set<String> calculateFirstForRule(String[] rule) {
+        return ruleFirstSets.computeIfAbsent(rule, this::computeFirstForRule);
+    }
+
+    private Set<String> computeFirstForRule(String[] rule) {
         Set<String> result = new HashSet<>();
         boolean nullable = true;
 
@@ -956,6 +1529,7 @@ class ASTNode {
     public List<ASTNode> children; // 用列表来存储树的子节点
     public int lineNumber; // 节点对应的源代码行号
     public boolean isTerminal; // 标记该节点是否是终结符
+    int symbol = -1; // 节点类型在文法中的符号编号，由语法分析器设置
 
     public ASTNode(String type, String value, int lineNumber, boolean isTerminal) {
         this.type = type;
@@ -1015,147 +1589,6 @@ class ASTNode {
 }
 
 
-class GrammarRewriter {
-    public void rewriteQuantifier(List<String[]> rules) {
-        List<String[]> newRules = new ArrayList<>();
-        // 匹配括号内的内容和后面的量词，允许嵌套括号
-        Pattern pattern = Pattern.compile("(\\([^()]*?\\))([+*?])|(\\S+)([+*?])");
-        int midNNonTerminalCnt = 0;
-        String midNonTerminal = "mid";
-        boolean ifChange;
-
-        do {
-            ifChange = false;
-            for (String[] rule : rules) {
-                String nonTerminal = rule[0];
-                String production = rule[1];
-
-                Matcher matcher = pattern.matcher(production);
-                StringBuffer newProduction = new StringBuffer();
-
-                // 处理所有找到的匹配项
-                if (matcher.find()) {
-                    ifChange = true;
-                    String group = matcher.group(1) != null ? matcher.group(1) : matcher.group(3); // 量词前的内容
-                    String quantifier = matcher.group(2) != null ? matcher.group(2) : matcher.group(4); // 量词
-
-                    String newmidNonTerminal = midNonTerminal + "_" + midNNonTerminalCnt;
-                    midNNonTerminalCnt++;
-
-                    switch (quantifier) {
-                        case "+":
-                            matcher.appendReplacement(newProduction, group + ' ' + newmidNonTerminal);
-                            matcher.appendTail(newProduction);
-                            newRules.add(new String[] { nonTerminal, newProduction.toString() });
-                            newRules.add(new String[] { newmidNonTerminal, group + ' ' + newmidNonTerminal });
-                            newRules.add(new String[] { newmidNonTerminal, "ε" });
-                            break;
-                        case "?":
-                            matcher.appendReplacement(newProduction, group);
-                            matcher.appendTail(newProduction);
-                            newRules.add(new String[] { nonTerminal, newProduction.toString() });
-
-                            newProduction.setLength(0);
-                            matcher.reset();
-                            matcher.find();
-                            matcher.appendReplacement(newProduction, "ε");
-                            matcher.appendTail(newProduction);
-                            newRules.add(new String[] { nonTerminal, newProduction.toString() });
-                            break;
-                        case "*":
-                            matcher.appendReplacement(newProduction, newmidNonTerminal);
-                            matcher.appendTail(newProduction);
-                            newRules.add(new String[] { nonTerminal, newProduction.toString() });
-                            newRules.add(new String[] { newmidNonTerminal, group + ' ' + newmidNonTerminal });
-                            newRules.add(new String[] { newmidNonTerminal, "ε" });
-                            break;
-                    }
-
-                } else {
-                    newRules.add(rule);
-                }
-
-            }
-
-            // 替换原始规则列表
-            rules.clear();
-            rules.addAll(newRules);
-            newRules.clear();
-
-        } while (ifChange);
-
-    }
-
-    public void expandRules(List<String[]> rules) {
-        Set<String> expandedRulesSet = new HashSet<>(); // 用于存储唯一的规则字符串
-        List<String[]> expandedRules = new ArrayList<>(); // 最终的规则列表
-        for (String[] rule : rules) {
-            List<String[]> expanded = expandRule(rule[0], rule[1]);
-            for (String[] expandedRule : expanded) {
-                String uniqueRule = expandedRule[0] + " -> " + expandedRule[1]; // 创建一个唯一的规则字符串
-                if (expandedRulesSet.add(uniqueRule)) { // 如果成功添加（即之前没有这个规则）
-                    expandedRules.add(expandedRule); // 添加到结果列表
-                }
-            }
-        }
-
-        // 替换原始规则列表
-        rules.clear();
-        rules.addAll(expandedRules);
-    }
-
-    // 递归展开规则
-    public List<String[]> expandRule(String nonTerminal, String production) {
-        List<String[]> expanded = new ArrayList<>();
-
-        int startIdx = production.indexOf('(');
-        if (startIdx != -1) {
-            int endIdx = findMatchingParenthesis(production, startIdx);
-            if (endIdx != -1) {
-                String prefix = production.substring(0, startIdx);
-                String choices = production.substring(startIdx + 1, endIdx);
-                String suffix = production.substring(endIdx + 1);
-
-                // 分割选择并递归处理每个选择
-                String[] splits = choices.split("\\|");
-                for (String split : splits) {
-                    expanded.addAll(expandRule(nonTerminal, prefix + split.trim() + suffix));
-                }
-            }
-        } else {
-            // 没有括号，检查是否有选择符
-            if (production.contains("|")) {
-                String[] splits = production.split("\\|");
-                for (String split : splits) {
-                    expanded.add(new String[] { nonTerminal, split.trim() });
-                }
-            } else {
-                // 没有括号也没有选择符
-                expanded.add(new String[] { nonTerminal, production });
-            }
-        }
-
-        return expanded;
-    }
-
-    // 找到匹配的右括号
-    public int findMatchingParenthesis(String production, int startIdx) {
-        int count = 1;
-        for (int i = startIdx + 1; i < production.length(); i++) {
-            if (production.charAt(i) == '(') {
-                count++;
-            } else if (production.charAt(i) == ')') {
-                count--;
-                if (count == 0) {
-                    return i;
-                }
-            }
-        }
-        return -1; // 未找到匹配的括号
-    }
-
-}
-
 class CustomStack<T> {
     public List<T> stack;
 
@@ -1185,6 +1618,10 @@ class CustomStack<T> {
         return stack.isEmpty();
     }
 
+    public int size() {
+        return stack.size();
+    }
+
     public List<T> getStack() {
         return Collections.unmodifiableList(stack);
     }
@@ -0,0 +1,372 @@
+package org.main;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ParserGenerator 在构建时根据词法文件和语法文件生成一个专用的语法分析器 GeneratedParser。
+ * <p>
+ * 生成的分析器是递归下降的：每个非终结符对应一个方法，方法里按向前看的终结符编号 switch 到对应的产生式，
+ * 产生式里的终结符直接匹配、非终结符直接调用对应的方法，不再查预测分析表，也不再维护分析栈。
+ * 产生式最后一个符号是非终结符自身时（例如 {@code mid_k : X mid_k}）改成循环，语句再多也不会加深调用栈。
+ * 其余的嵌套（例如多层 while）每层都要调用几个方法，调用深度超过 {@link SpecializedParser#MAX_CALL_DEPTH} 时放弃，
+ * 交给按预测分析表的分析过程，它不受调用栈深度的限制。
+ * 生成的语法树和 {@link Parser} 按预测分析表得到的完全一样，包括 mid_k 和 ε 结点；
+ * 事件模式下（见 {@link ParseListener}）不建立语法树，每个方法返回前结束自己（以及循环中嵌套的同名非终结符）。
+ * </p>
+ * <p>
+ * pom.xml 在 compile 阶段、编译完主程序之后运行 {@link #main}，接着在同一阶段单独编译生成的源文件；
+ * 运行时 {@link SpecializedParser#create} 只有在生成时的文法和当前的文法一致时才会使用它，
+ * 修改文法的过程中不用重新构建，照样按预测分析表分析。
+ * </p>
+ */
+public class ParserGenerator {
+    static final String CLASS_NAME = "GeneratedParser";
+
+    private final ParserGrammar grammar;
+    private final String digest;
+    private final String[] methodNames; // 非终结符编号 - terminalCount -> 方法名
+    private final StringBuilder out = new StringBuilder();
+
+    ParserGenerator(ParserGrammar grammar, String digest) {
+        this.grammar = grammar;
+        this.digest = digest;
+        this.methodNames = new String[grammar.symbolNames.length - grammar.terminalCount];
+        Set<String> used = new HashSet<>();
+        for (int symbol = grammar.terminalCount; symbol < grammar.symbolNames.length; symbol++) {
+            String name = "parse_" + grammar.symbolNames[symbol].replaceAll("[^A-Za-z0-9_]", "_");
+            if (!used.add(name)) {
+                name = name + "_" + symbol;
+                used.add(name);
+            }
+            methodNames[symbol - grammar.terminalCount] = name;
+        }
+    }
+
+    /**
+     * @param args 生成的源文件所在的根目录，以及可选的词法文件名、语法文件名
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Please provide the output directory as a command line argument.");
+            System.exit(1);
+        }
+        String lexerFile = args.length > 1 ? args[1] : CompiledLanguage.LEXER_GRAMMAR_FILE;
+        String parserFile = args.length > 2 ? args[2] : CompiledLanguage.PARSER_GRAMMAR_FILE;
+
+        GrammarRule grammarRule = new GrammarRule();
+        grammarRule.createRuleFromFile(lexerFile);
+        ParserGrammar grammar = new ParserGrammar(grammarRule.getAllTokenNames());
+        grammar.loadGrammarFromFile(parserFile);
+        String source = new ParserGenerator(grammar, CompiledLanguage.grammarDigest(lexerFile, parserFile)).generate();
+
+        Path file = Path.of(args[0], "org", "main", CLASS_NAME + ".java");
+        byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+        // 内容没有变化时不改写文件，避免每次构建都重新编译
+        if (Files.isRegularFile(file) && Arrays.equals(Files.readAllBytes(file), bytes)) {
+            return;
+        }
+        Files.createDirectories(file.getParent());
+        Files.write(file, bytes);
+    }
+
+    /**
+     * @return GeneratedParser 的源代码
+     */
+    String generate() {
+        line(0, "package org.main;");
+        line(0, "");
+        line(0, "/**");
+        line(0, " * 由 ParserGenerator 根据词法文件和语法文件生成，不要手工修改。");
+        line(0, " */");
+        line(0, "final class " + CLASS_NAME + " extends SpecializedParser {");
+        line(1, "private static final String GRAMMAR_DIGEST = " + literal(digest) + ";");
+        StringBuilder terminals = new StringBuilder();
+        for (int i = 0; i < grammar.terminalCount; i++) {
+            if (i > 0) terminals.append(", ");
+            terminals.append(literal(grammar.symbolNames[i]));
+        }
+        line(1, "private static final String[] TERMINALS = {" + terminals + "};");
+        line(0, "");
+        int start = grammar.symbolOf(grammar.getStartSymbol());
+        line(1, CLASS_NAME + "() {");
+        line(2, "super(GRAMMAR_DIGEST, TERMINALS, " + grammar.endSymbol + ", " + start + ");");
+        line(1, "}");
+        line(0, "");
+        line(1, "@Override");
+        line(1, "void parseStart(ASTNode node) {");
+        line(2, start < grammar.terminalCount ? "throw mismatch();" : methodNames[start - grammar.terminalCount] + "(node);");
+        line(1, "}");
+        for (int symbol = grammar.terminalCount; symbol < grammar.symbolNames.length; symbol++) {
+            line(0, "");
+            generateNonTerminal(symbol);
+        }
+        line(0, "}");
+        return out.toString();
+    }
+
+    private void generateNonTerminal(int nonTerminal) {
+        // 产生式编号 -> 选择它的终结符，按终结符编号排列
+        Map<Integer, List<Integer>> cases = new LinkedHashMap<>();
+        boolean selfTail = false;
+        for (int terminal = 0; terminal < grammar.terminalCount; terminal++) {
+            int rule = grammar.predict(nonTerminal, terminal);
+            if (rule < 0) continue; // 没有产生式或者有冲突，都交给按预测分析表的分析过程处理
+            cases.computeIfAbsent(rule, k -> new ArrayList<>()).add(terminal);
+            int[] symbols = grammar.productionSymbols[rule];
+            selfTail |= symbols[symbols.length - 1] == nonTerminal;
+        }
+
+        line(1, "// " + grammar.symbolNames[nonTerminal]);
+        line(1, "private void " + methodNames[nonTerminal - grammar.terminalCount] + "(ASTNode node) {");
+        line(2, "enter();");
+        int indent = 2;
+        if (selfTail) {
+            line(2, "int depth = 1; // 循环代替的嵌套层数");
+            line(2, "while (true) {");
+            indent = 3;
+        }
+        line(indent, "switch (lookahead) {");
+        for (Map.Entry<Integer, List<Integer>> entry : cases.entrySet()) {
+            List<Integer> terminals = entry.getValue();
+            for (int i = 0; i < terminals.size(); i++) {
+                int terminal = terminals.get(i);
+                String comment = " // " + grammar.symbolNames[terminal];
+                line(indent + 1, "case " + terminal + (i == terminals.size() - 1 ? ": {" : ":") + comment);
+            }
+            generateProduction(nonTerminal, entry.getKey(), selfTail, indent + 2);
+            line(indent + 1, "}");
+        }
+        line(indent + 1, "default:");
+        line(indent + 2, "throw mismatch();");
+        line(indent, "}");
+        if (selfTail) {
+            line(2, "}");
+        }
+        line(1, "}");
+    }
+
+    private void generateProduction(int nonTerminal, int rule, boolean selfTail, int indent) {
+        String[] names = grammar.productionNames[rule];
+        int[] symbols = grammar.productionSymbols[rule];
+        line(indent, "// " + String.join(" ", names));
+        for (int i = 0; i < symbols.length; i++) {
+            int symbol = symbols[i];
+            String name = literal(names[i]);
+            if (symbol == grammar.epsilonSymbol && grammar.isTerminalSymbol(symbol)) {
+                line(indent, "epsilon(node, " + name + ", " + symbol + ");");
+            } else if (grammar.isTerminalSymbol(symbol)) {
+                line(indent, "match(node, " + name + ", " + symbol + ");");
+            } else if (symbol < 0) {
+                // 文法中没有定义的符号，不可能匹配
+                line(indent, "nonTerminal(node, " + name + ", " + symbol + ");");
+                line(indent, "throw mismatch();");
+                return;
+            } else if (symbol == nonTerminal && i == symbols.length - 1) {
+                line(indent, "node = nonTerminal(node, " + name + ", " + symbol + ");");
+                line(indent, "depth++;");
+                line(indent, "continue;");
+                return;
+            } else {
+                line(indent, methodNames[symbol - grammar.terminalCount] + "(nonTerminal(node, " + name + ", " + symbol + "));");
+            }
+        }
+        line(indent, "leave(" + (selfTail ? "depth" : "1") + ");");
+        line(indent, "callDepth--;");
+        line(indent, "return;");
+    }
+
+    private void line(int indent, String text) {
+        if (!text.isEmpty()) out.append("    ".repeat(indent)).append(text);
+        out.append('\n');
+    }
+
+    private static String literal(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
+
+/**
+ * 构建时生成的语法分析器的基类，保存当前的 token 和向前看的终结符编号。
+ * <p>
+ * 生成的分析器不做错误恢复：遇到任何语法错误都放弃整个分析，由 {@link Parser} 回到开头按预测分析表重新分析，
+ * 这样错误信息和原来完全一样。
+ * </p>
+ */
+abstract class SpecializedParser {
+    static final String MODE_PROPERTY = "mylang.parser"; // 设为 interpreted 时不使用生成的分析器
+    static final int MAX_CALL_DEPTH = 1000; // 生成的方法最多嵌套调用这么多层，线程栈只有 1MB 时也不会溢出
+    private static final String GENERATED_CLASS = "org.main." + ParserGenerator.CLASS_NAME;
+    private static final Map<List<String>, Boolean> matches = new ConcurrentHashMap<>(); // 文件名 -> 文法是否和生成时一致
+
+    private final String digest;
+    private final String[] terminals;
+    private final int endSymbol;
+    private final int startSymbol;
+    private Lexer.TokenIterator tokenIterator;
+    private Lexer.Token currentToken;
+    private ParseEvents events; // 事件模式下的事件接收者，为 null 时建立语法树
+    private int[] tokenSymbol; // token 类型编号 -> 终结符编号
+    int lookahead; // 当前 token 的终结符编号，文法中没有的类型为-1
+    int callDepth; // 当前嵌套调用了几个生成的方法
+
+    SpecializedParser(String digest, String[] terminals, int endSymbol, int startSymbol) {
+        this.digest = digest;
+        this.terminals = terminals;
+        this.endSymbol = endSymbol;
+        this.startSymbol = startSymbol;
+    }
+
+    /**
+     * 获取生成的语法分析器。
+     *
+     * @return 没有生成过、生成时的文法和当前的不一致、或者指定了不使用时返回 null
+     */
+    static SpecializedParser create(String lexerFile, String parserFile) {
+        if ("interpreted".equals(System.getProperty(MODE_PROPERTY))) return null;
+        Constructor<? extends SpecializedParser> constructor = Generated.CONSTRUCTOR;
+        if (constructor == null) return null;
+        try {
+            SpecializedParser parser = constructor.newInstance();
+            boolean match = matches.computeIfAbsent(List.of(lexerFile, parserFile),
+                    k -> parser.digest.equals(CompiledLanguage.grammarDigest(lexerFile, parserFile)));
+            return match ? parser : null;
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 生成的类只查找一次。
+     */
+    private static final class Generated {
+        static final Constructor<? extends SpecializedParser> CONSTRUCTOR = find();
+
+        private static Constructor<? extends SpecializedParser> find() {
+            try {
+                return Class.forName(GENERATED_CLASS).asSubclass(SpecializedParser.class).getDeclaredConstructor();
+            } catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 从 tokenIterator 的当前位置开始分析，把语法树挂到 root 下面，或者把事件交给 events。
+     *
+     * @return 是否分析成功；失败时 root 下可能已经挂上了一部分子树，由调用者丢弃
+     */
+    final boolean parse(Lexer lexer, Lexer.TokenIterator tokenIterator, ASTNode root, ParseEvents events) {
+        String[] typeNames = lexer.getTokens().getTypeNames();
+        Map<String, Integer> terminalIds = new HashMap<>();
+        for (int i = 0; i < terminals.length; i++) terminalIds.put(terminals[i], i);
+        tokenSymbol = new int[typeNames.length];
+        for (int i = 0; i < typeNames.length; i++) tokenSymbol[i] = terminalIds.getOrDefault(typeNames[i], -1);
+
+        this.tokenIterator = tokenIterator;
+        this.events = events;
+        currentToken = tokenIterator.next();
+        lookahead = tokenSymbol[currentToken.getTypeId()];
+        root.symbol = startSymbol;
+        callDepth = 0;
+        if (events != null) {
+            events.enter(root.getType(), 0);
+        }
+        try {
+            parseStart(root);
+            return lookahead == endSymbol;
+        } catch (Mismatch e) {
+            // 语法错误，或者嵌套太深（见 enter()）
+            return false;
+        }
+    }
+
+    /**
+     * 分析起始符号。
+     */
+    abstract void parseStart(ASTNode node);
+
+    /**
+     * 匹配一个终结符，并把它作为 parent 的子结点。
+     */
+    final void match(ASTNode parent, String type, int symbol) {
+        if (lookahead != symbol) throw Mismatch.INSTANCE;
+        if (events != null) {
+            events.terminal(type, currentToken);
+        } else {
+            ASTNode node = new ASTNode(type, currentToken.getValue(), currentToken.getLineNumber(), true);
+            node.symbol = symbol;
+            parent.addChild(node);
+        }
+        if (tokenIterator.hasNext()) {
+            currentToken = tokenIterator.next();
+            lookahead = tokenSymbol[currentToken.getTypeId()];
+        }
+    }
+
+    final void epsilon(ASTNode parent, String type, int symbol) {
+        if (events != null) return;
+        ASTNode node = new ASTNode(type, null, -1, true);
+        node.symbol = symbol;
+        parent.addChild(node);
+    }
+
+    /**
+     * @return 新的非终结符结点；事件模式下不建立结点，返回 null
+     */
+    final ASTNode nonTerminal(ASTNode parent, String type, int symbol) {
+        if (events != null) {
+            events.enter(type, 0);
+            return null;
+        }
+        ASTNode node = new ASTNode(type, null, -1, false);
+        node.symbol = symbol;
+        parent.addChild(node);
+        return node;
+    }
+
+    /**
+     * 每个生成的方法开始时调用，调用深度超过 {@link #MAX_CALL_DEPTH} 时和语法错误一样放弃整个分析。
+     */
+    final void enter() {
+        if (++callDepth > MAX_CALL_DEPTH) throw Mismatch.INSTANCE;
+    }
+
+    /**
+     * 事件模式下结束最近的 count 个非终结符。
+     */
+    final void leave(int count) {
+        if (events != null) events.leave(count);
+    }
+
+    static RuntimeException mismatch() {
+        return Mismatch.INSTANCE;
+    }
+
+    /**
+     * 语法错误，不记录调用栈。
+     */
+    private static final class Mismatch extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        static final Mismatch INSTANCE = new Mismatch();
+
+        private Mismatch() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package org.main;
+
+import java.io.Closeable;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 边接收边分析：源文本可以分成任意多段送入（比如大模型逐段生成的程序），不需要等整个文件写完。
+ * <p>
+ * 每送入一段，新出现的完整的行立即做词法分析，得到的 token 交给语法分析器。语法分析器就是原来的 {@link Parser}，
+ * 在单独的线程里运行，分析栈在两次送入之间保持不变；它读到还没有送入的位置时停下来，{@link #feed} 这时才返回。
+ * 所以 {@link #feed} 返回时，已经送入的 token 都分析过了，其中的语法错误（和 {@link Parser} 报告的完全相同）也已经报告，
+ * 调用者可以据此提前放弃（{@link #abort}）或者修改这次生成。两个线程轮流运行，不会同时访问 token。
+ * </p>
+ * <p>
+ * 出现词法错误时，和流水线模式一样停止语法分析，之后送入的文本只做词法分析。
+ * listener 的事件在语法分析线程中发出。
+ * </p>
+ * <p>
+ * 语法分析线程是虚拟线程，同时有很多个 PushParser 时也不会占用很多系统线程。
+ * 它在 {@link #finish()} 或者 {@link #abort()} 之后结束；中途不用的 PushParser 要调用 {@link #close()}，
+ * 可以放在 try-with-resources 中。
+ * </p>
+ */
+public class PushParser implements Closeable {
+    private final Lexer lexer;
+    private final Parser parser;
+    private final Channel channel = new Channel();
+    private final Thread thread;
+    private volatile Throwable failure; // 语法分析线程中抛出的异常
+    private boolean finished;
+
+    /**
+     * @param lexer    还没有分析过任何文件的词法分析器
+     * @param listener 语法分析事件的接收者，为 null 时建立语法树（用 {@link #getParser()} 取得）
+     */
+    public PushParser(Lexer lexer, String grammarFileName, ParseListener listener) {
+        this.lexer = lexer;
+        lexer.startPush(channel);
+        this.parser = new Parser(lexer);
+        this.thread = Thread.ofVirtual().name("parser").start(() -> {
+            try {
+                parser.analyze(grammarFileName, listener);
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                channel.done();
+            }
+        });
+        channel.awaitParser();
+    }
+
+    /**
+     * 送入一段源文本，等到已经送入的 token 都分析完才返回。
+     *
+     * @param chunk 任意长度的文本，可以在一行的中间断开
+     * @return 到目前为止是否没有词法错误和语法错误
+     */
+    public boolean feed(CharSequence chunk) {
+        if (finished) {
+            throw new RuntimeException("源文本已经全部送入，不能再送入新的内容");
+        }
+        if (lexer.push(chunk)) {
+            channel.publish(lexer.getTokens().size());
+        } else {
+            channel.abort();
+        }
+        checkFailure();
+        return !hasErrors();
+    }
+
+    /**
+     * 源文本全部送入，等待语法分析结束。
+     *
+     * @return 是否没有词法错误和语法错误
+     */
+    public boolean finish() {
+        if (!finished) {
+            finished = true;
+            if (lexer.finishPush()) {
+                channel.close(lexer.getTokens().size());
+            } else {
+                channel.abort();
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("等待语法分析线程时被中断", e);
+            }
+            checkFailure();
+        }
+        return !hasErrors();
+    }
+
+    /**
+     * 放弃这次分析，语法分析线程结束，之后只能调用 {@link #hasErrors()}。
+     */
+    public void abort() {
+        finished = true;
+        channel.abort();
+    }
+
+    /**
+     * 没有调用过 {@link #finish()} 时放弃这次分析（见 {@link #abort()}），结束语法分析线程；已经结束时什么也不做。
+     */
+    @Override
+    public void close() {
+        if (!finished) {
+            abort();
+        }
+    }
+
+    /**
+     * 判断是否存在错误
+     * @return 是否有词法错误或者语法错误
+     */
+    public boolean hasErrors() {
+        return lexer.hasErrors() || channel.parserErrors(parser);
+    }
+
+    public Parser getParser() {
+        return parser;
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new RuntimeException("语法分析线程出错", failure);
+        }
+    }
+
+    /**
+     * 送入文本的线程和语法分析线程之间的交接。两边轮流运行：送入文本的线程公布新的 token 之后等待，
+     * 语法分析线程分析完这些 token、需要更多 token 时再把控制权交回来。
+     * <p>
+     * 用 {@link ReentrantLock} 而不是 synchronized：虚拟线程在 synchronized 中等待时会占住底下的系统线程。
+     * 对方总是很快就会交回控制权，所以等待不响应中断，中断状态在等待结束后保留。
+     * </p>
+     */
+    static final class Channel {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition(); // 下面的任何一个状态改变了
+        private int published; // 已经公布给语法分析线程的 token 数
+        private boolean parserWaiting; // 语法分析线程正在等待新的 token
+        private boolean closed; // 不会再有新的 token
+        private boolean aborted; // 放弃分析
+        private boolean done; // 语法分析线程已经结束
+
+        /**
+         * 语法分析线程调用：已经读到了第 size 个 token，等待后面的 token。
+         *
+         * @return 是否有了新的 token；全部送入并且读完时返回 false
+         */
+        boolean await(int size) {
+            lock.lock();
+            try {
+                parserWaiting = true;
+                changed.signalAll();
+                while (published <= size && !closed && !aborted) {
+                    changed.awaitUninterruptibly();
+                }
+                parserWaiting = false;
+                if (aborted) {
+                    throw new Lexer.StreamAbortedException();
+                }
+                return published > size;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 公布新的 token，等待语法分析线程把它们分析完。
+         */
+        void publish(int size) {
+            lock.lock();
+            try {
+                if (size <= published || done) return;
+                published = size;
+                parserWaiting = false;
+                changed.signalAll();
+                awaitParser();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close(int size) {
+            lock.lock();
+            try {
+                published = size;
+                closed = true;
+                parserWaiting = false;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 放弃分析，等待语法分析线程结束。
+         */
+        void abort() {
+            lock.lock();
+            try {
+                aborted = true;
+                changed.signalAll();
+                while (!done) {
+                    changed.awaitUninterruptibly();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void done() {
+            lock.lock();
+            try {
+                done = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 等待语法分析线程停下来（需要新的 token 或者已经结束）。
+         */
+        void awaitParser() {
+            lock.lock();
+            try {
+                while (!parserWaiting && !done) {
+                    changed.awaitUninterruptibly();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 在语法分析线程停下来的时候读取它的错误，保证看到的是最新的结果。
+         */
+        boolean parserErrors(Parser parser) {
+            lock.lock();
+            try {
+                return parser.hasErrors();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package org.main;
 
 import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
@@ -54,21 +53,18 @@ public class Scan {
         return contentList.toArray(new String[0]);
     }
 
-    public String[] readTextFromPath() {
-        List<String> contentList = new ArrayList<>();
-
-        // 使用绝对路径读取文件
-        try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                contentList.add(line);
-            }
+    /**
+     * 通过 NIO 读取指定路径的文件（按 UTF-8 解码），大文件会做内存映射。
+     *
+     * @return 包含文件全部字符和行索引的 SourceText。
+     */
+    public SourceText readSourceFromPath() {
+        try {
+            return SourceText.read(fileName);
         } catch (IOException e) {
             System.err.println("Error reading file from path: " + fileName);
             e.printStackTrace();
-            return new String[0];
+            return SourceText.empty();
         }
-
-        return contentList.toArray(new String[0]);
     }
 }
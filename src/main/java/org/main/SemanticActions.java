@@ -1,24 +1,35 @@
 package org.main;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
-import java.io.InputStream;
 import java.util.*;
 import java.util.Stack;
 
 //将需要定义的语义动作写在这个类里
-//没有被定义语义动作的符号会运行defaultVisit函数,加进了ifAggregate集合里的节点除了访问孩子还会自动从子节点获取已经生成的代码,可以用visitChildren来访问孩子
-//每个节点都有专门的变量用来存储生成的代码,可以使用aggregateCodeFromChildren从孩子节点获取代码
+//没有被定义语义动作的符号会运行defaultVisit函数,加进了ifAggregate集合里的节点只是依次访问孩子,可以用visitChildren来访问孩子
+//生成的代码按程序的顺序直接写进emitter(见CodeEmitter),缩进也由emitter记录,所以要在访问孩子之前写出if、while等语句的头部
+//语义动作收到的是指向当前结点的游标(见ArenaAST.Cursor),可以随意移动;访问孩子的方法(handler.visitNode、visitLoopBody等)返回时游标还在原来的结点上
+//表达式生成的代码作为属性记在结点上,每种属性一张附加表(见ArenaAST.Attribute)
+//符号表、全局属性等这次编译的状态都在CompilationContext里,不同的编译互不影响
 public class SemanticActions {
-    public static EntryNode entryNode = new EntryNode();
-    public static ExitNode exitNode = new ExitNode();
-    private static CFGNode currentCFGNode;
+    public final EntryNode entryNode = new EntryNode();
+    public final ExitNode exitNode = new ExitNode();
+    private CFGNode currentCFGNode;
     Stack<CFGNode> loopStack = new Stack<>();
+    private final SemanticsHandler handler; // 用来访问子节点
+    private final CompilationContext context;
+    CodeEmitter emitter; // 生成的代码写到这里，由 SemanticsHandler 在分析前设置
 
     private Map<String, Object> config;
     public CFG cfg;
     public Set<String> ifAggregate;
 
-    public SemanticActions() {
+    // 结点上的属性：表达式生成的代码
+    private final ArenaAST.Attribute<String> mathExpCode = new ArenaAST.Attribute<>();
+    private final ArenaAST.Attribute<String> boolExpCode = new ArenaAST.Attribute<>();
+    private final ArenaAST.Attribute<String> comExpCode = new ArenaAST.Attribute<>();
+    private final ArenaAST.Attribute<String> returnFunctionCode = new ArenaAST.Attribute<>();
+
+    public SemanticActions(SemanticsHandler handler, CompilationContext context) {
+        this.handler = handler;
+        this.context = context;
         currentCFGNode = entryNode;
         cfg = new CFG();
         cfg.addNode(entryNode);
@@ -31,76 +42,70 @@ public class SemanticActions {
     }
 
     private void loadConfig() {
-        try {
-            // 使用 ClassLoader 读取 resources 中的 JSON 配置文件
-            ClassLoader classLoader = getClass().getClassLoader();
-            InputStream inputStream = classLoader.getResourceAsStream("input/TargetCode.json");
-
-            if (inputStream == null) {
-                throw new IllegalArgumentException("配置文件未找到！");
-            }
-
-            // 使用 Jackson 解析 JSON 文件
-            ObjectMapper objectMapper = new ObjectMapper();
-            config = objectMapper.readValue(inputStream, Map.class);
-
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        // resources 中的 JSON 配置文件由 CompiledLanguage 解析并缓存
+        config = Collections.unmodifiableMap(CompiledLanguage.load().getTemplates());
     }
 
 
-    public void defaultVisit(ExtendedASTNode node) {
+    public void defaultVisit(ArenaAST.Cursor node) {
         visitChildren(node);
     }
 
-    public void aggregateVisit(ExtendedASTNode node) {
+    // 孩子生成的代码已经按顺序直接写出了,不需要再收集
+    public void aggregateVisit(ArenaAST.Cursor node) {
         visitChildren(node);
-        node.aggregateCodeFromChildren();
     }
 
-    public void visitChildren(ExtendedASTNode node) {
-        for (ExtendedASTNode child : node.getChildren()) {
-            SemanticsHandler.visitNode(child);
+    public void visitChildren(ArenaAST.Cursor node) {
+        int at = node.node();
+        for (boolean more = node.toFirstChild(); more; more = node.toNextSibling()) {
+            handler.visitNode(node);
         }
+        node.moveTo(at);
     }
 
-    public void visitChildrenWithCond(ExtendedASTNode node) {
+    public void visitChildrenWithCond(ArenaAST.Cursor node) {
         List<CFGNode> branchEndNodes = new ArrayList<>(); // 用于存储分支结束的节点
         String boolExp;
         CFGNode branchStartNode = currentCFGNode;
         boolean haselsestatement = false;
 
-        for (ExtendedASTNode child : node.getChildren()) {
-            if (child.getType().equals("boolExp")) {
+        int at = node.node();
+        for (boolean more = node.toFirstChild(); more; more = node.toNextSibling()) {
+            if (node.getType().equals("boolExp")) {
                 // 如果是布尔表达式，生成对应的条件节点并添加到CFG
-                SemanticsHandler.visitNode(child);
-                boolExp =  (String) child.getAttribute("boolExp");
+                handler.visitNode(node);
+                boolExp = node.get(boolExpCode);
+                // if 行和 condstatement 同级，比分支少缩进一级，要在分支的代码之前写出
+                emitter.dedent();
+                emitter.line("if " + boolExp + ":");
+                emitter.indent();
                 CFGNode conditionNode = new EmptyNode("conditionNode");
                 cfg.addNode(conditionNode);
 
                 // 从当前节点到条件节点添加边
                 cfg.addEdge(branchStartNode,conditionNode, boolExp);
                 currentCFGNode = conditionNode; // 更新当前节点为条件节点
-            } else if (child.getType().equals("Case")) {
+            } else if (node.getType().equals("Case")) {
                 // 如果是 Case 块，生成 then 分支的 CFG
-                SemanticsHandler.visitNode(child);// 递归访问 Case 的子节点
+                handler.visitNode(node);// 递归访问 Case 的子节点
 
                 // Case 的代码生成完成后，记录结束节点
                 branchEndNodes.add(currentCFGNode);
 
                 // 将 currentCFGNode 重置为分支起点，方便接下来的分支处理
                 currentCFGNode = branchStartNode;
-            } else if (child.getType().equals("elseStatement")) {
+            } else if (node.getType().equals("elseStatement")) {
                 haselsestatement = true;
                 // 如果是 elseStatement，则需要从其子节点出获取最终节点列表
-                CFGNode branchEndNodeFromElse = visit_elseStatement(child);
+                CFGNode branchEndNodeFromElse = visit_elseStatement(node);
                 branchEndNodes.add(branchEndNodeFromElse);
             } else {
                 // 默认访问子节点
-                SemanticsHandler.visitNode(child);
+                handler.visitNode(node);
             }
         }
+        node.moveTo(at);
 
         // 创建 MergeNode 并连接所有分支结束节点
         CFGNode mergeNode = new EmptyNode("mergeNode");
@@ -117,32 +122,38 @@ public class SemanticActions {
         currentCFGNode = mergeNode;
     }
 
-    private void visitChildrenWithWhile(ExtendedASTNode node) {
+    private void visitChildrenWithWhile(ArenaAST.Cursor node) {
         CFGNode LoopNode = new EmptyNode("LoopNode");
         cfg.addNode(LoopNode);
         cfg.addEdge(currentCFGNode, LoopNode, "True");
         String boolExp = null;
 
-        for (ExtendedASTNode child : node.getChildren()) {
-            if (child.getType().equals("boolExp")) {
+        int at = node.node();
+        for (boolean more = node.toFirstChild(); more; more = node.toNextSibling()) {
+            if (node.getType().equals("boolExp")) {
                 // 如果是布尔表达式，生成对应的条件节点并添加到CFG
-                SemanticsHandler.visitNode(child);
-                boolExp =  (String) child.getAttribute("boolExp");
+                handler.visitNode(node);
+                boolExp = node.get(boolExpCode);
+                // 生成 Python 的 while 循环语句，比循环体少缩进一级
+                emitter.dedent();
+                emitter.line("while " + boolExp + ":");
+                emitter.indent();
                 CFGNode conditionNode = new EmptyNode("conditionNode");
                 cfg.addNode(conditionNode);
 
                 // 从当前节点到条件节点添加边
                 cfg.addEdge(LoopNode,conditionNode, boolExp);
                 currentCFGNode = conditionNode; // 更新当前节点为条件节点
-            } else if (child.getType().equals("Case")) {
+            } else if (node.getType().equals("Case")) {
                 // 如果是 Case 块，生成 then 分支的 CFG
-                SemanticsHandler.visitNode(child);// 递归访问 Case 的子节点
+                visitLoopBody(node);// 递归访问 Case 的子节点
                 cfg.addEdge(currentCFGNode, LoopNode, "True");
             } else {
                 // 默认访问子节点
-                SemanticsHandler.visitNode(child);
+                handler.visitNode(node);
             }
         }
+        node.moveTo(at);
 
         CFGNode EndLoopNode = new EmptyNode("EndLoopNode");
         cfg.addNode(EndLoopNode);
@@ -150,7 +161,7 @@ public class SemanticActions {
         currentCFGNode = EndLoopNode;
     }
 
-    private void visitChildrenWithFor(ExtendedASTNode node,int startValue,int endValue) {
+    private void visitChildrenWithFor(ArenaAST.Cursor node,int startValue,int endValue) {
         //定义一个节点用来初始化计数器变量
         CFGNode assignNode = new EmptyNode("ForLoopCount = " + Integer.toString(startValue));
         cfg.addNode(assignNode);
@@ -169,10 +180,11 @@ public class SemanticActions {
         CFGNode EndLoopNode = new EmptyNode("EndLoopNode");
         loopStack.push(EndLoopNode);
 
-        for (ExtendedASTNode child : node.getChildren()) {
-            if (child.getType().equals("Case")) {
+        int at = node.node();
+        for (boolean more = node.toFirstChild(); more; more = node.toNextSibling()) {
+            if (node.getType().equals("Case")) {
                 // 如果是 Case 块，生成 then 分支的 CFG
-                SemanticsHandler.visitNode(child);// 递归访问 Case 的子节点
+                visitLoopBody(node);// 递归访问 Case 的子节点
 
                 CFGNode AddNode = new EmptyNode("ForLoopCount += 1");
                 cfg.addNode(AddNode);
@@ -180,9 +192,10 @@ public class SemanticActions {
                 cfg.addEdge(AddNode, LoopNode, "True");
             } else {
                 // 默认访问子节点
-                SemanticsHandler.visitNode(child);
+                handler.visitNode(node);
             }
         }
+        node.moveTo(at);
 
 
         cfg.addNode(EndLoopNode);
@@ -191,58 +204,69 @@ public class SemanticActions {
         loopStack.pop();
     }
 
-    public void visit_program(ExtendedASTNode node) {
+    // 访问循环体,循环体中的每个语句后面空一行
+    private void visitLoopBody(ArenaAST.Cursor caseNode) {
+        int at = caseNode.node();
+        for (boolean more = caseNode.toFirstChild(); more; more = caseNode.toNextSibling()) {
+            handler.visitNode(caseNode);
+            if (caseNode.getType().equals("statement")) {
+                emitter.newLine();
+            }
+        }
+        caseNode.moveTo(at);
+    }
+
+    public void visit_program(ArenaAST.Cursor node) {
         // 从 config 中获取 program_code 的代码列表
         applyCodeFromConfig(node, "program_code");
 
         visitChildren(node);
-        node.aggregateCodeFromChildren();
-        node.appendCodeLine("");
-        node.appendCodeLine("clear_all_variables()");
-        node.appendCodeLine("publish_task_done()");
-        node.appendCodeLine("rospy.spin()");
+        emitter.line("");
+        emitter.line("clear_all_variables()");
+        emitter.line("publish_task_done()");
+        emitter.line("rospy.spin()");
 
         cfg.addEdge(currentCFGNode,exitNode,"True");
     }
 
     ///////////////////////////////////////赋值和表达式///////////////////////////////////////////////////
     //赋值语句
-    public void visit_assignstatement(ExtendedASTNode node) {
+    public void visit_assignstatement(ArenaAST.Cursor node) {
         // 访问子节点以收集必要的数据
         visitChildren(node);
 
-        String id = node.getChildrenByType("ID").getValue();
-        String value = getValueFromOperand(node.getChildren().get(2));
+        String id = childValue(node, "ID", 0);
+        String value = operandAt(node, 2);
         String operandType;
-        ExtendedASTNode operandNode = node.getChildren().get(2);
+        String operandNodeType = childType(node, 2);
 
 
 
-        operandType = switch (node.getChildren().get(2).getType()) {
+        operandType = switch (operandNodeType) {
             case "NUMBER","mathExp" -> "mathExp";
             case "returnFunction" -> "returnFunction" ;
             case "string" -> "string";// 假设 getValue 返回字符串值
             case "pose" -> "pose";
-            default -> throw new IllegalArgumentException("Unsupported operand type: " + operandNode.getType());
+            default -> throw new IllegalArgumentException("Unsupported operand type: " + operandNodeType);
         };
 
         //查表,看是否定义了这个变量
-        SymbolInfo info = ExtendedASTNode.getSymbol(id);
+        SymbolInfo info = context.getSymbol(id);
 
         //如果还没有定义
         if(info == null){
             //注册变量，每个变量都是以SymbolInfo的形式存储在Symbletable里的
-            info = ExtendedASTNode.addSymbol(id);
+            info = context.addSymbol(id);
         }
 
         info.setAdditionalAttributes(value);
-        node.appendCodeLine(id + " = " + value);
-        node.appendCodeLine("set_variable( \"" + id + "\", " + id + ")");
+        emitter.line(id + " = " + value);
+        emitter.line("set_variable( \"" + id + "\", " + id + ")");
 
         //处理CFG//
         //先将创建当前行代码对应的IR，并创建对应的节点和加到cfg中存储着
         if(!operandType.contains("returnFunction")){
-            IR assignIR = new IR("ASSIGN",Arrays.asList(id , value),Lexer.allLines[node.getChildren().get(0).getLineNumber()-1] + " at line " + node.getChildren().get(0).getLineNumber());
+            IR assignIR = new IR("ASSIGN",Arrays.asList(id , value),sourceOf(node));
             CFGNode assignNode = new BlockNode(Arrays.asList(assignIR));
             cfg.addNode(assignNode);
 
@@ -254,9 +278,14 @@ public class SemanticActions {
         }else{
             //函数调用类型必须分成两个IR
             // 创建唯一的中间变量（mid_num）用于存储函数返回值
-            String midVar = "mid_" + CFG.generateUniqueId(); // 每次调用生成唯一的标识符
-            IR functionCallIR = new IR(node.getChildrenByType("returnFunction").getChildren().get(0).getType()
-                    , Arrays.asList(midVar), Lexer.allLines[node.getChildren().get(0).getLineNumber()-1] + " at line " + node.getChildren().get(0).getLineNumber());
+            String midVar = "mid_" + context.generateUniqueId(); // 每次调用生成唯一的标识符
+            int at = node.node();
+            node.toChild("returnFunction", 0);
+            moveToChild(node, 0);
+            String function = node.getType();
+            node.moveTo(at);
+            IR functionCallIR = new IR(function
+                    , Arrays.asList(midVar), sourceOf(node));
             // 创建第二个节点表示将 midVar 赋值给目标变量 id
             IR assignIR = new IR("ASSIGN", Arrays.asList(id , midVar), "");
             CFGNode assignNode = new BlockNode(Arrays.asList(functionCallIR,assignIR));
@@ -272,74 +301,71 @@ public class SemanticActions {
     }
 
     //数学表达式
-    public void visit_mathExp(ExtendedASTNode node) {
+    public void visit_mathExp(ArenaAST.Cursor node) {
         StringBuilder mathExp = new StringBuilder();
 
         // 获取左右操作数和操作符
-        ExtendedASTNode leftOperand = node.getChildren().get(1);  // 第一个操作数，跳过左括号
-        ExtendedASTNode operator = node.getChildren().get(2).getChildren().get(0);     // 操作符
-        ExtendedASTNode rightOperand = node.getChildren().get(3); // 第二个操作数
+        String leftOperand = operandAt(node, 1);  // 第一个操作数，跳过左括号
+        String operator = operatorAt(node, 2);     // 操作符
+        String rightOperand = operandAt(node, 3); // 第二个操作数
 
         mathExp.append("( ")
-                .append(getValueFromOperand(leftOperand))
+                .append(leftOperand)
                 .append(" ")
-                .append(operator.getValue())
+                .append(operator)
                 .append(" ")
-                .append(getValueFromOperand(rightOperand))
+                .append(rightOperand)
                 .append(" )");
 
-        node.setAttribute("mathExp",mathExp.toString());
+        node.set(mathExpCode, mathExp.toString());
     }
 
     //布尔表达式
-    public void visit_boolExp(ExtendedASTNode node) {
+    public void visit_boolExp(ArenaAST.Cursor node) {
         // 访问子节点以收集必要的数据
         visitChildren(node);
         StringBuilder boolExp = new StringBuilder();
 
         // 获取第一个 comExp 的属性值
-        ExtendedASTNode firstComExp = node.getChildren().get(0);
-        String firstComExpStr = (String) firstComExp.getAttribute("comExp");
+        int at = node.node();
+        moveToChild(node, 0);
+        String firstComExpStr = node.get(comExpCode);
         boolExp.append(firstComExpStr);
 
         // 遍历后续的 boolop 和 comExp
-        for (int i = 1; i < node.getChildren().size(); i += 2) {
-            ExtendedASTNode boolOpNode = node.getChildren().get(i); // 获取 boolop 节点
-            ExtendedASTNode comExpNode = node.getChildren().get(i + 1); // 获取 comExp 节点
-
-            String boolOp = boolOpNode.getChildren().get(0).getValue();
-            String comExpStr = (String) comExpNode.getAttribute("comExp"); // 获取 comExp 的属性值
+        while (node.toNextSibling()) {
+            String boolOp = operatorAt(node); // 获取 boolop 节点的值
+            node.toNextSibling(); // 获取 comExp 节点
+            String comExpStr = node.get(comExpCode); // 获取 comExp 的属性值
 
             // 将 boolop 和 comExp 追加到布尔表达式中
             boolExp.append(" ").append(boolOp).append(" ").append(comExpStr);
         }
+        node.moveTo(at);
 
         // 将生成的布尔表达式存储在当前节点的属性中
-        node.setAttribute("boolExp", boolExp.toString());
+        node.set(boolExpCode, boolExp.toString());
     }
 
 
-    public void visit_comExp(ExtendedASTNode node) {
+    public void visit_comExp(ArenaAST.Cursor node) {
         // 访问子节点以收集必要的数据
         visitChildren(node);
         StringBuilder comExp = new StringBuilder();
 
         // 获取第一个操作数的值
-        ExtendedASTNode leftOperand = node.getChildren().get(0);
-        String leftOperandValue = getValueFromOperand(leftOperand);
+        String leftOperandValue = operandAt(node, 0);
         comExp.append(leftOperandValue);
 
         // 获取比较操作符的值
-        ExtendedASTNode comOpNode = node.getChildren().get(1);
-        String comOp = comOpNode.getChildren().get(0).getValue();
+        String comOp = operatorAt(node, 1);
         if(comOp.equals("notin")){
             comOp = "not in";// 获取 boolop 的值
         }
         comExp.append(" ").append(comOp).append(" ");
 
         // 获取第二个操作数的值
-        ExtendedASTNode rightOperand = node.getChildren().get(2);
-        String rightOperandValue = getValueFromOperand(rightOperand);
+        String rightOperandValue = operandAt(node, 2);
         comExp.append(rightOperandValue);
 
         if(comOp.equals("above")){
@@ -348,53 +374,33 @@ public class SemanticActions {
             comExp = new StringBuilder("check_object_relation(" + leftOperandValue + " , " +  rightOperandValue + ", 'below')");
         }
         // 将生成的比较表达式存储在当前节点的属性中
-        node.setAttribute("comExp", comExp.toString());
+        node.set(comExpCode, comExp.toString());
     }
 
     ////////////////////////////////////////分支语句//////////////////////////////////////////////////
-    public void visit_condstatement(ExtendedASTNode node) {
-        node.increaseIndent();
-        // 访问子节点收集生成的代码
+    public void visit_condstatement(ArenaAST.Cursor node) {
+        emitter.indent();
+        // 访问子节点，if 行、case 块和 ELSE IF、ELSE 依次写出
         visitChildrenWithCond(node);
-        node.decreaseIndent();
-
-        // 获取布尔表达式和case块代码的字符串
-        StringBuilder condStatementCode = new StringBuilder();
+        emitter.dedent();
 
-        // 第一部分：处理主条件 (IF)
-        ExtendedASTNode ifNode = node.getChildrenByType("boolExp", 0);
-        String boolExp = (String) ifNode.getAttribute("boolExp");
-        condStatementCode.append("if ").append(boolExp).append(":\n");
-
-        // 获取第一个case块的代码
-        ExtendedASTNode caseNode = node.getChildrenByType("Case", 0);
-        condStatementCode.append(caseNode.getCode());
-
-        // 其余部分：处理 ELSE IF 和 ELSE
-        for (int i = 1; i < node.getChildren().size(); i++) {
-            ExtendedASTNode elseNode = node.getChildren().get(i);
-
-            if (elseNode.getType().equals("elseStatement")) {
-                condStatementCode.append(elseNode.getCode());
-            }
-        }
-
-        // 将生成的代码追加到当前节点
-        node.appendCodeLine(condStatementCode.toString());
+        // 整个条件语句之后空一行
+        emitter.newLine();
     }
 
-    public CFGNode visit_elseStatement(ExtendedASTNode node) {
+    public CFGNode visit_elseStatement(ArenaAST.Cursor node) {
         CFGNode branchEndNode = null; // 用于存储分支结束的节点
         String boolExp = "else";
         CFGNode branchStartNode = currentCFGNode;
 
         // 访问子节点收集生成的代码,这里就直接手动visit吧
-        for (ExtendedASTNode child : node.getChildren()) {
-            if (child.getType().equals("boolExp")) {
+        int at = node.node();
+        for (boolean more = node.toFirstChild(); more; more = node.toNextSibling()) {
+            if (node.getType().equals("boolExp")) {
                 // 如果是布尔表达式，生成对应的条件节点并添加到CFG
-                SemanticsHandler.visitNode(child);// 递归访问 Case
-                boolExp = (String) child.getAttribute("boolExp");
-            } else if (child.getType().equals("Case")) {
+                handler.visitNode(node);// 递归访问 Case
+                boolExp = node.get(boolExpCode);
+            } else if (node.getType().equals("Case")) {
                 CFGNode conditionNode = new EmptyNode("conditionNode");
                 cfg.addNode(conditionNode);
 
@@ -402,110 +408,76 @@ public class SemanticActions {
                 cfg.addEdge(branchStartNode, conditionNode, boolExp);
                 currentCFGNode = conditionNode; // 更新当前节点为条件节点
 
-                SemanticsHandler.visitNode(child);// 递归访问 Case
+                // elseStatement应该和父节点同级，elseStatement的子节点比父节点多缩进一级
+                // 此时比父节点多缩进一级，所以写出 elif/else 行时要减少一级，写完再恢复
+                emitter.dedent();
+                int caseNode = node.node();
+                node.moveTo(at);
+                if (node.toChild("boolExp", 0)) {
+                    // ELSE IF 情况
+                    emitter.line("elif " + node.get(boolExpCode) + ":");
+                } else {
+                    // ELSE 情况
+                    emitter.line("else:");
+                }
+                node.moveTo(caseNode);
+                emitter.indent();
+
+                handler.visitNode(node);// 递归访问 Case
                 // Case 的代码生成完成后，记录结束节点
                 branchEndNode = currentCFGNode;
                 // 将 currentCFGNode 重置为分支起点，方便接下来的分支处理
                 currentCFGNode = branchStartNode;
             }else{
-                SemanticsHandler.visitNode(child);
+                handler.visitNode(node);
             }
         }
+        node.moveTo(at);
 
-        // elseStatement应该和父节点同级，elseStatement的子节点比父节点多缩进一级
-        // 此时刚访问到elseStatement的时候，比父节点多缩进一级，所以访问子节点前不需要增加缩进。
-        // 访问完子节点回来，此时还是比父节点多缩进一级，所以要减少一级
-        node.decreaseIndent();
-        StringBuilder elseStatementCode = new StringBuilder();
-
-        // 判断是 "ELSE IF" 还是 "ELSE"
-        if (!Objects.equals(node.getChildrenByType("boolExp").getType(), "ERROR")) {
-            // ELSE IF 情况
-            ExtendedASTNode elseIfNode = node.getChildrenByType("boolExp", 0);
-            String elseIfBoolExp = (String) elseIfNode.getAttribute("boolExp");
-            elseStatementCode.append("elif ").append(elseIfBoolExp).append(":\n");
-        } else {
-            // ELSE 情况
-            elseStatementCode.append("else:\n");
-        }
-
-        ExtendedASTNode elseCaseNode = node.getChildrenByType("Case", 0);
-        //注意获取子节点的代码不能用appendCode，必须直接字符串append或者其他，因为appendCode会进行缩进
-        elseStatementCode.append(elseCaseNode.getCode());
-
-        // 将生成的代码追加到当前节点
-        node.appendCode(elseStatementCode.toString());
-        // 退出之后，还有可能访问其他的elseStatement，所以必须还原访问elseStatement的状态，此处应该恢复比父节点多缩进一级
-        node.increaseIndent();
         return branchEndNode;
     }
 
     ////////////////////////////////////////循环语句//////////////////////////////////////////////////
 
-    public void visit_forStatement(ExtendedASTNode node) {
+    public void visit_forStatement(ArenaAST.Cursor node) {
         // 获取循环的起始值和结束值，并将它们解析为整数
-        int startValue = Integer.parseInt(node.getChildrenByType("NUMBER", 0).getValue());
-        int endValue = Integer.parseInt(node.getChildrenByType("NUMBER", 1).getValue());
+        int startValue = Integer.parseInt(childValue(node, "NUMBER", 0));
+        int endValue = Integer.parseInt(childValue(node, "NUMBER", 1));
 
         // 生成 Python 的 for 循环语句（注意：结束值需要加 1 才能循环 endValue 次）
         StringBuilder forLoopCode = new StringBuilder();
         forLoopCode.append("for i in range(").append(startValue).append(", ").append(endValue + 1).append("):");
-        node.appendCodeLine(forLoopCode.toString());
+        emitter.line(forLoopCode.toString());
 
         // 增加缩进以适应 Python 的语法
-        node.increaseIndent();
-        // 获取循环体中的代码
+        emitter.indent();
+        // 写出循环体中的代码
         visitChildrenWithFor(node,startValue,endValue);
-        node.decreaseIndent();  // 循环结束后减少缩进
-
-        // 将生成的代码追加到节点
-        for (ExtendedASTNode statement : node.getChildrenByType("Case").getChildren()) {
-            if (statement.getType().equals("statement")) {
-                node.appendCodeLineNoIndentation(statement.getCode());
-            }
-        }
+        emitter.dedent();  // 循环结束后减少缩进
     }
 
 
-    public void visit_whileStatement(ExtendedASTNode node) {
-        // 增加缩进以适应 Python 的语法
-        node.increaseIndent();
-        // 获取循环体中的代码
+    public void visit_whileStatement(ArenaAST.Cursor node) {
+        // 增加缩进以适应 Python 的语法，while 行在算出条件之后写出
+        emitter.indent();
+        // 写出循环体中的代码
         visitChildrenWithWhile(node);
-        node.decreaseIndent();  // 循环结束后减少缩进
-
-        // 获取布尔表达式的值
-        ExtendedASTNode boolExpNode = node.getChildrenByType("boolExp", 0);
-        String boolExp = (String) boolExpNode.getAttribute("boolExp");
-
-        // 生成 Python 的 while 循环语句
-        StringBuilder whileLoopCode = new StringBuilder();
-        whileLoopCode.append("while ").append(boolExp).append(":");
-        node.appendCodeLine(whileLoopCode.toString());
-
-        // 将生成的代码追加到节点
-        for (ExtendedASTNode statement : node.getChildrenByType("Case").getChildren()) {
-            if (statement.getType().equals("statement")) {
-                String statement_code = statement.getCode();
-                node.appendCodeLineNoIndentation(statement.getCode());
-            }
-        }
-
+        emitter.dedent();  // 循环结束后减少缩进
     }
 
 
 
     //////////////////////////////////////返回值函数//////////////////////////////////////////////////
 
-    public void visit_returnFunction(ExtendedASTNode node) {
-        String function = node.getChildren().get(0).getValue();
+    public void visit_returnFunction(ArenaAST.Cursor node) {
+        String function = childValueAt(node, 0);
         if(function.equals("get_operable_objs")){
-            node.setAttribute("returnFunction",function + "()");
+            node.set(returnFunctionCode, function + "()");
         } else if (function.equals("get_obj_position")) {
-            String s = node.getChildrenByType("string").getValue();
-            node.setAttribute("returnFunction",function + "('" +s + "')" );
+            String s = childValue(node, "string", 0);
+            node.set(returnFunctionCode, function + "('" +s + "')" );
         } else if (function.equals("query_user")) {
-            node.setAttribute("returnFunction","[" +  function + "()" + "]");
+            node.set(returnFunctionCode, "[" +  function + "()" + "]");
         }
 
 
@@ -513,24 +485,24 @@ public class SemanticActions {
 
 
     //////////////////////////////////////有输入函数//////////////////////////////////////////////////
-    private void appendExecutorWaitBlock(ExtendedASTNode node, IR ir) {
+    private void appendExecutorWaitBlock(ArenaAST.Cursor node, IR ir) {
         String hashCodeStr = String.valueOf(ir.hashCode());
-        node.appendCodeLine("while " + hashCodeStr + " not in executor.executable_codes:");
-        node.increaseIndent();
-        node.appendCodeLine("executor.send_request('synchronize')");
-        node.decreaseIndent();
-        node.appendCodeLine("executor.pop_next_code()");
+        emitter.line("while " + hashCodeStr + " not in executor.executable_codes:");
+        emitter.indent();
+        emitter.line("executor.send_request('synchronize')");
+        emitter.dedent();
+        emitter.line("executor.pop_next_code()");
     }
 
-    public void visit_forwardCommand(ExtendedASTNode node) {
-        String operand = getValueFromOperand(node.getChildren().get(1));
-        IR assignIR = new IR("FORWARD",Arrays.asList(operand),Lexer.allLines[node.getChildren().get(0).getLineNumber()-1] + " at line " + node.getChildren().get(0).getLineNumber());
+    public void visit_forwardCommand(ArenaAST.Cursor node) {
+        String operand = operandAt(node, 1);
+        IR assignIR = new IR("FORWARD",Arrays.asList(operand),sourceOf(node));
 
         appendExecutorWaitBlock(node, assignIR);
         applyCodeFromConfig(node, "forwardCommand", "NUMBER", operand);
-        node.appendCodeLine("");
+        emitter.line("");
 
-//        node.appendCodeLine(String.valueOf(assignIR.hashCode()));
+//        emitter.line(String.valueOf(assignIR.hashCode()));
         CFGNode assignNode = new BlockNode(Arrays.asList(assignIR));
         cfg.addNode(assignNode);
 
@@ -541,14 +513,14 @@ public class SemanticActions {
         currentCFGNode = assignNode;
     }
 
-    public void visit_backwardCommand(ExtendedASTNode node) {
-        String operand = getValueFromOperand(node.getChildren().get(1));
-        IR assignIR = new IR("BACKWARD",Arrays.asList(operand),Lexer.allLines[node.getChildren().get(0).getLineNumber() -1] + " at line " + node.getChildren().get(0).getLineNumber());
+    public void visit_backwardCommand(ArenaAST.Cursor node) {
+        String operand = operandAt(node, 1);
+        IR assignIR = new IR("BACKWARD",Arrays.asList(operand),sourceOf(node));
 
 
         appendExecutorWaitBlock(node, assignIR);
         applyCodeFromConfig(node, "backwardCommand", "NUMBER", operand);
-        node.appendCodeLine("");
+        emitter.line("");
 
 
         CFGNode assignNode = new BlockNode(Arrays.asList(assignIR));
@@ -561,14 +533,14 @@ public class SemanticActions {
         currentCFGNode = assignNode;
     }
 
-    public void visit_turnrightCommand(ExtendedASTNode node) {
-        String operand = getValueFromOperand(node.getChildren().get(1));
-        IR assignIR = new IR("TURNRIGHT",Arrays.asList(operand),Lexer.allLines[node.getChildren().get(0).getLineNumber()-1]+ " at line " + node.getChildren().get(0).getLineNumber());
+    public void visit_turnrightCommand(ArenaAST.Cursor node) {
+        String operand = operandAt(node, 1);
+        IR assignIR = new IR("TURNRIGHT",Arrays.asList(operand),sourceOf(node));
 
 
         appendExecutorWaitBlock(node, assignIR);
         applyCodeFromConfig(node, "turnrightCommand", "NUMBER", operand);
-        node.appendCodeLine("");
+        emitter.line("");
 
 
         CFGNode assignNode = new BlockNode(Arrays.asList(assignIR));
@@ -581,13 +553,13 @@ public class SemanticActions {
         currentCFGNode = assignNode;
     }
 
-    public void visit_turnleftCommand(ExtendedASTNode node) {
-        String operand = getValueFromOperand(node.getChildren().get(1));
-        IR assignIR = new IR("TURNLEFT",Arrays.asList(operand),Lexer.allLines[node.getChildren().get(0).getLineNumber()-1]+ " at line " + node.getChildren().get(0).getLineNumber());
+    public void visit_turnleftCommand(ArenaAST.Cursor node) {
+        String operand = operandAt(node, 1);
+        IR assignIR = new IR("TURNLEFT",Arrays.asList(operand),sourceOf(node));
 
         appendExecutorWaitBlock(node, assignIR);
         applyCodeFromConfig(node, "turnleftCommand", "NUMBER", operand);
-        node.appendCodeLine("");
+        emitter.line("");
 
         CFGNode assignNode = new BlockNode(Arrays.asList(assignIR));
         cfg.addNode(assignNode);
@@ -599,36 +571,36 @@ public class SemanticActions {
         currentCFGNode = assignNode;
     }
 
-    public void visit_gotoCommand(ExtendedASTNode node) {
-//        if(ExtendedASTNode.getGlobalAttribute("slam") == null){
-//            SemanticsHandler.semanticErrors.add(new SemanticsHandler.SemanticError(node, "You must call: slam; before the goto command!"));
+    public void visit_gotoCommand(ArenaAST.Cursor node) {
+//        if(context.getGlobalAttribute("slam") == null){
+//            context.semanticErrors.add(new SemanticsHandler.SemanticError(context, node, "You must call: slam; before the goto command!"));
 //        }
-        String number0 = getValueFromOperand(node.getChildren().get(1));
-        String number1 = getValueFromOperand(node.getChildren().get(3));
-        String number2 = getValueFromOperand(node.getChildren().get(5));
-        IR assignIR = new IR("GOTO",Arrays.asList(number0 , number1, number2),Lexer.allLines[node.getChildren().get(0).getLineNumber()-1]+ " at line " + node.getChildren().get(0).getLineNumber());
+        String number0 = operandAt(node, 1);
+        String number1 = operandAt(node, 3);
+        String number2 = operandAt(node, 5);
+        IR assignIR = new IR("GOTO",Arrays.asList(number0 , number1, number2),sourceOf(node));
         // hashCodeStr + " not in executor.executable_codes) or -1 not in executor.executable_codes)
         String hashCodeStr = String.valueOf(assignIR.hashCode());
-        node.appendCodeLine("while(True):");
-            node.increaseIndent();
-            node.appendCodeLine("if -1 in executor.executable_codes:");
-                node.increaseIndent();
-                node.appendCodeLine("navigate_via_nearest_reachable_free((" + number0 +  " , " + number1 + "))");
-                node.appendCodeLine("executor.send_request('synchronize')");
-                node.appendCodeLine("continue");
-                node.decreaseIndent();
-
-
-            node.appendCodeLine("if " + hashCodeStr + " in executor.executable_codes:");
-                node.increaseIndent();
-                node.appendCodeLine("break");
-                node.decreaseIndent();
-            node.appendCodeLine("executor.send_request('synchronize')");
-            node.decreaseIndent();
-        node.appendCodeLine("executor.pop_next_code()");
+        emitter.line("while(True):");
+            emitter.indent();
+            emitter.line("if -1 in executor.executable_codes:");
+                emitter.indent();
+                emitter.line("navigate_via_nearest_reachable_free((" + number0 +  " , " + number1 + "))");
+                emitter.line("executor.send_request('synchronize')");
+                emitter.line("continue");
+                emitter.dedent();
+
+
+            emitter.line("if " + hashCodeStr + " in executor.executable_codes:");
+                emitter.indent();
+                emitter.line("break");
+                emitter.dedent();
+            emitter.line("executor.send_request('synchronize')");
+            emitter.dedent();
+        emitter.line("executor.pop_next_code()");
         applyCodeFromConfig(node, "gotoCommand", new String[]{"NUMBER_0", "NUMBER_1", "NUMBER_2"}, new String[]{number0, number1, number2});
 
-        node.appendCodeLine("");
+        emitter.line("");
 
 
 
@@ -642,22 +614,22 @@ public class SemanticActions {
         currentCFGNode = assignNode;
     }
 
-    public void visit_approachCommand(ExtendedASTNode node) {
-        String type = node.getChildren().get(1).getType();
-        String value = getValueFromOperand(node.getChildren().get(1));
+    public void visit_approachCommand(ArenaAST.Cursor node) {
+        String type = childType(node, 1);
+        String value = operandAt(node, 1);
 
         IR assignIR = null;
 
         if(type.equals("string")) {
-            assignIR = new IR("APPROACH",Arrays.asList(value),Lexer.allLines[node.getChildren().get(0).getLineNumber() -1]+ " at line " + node.getChildren().get(0).getLineNumber());
+            assignIR = new IR("APPROACH",Arrays.asList(value),sourceOf(node));
         }else{
-            assignIR = new IR("APPROACH",Arrays.asList("Identifier ''" + value + "''"),Lexer.allLines[node.getChildren().get(0).getLineNumber()-1]+ " at line " + node.getChildren().get(0).getLineNumber());
+            assignIR = new IR("APPROACH",Arrays.asList("Identifier ''" + value + "''"),sourceOf(node));
         }
 
         appendExecutorWaitBlock(node, assignIR);
         applyCodeFromConfig(node, "approachCommand", "string", value);
 
-        node.appendCodeLine("");
+        emitter.line("");
 
         CFGNode assignNode = new BlockNode(Arrays.asList(assignIR));
         cfg.addNode(assignNode);
@@ -669,21 +641,21 @@ public class SemanticActions {
         currentCFGNode = assignNode;
     }
 
-    public void visit_graspCommand(ExtendedASTNode node) {
-        String type = node.getChildren().get(1).getType();
-        String value = getValueFromOperand(node.getChildren().get(1));
+    public void visit_graspCommand(ArenaAST.Cursor node) {
+        String type = childType(node, 1);
+        String value = operandAt(node, 1);
         IR assignIR = null;
         if(type.equals("string")) {
-            assignIR = new IR("GRASP",Arrays.asList(value),Lexer.allLines[node.getChildren().get(0).getLineNumber()-1]+ " at line " + node.getChildren().get(0).getLineNumber());
+            assignIR = new IR("GRASP",Arrays.asList(value),sourceOf(node));
         }else{
-            assignIR = new IR("GRASP",Arrays.asList("Identifier ''" + value + "''"),Lexer.allLines[node.getChildren().get(0).getLineNumber()-1]+ " at line " + node.getChildren().get(0).getLineNumber());
+            assignIR = new IR("GRASP",Arrays.asList("Identifier ''" + value + "''"),sourceOf(node));
         }
 
         appendExecutorWaitBlock(node, assignIR);
         applyCodeFromConfig(node, "graspCommand", "string", value);
 
 
-        node.appendCodeLine("");
+        emitter.line("");
 
         CFGNode assignNode = new BlockNode(Arrays.asList(assignIR));
         cfg.addNode(assignNode);
@@ -695,11 +667,11 @@ public class SemanticActions {
         currentCFGNode = assignNode;
     }
 
-    public void visit_sayCommand(ExtendedASTNode node) {
-        String s = node.getChildrenByType("string").getValue();
+    public void visit_sayCommand(ArenaAST.Cursor node) {
+        String s = childValue(node, "string", 0);
         applyCodeFromConfig(node, "sayCommand", "string", s );
 
-        IR assignIR = new IR("SAY",Arrays.asList(s),Lexer.allLines[node.getChildren().get(0).getLineNumber()-1]+ " at line " + node.getChildren().get(0).getLineNumber());
+        IR assignIR = new IR("SAY",Arrays.asList(s),sourceOf(node));
         CFGNode assignNode = new BlockNode(Arrays.asList(assignIR));
         cfg.addNode(assignNode);
 
@@ -711,9 +683,9 @@ public class SemanticActions {
     }
 
     //////////////////////////////////////无输入函数//////////////////////////////////////////////////
-    public void visit_slamCommand(ExtendedASTNode node) {
+    public void visit_slamCommand(ArenaAST.Cursor node) {
         applyCodeFromConfig(node, "slamCommand");
-        ExtendedASTNode.setGlobalAttribute("slam",true);
+        context.setGlobalAttribute("slam",true);
 
         IR assignIR = new IR("SLAM",Arrays.asList(),"slam；");
         CFGNode assignNode = new BlockNode(Arrays.asList(assignIR));
@@ -727,7 +699,7 @@ public class SemanticActions {
         currentCFGNode = assignNode;
     }
 
-    public void visit_perceiveCommand(ExtendedASTNode node) {
+    public void visit_perceiveCommand(ArenaAST.Cursor node) {
         applyCodeFromConfig(node, "perceiveCommand");
 
         IR assignIR = new IR("PERCEIVE",Arrays.asList(),"perceive;");
@@ -741,7 +713,7 @@ public class SemanticActions {
         currentCFGNode = assignNode;
     }
 
-    public void visit_releaseCommand(ExtendedASTNode node) {
+    public void visit_releaseCommand(ArenaAST.Cursor node) {
         applyCodeFromConfig(node, "releaseCommand");
 
         IR assignIR = new IR("RELEASE",Arrays.asList(),"release;");
@@ -755,22 +727,22 @@ public class SemanticActions {
         currentCFGNode = assignNode;
     }
 
-    public void visit_endCommand(ExtendedASTNode node) {
+    public void visit_endCommand(ArenaAST.Cursor node) {
         List<String> numbers = new ArrayList<>();
 
 
-        int type = node.getChildren().size();
+        int type = node.childCount();
         if (type == 2) {
-            String id = node.getChildrenByType("ID").getValue();
+            String id = childValue(node, "ID", 0);
 
-            IR assignIR = new IR("SET_END", List.of("Identifier ''" + id + "''"),Lexer.allLines[node.getChildren().get(0).getLineNumber()-1]+ " at line " + node.getChildren().get(0).getLineNumber());
+            IR assignIR = new IR("SET_END", List.of("Identifier ''" + id + "''"),sourceOf(node));
 
 
             appendExecutorWaitBlock(node, assignIR);
-            node.appendCodeLine("if" + " '" + id +"' not in locals(): " + id + " = get_variable('"+ id +"')");
-            node.appendCodeLine("set_end_position(" + id + "[0] ,"+ id + "[1], " + id +"[2], None, None, None, None)");
-            node.appendCodeLine("rospy.sleep(6.0)");
-            node.appendCodeLine("");
+            emitter.line("if" + " '" + id +"' not in locals(): " + id + " = get_variable('"+ id +"')");
+            emitter.line("set_end_position(" + id + "[0] ,"+ id + "[1], " + id +"[2], None, None, None, None)");
+            emitter.line("rospy.sleep(6.0)");
+            emitter.line("");
 
 
             CFGNode assignNode = new BlockNode(Arrays.asList(assignIR));
@@ -783,13 +755,13 @@ public class SemanticActions {
             currentCFGNode = assignNode;
         }else{
             for (int i = 1; i <= 13; i += 2) {
-                numbers.add(getValueFromOperand(node.getChildren().get(i)));
+                numbers.add(operandAt(node, i));
             }
-            IR assignIR = new IR("SET_END",numbers,Lexer.allLines[node.getChildren().get(0).getLineNumber() -1]+ " at line " + node.getChildren().get(0).getLineNumber());
+            IR assignIR = new IR("SET_END",numbers,sourceOf(node));
 
             appendExecutorWaitBlock(node, assignIR);
             applyCodeFromConfig(node, "endCommand", new String[]{"NUMBER_0", "NUMBER_1", "NUMBER_2", "NUMBER_3", "NUMBER_4", "NUMBER_5", "NUMBER_6"}, numbers.toArray(new String[0]));
-            node.appendCodeLine("");
+            emitter.line("");
 
 
             CFGNode assignNode = new BlockNode(Arrays.asList(assignIR));
@@ -803,13 +775,13 @@ public class SemanticActions {
         }
     }
 
-    public void visit_gripperCommand(ExtendedASTNode node) {
-        String number0 = getValueFromOperand(node.getChildren().get(1));
-        IR assignIR = new IR("SET_GRIP",Arrays.asList(number0),Lexer.allLines[node.getChildren().get(0).getLineNumber()-1]+ " at line " + node.getChildren().get(0).getLineNumber());
+    public void visit_gripperCommand(ArenaAST.Cursor node) {
+        String number0 = operandAt(node, 1);
+        IR assignIR = new IR("SET_GRIP",Arrays.asList(number0),sourceOf(node));
 
         appendExecutorWaitBlock(node, assignIR);
         applyCodeFromConfig(node, "gripperCommand","NUMBER", number0);
-        node.appendCodeLine("");
+        emitter.line("");
 
         CFGNode assignNode = new BlockNode(Arrays.asList(assignIR));
         cfg.addNode(assignNode);
@@ -821,17 +793,17 @@ public class SemanticActions {
         currentCFGNode = assignNode;
     }
 
-    public void visit_addCommand(ExtendedASTNode node) {
-        String identifier = node.getChildrenByType("ID").getValue();
-        String number0 = getValueFromOperand(node.getChildren().get(2));
-        String number1 = getValueFromOperand(node.getChildren().get(3));
+    public void visit_addCommand(ArenaAST.Cursor node) {
+        String identifier = childValue(node, "ID", 0);
+        String number0 = operandAt(node, 2);
+        String number1 = operandAt(node, 3);
 
-        IR assignIR = new IR("ADD_ASSIGN",Arrays.asList(identifier,number0,number1),Lexer.allLines[node.getChildren().get(0).getLineNumber()-1]+ " at line " + node.getChildren().get(0).getLineNumber());
+        IR assignIR = new IR("ADD_ASSIGN",Arrays.asList(identifier,number0,number1),sourceOf(node));
 
 
         applyCodeFromConfig(node, "addCommand",new String[]{"ID", "NUMBER_0", "NUMBER_1"}, new String[]{identifier,number0,number1});
-        node.appendCodeLine("set_variable( \"" + identifier + "\", " + identifier + ")");
-        node.appendCodeLine("");
+        emitter.line("set_variable( \"" + identifier + "\", " + identifier + ")");
+        emitter.line("");
 
         CFGNode assignNode = new BlockNode(Arrays.asList(assignIR));
         cfg.addNode(assignNode);
@@ -844,11 +816,11 @@ public class SemanticActions {
 
     }
 
-    public void visit_breakCommand(ExtendedASTNode node) {
+    public void visit_breakCommand(ArenaAST.Cursor node) {
         IR assignIR = new IR("BREAK",Arrays.asList(),"break;");
         CFGNode assignNode = new BlockNode(Arrays.asList(assignIR));
         cfg.addNode(assignNode);
-        node.appendCodeLine("break");
+        emitter.line("break");
         //因为这里是顺序执行，所以将前一个node连接一条True边到当前节点
         cfg.addEdge(currentCFGNode,assignNode,"True");
         cfg.addEdge(assignNode,loopStack.peek(),"True");
@@ -866,7 +838,7 @@ public class SemanticActions {
     // 如果是NUMBER，就直接返回数字的字符串
     // 如果是字符串，直接返回字符串
     // 如果是ID mathExp returnFunction，就返回其属性，其属性保证这是一个字符串，带括号的，而且可以直接写进python的任意表达式的
-    private String getValueFromOperand(ExtendedASTNode operand) {
+    private String getValueFromOperand(ArenaAST.Cursor operand) {
         switch (operand.getType()) {
             case "NUMBER" -> {
                 return operand.getValue();
@@ -875,36 +847,39 @@ public class SemanticActions {
                 return "'" + operand.getValue() + "'" ;
             }
             case "ID" -> {
-                SymbolInfo info = ExtendedASTNode.getSymbol(operand.getValue());
+                SymbolInfo info = context.getSymbol(operand.getValue());
                 if (info != null) {
 //                return "{" + (String) operand.getValue() + "}";
 //                return (String) info.getAdditionalAttributes();
                     return operand.getValue();
                 } else {
-//                    SemanticsHandler.semanticErrors.add(new SemanticsHandler.SemanticError(operand, "Identifier not defined: "
+//                    context.semanticErrors.add(new SemanticsHandler.SemanticError(context, operand, "Identifier not defined: "
 //                            + operand.getValue()));
                 }
                 return "ERROR";
             }
             case "mathExp" -> {
-                return (String) operand.getAttribute("mathExp");
+                return operand.get(mathExpCode);
             }
             case "returnFunction" -> {
-                return (String) operand.getAttribute("returnFunction");
+                return operand.get(returnFunctionCode);
             }
             case "pose" -> {
                 StringBuilder sb = new StringBuilder();
-                for (int i = 0; i <= 14 && i < operand.getChildren().size(); i++) {
-                    Object val = operand.getChildren().get(i).getValue();
+                int at = operand.node();
+                int i = 0;
+                for (boolean more = operand.toFirstChild(); more && i <= 14; more = operand.toNextSibling(), i++) {
+                    String val = operand.getValue();
                     if (val != null) {
-                        sb.append(val.toString());
+                        sb.append(val);
                     }
                 }
+                operand.moveTo(at);
                 return sb.toString();
             }
 
             default -> {
-                SemanticsHandler.semanticErrors.add(new SemanticsHandler.SemanticError(operand,
+                context.semanticErrors.add(new SemanticsHandler.SemanticError(context, operand,
                         "Invalid operand type or missing computation: "
                         + operand.getValue()));
                 return "ERROR";
@@ -912,27 +887,89 @@ public class SemanticActions {
         }
     }
 
+    // 第 index 个孩子的 getValueFromOperand
+    private String operandAt(ArenaAST.Cursor node, int index) {
+        int at = node.node();
+        moveToChild(node, index);
+        String value = getValueFromOperand(node);
+        node.moveTo(at);
+        return value;
+    }
+
+    // 运算符结点（boolop、comop、mathop）的值，就是它第一个孩子的值
+    private static String operatorAt(ArenaAST.Cursor node, int index) {
+        int at = node.node();
+        moveToChild(node, index);
+        String operator = operatorAt(node);
+        node.moveTo(at);
+        return operator;
+    }
+
+    private static String operatorAt(ArenaAST.Cursor operator) {
+        return childValueAt(operator, 0);
+    }
+
+    private static String childType(ArenaAST.Cursor node, int index) {
+        int at = node.node();
+        moveToChild(node, index);
+        String type = node.getType();
+        node.moveTo(at);
+        return type;
+    }
+
+    private static String childValueAt(ArenaAST.Cursor node, int index) {
+        int at = node.node();
+        moveToChild(node, index);
+        String value = node.getValue();
+        node.moveTo(at);
+        return value;
+    }
+
+    // 第 index 个（从 0 开始）类型为 type 的孩子的值，没有这个孩子时返回 "ERROR"
+    private static String childValue(ArenaAST.Cursor node, String type, int index) {
+        int at = node.node();
+        String value = node.toChild(type, index) ? node.getValue() : "ERROR";
+        node.moveTo(at);
+        return value;
+    }
+
+    // 语法分析保证了语句的形状，缺少孩子说明语法树和语义动作对不上
+    private static void moveToChild(ArenaAST.Cursor node, int index) {
+        if (!node.toChild(index)) {
+            throw new IndexOutOfBoundsException("结点 " + node.getType() + " 没有第 " + index + " 个孩子");
+        }
+    }
+
+    // IR 中记录的源代码：语句第一个终结符所在的行
+    private String sourceOf(ArenaAST.Cursor node) {
+        int at = node.node();
+        moveToChild(node, 0);
+        int line = node.getLineNumber();
+        node.moveTo(at);
+        return context.lineText(line) + " at line " + line;
+    }
+
     // 用于从 config 中读取代码并应用
-    private void applyCodeFromConfig(ExtendedASTNode node, String commandKey, String placeholder, String value) {
+    private void applyCodeFromConfig(ArenaAST.Cursor node, String commandKey, String placeholder, String value) {
         List<String> commandLines = (List<String>) config.get(commandKey);
         if (commandLines != null) {
             for (String line : commandLines) {
                 line = line.replace("{" + placeholder + "}", value);
 
                 if (line.startsWith("*")) {
-                    if(ExtendedASTNode.getGlobalAttribute(line) == null){
-                        node.appendCodeLine(line.substring(1));
-                        ExtendedASTNode.setGlobalAttribute(line, true);
+                    if(context.getGlobalAttribute(line) == null){
+                        emitter.line(line.substring(1));
+                        context.setGlobalAttribute(line, true);
                     }
                 }else{
-                    node.appendCodeLine(line);
+                    emitter.line(line);
                 }
             }
         }
     }
 
     // 如果有多个替换项，例如多个占位符
-    private void applyCodeFromConfig(ExtendedASTNode node, String commandKey, String[] placeholders, String[] values) {
+    private void applyCodeFromConfig(ArenaAST.Cursor node, String commandKey, String[] placeholders, String[] values) {
         List<String> commandLines = (List<String>) config.get(commandKey);
         if (commandLines != null) {
             for (String line : commandLines) {
@@ -941,29 +978,29 @@ public class SemanticActions {
                 }
 
                 if (line.startsWith("*")) {
-                    if(ExtendedASTNode.getGlobalAttribute(line) == null){
-                        node.appendCodeLine(line.substring(1));
-                        ExtendedASTNode.setGlobalAttribute(line, true);
+                    if(context.getGlobalAttribute(line) == null){
+                        emitter.line(line.substring(1));
+                        context.setGlobalAttribute(line, true);
                     }
                 }else{
-                    node.appendCodeLine(line);
+                    emitter.line(line);
                 }
             }
         }
     }
 
     // 无需替换占位符时的通用方法
-    private void applyCodeFromConfig(ExtendedASTNode node, String commandKey) {
+    private void applyCodeFromConfig(ArenaAST.Cursor node, String commandKey) {
         List<String> commandLines = (List<String>) config.get(commandKey);
         if (commandLines != null) {
             for (String line : commandLines) {
                 if (line.startsWith("*")) {
-                    if(ExtendedASTNode.getGlobalAttribute(line) == null){
-                        node.appendCodeLine(line.substring(1));
-                        ExtendedASTNode.setGlobalAttribute(line, true);
+                    if(context.getGlobalAttribute(line) == null){
+                        emitter.line(line.substring(1));
+                        context.setGlobalAttribute(line, true);
                     }
                 }else{
-                    node.appendCodeLine(line);
+                    emitter.line(line);
                 }
             }
         }
@@ -1,249 +1,254 @@
 package org.main;
 
-import java.lang.reflect.InvocationTargetException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import java.lang.reflect.Method;
 
 public class SemanticsHandler {
     private ASTNode originalRootNode; // 原始的ASTNode
-    private ExtendedASTNode simplifiedRootNode; // 化简后的ExtendedASTNode
-    private static Map<String, Method> semanticRules;
-    private static SemanticActions semanticActions;
-    public static List<SemanticError> semanticErrors;
-
-    public SemanticsHandler(ASTNode rootNode) {
+    private final ArenaAST tree; // 化简后的语法树
+    private static final Map<String, Visitor> semanticRules = bindSemanticRules(); // 结点类型 -> visit_ 方法
+    private Visitor[] dispatch = new Visitor[0]; // 结点类型编号（见 ArenaAST.Cursor#getTypeId）-> 语义动作，第一次访问时填入
+    private SemanticActions semanticActions; // 第一次用到时才创建，见 actions()
+    private final CompilationContext context; // 这次编译的状态，和词法分析器的是同一个
+    private Path generatedCode; // analyzeSemantics() 生成的代码所在的临时文件，直接写到别处时为 null
+
+    public SemanticsHandler(ASTNode rootNode, CompilationContext context) {
+        this(buildTree(rootNode), context); // 化简并转换
         this.originalRootNode = rootNode;
-        this.semanticActions = new SemanticActions();
-        this.semanticRules = new HashMap<>();
-        this.semanticErrors = new ArrayList<>();
-        this.simplifiedRootNode = simplifyAndConvertNode(rootNode); // 化简并转换
-        removeEpsilonAndEmptyNodes(simplifiedRootNode);
-        initializeSemanticRules();
+    }
+
+    /**
+     * 使用已经建好的化简后的语法树（见 {@link ExtendedASTBuilder}），比如 {@link ParallelParser} 的结果，
+     * 先转换成 {@link ArenaAST}。
+     *
+     * @param context 这次编译的状态，由 {@link Lexer#getContext()} 取得，生成代码时要从中取出源文件的行
+     */
+    public SemanticsHandler(ExtendedASTNode simplifiedRootNode, CompilationContext context) {
+        this(ArenaAST.of(simplifiedRootNode), context);
+    }
+
+    /**
+     * 直接使用语法分析时建好的 {@link ArenaAST}，见 {@link ArenaAST.Builder}。
+     *
+     * @param context 这次编译的状态，由 {@link Lexer#getContext()} 取得，生成代码时要从中取出源文件的行
+     */
+    SemanticsHandler(ArenaAST tree, CompilationContext context) {
+        this.context = context;
+        this.tree = tree;
+    }
+
+    private static ArenaAST buildTree(ASTNode rootNode) {
+        ArenaAST.Builder builder = new ArenaAST.Builder(null);
+        ExtendedASTBuilder.replay(rootNode, builder);
+        return builder.getTree();
     }
 
     // Getter 方法，返回 SemanticActions 的 cfg
     public CFG getCfg() {
-        return semanticActions.cfg;
+        return actions().cfg;
     }
 
     // Getter 方法，返回 SemanticActions 的 entrynode
     public EntryNode getEntryNode() {
-        return SemanticActions.entryNode;
+        return actions().entryNode;
     }
 
     // Getter 方法，返回 SemanticActions 的 exitnode
     public ExitNode getExitNode() {
-        return SemanticActions.exitNode;
+        return actions().exitNode;
     }
 
-    private void initializeSemanticRules() {
-        // 使用反射机制获取SemanticActions类中所有的处理方法
-        Method[] methods = SemanticActions.class.getMethods();
-        for (Method method : methods) {
-            if (method.getName().startsWith("visit_")) {
-                String nodeType = method.getName().substring(6);
-                semanticRules.put(nodeType, method);
-            }
+    /**
+     * 语义动作要回调 visitNode，所以不在构造函数里创建，避免构造完成之前就把 this 交出去。
+     */
+    private SemanticActions actions() {
+        if (semanticActions == null) {
+            semanticActions = new SemanticActions(this, context);
         }
-    }
-
-    // 树化简
-    private ExtendedASTNode simplifyAndConvertNode(ASTNode node) {
-        if (shouldRemoveNode(node)) {
-            return null;
-        }
-        ExtendedASTNode extendedNode = new ExtendedASTNode(node.getType(), node.getValue(), node.getLineNumber(), node.isTerminal());
-        List<ASTNode> oldChildren = node.getChildren();
-
-
-        for (int i = 0; i < oldChildren.size(); i++) {
-            ASTNode child = oldChildren.get(i);
-            //如果儿子节点是中间节点，那就直接把其孙子提上来，成为自己的儿子节点
-            if (isIntermediateNode(child)) {
-                List<ASTNode> children = child.getChildren();
-                oldChildren.remove(i);
-                oldChildren.addAll(i, children);
-                i--; //需要对提上来的这些孙子节点逐个继续判断
-            }else{
-                ExtendedASTNode simplifyChild = simplifyAndConvertNode(child);
-                if(simplifyChild != null){
-                    extendedNode.addChild(simplifyChild);
-                }
-            }
-        }
-
-        if(!extendedNode.getChildren().isEmpty() && extendedNode.getChildren().get(extendedNode.getChildren().size() - 1)
-                .getType().equals(node.getType() + "'")){
-            extendedNode = simplifyRightRecursion(extendedNode);
-        }
-
-        return extendedNode;
-    }
-
-    //化简引入的右递归非终结符
-    private ExtendedASTNode simplifyRightRecursion(ExtendedASTNode node){
-        if(node.isTerminal()){
-            return  node;
-        }
-
-        //判断是否有右递归形式的中间非终结符
-        ExtendedASTNode intermediateChild = node.getChildren().get(node.getChildren().size() - 1);
-        intermediateChild.setType(node.getType());
-        Collections.rotate(node.getChildren(), 1);
-
-        if(intermediateChild.getChildren().isEmpty()){
-            return node;
-        }
-
-        ExtendedASTNode lastChild = intermediateChild;
-
-        if(!intermediateChild.getChildren().isEmpty() && ( intermediateChild.getChildren().size() != 1 ||
-                !intermediateChild.getChildren().get(0).getType().equals("ε") ) ) {
-
-            lastChild = intermediateChild.getChildren().get(intermediateChild.getChildren().size() - 1);
-            lastChild.setType(node.getType());
-            Collections.rotate(lastChild.getParent().getChildren(), 1);
-
-            while(!lastChild.getChildren().isEmpty() && ( lastChild.getChildren().size() != 1 || !lastChild.getChildren().get(0).getType().equals("ε") ) )
-            {
-                lastChild = lastChild.getChildren().get(lastChild.getChildren().size() - 1);
-                lastChild.setType(node.getType());
-                Collections.rotate(lastChild.getParent().getChildren(), 1);
+        return semanticActions;
+    }
+
+    /**
+     * 语义动作，每个 visit_ 方法在类加载时绑定成一个实现了这个接口的类（见 {@link #bindSemanticRules()}），
+     * 调用时和直接调用 visit_ 方法一样，不经过反射。
+     */
+    @FunctionalInterface
+    interface Visitor {
+        void visit(SemanticActions actions, ArenaAST.Cursor node);
+    }
+
+    /**
+     * 使用反射机制获取SemanticActions类中所有的处理方法，用 LambdaMetafactory 一次性绑定成 {@link Visitor}。
+     */
+    private static Map<String, Visitor> bindSemanticRules() {
+        Map<String, Visitor> rules = new HashMap<>();
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodType visitType = MethodType.methodType(void.class, SemanticActions.class, ArenaAST.Cursor.class);
+        for (Method method : SemanticActions.class.getMethods()) {
+            if (!method.getName().startsWith("visit_")) continue;
+            String nodeType = method.getName().substring(6);
+            try {
+                MethodHandle handle = lookup.unreflect(method);
+                Visitor visitor = (Visitor) LambdaMetafactory.metafactory(lookup, "visit",
+                        MethodType.methodType(Visitor.class), visitType, handle, visitType)
+                        .getTarget().invokeExact();
+                rules.put(nodeType, visitor);
+            } catch (Throwable e) {
+                throw new RuntimeException("无法绑定语义动作 " + method.getName(), e);
             }
         }
-
-        for(int i = 1;i<node.getChildren().size();i++)
-        {
-            lastChild.addChild(node.getChildren().get(i));
-        }
-
-        return intermediateChild;
+        return rules;
     }
 
-    private static boolean removeEpsilonAndEmptyNodes(ExtendedASTNode node) {
-        if (node == null) {
-            return false; // 如果节点为null，直接返回false
-        }
-
-        boolean shouldRemove = false;
-        Iterator<ExtendedASTNode> iterator = node.getChildren().iterator();
-        while (iterator.hasNext()) {
-            ExtendedASTNode child = iterator.next();
-            // 递归调用来决定是否删除子节点
-            boolean removeChild = removeEpsilonAndEmptyNodes(child);
-            if (removeChild) {
-                iterator.remove(); // 删除子节点
+    /**
+     * 语义分析，遍历语法树并执行对应的语义动作。生成的代码先写到临时文件中，没有语义错误时由 printGeneratedCode 输出，
+     * 生成的代码再长也不用全部留在内存里。
+     */
+    public void analyzeSemantics() {
+        boolean written = false;
+        try {
+            generatedCode = Files.createTempFile("mylang", ".py");
+            try (Writer code = Files.newBufferedWriter(generatedCode, System.out.charset())) {
+                analyzeSemantics(code);
             }
+            written = true;
+        } catch (IOException e) {
+            throw new RuntimeException("写出生成的代码失败", e);
+        } finally {
+            if (!written) deleteGeneratedCode(); // 语义动作抛出异常时也不留下临时文件
         }
-
-        // 检查当前节点是否为ε节点或是否变成了空节点
-        if ("ε".equals(node.getType()) || (node.getChildren().isEmpty() && !node.isTerminal())) {
-            shouldRemove = true; // 标记当前节点需要被删除
-        }
-
-        return shouldRemove;
     }
 
-    private boolean shouldRemoveNode(ASTNode node) {
-        // 如果是中间节点且唯一子节点是ε则删除
-        if (isIntermediateNode(node) && containsOnlyEpsilon(node.getChildren())) {
-            return true;
+    /**
+     * 语义分析，生成的代码按程序的顺序直接写入 out（见 {@link CodeEmitter}），比如直接写到文件中。
+     * 有语义错误时 out 中是不完整的代码，调用者应该丢弃。
+     */
+    public void analyzeSemantics(Writer out) {
+        CodeEmitter emitter = new CodeEmitter(out);
+        actions().emitter = emitter;
+        visitNode(tree.cursor());
+        emitter.flush();
+        ErrorHandler.handleError(context.semanticErrors);
+    }
+
+    /**
+     * 执行 node 所在结点的语义动作。语义动作可以随意移动游标，返回时游标回到原来的结点，
+     * 所以可以用同一个游标依次访问兄弟结点。
+     */
+    void visitNode(ArenaAST.Cursor node) {
+        int at = node.node();
+        int typeId = node.getTypeId();
+        Visitor visitor = typeId < dispatch.length ? dispatch[typeId] : null;
+        if (visitor == null) {
+            visitor = resolveVisitor(node.getType(), typeId);
         }
-        return false;
-    }
-
-    private boolean isIntermediateNode(ASTNode node) {
-        return node.getType().startsWith("mid_");
+        visitor.visit(actions(), node);
+        node.moveTo(at);
     }
 
-    private boolean containsOnlyEpsilon(List<ASTNode> children) {
-        // 检查是否唯一子节点是ε
-        return children.size() == 1 && children.get(0).getType().equals("ε");
-    }
-
-    // 语义分析，遍历语法树并执行对应的语义动作
-    public void analyzeSemantics() {
-        visitNode(simplifiedRootNode);
-        ErrorHandler.handleError(semanticErrors);
-    }
-
-    static public void visitNode(ExtendedASTNode node) {
-        String nodeType = node.getType();
-        Method method;
-
+    /**
+     * 找出这种结点对应的语义动作，记在 dispatch 中，之后同类型的结点直接按编号取出。
+     */
+    private Visitor resolveVisitor(String nodeType, int typeId) {
         // 检查是否有特定的访问方法
-        if (semanticRules.containsKey(nodeType)) {
-            method = semanticRules.get(nodeType);
-        } else {
+        Visitor visitor = semanticRules.get(nodeType);
+        if (visitor == null) {
             // 没有为该类型定义特定的访问方法，使用默认方法
-            try {
-                if(semanticActions.ifAggregate.contains(nodeType)){
-                    method = SemanticActions.class.getMethod("aggregateVisit", ExtendedASTNode.class);
-                }else{
-                    method = SemanticActions.class.getMethod("defaultVisit", ExtendedASTNode.class);
-                }
-            } catch (NoSuchMethodException e) {
-                throw new RuntimeException("The default visit method is missing in SemanticActions class.", e);
+            if (actions().ifAggregate.contains(nodeType)) {
+                visitor = SemanticActions::aggregateVisit;
+            } else {
+                visitor = SemanticActions::defaultVisit;
             }
         }
-
-        // 调用找到的方法
-
-        try {
-            method.invoke(semanticActions, node);
-        } catch (IllegalAccessException | InvocationTargetException e) {
-            throw new RuntimeException(e);
+        if (typeId >= dispatch.length) {
+            dispatch = Arrays.copyOf(dispatch, Math.max(typeId + 1, tree.typeCount()));
         }
-
-
+        dispatch[typeId] = visitor;
+        return visitor;
     }
 
-    // 获取原始AST根节点
+    // 获取原始AST根节点，直接使用化简后的语法树时为 null
     ASTNode getOriginalRootNode() {
         return originalRootNode;
     }
 
-    // 获取化简后的AST根节点
-    ExtendedASTNode getSimplifiedRootNode() {
-        return simplifiedRootNode;
+    // 获取化简后的语法树
+    ArenaAST getTree() {
+        return tree;
     }
 
     public void printAST() {
-        simplifiedRootNode.printTree(0);
+        tree.printTree();
     }
 
-    // 方法来输出或处理生成的代码
+    // 方法来输出或处理生成的代码，输出之后删除临时文件
     public void printGeneratedCode() {
-        if(!semanticErrors.isEmpty())  return;
-        if (simplifiedRootNode != null) {
+        if(!context.semanticErrors.isEmpty()) {
+            deleteGeneratedCode();
+            return;
+        }
+        if (generatedCode != null) {
 //            System.out.println("Generated Code:");
-            System.out.println(simplifiedRootNode.getCode());
+            try {
+                Files.copy(generatedCode, System.out); // 写入时用的就是 System.out 的字符集，直接复制字节
+                System.out.println();
+            } catch (IOException e) {
+                throw new RuntimeException("输出生成的代码失败", e);
+            } finally {
+                deleteGeneratedCode();
+            }
         } else {
             System.err.println("No code generated.");
         }
     }
 
+    private void deleteGeneratedCode() {
+        if (generatedCode == null) return;
+        try {
+            Files.deleteIfExists(generatedCode);
+        } catch (IOException ignored) {
+            // 临时文件删不掉不影响编译结果
+        }
+        generatedCode = null;
+    }
+
     //语义错误类
     static class SemanticError extends CompilationError {
-        private ExtendedASTNode errorNode; // 错误发生的节点
+        private final int errorNode;       // 错误发生的节点的编号，见 ArenaAST.Cursor#node
+        private final String nodeType;     // 游标之后会移走，所以先记下结点的类型和行号
+        private final int line;
         private String errorMessage;       // 错误消息
+        private final PrintStream err;     // 错误信息输出到这次编译的 err
 
-        public SemanticError(ExtendedASTNode errorNode, String errorMessage) {
-            this.errorNode = errorNode;
+        SemanticError(CompilationContext context, ArenaAST.Cursor errorNode, String errorMessage) {
+            this.err = context.getErr();
+            this.errorNode = errorNode.node();
+            this.nodeType = errorNode.getType();
+            this.line = errorNode.getLineNumber();
             this.errorMessage = errorMessage;
         }
 
         @Override
         public boolean handle() {
-            int line = errorNode.getLineNumber();
-            System.err.println("\nInvalid syntax at line " + (line) + "' :");
-            System.err.println("语义错误: " + errorMessage + " | 节点: " + errorNode.getType());
+            err.println("\nInvalid syntax at line " + (line) + "' :");
+            err.println("语义错误: " + errorMessage + " | 节点: " + nodeType);
             return true;
         }
 
         // Getter 方法
-        public ExtendedASTNode getErrorNode() {
+        public int getErrorNode() {
             return errorNode;
         }
 
@@ -302,62 +307,211 @@ class SymbolInfo {
 }
 
 
+/**
+ * 在语法分析的同时建立化简后的语法树：接收 {@link ParseListener} 的事件，
+ * 事件里已经去掉了 mid_ 开头的中间非终结符、ε 和没有推导出终结符的非终结符，
+ * 这里只需要在非终结符结束时处理消除左递归引入的 X'，再把它接到上一层。
+ * 每个结点只建立一次，也不需要再调整子结点列表。
+ */
+class ExtendedASTBuilder implements ParseListener {
+    private final Deque<ExtendedASTNode> open = new ArrayDeque<>(); // 正在分析的非终结符
+    private ExtendedASTNode root;
+
+    /**
+     * 把已经建好的原始语法树转换成化简后的语法树。
+     */
+    static ExtendedASTNode build(ASTNode rootNode) {
+        ExtendedASTBuilder builder = new ExtendedASTBuilder();
+        replay(rootNode, builder);
+        return builder.getRoot();
+    }
+
+    /**
+     * 把原始语法树按语法分析时的顺序转换成 {@link ParseListener} 的事件，交给 listener 建树。
+     */
+    static void replay(ASTNode rootNode, ParseListener listener) {
+        ParseEvents events = new ParseEvents(listener);
+        // 用显式的栈遍历，mid_ 结点组成的长链不会加深调用栈
+        Deque<Iterator<ASTNode>> path = new ArrayDeque<>();
+        events.enter(rootNode.getType(), 0);
+        path.push(rootNode.getChildren().iterator());
+        while (!path.isEmpty()) {
+            if (!path.peek().hasNext()) {
+                path.pop();
+                events.leave(1);
+                continue;
+            }
+            ASTNode node = path.peek().next();
+            if (!node.isTerminal()) {
+                events.enter(node.getType(), 0);
+                path.push(node.getChildren().iterator());
+            } else if (!"ε".equals(node.getType())) {
+                events.terminal(node.getType(), node.getValue(), node.getLineNumber());
+            }
+        }
+    }
+
+    @Override
+    public void enterNonTerminal(String type) {
+        open.push(new ExtendedASTNode(type, null, -1, false));
+    }
+
+    @Override
+    public void exitNonTerminal(String type) {
+        ExtendedASTNode node = open.pop();
+        List<ExtendedASTNode> children = node.getChildren();
+        if (children.get(children.size() - 1).getType().equals(type + "'")) {
+            node = simplifyRightRecursion(node);
+        }
+        if (open.isEmpty()) {
+            root = node; // 出现语法错误时会有多棵树，只保留最后一棵
+        } else {
+            open.peek().addChild(node);
+        }
+    }
+
+    @Override
+    public void terminal(String type, String value, int lineNumber) {
+        open.peek().addChild(new ExtendedASTNode(type, value, lineNumber, true));
+    }
+
+    /**
+     * @return 化简后的语法树的根结点
+     */
+    ExtendedASTNode getRoot() {
+        return root;
+    }
+
+    /**
+     * 化简引入的右递归非终结符：X : a X'1，X'1 : b X'2，……，X'j : z。
+     * 每个 X'i 都改名为 X，并把最后一个子结点 X'(i+1) 移到最前面；
+     * X'j 的最前面放一个由 a 组成的新结点 X，最后返回 X'1。
+     * 得到的树和原来先建树、保留 ε、再逐层旋转得到的相同。
+     */
+    private static ExtendedASTNode simplifyRightRecursion(ExtendedASTNode node) {
+        String helper = node.getType() + "'";
+        List<ExtendedASTNode> children = node.getChildren();
+        ExtendedASTNode first = children.get(children.size() - 1);
+        ExtendedASTNode last = first;
+        last.setType(node.getType());
+        List<ExtendedASTNode> lastChildren = last.getChildren();
+        while (lastChildren.get(lastChildren.size() - 1).getType().equals(helper)) {
+            last = lastChildren.get(lastChildren.size() - 1);
+            last.setType(node.getType());
+            Collections.rotate(lastChildren, 1);
+            lastChildren = last.getChildren();
+        }
+        if (children.size() > 1) {
+            ExtendedASTNode inner = new ExtendedASTNode(helper, null, -1, false);
+            last.addChild(inner);
+            inner.setType(node.getType());
+            Collections.rotate(lastChildren, 1);
+            for (int i = 0; i < children.size() - 1; i++) {
+                inner.addChild(children.get(i));
+            }
+        }
+        return first;
+    }
+}
+
+
 class ExtendedASTNode {
     //以下是静态成员，可以一些全局信息
-    private static ExtendedASTNode errorNode = new ExtendedASTNode("ERROR","ERROR",-1,true);
-    private static Map<String, Object> globalAttributes = new HashMap<>();
-    private static Map<String, SymbolInfo> symbolTable = new HashMap<>(); // 全局符号表
+    private static final Map<String, Integer> typeIds = new ConcurrentHashMap<>(); // 结点类型 -> 编号，所有语法树共用
+    private static final AtomicInteger nextTypeId = new AtomicInteger();
+    // 符号表、全局属性和缩进属于一次编译，在 CompilationContext 中
 
     //以下是各个节点的私有信息
+    //语法树中大部分结点是终结符，既没有孩子也没有属性，所以属性表和孩子列表都在第一次用到时才分配
     private String type;
+    private int typeId; // 结点类型的编号，语义分析时按编号分派
     private String value;
-    private Map<String, Object> attributes;
-    private List<ExtendedASTNode> children;
-    private Map<String, List<ExtendedASTNode>> typeToChildrenMap;
-    private int lineNumber;
+    private Map<String, Object> attributes; // 没有属性时为 null
+    private List<ExtendedASTNode> children; // 没有孩子时为 null
+    private int lineNumber; // lines 不为 null 时是交给 lines 换算的偏移
+    private LineResolver lines; // 行号的来源，为 null 时 lineNumber 就是行号
     private boolean isTerminal;
-    private StringBuilder code;
-    private static int indentationLevel = 0;
     private ExtendedASTNode parent;  // 父节点的引用
 
+    /**
+     * 行号不直接保存在结点里时，由它把结点里的偏移换算成行号（见 {@link IncrementalParser}）。
+     */
+    interface LineResolver {
+        int lineOf(int offset);
+    }
+
     public ExtendedASTNode(String type, String value, int lineNumber, boolean isTerminal) {
         this.type = type;
+        this.typeId = typeIdOf(type);
         this.value = value;
         this.lineNumber = lineNumber;
         this.isTerminal = isTerminal;
-        this.attributes = new HashMap<>();
-        this.children = new ArrayList<>();
-        this.typeToChildrenMap = new HashMap<>();
-        this.code = new StringBuilder();
         this.parent = null;  // 初始化时没有父节点
     }
 
     public void setType(String type){
         this.type = type;
+        this.typeId = typeIdOf(type);
+    }
+
+    /**
+     * @return 结点类型的编号，同一个类型在所有语法树中的编号相同，从 0 开始连续分配
+     */
+    public int getTypeId() {
+        return typeId;
+    }
+
+    private static int typeIdOf(String type) {
+        Integer id = typeIds.get(type);
+        if (id == null) {
+            id = typeIds.computeIfAbsent(type, k -> nextTypeId.getAndIncrement());
+        }
+        return id;
     }
 
     public void addChild(ExtendedASTNode child) {
         child.setParent(this);  // 设置子节点的父节点
+        if (children == null) {
+            children = new ArrayList<>();
+        }
         this.children.add(child);
-        this.typeToChildrenMap.computeIfAbsent(child.getType(), k -> new ArrayList<>()).add(child);
+    }
+
+    /**
+     * 把第 from 个到第 to 个（不含）子结点换成 replacement 中的结点，其他子结点不变（用于增量分析）。
+     */
+    public void replaceChildren(int from, int to, List<ExtendedASTNode> replacement) {
+        if (children == null) {
+            children = new ArrayList<>();
+        }
+        List<ExtendedASTNode> removed = children.subList(from, to);
+        for (ExtendedASTNode child : removed) {
+            child.setParent(null);
+        }
+        removed.clear();
+        for (ExtendedASTNode child : replacement) {
+            child.setParent(this);
+        }
+        children.addAll(from, replacement);
     }
 
     public ExtendedASTNode getChildrenByType(String type) {
         return getChildrenByType(type, 0);
     }
 
+    /**
+     * @return 第 index 个（从 0 开始）类型为 type 的孩子，没有时返回一个新的 ERROR 结点，不和别的编译共用。
+     * 语义动作只在语句内部的小结点上按类型找孩子，所以直接按顺序查找，不再为每个结点建立按类型的索引
+     */
     public ExtendedASTNode getChildrenByType(String type, int index) {
-        if(typeToChildrenMap.containsKey(type)){
-            List<ExtendedASTNode> children = typeToChildrenMap.getOrDefault(type, new ArrayList<>());
-            if (children.isEmpty() || index >= children.size()){
-                return errorNode;
-            }else{
-                return typeToChildrenMap.getOrDefault(type, new ArrayList<>()).get(index);
+        if (children != null) {
+            for (ExtendedASTNode child : children) {
+                if (child.getType().equals(type) && index-- == 0) {
+                    return child;
+                }
             }
-        }else{
-            return errorNode;
         }
-
+        return new ExtendedASTNode("ERROR", "ERROR", -1, true);
     }
 
     public ExtendedASTNode getParent() {
@@ -377,11 +531,24 @@ class ExtendedASTNode {
     }
 
     public List<ExtendedASTNode> getChildren() {
-        return children;
+        return children == null ? Collections.emptyList() : children;
     }
 
     public int getLineNumber() {
-        return lineNumber;
+        return lines == null ? lineNumber : lines.lineOf(lineNumber);
+    }
+
+    public void setLineNumber(int lineNumber) {
+        this.lineNumber = lineNumber;
+        this.lines = null;
+    }
+
+    /**
+     * 以后的行号由 lines 根据 offset 算出，源文件修改之后不用逐个更新。
+     */
+    void setLineNumber(LineResolver lines, int offset) {
+        this.lineNumber = offset;
+        this.lines = lines;
     }
 
     public boolean isTerminal() {
@@ -393,57 +560,20 @@ class ExtendedASTNode {
     }
 
     public void setAttribute(String key, Object value) {
+        if (attributes == null) {
+            attributes = new HashMap<>();
+        }
         this.attributes.put(key, value);
     }
 
     public Object getAttribute(String key) {
-        return this.attributes.get(key);
-    }
-    public boolean hasAttribute(String key) { return this.attributes.containsKey(key); }
-
-    // 不会换行的
-    public void appendCode(String line) {
-        this.code.append("\t".repeat(Math.max(0, indentationLevel))).append(line);
-    }
-
-    // 会换行的
-    public void appendCodeLine(String line) {
-        this.code.append("\t".repeat(Math.max(0, indentationLevel))).append(line).append("\n");
-    }
-
-    public void appendCodeLineNoIndentation(String line) {
-        this.code.append(line).append("\n");
-    }
-
-    // Add a new method for adding a newline
-    public void newLine() {
-        this.code.append("\n");
-    }
-
-    public void increaseIndent() {
-        indentationLevel++;
-    }
-
-    public void decreaseIndent() {
-        if (indentationLevel > 0) {
-            indentationLevel--;
-        }
-    }
-
-    public String getCode() {
-        return code.toString();
-    }
-
-
-    public void aggregateCodeFromChildren() {
-        for (ExtendedASTNode child : children) {
-            this.code.append(child.getCode());  // 将子节点的生成代码追加到当前节点的代码中
-        }
+        return attributes == null ? null : this.attributes.get(key);
     }
+    public boolean hasAttribute(String key) { return attributes != null && this.attributes.containsKey(key); }
 
     public void copyAttributesFromParent() {
         if (this.parent != null) {
-            this.attributes.putAll(parent.attributes);
+            copyAttributes(parent);
         }
     }
 
@@ -452,47 +582,30 @@ class ExtendedASTNode {
             int index = this.parent.getChildren().indexOf(this);
             if (index > 0) {
                 ExtendedASTNode previousSibling = this.parent.getChildren().get(index - 1);
-                this.attributes.putAll(previousSibling.attributes);
+                copyAttributes(previousSibling);
             }
         }
     }
 
-    // 设置全局属性
-    public static void setGlobalAttribute(String key, Object value) {
-        globalAttributes.put(key, value);
-    }
-
-    // 获取全局属性
-    public static Object getGlobalAttribute(String key) {
-        return globalAttributes.get(key);
-    }
-
-    // 方法来添加符号到符号表
-    public static SymbolInfo addSymbol(String identifier) {
-        symbolTable.put(identifier, new SymbolInfo(identifier));
-        return symbolTable.get(identifier);
-    }
-
-    // 方法来获取符号信息
-    public static SymbolInfo getSymbol(String identifier) {
-        return symbolTable.get(identifier);
-    }
-
-    // 方法来检查符号是否已存在
-    public static boolean symbolExists(String identifier) {
-        return symbolTable.containsKey(identifier);
+    private void copyAttributes(ExtendedASTNode from) {
+        if (from.attributes != null && !from.attributes.isEmpty()) {
+            if (attributes == null) {
+                attributes = new HashMap<>();
+            }
+            attributes.putAll(from.attributes);
+        }
     }
 
     public void printTree(int level) {
         StringBuilder sb = new StringBuilder();
         sb.append("  ".repeat(Math.max(0, level)));
         if(isTerminal) {
-            sb.append(type).append(": ").append(value).append(" (Line: ").append(lineNumber).append(") ").append("[Terminal]");
+            sb.append(type).append(": ").append(value).append(" (Line: ").append(getLineNumber()).append(") ").append("[Terminal]");
         } else {
             sb.append(type).append(": ").append("[Non-terminal]");
         }
         System.out.println(sb.toString());
-        for (ExtendedASTNode child : children) {
+        for (ExtendedASTNode child : getChildren()) {
             child.printTree(level + 1);
         }
     }
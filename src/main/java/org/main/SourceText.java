@@ -0,0 +1,281 @@
+package org.main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * SourceText 保存一个源文件的全部字符，以及每一行在其中的起始位置。
+ * <p>
+ * 文件通过 NIO 读取：较大的文件直接做内存映射，较小的文件用一个可复用的缓冲区分块读入，
+ * 再按 UTF-8 增量解码到一个可复用的字符缓冲区里，逐块拷贝到最终的字符数组中，同时建立行索引。
+ * 换行符（\n、\r\n、\r）统一记为一个 '\n'，每一行（包括最后一行）都以 '\n' 结尾，
+ * 行的划分和 BufferedReader.readLine 一致。整个文件只有一份字符数组，不再为每一行保存一个 String。
+ * </p>
+ */
+class SourceText {
+    private static final long MAP_THRESHOLD = 1 << 20; // 超过 1MB 的文件做内存映射
+    private static final int MAP_CHUNK = 64 << 20; // 每次映射的字节数
+    private static final int READ_CHUNK = 64 << 10; // 小文件读取缓冲区的大小
+    private static final int DECODE_CHUNK = 16 << 10; // 解码缓冲区的大小
+
+    private char[] chars; // 全部字符，行之间以 '\n' 分隔
+    private int length;
+    private int[] lineStarts; // 第 i 行（从 0 开始）的起始位置，最后多记一个 length
+    private int lineCount;
+    private boolean pendingCR; // 上一个字符是 \r，紧跟的 \n 需要跳过
+
+    private SourceText() {
+        this.lineStarts = new int[64];
+    }
+
+    /**
+     * @return 不包含任何行的源文本
+     */
+    static SourceText empty() {
+        SourceText text = new SourceText();
+        text.chars = new char[0];
+        return text;
+    }
+
+    /**
+     * 由一段文本构造源文本，换行符的处理和读取文件时相同。
+     *
+     * @param content 文本内容
+     * @return 构造出的源文本
+     */
+    static SourceText of(CharSequence content) {
+        char[] buf = content.toString().toCharArray();
+        SourceText text = new SourceText();
+        text.chars = new char[buf.length + 1];
+        text.append(buf, buf.length);
+        text.finish();
+        return text;
+    }
+
+    /**
+     * 读取指定路径的文件。
+     *
+     * @param path 文件路径
+     * @return 读取到的源文本
+     * @throws IOException 读取失败时抛出
+     */
+    static SourceText read(String path) throws IOException {
+        SourceText text = new SourceText();
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            long size = channel.size();
+            // UTF-8 解码后的字符数不会超过字节数，多留一个位置给最后补上的换行
+            text.chars = new char[(int) Math.min(Integer.MAX_VALUE - 8, size + 1)];
+
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer out = CharBuffer.allocate(DECODE_CHUNK);
+
+            if (size > MAP_THRESHOLD) {
+                long position = 0;
+                while (position < size) {
+                    long chunk = Math.min(MAP_CHUNK, size - position);
+                    ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, position, chunk);
+                    boolean last = position + chunk >= size;
+                    text.decode(decoder, in, out, last);
+                    // 块末尾不完整的多字节字符留到下一次映射
+                    position += in.position();
+                    if (!last && in.position() == 0) {
+                        throw new IOException("无法解码文件内容: " + path);
+                    }
+                }
+            } else {
+                ByteBuffer in = ByteBuffer.allocate(READ_CHUNK);
+                boolean eof = false;
+                while (!eof) {
+                    eof = channel.read(in) < 0;
+                    in.flip();
+                    text.decode(decoder, in, out, eof);
+                    in.compact();
+                }
+            }
+            text.drain(decoder, out);
+        }
+        text.finish();
+        return text;
+    }
+
+    private void decode(CharsetDecoder decoder, ByteBuffer in, CharBuffer out, boolean endOfInput) {
+        while (true) {
+            CoderResult result = decoder.decode(in, out, endOfInput);
+            append(out);
+            if (!result.isOverflow()) break;
+        }
+    }
+
+    private void drain(CharsetDecoder decoder, CharBuffer out) {
+        while (decoder.flush(out).isOverflow()) {
+            append(out);
+        }
+        append(out);
+    }
+
+    private void append(CharBuffer out) {
+        out.flip();
+        append(out.array(), out.limit());
+        out.clear();
+    }
+
+    /**
+     * 把字符拷贝到字符数组中，顺便统一换行符并记录行的起始位置。
+     */
+    private void append(char[] buf, int end) {
+        for (int i = 0; i < end; i++) {
+            char c = buf[i];
+            if (c == '\n' && pendingCR) {
+                pendingCR = false; // \r\n 只算一个换行
+                continue;
+            }
+            pendingCR = c == '\r';
+            if (length == 0 || chars[length - 1] == '\n') {
+                startLine();
+            }
+            put(c == '\r' ? '\n' : c);
+        }
+    }
+
+    private void startLine() {
+        if (lineCount + 1 >= lineStarts.length) {
+            lineStarts = Arrays.copyOf(lineStarts, lineStarts.length * 2);
+        }
+        lineStarts[lineCount++] = length;
+    }
+
+    private void put(char c) {
+        if (length == chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(16, length * 2));
+        }
+        chars[length++] = c;
+    }
+
+    /**
+     * 在末尾追加一段文本，用于边接收边分析。换行符的处理和读取文件时相同，跨越两段的 \r\n 也只算一个换行。
+     * 全部追加完之后调用 {@link #finish()}。
+     *
+     * @return 已经完整（以换行结束）的行数
+     */
+    int appendText(CharSequence content) {
+        char[] buf = content.toString().toCharArray();
+        append(buf, buf.length);
+        if (length == 0) {
+            return 0;
+        }
+        if (chars[length - 1] == '\n') {
+            lineStarts[lineCount] = length; // 最后一行已经结束，下一行还没有开始
+            return lineCount;
+        }
+        return lineCount - 1;
+    }
+
+    void finish() {
+        if (length > 0 && chars[length - 1] != '\n') {
+            put('\n'); // 最后一行没有换行符时补上
+        }
+        lineStarts[lineCount] = length;
+    }
+
+    /**
+     * 把 [firstLine, endLine) 范围内的行替换成一段新的文本，得到一个新的源文本，原来的对象保持不变。
+     *
+     * @param firstLine 第一个被替换的行号，从 1 开始
+     * @param endLine   被替换的最后一行的下一行；等于 firstLine 时表示在 firstLine 之前插入
+     * @param content   新的文本，可以包含任意多行，空串表示删除这些行
+     * @return 修改后的源文本
+     */
+    SourceText replaceLines(int firstLine, int endLine, CharSequence content) {
+        if (firstLine < 1 || endLine < firstLine || endLine > lineCount + 1) {
+            throw new ArrayIndexOutOfBoundsException("行号越界: [" + firstLine + ", " + endLine + ")");
+        }
+        SourceText inserted = of(content);
+        int prefixEnd = lineStarts[firstLine - 1];
+        int suffixStart = lineStarts[endLine - 1];
+        int charDelta = prefixEnd + inserted.length - suffixStart;
+
+        SourceText result = new SourceText();
+        result.length = length + charDelta;
+        result.chars = new char[result.length];
+        System.arraycopy(chars, 0, result.chars, 0, prefixEnd);
+        System.arraycopy(inserted.chars, 0, result.chars, prefixEnd, inserted.length);
+        System.arraycopy(chars, suffixStart, result.chars, prefixEnd + inserted.length, length - suffixStart);
+
+        int prefixLines = firstLine - 1;
+        int suffixLines = lineCount - (endLine - 1);
+        result.lineCount = prefixLines + inserted.lineCount + suffixLines;
+        result.lineStarts = new int[result.lineCount + 1];
+        System.arraycopy(lineStarts, 0, result.lineStarts, 0, prefixLines);
+        for (int i = 0; i < inserted.lineCount; i++) {
+            result.lineStarts[prefixLines + i] = inserted.lineStarts[i] + prefixEnd;
+        }
+        for (int i = 0; i <= suffixLines; i++) {
+            result.lineStarts[prefixLines + inserted.lineCount + i] = lineStarts[endLine - 1 + i] + charDelta;
+        }
+        return result;
+    }
+
+    /**
+     * @return 全部字符。数组可能比 {@link #length()} 长，多出的部分没有意义
+     */
+    char[] chars() {
+        return chars;
+    }
+
+    int length() {
+        return length;
+    }
+
+    int lineCount() {
+        return lineCount;
+    }
+
+    /**
+     * @param line 行号，从 1 开始；等于 lineCount() + 1 时返回文本的长度
+     * @return 该行在字符数组中的起始位置
+     */
+    int lineStart(int line) {
+        return lineStarts[line - 1];
+    }
+
+    /**
+     * @param line 行号，从 1 开始
+     * @return 该行在字符数组中的结束位置（不包含换行符）
+     */
+    int lineEnd(int line) {
+        return lineStarts[line] - 1;
+    }
+
+    /**
+     * 获取某一行的内容（不包含换行符）。
+     *
+     * @param line 行号，从 1 开始
+     * @return 该行的内容
+     */
+    String lineText(int line) {
+        if (line < 1 || line > lineCount) {
+            throw new ArrayIndexOutOfBoundsException("行号越界: " + line);
+        }
+        int start = lineStarts[line - 1];
+        return new String(chars, start, lineStarts[line] - 1 - start);
+    }
+
+    /**
+     * 根据字符位置查找所在的行号（从 1 开始）。
+     */
+    int lineOf(int offset) {
+        int index = Arrays.binarySearch(lineStarts, 0, lineCount + 1, offset);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+}
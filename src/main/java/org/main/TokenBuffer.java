@@ -0,0 +1,208 @@
+package org.main;
+
+import java.util.Arrays;
+
+/**
+ * TokenBuffer 是词法分析结果的紧凑存储。
+ * <p>
+ * 每个 token 只占用几个并列的 int 数组里的一格：类型编号、在源文本字符数组里的起止位置（左闭右开）、行号和列号。
+ * 所有 token 共用 {@link SourceText} 中的同一个字符数组，token 的文本只有在真正需要的时候才通过 {@link DFAScanner#text} 生成，
+ * 关键字和符号直接复用规则里的字符串，不再为每个 token 新建 String[] 和 String。
+ * </p>
+ */
+class TokenBuffer {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final SourceText source; // 源文本，所有 token 共用其中的字符数组
+    private final DFAScanner scanner;
+    private final String[] typeNames; // 扫描器的类型名，最后一个是结束符 $
+    private final int endType;
+
+    private int[] types;
+    private int[] starts;
+    private int[] ends;
+    private int[] lines;
+    private int[] columns;
+    private int size;
+
+    /**
+     * @param source  源文本
+     * @param scanner 产生这些 token 的扫描器，用于还原 token 的文本
+     */
+    TokenBuffer(SourceText source, DFAScanner scanner) {
+        this.source = source;
+        this.scanner = scanner;
+        String[] names = scanner.getTypeNames();
+        this.typeNames = Arrays.copyOf(names, names.length + 1);
+        this.endType = names.length;
+        this.typeNames[endType] = "$";
+        this.types = new int[INITIAL_CAPACITY];
+        this.starts = new int[INITIAL_CAPACITY];
+        this.ends = new int[INITIAL_CAPACITY];
+        this.lines = new int[INITIAL_CAPACITY];
+        this.columns = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * 追加一个 token。
+     *
+     * @param type   类型编号
+     * @param start  起始位置（包含）
+     * @param end    结束位置（不包含）
+     * @param line   行号，从 1 开始
+     * @param column 列号，从 1 开始
+     */
+    void add(int type, int start, int end, int line, int column) {
+        if (size == types.length) {
+            ensureCapacity(size + 1);
+        }
+        types[size] = type;
+        starts[size] = start;
+        ends[size] = end;
+        lines[size] = line;
+        columns[size] = column;
+        size++;
+    }
+
+    /**
+     * 把另一个 TokenBuffer 中的全部 token 按顺序追加到末尾，两者必须来自同一个源文本。
+     *
+     * @param other 要追加的 token
+     */
+    void append(TokenBuffer other) {
+        if (other.source != source) {
+            throw new RuntimeException("只能合并同一个源文件的token");
+        }
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.types, 0, types, size, other.size);
+        System.arraycopy(other.starts, 0, starts, size, other.size);
+        System.arraycopy(other.ends, 0, ends, size, other.size);
+        System.arraycopy(other.lines, 0, lines, size, other.size);
+        System.arraycopy(other.columns, 0, columns, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * 把 [from, to) 范围内的 token 替换成 inserted 中的 token，得到基于新源文本的 TokenBuffer，原来的对象保持不变。
+     * 替换范围之后的 token 内容不变，只是位置和行号分别平移 charDelta 和 lineDelta。
+     *
+     * @param newSource inserted 所在的新源文本
+     * @param from      第一个被替换的 token 下标
+     * @param to        最后一个被替换的 token 的下一个下标
+     * @param inserted  新的 token，位置已经是新源文本中的位置
+     * @param charDelta 替换范围之后的字符位置变化量
+     * @param lineDelta 替换范围之后的行号变化量
+     * @return 拼接好的 TokenBuffer
+     */
+    TokenBuffer splice(SourceText newSource, int from, int to, TokenBuffer inserted, int charDelta, int lineDelta) {
+        if (inserted.source != newSource) {
+            throw new RuntimeException("只能合并同一个源文件的token");
+        }
+        TokenBuffer result = new TokenBuffer(newSource, scanner);
+        result.ensureCapacity(size - (to - from) + inserted.size);
+        result.copyFrom(this, 0, from, 0, 0);
+        result.copyFrom(inserted, 0, inserted.size, 0, 0);
+        result.copyFrom(this, to, size, charDelta, lineDelta);
+        return result;
+    }
+
+    private void copyFrom(TokenBuffer other, int from, int to, int charDelta, int lineDelta) {
+        int count = to - from;
+        System.arraycopy(other.types, from, types, size, count);
+        System.arraycopy(other.columns, from, columns, size, count);
+        for (int i = 0; i < count; i++) {
+            starts[size + i] = other.starts[from + i] + charDelta;
+            ends[size + i] = other.ends[from + i] + charDelta;
+            lines[size + i] = other.lines[from + i] + lineDelta;
+        }
+        size += count;
+    }
+
+    /**
+     * 查找第一个行号不小于 line 的 token 的下标（token 按行号递增排列）。
+     *
+     * @param line 行号
+     * @return token 下标，所有 token 的行号都小于 line 时返回 size()
+     */
+    int firstTokenAtLine(int line) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (lines[mid] < line) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= types.length) return;
+        capacity = Math.max(capacity, types.length + (types.length >> 1));
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        columns = Arrays.copyOf(columns, capacity);
+    }
+
+    /**
+     * 追加结束符 $。
+     *
+     * @param line 结束符所在的行号
+     */
+    void addEnd(int line) {
+        add(endType, source.length(), source.length(), line, 1);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int type(int index) {
+        return types[index];
+    }
+
+    String typeName(int index) {
+        return typeNames[types[index]];
+    }
+
+    /**
+     * 按需生成 token 的文本。
+     */
+    String text(int index) {
+        int type = types[index];
+        if (type == endType) return "$";
+        return scanner.text(source.chars(), type, starts[index], ends[index]);
+    }
+
+    int start(int index) {
+        return starts[index];
+    }
+
+    int end(int index) {
+        return ends[index];
+    }
+
+    int line(int index) {
+        return lines[index];
+    }
+
+    int column(int index) {
+        return columns[index];
+    }
+
+    SourceText getSource() {
+        return source;
+    }
+
+    int getEndType() {
+        return endType;
+    }
+
+    String[] getTypeNames() {
+        return typeNames.clone();
+    }
+}
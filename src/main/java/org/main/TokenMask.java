@@ -0,0 +1,281 @@
+package org.main;
+
+import java.nio.LongBuffer;
+import java.util.*;
+
+/**
+ * 查询分析到某个位置时下一个可以出现的终结符，用于把大模型的解码限制在合法的程序上：
+ * 每生成一个 token 之前，先取出当前可以出现的终结符，把其余的候选排除掉。
+ * <p>
+ * 分析状态就是 LL(1) 分析栈（见 {@link State}）。下一个可以出现的终结符是栈中符号串的 first 集合：
+ * 栈顶符号的 first 集合，栈顶能推出空串时再并上下面的符号串的 first 集合，一直到 $。
+ * 这个集合只取决于栈顶符号和下面的符号串的集合，所以和符号一起压入栈中，查询时直接返回栈顶的那一个。
+ * 所有可能出现的集合在构造时就全部算好并编号（文法中能推出空串的非终结符很少，集合的个数也很少），
+ * 之后压栈只是查表，查询和压栈都不需要分配对象，构造完成后可以在多个线程中同时使用。
+ * </p>
+ * <p>
+ * 没有冲突的 LL(1) 文法中，终结符在集合里当且仅当 {@link State#advance} 能接受它，
+ * 和 {@link Parser} 判断语法错误的结果一致。预测分析表存在冲突时，集合可能多出冲突位置上的终结符，
+ * 但 {@link State#advance} 仍然会拒绝它们。
+ * </p>
+ */
+public final class TokenMask {
+    private final ParserGrammar grammar;
+    private final int words; // 每个集合占几个 long
+    private final long[][] masks; // 集合编号 -> 终结符集合，按终结符编号存放的位图
+    private final int[] fixedMask; // 符号编号 -> 压入这个符号之后栈的集合；能推出空串的非终结符为-1，要查 pushMask
+    private final int[][] pushMask; // 能推出空串的非终结符编号 -> (原来栈的集合 -> 压入之后栈的集合)
+    private final int emptyMask; // 空栈，已经读过 $
+    private final boolean hasConflicts;
+
+    /**
+     * @param lexerFile  词法文件
+     * @param parserFile 语法文件
+     */
+    public TokenMask(String lexerFile, String parserFile) {
+        this(CompiledLanguage.load(lexerFile, parserFile, CompiledLanguage.TEMPLATE_FILE).getParserGrammar());
+    }
+
+    TokenMask(ParserGrammar grammar) {
+        this.grammar = grammar;
+        this.words = (grammar.terminalCount + 63) >>> 6;
+        this.hasConflicts = !grammar.conflicts.isEmpty();
+        int symbolCount = grammar.symbolNames.length;
+
+        // 每个符号自己的 first 集合
+        long[][] first = new long[symbolCount][];
+        boolean[] nullable = new boolean[symbolCount];
+        for (int symbol = 0; symbol < symbolCount; symbol++) {
+            first[symbol] = new long[words];
+            if (grammar.isTerminalSymbol(symbol)) {
+                if (symbol != grammar.epsilonSymbol) set(first[symbol], symbol);
+                continue;
+            }
+            for (String terminal : grammar.firstSets.getOrDefault(grammar.symbolNames[symbol], Set.of())) {
+                int id = grammar.symbolOf(terminal);
+                if (id == grammar.epsilonSymbol) {
+                    nullable[symbol] = true;
+                } else if (grammar.isTerminalSymbol(id)) {
+                    set(first[symbol], id);
+                }
+            }
+        }
+
+        // 给所有可能出现的集合编号：从不能推出空串的符号开始，反复压入能推出空串的非终结符，直到不再出现新的集合
+        List<long[]> found = new ArrayList<>();
+        Map<LongBuffer, Integer> ids = new HashMap<>();
+        emptyMask = intern(new long[words], found, ids);
+        fixedMask = new int[symbolCount];
+        List<Integer> nullables = new ArrayList<>();
+        for (int symbol = 0; symbol < symbolCount; symbol++) {
+            if (nullable[symbol]) {
+                fixedMask[symbol] = -1;
+                nullables.add(symbol);
+            } else {
+                fixedMask[symbol] = intern(first[symbol], found, ids);
+            }
+        }
+        List<int[]> pushRows = new ArrayList<>();
+        for (int i = 0; i < nullables.size(); i++) pushRows.add(new int[16]);
+        for (int below = 0; below < found.size(); below++) {
+            for (int i = 0; i < nullables.size(); i++) {
+                long[] union = found.get(below).clone();
+                long[] own = first[nullables.get(i)];
+                for (int w = 0; w < words; w++) union[w] |= own[w];
+                int[] row = pushRows.get(i);
+                if (below == row.length) pushRows.set(i, row = Arrays.copyOf(row, row.length * 2));
+                row[below] = intern(union, found, ids);
+            }
+        }
+        masks = found.toArray(new long[0][]);
+        pushMask = new int[symbolCount][];
+        for (int i = 0; i < nullables.size(); i++) {
+            pushMask[nullables.get(i)] = Arrays.copyOf(pushRows.get(i), masks.length);
+        }
+    }
+
+    private static int intern(long[] mask, List<long[]> found, Map<LongBuffer, Integer> ids) {
+        Integer id = ids.get(LongBuffer.wrap(mask));
+        if (id == null) {
+            id = found.size();
+            found.add(mask);
+            ids.put(LongBuffer.wrap(mask), id);
+        }
+        return id;
+    }
+
+    private static void set(long[] mask, int terminal) {
+        mask[terminal >>> 6] |= 1L << terminal;
+    }
+
+    /**
+     * @return 从起始符号开始、还没有读入任何终结符的状态
+     */
+    public State start() {
+        State state = new State(new int[64], new int[64], 0);
+        state.push(grammar.endSymbol);
+        state.push(grammar.symbolOf(grammar.getStartSymbol()));
+        return state;
+    }
+
+    /**
+     * @return 终结符个数（包括 $），终结符编号从 0 到这个数减一
+     */
+    public int terminalCount() {
+        return grammar.terminalCount;
+    }
+
+    /**
+     * @param name 终结符名，也就是词法分析器中的 token 类型名，结束符是 $
+     * @return 终结符编号，不是终结符时返回-1
+     */
+    public int terminalOf(String name) {
+        int symbol = grammar.symbolOf(name);
+        return grammar.isTerminalSymbol(symbol) && symbol != grammar.epsilonSymbol ? symbol : -1;
+    }
+
+    public String terminalName(int terminal) {
+        return grammar.symbolNames[terminal];
+    }
+
+    /**
+     * @return 结束符 $ 的编号
+     */
+    public int endTerminal() {
+        return grammar.endSymbol;
+    }
+
+    /**
+     * 分析状态：LL(1) 分析栈，每个符号旁边记着栈中从它往下的符号串的 first 集合的编号。
+     * <p>
+     * {@link #fork()} 复制一份状态，只复制栈，代价和栈的深度成正比；解码时可以从同一个前缀复制出多份，
+     * 分别尝试不同的后续，不需要重新分析前缀。一个 State 只能在一个线程中使用。
+     * </p>
+     */
+    public final class State {
+        private int[] symbols; // 分析栈，只保存符号编号
+        private int[] maskIds; // maskIds[i] 是 symbols[0..i] 从栈顶往下读的 first 集合的编号
+        private int size;
+
+        private State(int[] symbols, int[] maskIds, int size) {
+            this.symbols = symbols;
+            this.maskIds = maskIds;
+            this.size = size;
+        }
+
+        /**
+         * @return 下一个可以出现的终结符，按终结符编号存放的位图（第 i 位在 mask[i / 64] 的第 i % 64 位）。
+         * 返回的数组是共享的，不能修改
+         */
+        public long[] mask() {
+            return masks[maskId()];
+        }
+
+        /**
+         * @return 下一个可以出现的终结符集合的编号，同一个编号总是对应同一个集合，可以用来缓存按集合计算的结果
+         */
+        public int maskId() {
+            return size == 0 ? emptyMask : maskIds[size - 1];
+        }
+
+        public boolean allows(int terminal) {
+            if (terminal < 0 || terminal >= grammar.terminalCount) return false;
+            return (mask()[terminal >>> 6] & 1L << terminal) != 0;
+        }
+
+        public boolean allows(String terminal) {
+            return allows(terminalOf(terminal));
+        }
+
+        /**
+         * @return 下一个可以出现的终结符名
+         */
+        public List<String> allowedTerminals() {
+            List<String> result = new ArrayList<>();
+            long[] mask = mask();
+            for (int w = 0; w < words; w++) {
+                for (long bits = mask[w]; bits != 0; bits &= bits - 1) {
+                    result.add(grammar.symbolNames[w * 64 + Long.numberOfTrailingZeros(bits)]);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return 程序是否可以在这里结束
+         */
+        public boolean isComplete() {
+            return allows(grammar.endSymbol);
+        }
+
+        /**
+         * 读入一个终结符。
+         *
+         * @return 是否接受；不接受时状态不变
+         */
+        public boolean advance(int terminal) {
+            if (!allows(terminal)) return false;
+            if (hasConflicts) {
+                // 有冲突时掩码不精确，先在副本上试，成功了再换成副本的栈
+                State copy = fork();
+                if (!copy.expand(terminal)) return false;
+                symbols = copy.symbols;
+                maskIds = copy.maskIds;
+                size = copy.size;
+                return true;
+            }
+            return expand(terminal);
+        }
+
+        public boolean advance(String terminal) {
+            return advance(terminalOf(terminal));
+        }
+
+        /**
+         * @return 和这个状态相同的一份独立的状态
+         */
+        public State fork() {
+            int capacity = Math.max(size, 16);
+            return new State(Arrays.copyOf(symbols, capacity), Arrays.copyOf(maskIds, capacity), size);
+        }
+
+        /**
+         * @return 分析栈的深度
+         */
+        public int depth() {
+            return size;
+        }
+
+        /**
+         * 按预测分析表展开栈顶的非终结符，直到栈顶是终结符，然后弹出它。
+         */
+        private boolean expand(int terminal) {
+            while (size > 0) {
+                int top = symbols[--size];
+                if (grammar.isTerminalSymbol(top)) {
+                    return top == terminal;
+                }
+                int rule = grammar.predict(top, terminal);
+                if (rule == ParserGrammar.NO_PRODUCTION || rule == ParserGrammar.CONFLICT) {
+                    return false;
+                }
+                int[] production = grammar.productionSymbols[rule];
+                for (int i = production.length - 1; i >= 0; i--) {
+                    if (production[i] != grammar.epsilonSymbol) push(production[i]);
+                }
+            }
+            return false;
+        }
+
+        private void push(int symbol) {
+            if (size == symbols.length) {
+                symbols = Arrays.copyOf(symbols, size * 2);
+                maskIds = Arrays.copyOf(maskIds, size * 2);
+            }
+            int below = size == 0 ? emptyMask : maskIds[size - 1];
+            int fixed = fixedMask[symbol];
+            maskIds[size] = fixed >= 0 ? fixed : pushMask[symbol][below];
+            symbols[size++] = symbol;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.main;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * TokenQueue 是词法分析线程和语法分析线程之间的有界无锁队列（单生产者、单消费者）。
+ * <p>
+ * 队列是一个环形数组，每个位置保存一个 token 的类型、起止位置、行号和列号。
+ * 生产者和消费者各自只写自己的位置计数器，通过 {@link AtomicLong#lazySet} 发布、{@link AtomicLong#get} 读取，
+ * 不需要加锁；队列满或者空的时候先自旋，再让出CPU，最后短暂休眠。
+ * </p>
+ */
+class TokenQueue {
+    static final int ABORT = -1; // 词法分析出错，后面不会再有token
+    static final int CLOSED = -2; // 队列已经关闭并且取空
+
+    private static final int FIELDS = 5;
+
+    private final int capacity;
+    private final int mask;
+    private final int[] records;
+    private final AtomicLong head = new AtomicLong(); // 下一个要读取的位置，只由消费者修改
+    private final AtomicLong tail = new AtomicLong(); // 下一个要写入的位置，只由生产者修改
+    private volatile boolean closed; // 生产者不会再写入
+    private volatile boolean discarding; // 之后写入的token直接丢弃
+
+    private long cachedHead; // 生产者看到的消费者位置
+    private long cachedTail; // 消费者看到的生产者位置
+
+    /**
+     * @param capacity 队列容量，会向上取整到 2 的幂
+     */
+    TokenQueue(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = this.capacity - 1;
+        this.records = new int[this.capacity * FIELDS];
+    }
+
+    /**
+     * 生产者写入一个token，队列满时等待。
+     *
+     * @return 是否写入成功；队列处于丢弃状态时返回 false
+     */
+    boolean offer(int type, int start, int end, int line, int column) {
+        long t = tail.get();
+        int idle = 0;
+        while (t - cachedHead >= capacity) {
+            if (discarding) return false;
+            cachedHead = head.get();
+            if (t - cachedHead < capacity) break;
+            idle = idle(idle);
+        }
+        if (discarding) return false;
+        int base = (int) (t & mask) * FIELDS;
+        records[base] = type;
+        records[base + 1] = start;
+        records[base + 2] = end;
+        records[base + 3] = line;
+        records[base + 4] = column;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * 生产者通知消费者词法分析出错，之后写入的token全部丢弃。
+     */
+    void abort() {
+        offer(ABORT, 0, 0, 0, 0);
+        discarding = true;
+    }
+
+    /**
+     * 生产者结束写入。
+     */
+    void close() {
+        closed = true;
+    }
+
+    /**
+     * 消费者不再读取，让可能正在等待的生产者继续运行。
+     */
+    void cancel() {
+        discarding = true;
+    }
+
+    /**
+     * 消费者读取一个token并追加到 buffer 中，队列空时等待。
+     *
+     * @return 读到的token类型；词法分析出错时返回 {@link #ABORT}，队列关闭并取空时返回 {@link #CLOSED}
+     */
+    int poll(TokenBuffer buffer) {
+        long h = head.get();
+        int idle = 0;
+        while (h >= cachedTail) {
+            cachedTail = tail.get();
+            if (h < cachedTail) break;
+            if (closed) {
+                cachedTail = tail.get(); // close 之前写入的token一定能在这里看到
+                if (h >= cachedTail) return CLOSED;
+                break;
+            }
+            idle = idle(idle);
+        }
+        int base = (int) (h & mask) * FIELDS;
+        int type = records[base];
+        if (type != ABORT) {
+            buffer.add(type, records[base + 1], records[base + 2], records[base + 3], records[base + 4]);
+        }
+        head.lazySet(h + 1);
+        return type;
+    }
+
+    private static int idle(int idle) {
+        if (idle < 64) {
+            Thread.onSpinWait();
+        } else if (idle < 128) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(20_000);
+        }
+        return idle + 1;
+    }
+}
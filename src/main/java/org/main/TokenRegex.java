@@ -0,0 +1,367 @@
+package org.main;
+
+import java.util.*;
+
+/**
+ * TokenRegex 负责把词法文件里的匹配模式编译成 NFA（Thompson 构造）。
+ * <p>
+ * 支持的写法和 ANTLR 的词法规则类似：
+ * <ul>
+ *     <li>{@code 'abc'} 单引号括起来的字符串，可以用 \' \\ \n \t 转义</li>
+ *     <li>{@code [a-zA-Z_]} 字符集合，{@code ~[...]} 或 {@code [^...]} 表示取反，
+ *     {@code \p{L}} 表示字母，{@code \p{Nd}} 或 {@code \d} 表示数字</li>
+ *     <li>{@code .} 任意字符</li>
+ *     <li>{@code ?} {@code *} {@code +} 重复，{@code |} 选择，{@code ( )} 分组，空白字符会被忽略</li>
+ * </ul>
+ * 所有规则共用一个 NFA，每条规则的结束状态记录规则的编号，编号越小优先级越高。
+ * </p>
+ */
+class TokenRegex {
+
+    /**
+     * 字符集合，由若干个字符区间以及“字母”“数字”两个 Unicode 类别组成，可以取反。
+     */
+    static final class CharSet {
+        private final int[] ranges; // [lo0, hi0, lo1, hi1, ...]，闭区间，有序且不重叠
+        private final boolean letter; // Character.isLetter
+        private final boolean digit; // Character.isDigit
+        private final boolean negated;
+
+        private CharSet(int[] ranges, boolean letter, boolean digit, boolean negated) {
+            this.ranges = ranges;
+            this.letter = letter;
+            this.digit = digit;
+            this.negated = negated;
+        }
+
+        static CharSet of(char c) {
+            return new CharSet(new int[]{c, c}, false, false, false);
+        }
+
+        static CharSet any() {
+            return new CharSet(new int[0], false, false, true);
+        }
+
+        boolean contains(char c) {
+            boolean in = (letter && Character.isLetter(c)) || (digit && Character.isDigit(c));
+            for (int i = 0; !in && i < ranges.length; i += 2) {
+                in = c >= ranges[i] && c <= ranges[i + 1];
+            }
+            return in != negated;
+        }
+
+        /**
+         * 把区间的边界（区间开始和区间结束的下一个字符）加入 boundaries。
+         * 相邻两个边界之间的字符，是否属于这个集合只取决于它是字母、数字还是其他字符。
+         */
+        void addBoundaries(Set<Integer> boundaries) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                boundaries.add(ranges[i]);
+                boundaries.add(ranges[i + 1] + 1);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CharSet)) return false;
+            CharSet other = (CharSet) o;
+            return letter == other.letter && digit == other.digit && negated == other.negated
+                    && Arrays.equals(ranges, other.ranges);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(ranges) * 31 + (letter ? 4 : 0) + (digit ? 2 : 0) + (negated ? 1 : 0);
+        }
+    }
+
+    /**
+     * 所有规则共用的 NFA。状态 0 是总的起始状态，通过空转移连到每条规则的起始状态。
+     */
+    static final class Nfa {
+        final List<CharSet> sets = new ArrayList<>(); // 转移上出现过的字符集合，去重
+        private final Map<CharSet, Integer> setIndex = new HashMap<>();
+        final List<int[]> epsilon = new ArrayList<>(); // 每个状态的空转移目标
+        final List<int[]> edges = new ArrayList<>(); // 每个状态的字符转移：[集合编号, 目标, 集合编号, 目标, ...]
+        final List<Integer> accept = new ArrayList<>(); // 状态接受的规则编号，-1 表示不接受
+
+        Nfa() {
+            newState();
+        }
+
+        int newState() {
+            epsilon.add(new int[0]);
+            edges.add(new int[0]);
+            accept.add(-1);
+            return accept.size() - 1;
+        }
+
+        int size() {
+            return accept.size();
+        }
+
+        void addEpsilon(int from, int to) {
+            int[] old = epsilon.get(from);
+            int[] updated = Arrays.copyOf(old, old.length + 1);
+            updated[old.length] = to;
+            epsilon.set(from, updated);
+        }
+
+        void addEdge(int from, CharSet set, int to) {
+            int index = setIndex.computeIfAbsent(set, k -> {
+                sets.add(k);
+                return sets.size() - 1;
+            });
+            int[] old = edges.get(from);
+            int[] updated = Arrays.copyOf(old, old.length + 2);
+            updated[old.length] = index;
+            updated[old.length + 1] = to;
+            edges.set(from, updated);
+        }
+
+        /**
+         * 加入一条规则。
+         *
+         * @param pattern 规则的匹配模式
+         * @param literal 为 true 时整个 pattern 就是要匹配的字符串
+         * @param rule    规则编号
+         */
+        void addRule(String pattern, boolean literal, int rule) {
+            int[] fragment = literal ? literal(pattern) : new PatternParser(pattern, this).parse();
+            addEpsilon(0, fragment[0]);
+            accept.set(fragment[1], rule);
+        }
+
+        private int[] literal(String text) {
+            int start = newState();
+            int end = start;
+            for (int i = 0; i < text.length(); i++) {
+                int next = newState();
+                addEdge(end, CharSet.of(text.charAt(i)), next);
+                end = next;
+            }
+            return new int[]{start, end};
+        }
+
+        /**
+         * 计算一组状态的空闭包。
+         */
+        BitSet closure(BitSet states) {
+            BitSet result = (BitSet) states.clone();
+            Deque<Integer> work = new ArrayDeque<>();
+            for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) work.push(s);
+            while (!work.isEmpty()) {
+                for (int to : epsilon.get(work.pop())) {
+                    if (!result.get(to)) {
+                        result.set(to);
+                        work.push(to);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * 递归下降解析匹配模式：alternation := sequence ('|' sequence)*，sequence := postfix*，
+     * postfix := atom ('?' | '*' | '+')*，atom := 字符串 | 字符集合 | '.' | '(' alternation ')'。
+     */
+    private static final class PatternParser {
+        private final String pattern;
+        private final Nfa nfa;
+        private int pos;
+
+        PatternParser(String pattern, Nfa nfa) {
+            this.pattern = pattern;
+            this.nfa = nfa;
+        }
+
+        int[] parse() {
+            int[] result = alternation();
+            skipSpaces();
+            if (pos < pattern.length()) {
+                throw error("多余的字符 '" + pattern.charAt(pos) + "'");
+            }
+            return result;
+        }
+
+        private int[] alternation() {
+            int[] first = sequence();
+            skipSpaces();
+            if (!peek('|')) return first;
+            int start = nfa.newState();
+            int end = nfa.newState();
+            nfa.addEpsilon(start, first[0]);
+            nfa.addEpsilon(first[1], end);
+            while (peek('|')) {
+                pos++;
+                int[] next = sequence();
+                nfa.addEpsilon(start, next[0]);
+                nfa.addEpsilon(next[1], end);
+                skipSpaces();
+            }
+            return new int[]{start, end};
+        }
+
+        private int[] sequence() {
+            int start = nfa.newState();
+            int end = start;
+            while (true) {
+                skipSpaces();
+                if (pos >= pattern.length() || peek('|') || peek(')')) break;
+                int[] next = postfix();
+                nfa.addEpsilon(end, next[0]);
+                end = next[1];
+            }
+            return new int[]{start, end};
+        }
+
+        private int[] postfix() {
+            int[] fragment = atom();
+            while (true) {
+                skipSpaces();
+                if (peek('?') || peek('*') || peek('+')) {
+                    char op = pattern.charAt(pos++);
+                    int start = nfa.newState();
+                    int end = nfa.newState();
+                    nfa.addEpsilon(start, fragment[0]);
+                    nfa.addEpsilon(fragment[1], end);
+                    if (op != '+') nfa.addEpsilon(start, end); // 可以一次都不出现
+                    if (op != '?') nfa.addEpsilon(fragment[1], fragment[0]); // 可以重复
+                    fragment = new int[]{start, end};
+                } else {
+                    return fragment;
+                }
+            }
+        }
+
+        private int[] atom() {
+            char c = pattern.charAt(pos);
+            if (c == '\'') {
+                pos++;
+                StringBuilder text = new StringBuilder();
+                while (pos < pattern.length() && pattern.charAt(pos) != '\'') {
+                    text.append(pattern.charAt(pos) == '\\' ? escape() : pattern.charAt(pos++));
+                }
+                if (pos >= pattern.length()) throw error("字符串缺少结束的单引号");
+                pos++;
+                if (text.length() == 0) throw error("空字符串");
+                return nfa.literal(text.toString());
+            }
+            if (c == '(') {
+                pos++;
+                int[] inner = alternation();
+                skipSpaces();
+                if (!peek(')')) throw error("缺少 ')'");
+                pos++;
+                return inner;
+            }
+            if (c == '.') {
+                pos++;
+                return single(CharSet.any());
+            }
+            if (c == '[' || (c == '~' && pos + 1 < pattern.length() && pattern.charAt(pos + 1) == '[')) {
+                return single(charSet());
+            }
+            throw error("无法识别的字符 '" + c + "'");
+        }
+
+        private int[] single(CharSet set) {
+            int start = nfa.newState();
+            int end = nfa.newState();
+            nfa.addEdge(start, set, end);
+            return new int[]{start, end};
+        }
+
+        private CharSet charSet() {
+            boolean negated = false;
+            if (pattern.charAt(pos) == '~') {
+                negated = true;
+                pos++;
+            }
+            pos++; // '['
+            if (peek('^')) {
+                negated = !negated;
+                pos++;
+            }
+            boolean letter = false;
+            boolean digit = false;
+            TreeMap<Integer, Integer> ranges = new TreeMap<>();
+            while (pos < pattern.length() && pattern.charAt(pos) != ']') {
+                if (pattern.startsWith("\\p{L}", pos)) {
+                    letter = true;
+                    pos += 5;
+                    continue;
+                }
+                if (pattern.startsWith("\\p{Nd}", pos)) {
+                    digit = true;
+                    pos += 6;
+                    continue;
+                }
+                if (pattern.startsWith("\\d", pos)) {
+                    digit = true;
+                    pos += 2;
+                    continue;
+                }
+                char lo = pattern.charAt(pos) == '\\' ? escape() : pattern.charAt(pos++);
+                char hi = lo;
+                if (peek('-') && pos + 1 < pattern.length() && pattern.charAt(pos + 1) != ']') {
+                    pos++;
+                    hi = pattern.charAt(pos) == '\\' ? escape() : pattern.charAt(pos++);
+                    if (hi < lo) throw error("字符区间 " + lo + "-" + hi + " 的顺序不对");
+                }
+                ranges.merge((int) lo, (int) hi, Math::max);
+            }
+            if (pos >= pattern.length()) throw error("字符集合缺少 ']'");
+            pos++;
+
+            // 合并重叠的区间
+            List<Integer> merged = new ArrayList<>();
+            for (Map.Entry<Integer, Integer> range : ranges.entrySet()) {
+                int size = merged.size();
+                if (size > 0 && range.getKey() <= merged.get(size - 1) + 1) {
+                    merged.set(size - 1, Math.max(merged.get(size - 1), range.getValue()));
+                } else {
+                    merged.add(range.getKey());
+                    merged.add(range.getValue());
+                }
+            }
+            int[] array = new int[merged.size()];
+            for (int i = 0; i < array.length; i++) array[i] = merged.get(i);
+            return new CharSet(array, letter, digit, negated);
+        }
+
+        private char escape() {
+            pos++; // '\\'
+            if (pos >= pattern.length()) throw error("转义字符不完整");
+            char c = pattern.charAt(pos++);
+            switch (c) {
+                case 'n':
+                    return '\n';
+                case 't':
+                    return '\t';
+                case 'r':
+                    return '\r';
+                case 'u':
+                    if (pos + 4 > pattern.length()) throw error("\\u 后面需要4位十六进制数");
+                    char u = (char) Integer.parseInt(pattern.substring(pos, pos + 4), 16);
+                    pos += 4;
+                    return u;
+                default:
+                    return c;
+            }
+        }
+
+        private boolean peek(char c) {
+            return pos < pattern.length() && pattern.charAt(pos) == c;
+        }
+
+        private void skipSpaces() {
+            while (pos < pattern.length() && Character.isWhitespace(pattern.charAt(pos))) pos++;
+        }
+
+        private RuntimeException error(String message) {
+            return new RuntimeException("词法文件编写有误，匹配模式 " + pattern + " 在第 " + (pos + 1) + " 个字符处：" + message + "，请修改!");
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.main;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * 性能测试共用的计时方法和输入。性能测试都是普通的 main 方法，不在 mvn test 中运行，
+ * 先 {@code mvn test-compile}，再用 target/classes、target/test-classes 和依赖的 jar 作为 classpath 运行，例如
+ * {@code java -cp target/classes:target/test-classes:... org.main.ScannerBenchmark 8}。
+ */
+final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    /**
+     * 先运行 warmups 次预热，再运行 runs 次计时，输出每次用时的中位数和最小值。
+     *
+     * @return 用时的中位数，单位毫秒
+     */
+    static double measure(String name, int warmups, int runs, Runnable body) {
+        return measure(name, warmups, runs, () -> null, input -> body.run());
+    }
+
+    /**
+     * 和 {@link #measure(String, int, int, Runnable)} 相同，但每次运行之前先用 setup 准备输入，准备的时间不计入。
+     *
+     * @return 用时的中位数，单位毫秒
+     */
+    static <T> double measure(String name, int warmups, int runs, Supplier<T> setup, Consumer<T> body) {
+        for (int i = 0; i < warmups; i++) {
+            body.accept(setup.get());
+        }
+        double[] millis = new double[runs];
+        for (int i = 0; i < runs; i++) {
+            T input = setup.get();
+            long start = System.nanoTime();
+            body.accept(input);
+            millis[i] = (System.nanoTime() - start) / 1e6;
+        }
+        Arrays.sort(millis);
+        double median = millis[runs / 2];
+        System.out.printf("%-40s 中位数 %10.2f ms，最快 %10.2f ms%n", name, median, millis[0]);
+        return median;
+    }
+
+    /**
+     * @return 不少于 minChars 个字符的、没有错误的随机程序，同一个参数总是得到同一个程序
+     */
+    static String program(int minChars) {
+        Random random = new Random(minChars);
+        StringBuilder program = new StringBuilder(minChars + 4096);
+        while (program.length() < minChars) {
+            program.append(RandomPrograms.valid(random, 100));
+        }
+        return program.toString();
+    }
+
+    /**
+     * @return 第 index 个命令行参数，没有时返回 defaultValue
+     */
+    static int intArg(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+}
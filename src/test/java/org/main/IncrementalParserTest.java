@@ -0,0 +1,73 @@
+package org.main;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 增量语法分析（{@link IncrementalParser#reparse}）得到的语法树必须和对修改后的整个文件重新分析的结果相同，
+ * 中间有过语法错误的修改也一样。
+ */
+class IncrementalParserTest {
+    private static final int PROGRAMS = 40;
+    private static final int EDITS = 25;
+
+    /**
+     * 对 source 整个做词法分析和语法分析，返回语法树；有语法错误时在末尾加上标记。
+     */
+    private static String parseWhole(String source) {
+        RandomPrograms.Diagnostics diagnostics = new RandomPrograms.Diagnostics();
+        Lexer lexer = RandomPrograms.lex(source, diagnostics.context);
+        IncrementalParser parser = new IncrementalParser(lexer, CompiledLanguage.PARSER_GRAMMAR_FILE);
+        parser.analyze();
+        return dump(parser);
+    }
+
+    private static String dump(IncrementalParser parser) {
+        return parser.hasErrors() ? "有语法错误\n" : RandomPrograms.dumpTree(parser.getRoot());
+    }
+
+    @Test
+    void reparseMatchesFullParse() {
+        for (int seed = 0; seed < PROGRAMS; seed++) {
+            Random random = new Random(seed);
+            SourceText source = SourceText.of(RandomPrograms.valid(random, 1 + random.nextInt(30)));
+            RandomPrograms.Diagnostics diagnostics = new RandomPrograms.Diagnostics();
+            Lexer lexer = RandomPrograms.lex(new String(source.chars(), 0, source.length()), diagnostics.context);
+            IncrementalParser parser = new IncrementalParser(lexer, CompiledLanguage.PARSER_GRAMMAR_FILE);
+            parser.analyze();
+
+            for (int edit = 0; edit < EDITS; edit++) {
+                int lines = source.lineCount();
+                int firstLine = 1 + random.nextInt(lines + 1);
+                int endLine = Math.min(lines + 1, firstLine + random.nextInt(4));
+                String replacement = RandomPrograms.randomLines(random);
+
+                Lexer.TokenChange change = lexer.relex(firstLine, endLine, replacement);
+                parser.reparse(change);
+                source = source.replaceLines(firstLine, endLine, replacement);
+
+                String where = "seed " + seed + " edit " + edit + " " + change;
+                assertEquals(parseWhole(new String(source.chars(), 0, source.length())), dump(parser), where);
+            }
+        }
+    }
+
+    @Test
+    void editInsideOneStatementReparsesOnlyThatStatement() {
+        String source = RandomPrograms.valid(new Random(1), 200) + "forward 1;\n";
+        Lexer lexer = RandomPrograms.lex(source, new RandomPrograms.Diagnostics().context);
+        IncrementalParser parser = new IncrementalParser(lexer, CompiledLanguage.PARSER_GRAMMAR_FILE);
+        ExtendedASTNode before = parser.analyze();
+        ExtendedASTNode firstStatement = before.getChildren().get(0);
+
+        int lastLine = SourceText.of(source).lineCount();
+        ExtendedASTNode after = parser.reparse(lexer.relex(lastLine, lastLine + 1, "forward 2;\n"));
+        assertFalse(parser.hasErrors());
+        assertSame(before, after);
+        assertSame(firstStatement, after.getChildren().get(0));
+        assertTrue(parser.getReparsedTokens() < 10, "重新分析了 " + parser.getReparsedTokens() + " 个 token");
+    }
+}
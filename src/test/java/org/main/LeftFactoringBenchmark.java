@@ -0,0 +1,55 @@
+package org.main;
+
+/**
+ * 提取左公因子和整个文法编译的用时。
+ * <p>
+ * 人工构造的文法只有一个非终结符 command，有几百到几千个候选式，每个候选式是 6 个终结符，
+ * 前缀大量重复，提取左公因子之后是一棵很深的 mid_command_ext 树。另外测量从文件加载真实的文法
+ * （展开 EBNF、消除左递归、提取左公因子、计算 first/follow 集合、建立预测分析表）的总用时。
+ * </p>
+ * <p>
+ * 参数：计时次数（默认 10）。
+ * </p>
+ */
+public class LeftFactoringBenchmark {
+    private static final String[] SYMBOLS = {"FORWARD", "NUMBER", "COMMA", "ID", "SEMI"};
+    private static final int LENGTH = 6; // 每个候选式的长度
+
+    public static void main(String[] args) {
+        int runs = Benchmarks.intArg(args, 0, 10);
+        GrammarRule grammarRule = new GrammarRule();
+        grammarRule.createRuleFromFile(CompiledLanguage.LEXER_GRAMMAR_FILE);
+        String[] terminals = grammarRule.getAllTokenNames();
+
+        for (int alternatives = 200; alternatives <= 3200; alternatives *= 2) {
+            int count = alternatives;
+            int[] nonTerminals = new int[1];
+            Benchmarks.measure("提取左公因子，" + count + " 个候选式", 3, runs, () -> {
+                ParserGrammar grammar = new ParserGrammar(terminals);
+                for (int i = 0; i < count; i++) {
+                    grammar.addProduction("command", alternative(i));
+                }
+                grammar.eliminateLeftCommonFactors();
+                nonTerminals[0] = grammar.productions.size();
+            });
+            System.out.printf("    提取之后有 %d 个非终结符%n", nonTerminals[0]);
+        }
+
+        Benchmarks.measure("加载 " + CompiledLanguage.PARSER_GRAMMAR_FILE, 3, runs, () -> {
+            ParserGrammar grammar = new ParserGrammar(terminals);
+            grammar.loadGrammarFromFile(CompiledLanguage.PARSER_GRAMMAR_FILE);
+        });
+    }
+
+    /**
+     * @return 第 i 个候选式：把 i 写成 SYMBOLS.length 进制的 LENGTH 位数，每一位对应一个终结符
+     */
+    private static String[] alternative(int i) {
+        String[] production = new String[LENGTH];
+        for (int k = LENGTH - 1; k >= 0; k--) {
+            production[k] = SYMBOLS[i % SYMBOLS.length];
+            i /= SYMBOLS.length;
+        }
+        return production;
+    }
+}
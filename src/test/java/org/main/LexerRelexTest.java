@@ -0,0 +1,79 @@
+package org.main;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 增量词法分析（{@link Lexer#relex}）之后的 token 流和词法错误，必须和对修改后的整个文件重新分析的结果相同。
+ */
+class LexerRelexTest {
+    private static final int PROGRAMS = 40;
+    private static final int EDITS = 25;
+
+    /**
+     * 按 relex 的规则替换 [firstLine, endLine) 的行。
+     */
+    private static String replaceLines(String source, int firstLine, int endLine, String replacement) {
+        SourceText text = SourceText.of(source).replaceLines(firstLine, endLine, replacement);
+        return new String(text.chars(), 0, text.length());
+    }
+
+    /**
+     * @return 全部词法错误的行号和信息，每个错误一行
+     */
+    private static String dumpErrors(Lexer lexer) {
+        StringBuilder out = new StringBuilder();
+        for (Lexer.LexicalError error : lexer.errors) {
+            out.append(error.line).append(' ').append(error.message).append('\n');
+        }
+        return out.toString();
+    }
+
+    @Test
+    void relexMatchesFullLex() {
+        for (int seed = 0; seed < PROGRAMS; seed++) {
+            Random random = new Random(seed);
+            String source = random.nextInt(4) == 0
+                    ? RandomPrograms.withLexicalErrors(random, 1 + random.nextInt(20), 1 + random.nextInt(2))
+                    : RandomPrograms.valid(random, 1 + random.nextInt(20));
+            RandomPrograms.Diagnostics incremental = new RandomPrograms.Diagnostics();
+            Lexer lexer = RandomPrograms.lex(source, incremental.context);
+
+            for (int edit = 0; edit < EDITS; edit++) {
+                int lines = SourceText.of(source).lineCount();
+                int firstLine = 1 + random.nextInt(lines + 1);
+                int endLine = Math.min(lines + 1, firstLine + random.nextInt(4));
+                String replacement = random.nextInt(8) == 0 ? "x = 5 @;\n" : RandomPrograms.randomLines(random);
+
+                Lexer.TokenChange change = lexer.relex(firstLine, endLine, replacement);
+                source = replaceLines(source, firstLine, endLine, replacement);
+                RandomPrograms.Diagnostics full = new RandomPrograms.Diagnostics();
+                Lexer expected = RandomPrograms.lex(source, full.context);
+
+                String where = "seed " + seed + " edit " + edit + " " + change;
+                assertEquals(RandomPrograms.dumpTokens(expected.getTokens()), RandomPrograms.dumpTokens(lexer.getTokens()), where);
+                assertEquals(dumpErrors(expected), dumpErrors(lexer), where);
+                for (int line = 1; line <= SourceText.of(source).lineCount(); line++) {
+                    assertEquals(expected.lineText(line), lexer.lineText(line), where + " line " + line);
+                }
+            }
+        }
+    }
+
+    @Test
+    void unchangedTokensAfterTheEditAreShifted() {
+        RandomPrograms.Diagnostics diagnostics = new RandomPrograms.Diagnostics();
+        Lexer lexer = RandomPrograms.lex("forward 1;\nslam;\nrelease;\n", diagnostics.context);
+        Lexer.TokenChange change = lexer.relex(1, 2, "x = 5;\ny = 6;\n");
+        assertEquals(0, change.getStart());
+        assertEquals(3, change.getOldEnd());
+        assertEquals(8, change.getNewEnd());
+        assertEquals(1, change.getLineDelta());
+        TokenBuffer tokens = lexer.getTokens();
+        assertEquals("slam", tokens.text(8));
+        assertEquals(3, tokens.line(8));
+    }
+}
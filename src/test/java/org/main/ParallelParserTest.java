@@ -0,0 +1,85 @@
+package org.main;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 分段并行分析的结果（语法树、错误信息和是否有错误）必须和顺序分析的完全相同，有语法错误时也一样。
+ * 把每段的最少 token 数调得很小，让随机生成的短程序也分成很多段。
+ */
+class ParallelParserTest {
+    private static final int PROGRAMS = 60;
+    private static ForkJoinPool pool;
+
+    @BeforeAll
+    static void startPool() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterAll
+    static void stopPool() {
+        pool.shutdown();
+    }
+
+    private static String parseSequentially(String source) {
+        RandomPrograms.Diagnostics diagnostics = new RandomPrograms.Diagnostics();
+        Lexer lexer = RandomPrograms.lex(source, diagnostics.context);
+        ExtendedASTBuilder tree = new ExtendedASTBuilder();
+        Parser parser = new Parser(lexer);
+        parser.analyze(CompiledLanguage.PARSER_GRAMMAR_FILE, tree);
+        return RandomPrograms.dumpTree(tree.getRoot()) + parser.hasErrors() + '\n' + diagnostics.errors();
+    }
+
+    private static String parseInParallel(String source, int minChunkTokens) {
+        RandomPrograms.Diagnostics diagnostics = new RandomPrograms.Diagnostics();
+        Lexer lexer = RandomPrograms.lex(source, diagnostics.context);
+        ParallelParser parser = new ParallelParser(lexer, pool, minChunkTokens);
+        ExtendedASTNode root = parser.analyze(CompiledLanguage.PARSER_GRAMMAR_FILE);
+        return RandomPrograms.dumpTree(root) + parser.hasErrors() + '\n' + diagnostics.errors();
+    }
+
+    @Test
+    void generatedParserIsAvailable() {
+        // 没有生成的分析器时 ParallelParser 总是顺序分析，下面的测试就没有意义了
+        assertNotNull(SpecializedParser.create(CompiledLanguage.LEXER_GRAMMAR_FILE, CompiledLanguage.PARSER_GRAMMAR_FILE));
+    }
+
+    @Test
+    void validProgramsMatchSequentialParse() {
+        for (int seed = 0; seed < PROGRAMS; seed++) {
+            Random random = new Random(seed);
+            String source = RandomPrograms.valid(random, 1 + random.nextInt(60));
+            int minChunkTokens = 1 + random.nextInt(20);
+            assertEquals(parseSequentially(source), parseInParallel(source, minChunkTokens), "seed " + seed);
+        }
+    }
+
+    @Test
+    void syntaxErrorsMatchSequentialParse() {
+        for (int seed = 0; seed < PROGRAMS; seed++) {
+            Random random = new Random(seed);
+            String source = RandomPrograms.withSyntaxErrors(random, 1 + random.nextInt(60), 1 + random.nextInt(3));
+            int minChunkTokens = 1 + random.nextInt(20);
+            assertEquals(parseSequentially(source), parseInParallel(source, minChunkTokens), "seed " + seed);
+        }
+    }
+
+    @Test
+    void errorAtChunkBoundaryMatchesSequentialParse() {
+        // 12000 行、每行 3 个 token，默认的段长下正好在第 5462 行附近分段
+        StringBuilder source = new StringBuilder();
+        for (int line = 1; line <= 12000; line++) {
+            source.append(line == 5462 ? "x = ;" : "forward 1;").append('\n');
+        }
+        String expected = parseSequentially(source.toString());
+        assertTrue(expected.contains("true\n"), "应当有语法错误");
+        assertEquals(expected, parseInParallel(source.toString(), ParallelParser.MIN_CHUNK_TOKENS));
+        assertEquals(expected, parseInParallel(source.toString(), 3));
+    }
+}
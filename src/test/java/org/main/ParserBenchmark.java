@@ -0,0 +1,51 @@
+package org.main;
+
+/**
+ * 语法分析的吞吐量：同一个程序只做一次词法分析，然后反复做语法分析，
+ * 分别用按 int 预测分析表的分析过程和构建时生成的分析器（见 {@link ParserGenerator}），
+ * 分别建立化简后的语法树和只产生事件（见 {@link ParseListener}）。
+ * <p>
+ * 参数：程序大小（MB，默认 4），计时次数（默认 10）。
+ * </p>
+ */
+public class ParserBenchmark {
+    public static void main(String[] args) {
+        int megabytes = Benchmarks.intArg(args, 0, 4);
+        int runs = Benchmarks.intArg(args, 1, 10);
+        Lexer lexer = new Lexer(CompiledLanguage.LEXER_GRAMMAR_FILE, new CompilationContext());
+        lexer.analyze(SourceText.of(Benchmarks.program(megabytes << 20)));
+        int tokens = lexer.getTokens().size();
+        System.out.printf("%d 个 token%n", tokens);
+
+        for (boolean generated : new boolean[]{false, true}) {
+            if (generated) {
+                System.clearProperty(SpecializedParser.MODE_PROPERTY);
+                if (SpecializedParser.create(CompiledLanguage.LEXER_GRAMMAR_FILE, CompiledLanguage.PARSER_GRAMMAR_FILE) == null) {
+                    System.out.println("没有生成的分析器，跳过");
+                    continue;
+                }
+            } else {
+                System.setProperty(SpecializedParser.MODE_PROPERTY, "interpreted");
+            }
+            String mode = generated ? "生成的分析器" : "预测分析表";
+            report(Benchmarks.measure(mode + "，建立语法树", 3, runs, () -> {
+                Parser parser = new Parser(lexer);
+                parser.analyze(CompiledLanguage.PARSER_GRAMMAR_FILE, new ExtendedASTBuilder());
+                check(parser);
+            }), tokens);
+            report(Benchmarks.measure(mode + "，只产生事件", 3, runs, () -> {
+                Parser parser = new Parser(lexer);
+                parser.analyze(CompiledLanguage.PARSER_GRAMMAR_FILE, new ParseListener() {});
+                check(parser);
+            }), tokens);
+        }
+    }
+
+    private static void check(Parser parser) {
+        if (parser.hasErrors()) throw new IllegalStateException("测试程序有语法错误");
+    }
+
+    private static void report(double millis, int tokens) {
+        System.out.printf("    %.1f 百万 token/s%n", tokens / 1e6 / (millis / 1000));
+    }
+}
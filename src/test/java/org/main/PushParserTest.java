@@ -0,0 +1,90 @@
+package org.main;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 分段送入的结果（语法树和错误信息）必须和一次读入整个文件、再做语法分析的结果相同，和怎样分段无关。
+ */
+class PushParserTest {
+    private static final int PROGRAMS = 60;
+
+    /**
+     * 一次读入整个程序分析，返回语法树和全部错误信息。
+     */
+    private static String parseWhole(String source) {
+        RandomPrograms.Diagnostics diagnostics = new RandomPrograms.Diagnostics();
+        Lexer lexer = RandomPrograms.lex(source, diagnostics.context);
+        ExtendedASTBuilder tree = new ExtendedASTBuilder();
+        Parser parser = new Parser(lexer);
+        parser.analyze(CompiledLanguage.PARSER_GRAMMAR_FILE, tree);
+        return RandomPrograms.dumpTree(tree.getRoot()) + diagnostics.errors();
+    }
+
+    /**
+     * 按随机的长度（1 到 maxChunk 个字符）分段送入，返回语法树和全部错误信息。
+     */
+    private static String parsePushed(String source, Random random, int maxChunk) {
+        RandomPrograms.Diagnostics diagnostics = new RandomPrograms.Diagnostics();
+        Lexer lexer = new Lexer(CompiledLanguage.LEXER_GRAMMAR_FILE, diagnostics.context);
+        ExtendedASTBuilder tree = new ExtendedASTBuilder();
+        try (PushParser parser = new PushParser(lexer, CompiledLanguage.PARSER_GRAMMAR_FILE, tree)) {
+            for (int i = 0; i < source.length(); ) {
+                int length = Math.min(source.length() - i, 1 + random.nextInt(maxChunk));
+                parser.feed(source.subSequence(i, i + length));
+                i += length;
+            }
+            parser.finish();
+        }
+        return RandomPrograms.dumpTree(tree.getRoot()) + diagnostics.errors();
+    }
+
+    @Test
+    void validProgramsMatchWholeParse() {
+        for (int seed = 0; seed < PROGRAMS; seed++) {
+            Random random = new Random(seed);
+            String source = RandomPrograms.valid(random, 1 + random.nextInt(30));
+            int maxChunk = 1 + random.nextInt(40);
+            assertEquals(parseWhole(source), parsePushed(source, random, maxChunk), "seed " + seed);
+        }
+    }
+
+    @Test
+    void syntaxErrorsMatchWholeParse() {
+        for (int seed = 0; seed < PROGRAMS; seed++) {
+            Random random = new Random(seed);
+            String source = RandomPrograms.withSyntaxErrors(random, 1 + random.nextInt(30), 1 + random.nextInt(3));
+            int maxChunk = 1 + random.nextInt(40);
+            String expected = parseWhole(source);
+            assertTrue(expected.contains("Invalid") || expected.contains("incomplete") || expected.contains("Missing")
+                    || expected.contains("程序开头"), "seed " + seed + " 应当有语法错误");
+            assertEquals(expected, parsePushed(source, random, maxChunk), "seed " + seed);
+        }
+    }
+
+    @Test
+    void feedReportsErrorsAsSoonAsTheyArrive() {
+        String source = "forward 1;\nx = ;\n";
+        Lexer lexer = new Lexer(CompiledLanguage.LEXER_GRAMMAR_FILE, new RandomPrograms.Diagnostics().context);
+        try (PushParser parser = new PushParser(lexer, CompiledLanguage.PARSER_GRAMMAR_FILE, new ParseListener() {})) {
+            assertTrue(parser.feed("forward 1;\n"));
+            assertFalse(parser.feed(source.substring("forward 1;\n".length())));
+        }
+    }
+
+    @Test
+    void closeWithoutFinishStopsTheParserThread() {
+        // close() 等到语法分析线程结束才返回，放弃的分析不会留下等待中的线程
+        for (int i = 0; i < 1000; i++) {
+            Lexer lexer = new Lexer(CompiledLanguage.LEXER_GRAMMAR_FILE, new RandomPrograms.Diagnostics().context);
+            PushParser parser = new PushParser(lexer, CompiledLanguage.PARSER_GRAMMAR_FILE, new ParseListener() {});
+            parser.feed("forward 1;\nwhile x > 1 {\n");
+            parser.close();
+            assertThrows(RuntimeException.class, () -> parser.feed("slam;\n"));
+            parser.close(); // 可以重复调用
+        }
+    }
+}
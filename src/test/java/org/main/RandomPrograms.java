@@ -0,0 +1,195 @@
+package org.main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 测试用的随机程序和公共的比较方法。同一个种子总是生成同一个程序，测试失败时可以用种子重现。
+ */
+final class RandomPrograms {
+    private static final String[] COMMANDS = {
+            "forward 1;", "backward 2.5;", "turnright 90;", "turnleft 45;", "goto 1,2,3;", "approach \"red cube\";",
+            "grasp pos;", "release;", "slam;", "say \"hello\" x;", "set_grip 0.5;", "set_end 1,2,3,4,5,6,7;",
+            "set_end pos;", "add_variable pos 1 2;", "break;"
+    };
+    private static final String[] ASSIGNS = {
+            "x = 5;", "y = (x + 3);", "pos = get_obj_position \"cube\";", "objs = get_operable_objs;",
+            "p = [1, 2, 3, 4, 5, 6, 7];", "q = query_user;", "s = \"text\";"
+    };
+    private static final String[] CONDITIONS = {
+            "x > 3", "x < 1 or \"a\" above \"b\"", "\"a\" in objs and y == 2", "(x * 2) != y", "\"b\" notin objs"
+    };
+    // 语法错误：缺分号、缺右边的值、多余的参数、括号不全等
+    private static final String[] SYNTAX_ERRORS = {
+            "x = ;", "forward 1", "turnleft 1 2;", "if x > { forward 1; }", "y = x + 1;", "while (x > 1) { slam; }",
+            "goto 1,2;", "= 5;", "}", "release \"a\";", "if x large 1 { slam; }"
+    };
+    // 词法错误：无法识别的字符、没有结束的字符串
+    private static final String[] LEXICAL_ERRORS = {"x = 5 @;", "say \"unterminated;", "forward $;"};
+
+    private RandomPrograms() {
+    }
+
+    /**
+     * @param statements 顶层语句数
+     * @return 没有错误的程序，每行一个简单语句，复合语句跨多行
+     */
+    static String valid(Random random, int statements) {
+        StringBuilder program = new StringBuilder();
+        for (int i = 0; i < statements; i++) {
+            statement(random, program, 0);
+        }
+        return program.toString();
+    }
+
+    /**
+     * @return 在随机的位置上插入了 errors 个语法错误的程序
+     */
+    static String withSyntaxErrors(Random random, int statements, int errors) {
+        return insertLines(random, valid(random, statements), SYNTAX_ERRORS, errors);
+    }
+
+    /**
+     * @return 在随机的位置上插入了 errors 个词法错误的程序
+     */
+    static String withLexicalErrors(Random random, int statements, int errors) {
+        return insertLines(random, valid(random, statements), LEXICAL_ERRORS, errors);
+    }
+
+    /**
+     * @return 随机的一行或几行语句，有时是错误的语句，用来替换程序中的行
+     */
+    static String randomLines(Random random) {
+        StringBuilder lines = new StringBuilder();
+        int count = random.nextInt(3);
+        for (int i = 0; i < count; i++) {
+            if (random.nextInt(6) == 0) {
+                lines.append(SYNTAX_ERRORS[random.nextInt(SYNTAX_ERRORS.length)]).append('\n');
+            } else {
+                statement(random, lines, 0);
+            }
+        }
+        return lines.toString();
+    }
+
+    private static String insertLines(Random random, String program, String[] candidates, int count) {
+        List<String> lines = new ArrayList<>(List.of(program.split("\n", -1)));
+        for (int i = 0; i < count; i++) {
+            lines.add(random.nextInt(lines.size()), candidates[random.nextInt(candidates.length)]);
+        }
+        return String.join("\n", lines);
+    }
+
+    private static void statement(Random random, StringBuilder out, int depth) {
+        String indent = "  ".repeat(depth);
+        int kind = depth >= 3 ? random.nextInt(2) : random.nextInt(6);
+        switch (kind) {
+            case 0 -> out.append(indent).append(COMMANDS[random.nextInt(COMMANDS.length)]).append('\n');
+            case 1 -> out.append(indent).append(ASSIGNS[random.nextInt(ASSIGNS.length)]).append('\n');
+            case 2 -> {
+                out.append(indent).append("if ").append(condition(random)).append(" {\n");
+                block(random, out, depth + 1);
+                int elses = random.nextInt(3);
+                for (int i = 0; i < elses; i++) {
+                    boolean last = i == elses - 1 && random.nextBoolean();
+                    out.append(indent).append(last ? "} else {\n" : "} else if " + condition(random) + " {\n");
+                    block(random, out, depth + 1);
+                    if (last) break;
+                }
+                out.append(indent).append("}\n");
+            }
+            case 3 -> {
+                out.append(indent).append("while ").append(condition(random)).append(" {\n");
+                block(random, out, depth + 1);
+                out.append(indent).append("}\n");
+            }
+            case 4 -> {
+                out.append(indent).append("for 1 to ").append(random.nextBoolean() ? "x" : "3").append(" { # loop\n");
+                block(random, out, depth + 1);
+                out.append(indent).append("}\n");
+            }
+            default -> out.append(indent).append(COMMANDS[random.nextInt(COMMANDS.length)])
+                    .append(' ').append(ASSIGNS[random.nextInt(ASSIGNS.length)]).append('\n'); // 一行两个语句
+        }
+    }
+
+    private static void block(Random random, StringBuilder out, int depth) {
+        int count = 1 + random.nextInt(3);
+        for (int i = 0; i < count; i++) {
+            statement(random, out, depth);
+        }
+    }
+
+    private static String condition(Random random) {
+        return CONDITIONS[random.nextInt(CONDITIONS.length)];
+    }
+
+    // ---------- 比较用的方法 ----------
+
+    /**
+     * 一次编译的状态，错误信息收集在 {@link #errors()} 中。
+     */
+    static final class Diagnostics {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final CompilationContext context = new CompilationContext();
+
+        Diagnostics() {
+            context.setErr(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+        }
+
+        String errors() {
+            return bytes.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @return 对 source 做词法分析的词法分析器，只在当前线程中分析
+     */
+    static Lexer lex(String source, CompilationContext context) {
+        Lexer lexer = new Lexer(CompiledLanguage.LEXER_GRAMMAR_FILE, context);
+        lexer.setParallel(false);
+        lexer.analyze(SourceText.of(source));
+        return lexer;
+    }
+
+    /**
+     * @return 全部 token 的类型、文本、行号和列号，每个 token 一行
+     */
+    static String dumpTokens(TokenBuffer tokens) {
+        StringBuilder out = new StringBuilder();
+        String[] names = tokens.getTypeNames();
+        for (int i = 0; i < tokens.size(); i++) {
+            out.append(names[tokens.type(i)]).append(' ').append(tokens.text(i)).append(' ')
+                    .append(tokens.line(i)).append(':').append(tokens.column(i)).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return 语法树的先序遍历，每个结点一行
+     */
+    static String dumpTree(ExtendedASTNode root) {
+        StringBuilder out = new StringBuilder();
+        dumpTree(root, 0, out);
+        return out.toString();
+    }
+
+    private static void dumpTree(ExtendedASTNode node, int depth, StringBuilder out) {
+        if (node == null) {
+            out.append("null\n");
+            return;
+        }
+        out.append("  ".repeat(depth)).append(node.getType());
+        if (node.isTerminal()) {
+            out.append(' ').append(node.getValue()).append(" @").append(node.getLineNumber());
+        }
+        out.append('\n');
+        for (ExtendedASTNode child : node.getChildren()) {
+            dumpTree(child, depth + 1, out);
+        }
+    }
+}
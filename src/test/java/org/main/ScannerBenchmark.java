@@ -0,0 +1,27 @@
+package org.main;
+
+/**
+ * 词法分析的吞吐量：对几 MB 的程序整个做词法分析，分别在当前线程中和按行分片并行分析。
+ * <p>
+ * 参数：程序大小（MB，默认 8），计时次数（默认 10）。
+ * </p>
+ */
+public class ScannerBenchmark {
+    public static void main(String[] args) {
+        int megabytes = Benchmarks.intArg(args, 0, 8);
+        int runs = Benchmarks.intArg(args, 1, 10);
+        SourceText text = SourceText.of(Benchmarks.program(megabytes << 20));
+        System.out.printf("程序 %.1f MB，%d 行%n", text.length() / 1048576.0, text.lineCount());
+
+        for (boolean parallel : new boolean[]{false, true}) {
+            int[] tokens = new int[1];
+            double millis = Benchmarks.measure(parallel ? "词法分析（并行）" : "词法分析（单线程）", 3, runs, () -> {
+                Lexer lexer = new Lexer(CompiledLanguage.LEXER_GRAMMAR_FILE, new CompilationContext());
+                lexer.setParallel(parallel);
+                lexer.analyze(text);
+                tokens[0] = lexer.getTokens().size();
+            });
+            System.out.printf("    %d 个 token，%.1f MB/s%n", tokens[0], text.length() / 1048576.0 / (millis / 1000));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.main;
+
+import java.io.Writer;
+
+/**
+ * 语义分析的吞吐量：遍历化简后的语法树、执行语义动作、生成代码和控制流图。
+ * 和编译时一样每棵语法树只分析一次，所以每次计时之前都重新建一棵语法树，建树的时间不计入；生成的代码直接丢弃。
+ * <p>
+ * 参数：程序大小（MB，默认 2），计时次数（默认 10）。
+ * </p>
+ */
+public class SemanticsBenchmark {
+    // 随机生成的程序不一定能通过语义分析（例如循环外的 break），所以重复一段固定的程序，各种语句都有
+    private static final String BLOCK = String.join("\n",
+            "x = 5;",
+            "y = (x + 3);",
+            "pos = get_obj_position \"cube\";",
+            "objs = get_operable_objs;",
+            "p = [1, 2, 3, 4, 5, 6, 7];",
+            "forward 1;",
+            "turnleft 45;",
+            "approach \"red cube\";",
+            "grasp pos;",
+            "if x > 3 {",
+            "  say \"hello\" x;",
+            "  goto 1,2,3;",
+            "} else if \"a\" in objs and y == 2 {",
+            "  set_end p;",
+            "} else {",
+            "  release;",
+            "}",
+            "while x < 1 or \"a\" above \"b\" {",
+            "  backward 2.5;",
+            "  if (x * 2) != y {",
+            "    turnright 90;",
+            "  }",
+            "}",
+            "for 1 to 3 {",
+            "  set_grip 0.5;",
+            "  slam;",
+            "}",
+            "");
+
+    public static void main(String[] args) {
+        int megabytes = Benchmarks.intArg(args, 0, 2);
+        int runs = Benchmarks.intArg(args, 1, 10);
+        Lexer lexer = new Lexer(CompiledLanguage.LEXER_GRAMMAR_FILE, new CompilationContext());
+        lexer.analyze(SourceText.of(BLOCK.repeat(Math.max(1, (megabytes << 20) / BLOCK.length()))));
+        int[] nodes = new int[1];
+
+        double millis = Benchmarks.measure("语义分析", 3, runs, () -> {
+            ArenaAST.Builder tree = new ArenaAST.Builder(lexer.getTokens());
+            Parser parser = new Parser(lexer);
+            parser.analyze(CompiledLanguage.PARSER_GRAMMAR_FILE, tree);
+            if (parser.hasErrors()) throw new IllegalStateException("测试程序有语法错误");
+            nodes[0] = count(tree.getTree().cursor());
+            return new SemanticsHandler(tree.getTree(), lexer.getContext());
+        }, handler -> handler.analyzeSemantics(Writer.nullWriter()));
+        System.out.printf("    %d 个结点，%.1f 百万结点/s%n", nodes[0], nodes[0] / 1e6 / (millis / 1000));
+    }
+
+    private static int count(ArenaAST.Cursor node) {
+        int count = 1;
+        if (node.toFirstChild()) {
+            do {
+                count += count(node);
+            } while (node.toNextSibling());
+            node.toParent();
+        }
+        return count;
+    }
+}
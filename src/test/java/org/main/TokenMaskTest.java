@@ -0,0 +1,130 @@
+package org.main;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link TokenMask} 的结果必须和直接按预测分析表逐个试探终结符的结果相同：
+ * 终结符在集合中当且仅当按表展开能接受它（有冲突时集合可以多出冲突位置上的终结符）。
+ */
+class TokenMaskTest {
+    private static final int WALKS = 200;
+    private static final int STEPS = 300;
+
+    private final ParserGrammar grammar = CompiledLanguage.load(CompiledLanguage.LEXER_GRAMMAR_FILE,
+            CompiledLanguage.PARSER_GRAMMAR_FILE, CompiledLanguage.TEMPLATE_FILE).getParserGrammar();
+    private final TokenMask mask = new TokenMask(grammar);
+
+    /**
+     * 最直接的 LL(1) 分析栈：符号名的栈，按字符串形式的预测分析表展开。
+     */
+    private final class NaiveState {
+        private final Deque<String> stack = new ArrayDeque<>();
+
+        NaiveState() {
+            stack.push("$");
+            stack.push(grammar.getStartSymbol());
+        }
+
+        private NaiveState(NaiveState other) {
+            stack.addAll(other.stack);
+        }
+
+        /**
+         * @return 读入 terminal 之后的状态，不能接受时返回 null
+         */
+        NaiveState advance(String terminal) {
+            NaiveState next = new NaiveState(this);
+            while (!next.stack.isEmpty()) {
+                String top = next.stack.pop();
+                Map<String, String[]> row = grammar.predictiveTable.get(top);
+                if (row == null) {
+                    return top.equals(terminal) ? next : null;
+                }
+                String[] production = row.get(terminal);
+                if (production == null || production == grammar.getConflictSymbol()) {
+                    return null;
+                }
+                for (int i = production.length - 1; i >= 0; i--) {
+                    if (!production[i].equals("ε")) next.stack.push(production[i]);
+                }
+            }
+            return null;
+        }
+    }
+
+    private void assertSameAsNaive(TokenMask.State state, NaiveState naive, String where) {
+        for (int terminal = 0; terminal < mask.terminalCount(); terminal++) {
+            String name = mask.terminalName(terminal);
+            boolean accepted = naive.advance(name) != null;
+            if (grammar.conflicts.isEmpty()) {
+                assertEquals(accepted, state.allows(terminal), where + " " + name);
+            } else if (accepted) {
+                assertTrue(state.allows(terminal), where + " " + name);
+            }
+            assertEquals(accepted, state.fork().advance(terminal), where + " " + name);
+        }
+        assertEquals(naive.advance("$") != null, state.isComplete(), where);
+    }
+
+    @Test
+    void randomWalksMatchNaiveTable() {
+        for (int walk = 0; walk < WALKS; walk++) {
+            Random random = new Random(walk);
+            TokenMask.State state = mask.start();
+            NaiveState naive = new NaiveState();
+            for (int step = 0; step < STEPS; step++) {
+                String where = "walk " + walk + " step " + step;
+                assertSameAsNaive(state, naive, where);
+
+                // 随机选一个终结符，多数时候选能接受的，偶尔选不能接受的，检查状态不变
+                List<String> allowed = new ArrayList<>();
+                for (int terminal = 0; terminal < mask.terminalCount(); terminal++) {
+                    String name = mask.terminalName(terminal);
+                    if (terminal != mask.endTerminal() && naive.advance(name) != null) allowed.add(name);
+                }
+                if (allowed.isEmpty()) break;
+                if (random.nextInt(5) == 0) {
+                    String name = mask.terminalName(random.nextInt(mask.terminalCount()));
+                    if (naive.advance(name) == null) {
+                        int depth = state.depth();
+                        assertFalse(state.advance(name), where + " " + name);
+                        assertEquals(depth, state.depth(), where);
+                        continue;
+                    }
+                }
+                String next = allowed.get(random.nextInt(allowed.size()));
+                assertTrue(state.advance(next), where + " " + next);
+                naive = naive.advance(next);
+            }
+        }
+    }
+
+    @Test
+    void programsAreAcceptedTokenByToken() {
+        for (int seed = 0; seed < 40; seed++) {
+            Random random = new Random(seed);
+            String source = RandomPrograms.valid(random, 1 + random.nextInt(30));
+            TokenBuffer tokens = RandomPrograms.lex(source, new RandomPrograms.Diagnostics().context).getTokens();
+            String[] names = tokens.getTypeNames();
+            TokenMask.State state = mask.start();
+            NaiveState naive = new NaiveState();
+            for (int i = 0; i < tokens.size(); i++) {
+                String name = names[tokens.type(i)];
+                String where = "seed " + seed + " token " + i + " " + name;
+                assertSameAsNaive(state, naive, where);
+                assertTrue(state.advance(name), where);
+                naive = naive.advance(name);
+            }
+            assertEquals(0, state.depth(), "seed " + seed);
+        }
+    }
+}